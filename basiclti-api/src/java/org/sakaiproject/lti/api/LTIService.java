@@ -21,9 +21,11 @@
 
 package org.sakaiproject.lti.api;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.exception.PermissionException;
@@ -41,6 +43,9 @@ public interface LTIService {
 	/** This string starts the references to resources in this service. */
 	static final String REFERENCE_ROOT = "/lti";
 
+	/** Event posted when a row changes so every node drops any copies it holds */
+	static final String EVENT_CACHE_INVALIDATE = "lti.cache.invalidate";
+
 	static String WEB_PORTLET = "sakai.web.168";
 	
 	/**
@@ -72,6 +77,48 @@ public interface LTIService {
      */
     public List<Map<String, Object>> getMembershipsJobs();
 
+    /**
+     * Takes a lease on up to max memberships jobs that are due, have not
+     * run since startedAt and are not leased by anyone else. The claim is
+     * a single conditional update so two nodes never get the same job.
+     * Times are in seconds since the epoch taken from this node's clock.
+     *
+     * @param owner A token unique to the caller's run
+     * @param startedAt When the caller's run started - jobs that have run
+     *  since then (on any node) are left alone
+     * @param max The most jobs to claim
+     * @param leaseSeconds How long the lease lasts unless renewed or released
+     * @return The rows claimed by this call
+     */
+    public List<Map<String, Object>> claimMembershipsJobs(String owner, long startedAt, int max, int leaseSeconds);
+
+    /**
+     * Extends the lease on a memberships job if it is still held by owner
+     *
+     * @return false if the lease has run out or been taken by someone else
+     */
+    public boolean renewMembershipsJobLease(String siteId, String owner, int leaseSeconds);
+
+    /**
+     * Gives up the lease on a memberships job, recording the run and when
+     * the job is next due
+     *
+     * @param nextRunSeconds How long from now before the job is due again
+     * @return false if the lease was not held by owner
+     */
+    public boolean releaseMembershipsJob(String siteId, String owner, int nextRunSeconds);
+
+    /**
+     * Records what the last memberships response for a site looked like so
+     * the next sync can tell whether the roster has changed
+     *
+     * @param digest A digest of the roster that was applied to the site
+     * @param etag The ETag header sent by the consumer, or null
+     * @param lastModified The Last-Modified header sent by the consumer, or null
+     * @return false if there is no job for the site
+     */
+    public boolean updateMembershipsJobRoster(String siteId, String digest, String etag, String lastModified);
+
 	/**
 	 * 
 	 * @return
@@ -218,6 +265,15 @@ public interface LTIService {
 	 */
 	public List<Map<String, Object>> getToolsDao(String search, String order, int first, int last, String siteId);
 
+	/**
+	 * The tools a site can use - its own and the global ones, visible or not.
+	 * No further checking is done.
+	 * 
+	 * @param siteId
+	 * @return
+	 */
+	public List<Map<String, Object>> getSiteToolsDao(String siteId);
+
 	/**
 	 * 
 	 * @param tool_id
@@ -247,6 +303,15 @@ public interface LTIService {
 	 */
 	public Object insertContentDao(Properties newProps, String siteId);
 
+	/**
+	 * Insert a number of content items in as few database round trips as possible
+	 *
+	 * @param newProps
+	 * @param siteId
+	 * @return A list with one entry per item - a Long (key on success) or a String (failure)
+	 */
+	public List<Object> insertContentsDao(List<Properties> newProps, String siteId);
+
 	/**
 	 * 
 	 * @param key
@@ -336,6 +401,26 @@ public interface LTIService {
 	 */
 	public List<Map<String, Object>> getContents(String search, String order, int first, int last);
 
+	/**
+	 * All of the content items in a site, with no further checking.  Used
+	 * to archive and merge a site.
+	 * 
+	 * @param siteId
+	 * @return
+	 */
+	public List<Map<String, Object>> getSiteContentsDao(String siteId);
+
+	/**
+	 * Of the given placement ids, return the ones that still exist.  This
+	 * checks the placements in batches rather than one lookup per id so it
+	 * is the right call when rendering a list of content items.  Only admins
+	 * see placements outside the current site.
+	 * 
+	 * @param placementIds
+	 * @return
+	 */
+	public Set<String> getExistingPlacements(Collection<String> placementIds);
+
 	/**
 	 * 
 	 * @param content
@@ -350,6 +435,14 @@ public interface LTIService {
 	 */
 	public void filterContent(Map<String, Object> content, Map<String, Object> tool);
 
+	/**
+	 * 
+	 * @param content
+	 * @param tool
+	 * @return A copy of the content with the settings the tool enforces
+	 */
+	public LtiContent filterContent(LtiContent content, LtiTool tool);
+
 	/**
 	 * 
 	 * @return
@@ -452,6 +545,70 @@ public interface LTIService {
 	public Map<String, Object> getProxyBindingDao(Long tool_id, String siteId);
 
 
+	/*-- Typed views of the rows, these return null when the map API would --*/
+
+	/**
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public LtiTool getLtiTool(Long key);
+
+	/**
+	 * 
+	 * @param key
+	 * @param siteId
+	 * @return
+	 */
+	public LtiTool getLtiToolDao(Long key, String siteId);
+
+	/**
+	 * 
+	 * @param resourceType
+	 * @return
+	 */
+	public LtiTool getLtiToolForResourceHandlerDao(String resourceType);
+
+	/**
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public LtiContent getLtiContent(Long key);
+
+	/**
+	 * 
+	 * @param key
+	 * @param siteId
+	 * @return
+	 */
+	public LtiContent getLtiContentDao(Long key, String siteId);
+
+	/**
+	 * Absolutely no checking at all.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public LtiDeploy getLtiDeployDao(Long key);
+
+	/**
+	 * Absolutely no checking at all.
+	 * 
+	 * @param consumerKey
+	 * @return
+	 */
+	public LtiDeploy getLtiDeployForConsumerKeyDao(String consumerKey);
+
+	/**
+	 * Absolutely no checking at all.
+	 * 
+	 * @param tool_id
+	 * @param siteId
+	 * @return
+	 */
+	public LtiBinding getLtiProxyBindingDao(Long tool_id, String siteId);
+
 	/**
 	 * 
 	 * @param row
@@ -610,7 +767,14 @@ public interface LTIService {
 		"memberships_id:text:maxlength=256:required=true",
 		"memberships_url:text:maxlength=4000:required=true",
 		"consumerkey:text:label=bl_consumerkey:allowed=true:maxlength=1024",
-		"lti_version:text:maxlength=32:required=true"};
+		"lti_version:text:maxlength=32:required=true",
+		"lease_owner:text:maxlength=99:hidden=true",
+		"lease_expires:long:hidden=true",
+		"last_run:long:hidden=true",
+		"next_run:long:hidden=true",
+		"roster_digest:text:maxlength=64:hidden=true",
+		"roster_etag:text:maxlength=256:hidden=true",
+		"roster_modified:text:maxlength=64:hidden=true"};
 
 	/** Static constants for data fields */
 
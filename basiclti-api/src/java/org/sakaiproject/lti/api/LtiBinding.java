@@ -0,0 +1,72 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.lti.api;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * An immutable, typed row from lti_binding.  The columns come from
+ * {@link LTIService#BINDING_MODEL}.
+ * </p>
+ */
+public final class LtiBinding extends LtiRow {
+
+	public static final Layout LAYOUT = new Layout(LTIService.BINDING_MODEL);
+
+	private static final int TOOL_ID = LAYOUT.column(LTIService.LTI_TOOL_ID);
+	private static final int SITE_ID = LAYOUT.column(LTIService.LTI_SITE_ID);
+	private static final int SETTINGS = LAYOUT.column(LTIService.LTI_SETTINGS);
+
+	public LtiBinding(long[] numbers, String[] texts) {
+		this(numbers, texts, null);
+	}
+
+	public LtiBinding(long[] numbers, String[] texts, Class<?>[] types) {
+		super(LAYOUT, numbers, texts, types);
+	}
+
+	/**
+	 * @return The typed row or null if the row is null
+	 */
+	public static LtiBinding fromMap(Map<String, Object> row) {
+		if ( row == null ) return null;
+		return new LtiBinding(numbersFromMap(LAYOUT, row), textsFromMap(LAYOUT, row), typesFromMap(LAYOUT, row));
+	}
+
+	public Layout getLayout() {
+		return LAYOUT;
+	}
+
+	public long getToolId() {
+		return getLong(TOOL_ID);
+	}
+
+	public String getSiteId() {
+		return getString(SITE_ID);
+	}
+
+	public String getSettings() {
+		return getString(SETTINGS);
+	}
+
+}
@@ -0,0 +1,180 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.lti.api;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * An immutable, typed row from lti_content.  The columns come from
+ * {@link LTIService#CONTENT_MODEL} plus the launch url the service adds.
+ * </p>
+ */
+public final class LtiContent extends LtiRow {
+
+	public static final Layout LAYOUT = new Layout(LTIService.CONTENT_MODEL);
+
+	private static final int TOOL_ID = LAYOUT.column(LTIService.LTI_TOOL_ID);
+	private static final int SITE_ID = LAYOUT.column(LTIService.LTI_SITE_ID);
+	private static final int TITLE = LAYOUT.column(LTIService.LTI_TITLE);
+	private static final int PAGETITLE = LAYOUT.column(LTIService.LTI_PAGETITLE);
+	private static final int FRAMEHEIGHT = LAYOUT.column(LTIService.LTI_FRAMEHEIGHT);
+	private static final int NEWPAGE = LAYOUT.column(LTIService.LTI_NEWPAGE);
+	private static final int DEBUG = LAYOUT.column(LTIService.LTI_DEBUG);
+	private static final int CUSTOM = LAYOUT.column(LTIService.LTI_CUSTOM);
+	private static final int LAUNCH = LAYOUT.column(LTIService.LTI_LAUNCH);
+	private static final int CONSUMERKEY = LAYOUT.column(LTIService.LTI_CONSUMERKEY);
+	private static final int SECRET = LAYOUT.column(LTIService.LTI_SECRET);
+	private static final int RESOURCE_HANDLER = LAYOUT.column(LTIService.LTI_RESOURCE_HANDLER);
+	private static final int XMLIMPORT = LAYOUT.column(LTIService.LTI_XMLIMPORT);
+	private static final int SETTINGS = LAYOUT.column(LTIService.LTI_SETTINGS);
+	private static final int SETTINGS_EXT = LAYOUT.column(LTIService.LTI_SETTINGS_EXT);
+	private static final int PLACEMENT = LAYOUT.column(LTIService.LTI_PLACEMENT);
+	private static final int PLACEMENTSECRET = LAYOUT.column(LTIService.LTI_PLACEMENTSECRET);
+	private static final int OLDPLACEMENTSECRET = LAYOUT.column(LTIService.LTI_OLDPLACEMENTSECRET);
+
+	// Not a column - LTIService adds it when the content is loaded
+	private static final String LAUNCH_URL = "launch_url";
+
+	private final String launchUrl;
+
+	public LtiContent(long[] numbers, String[] texts, String launchUrl) {
+		this(numbers, texts, null, launchUrl);
+	}
+
+	public LtiContent(long[] numbers, String[] texts, Class<?>[] types, String launchUrl) {
+		super(LAYOUT, numbers, texts, types);
+		this.launchUrl = launchUrl;
+	}
+
+	/**
+	 * @return The typed row or null if the row is null
+	 */
+	public static LtiContent fromMap(Map<String, Object> row) {
+		if ( row == null ) return null;
+		Object launchUrl = row.get(LAUNCH_URL);
+		return new LtiContent(numbersFromMap(LAYOUT, row), textsFromMap(LAYOUT, row),
+			typesFromMap(LAYOUT, row), launchUrl == null ? null : launchUrl.toString());
+	}
+
+	public Layout getLayout() {
+		return LAYOUT;
+	}
+
+	public long getToolId() {
+		return getLong(TOOL_ID);
+	}
+
+	public String getSiteId() {
+		return getString(SITE_ID);
+	}
+
+	public String getTitle() {
+		return getString(TITLE);
+	}
+
+	public String getPagetitle() {
+		return getString(PAGETITLE);
+	}
+
+	public int getFrameheight() {
+		return getInt(FRAMEHEIGHT);
+	}
+
+	public int getNewpage() {
+		return getInt(NEWPAGE);
+	}
+
+	public int getDebug() {
+		return getInt(DEBUG);
+	}
+
+	public String getCustom() {
+		return getString(CUSTOM);
+	}
+
+	public String getLaunch() {
+		return getString(LAUNCH);
+	}
+
+	public String getConsumerkey() {
+		return getString(CONSUMERKEY);
+	}
+
+	public String getSecret() {
+		return getString(SECRET);
+	}
+
+	public String getResourceHandler() {
+		return getString(RESOURCE_HANDLER);
+	}
+
+	public String getXmlimport() {
+		return getString(XMLIMPORT);
+	}
+
+	public String getSettings() {
+		return getString(SETTINGS);
+	}
+
+	public String getSettingsExt() {
+		return getString(SETTINGS_EXT);
+	}
+
+	public String getPlacement() {
+		return getString(PLACEMENT);
+	}
+
+	public String getPlacementsecret() {
+		return getString(PLACEMENTSECRET);
+	}
+
+	public String getOldplacementsecret() {
+		return getString(OLDPLACEMENTSECRET);
+	}
+
+	/**
+	 * @return The launch url computed by LTIService when the content was loaded
+	 */
+	public String getLaunchUrl() {
+		return launchUrl;
+	}
+
+	/**
+	 * A copy of this content with the display settings its tool allows, see
+	 * LTIService.filterContent.  A negative newpage or debug is left as is.
+	 */
+	public LtiContent withDisplay(int frameheight, int newpage, int debug) {
+		long[] numbers = copyNumbers();
+		numbers[FRAMEHEIGHT] = frameheight;
+		if ( newpage >= 0 ) numbers[NEWPAGE] = newpage;
+		if ( debug >= 0 ) numbers[DEBUG] = debug;
+		return new LtiContent(numbers, getTexts(), getTypes(), launchUrl);
+	}
+
+	public Map<String, Object> toMap() {
+		Map<String, Object> row = super.toMap();
+		if ( launchUrl != null ) row.put(LAUNCH_URL, launchUrl);
+		return row;
+	}
+
+}
@@ -0,0 +1,162 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.lti.api;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * An immutable, typed row from lti_deploy.  The columns come from
+ * {@link LTIService#DEPLOY_MODEL}.
+ * </p>
+ */
+public final class LtiDeploy extends LtiRow {
+
+	public static final Layout LAYOUT = new Layout(LTIService.DEPLOY_MODEL);
+
+	private static final int REG_STATE = LAYOUT.column(LTIService.LTI_REG_STATE);
+	private static final int TITLE = LAYOUT.column(LTIService.LTI_TITLE);
+	private static final int PAGETITLE = LAYOUT.column(LTIService.LTI_PAGETITLE);
+	private static final int DESCRIPTION = LAYOUT.column(LTIService.LTI_DESCRIPTION);
+	private static final int STATUS = LAYOUT.column(LTIService.LTI_STATUS);
+	private static final int VISIBLE = LAYOUT.column(LTIService.LTI_VISIBLE);
+	private static final int SENDNAME = LAYOUT.column(LTIService.LTI_SENDNAME);
+	private static final int SENDEMAILADDR = LAYOUT.column(LTIService.LTI_SENDEMAILADDR);
+	private static final int ALLOWOUTCOMES = LAYOUT.column(LTIService.LTI_ALLOWOUTCOMES);
+	private static final int ALLOWROSTER = LAYOUT.column(LTIService.LTI_ALLOWROSTER);
+	private static final int ALLOWSETTINGS = LAYOUT.column(LTIService.LTI_ALLOWSETTINGS);
+	private static final int ALLOWLORI = LAYOUT.column(LTIService.LTI_ALLOWLORI);
+	private static final int REG_LAUNCH = LAYOUT.column(LTIService.LTI_REG_LAUNCH);
+	private static final int REG_KEY = LAYOUT.column(LTIService.LTI_REG_KEY);
+	private static final int REG_PASSWORD = LAYOUT.column(LTIService.LTI_REG_PASSWORD);
+	private static final int REG_ACK = LAYOUT.column(LTIService.LTI_REG_ACK);
+	private static final int CONSUMERKEY = LAYOUT.column(LTIService.LTI_CONSUMERKEY);
+	private static final int SECRET = LAYOUT.column(LTIService.LTI_SECRET);
+	private static final int NEW_SECRET = LAYOUT.column(LTIService.LTI_NEW_SECRET);
+	private static final int REG_PROFILE = LAYOUT.column(LTIService.LTI_REG_PROFILE);
+	private static final int SETTINGS = LAYOUT.column(LTIService.LTI_SETTINGS);
+
+	public LtiDeploy(long[] numbers, String[] texts) {
+		this(numbers, texts, null);
+	}
+
+	public LtiDeploy(long[] numbers, String[] texts, Class<?>[] types) {
+		super(LAYOUT, numbers, texts, types);
+	}
+
+	/**
+	 * @return The typed row or null if the row is null
+	 */
+	public static LtiDeploy fromMap(Map<String, Object> row) {
+		if ( row == null ) return null;
+		return new LtiDeploy(numbersFromMap(LAYOUT, row), textsFromMap(LAYOUT, row), typesFromMap(LAYOUT, row));
+	}
+
+	public Layout getLayout() {
+		return LAYOUT;
+	}
+
+	public int getRegState() {
+		return getInt(REG_STATE);
+	}
+
+	public String getTitle() {
+		return getString(TITLE);
+	}
+
+	public String getPagetitle() {
+		return getString(PAGETITLE);
+	}
+
+	public String getDescription() {
+		return getString(DESCRIPTION);
+	}
+
+	public int getStatus() {
+		return getInt(STATUS);
+	}
+
+	public int getVisible() {
+		return getInt(VISIBLE);
+	}
+
+	public int getSendname() {
+		return getInt(SENDNAME);
+	}
+
+	public int getSendemailaddr() {
+		return getInt(SENDEMAILADDR);
+	}
+
+	public int getAllowoutcomes() {
+		return getInt(ALLOWOUTCOMES);
+	}
+
+	public int getAllowroster() {
+		return getInt(ALLOWROSTER);
+	}
+
+	public int getAllowsettings() {
+		return getInt(ALLOWSETTINGS);
+	}
+
+	public int getAllowlori() {
+		return getInt(ALLOWLORI);
+	}
+
+	public String getRegLaunch() {
+		return getString(REG_LAUNCH);
+	}
+
+	public String getRegKey() {
+		return getString(REG_KEY);
+	}
+
+	public String getRegPassword() {
+		return getString(REG_PASSWORD);
+	}
+
+	public String getRegAck() {
+		return getString(REG_ACK);
+	}
+
+	public String getConsumerkey() {
+		return getString(CONSUMERKEY);
+	}
+
+	public String getSecret() {
+		return getString(SECRET);
+	}
+
+	public String getNewSecret() {
+		return getString(NEW_SECRET);
+	}
+
+	public String getRegProfile() {
+		return getString(REG_PROFILE);
+	}
+
+	public String getSettings() {
+		return getString(SETTINGS);
+	}
+
+}
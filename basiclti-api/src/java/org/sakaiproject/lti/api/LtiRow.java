@@ -0,0 +1,370 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.lti.api;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A compact, immutable row from one of the LTI tables.  The columns and their
+ * types come from the table's Foorm model through a {@link Layout}, so a
+ * column added to the model is picked up without touching this class.
+ * </p>
+ * <p>
+ * Numeric columns (key, integer, long, radio and checkbox) are held as
+ * primitive longs, dates as epoch milliseconds and text as Strings.  Reading
+ * a null number gives -1 and a null date gives 0, the same as the getInt
+ * helpers the map API has always used.
+ * </p>
+ */
+public abstract class LtiRow implements Serializable {
+
+	/** Marks a null number or date in the numbers array */
+	public static final long NULL = Long.MIN_VALUE;
+
+	private final long[] numbers;
+	private final String[] texts;
+	private final Class<?>[] types;
+
+	/**
+	 * The row keeps the arrays - the caller must not change them afterwards.
+	 *
+	 * @param numbers One slot per column of the layout, NULL where empty
+	 * @param texts One slot per column of the layout
+	 * @param types The class the database gave each number (Integer, Long,
+	 * BigDecimal, ...) so toMap can hand back the same, or null for Long
+	 */
+	protected LtiRow(Layout layout, long[] numbers, String[] texts, Class<?>[] types) {
+		if ( numbers.length != layout.size() || texts.length != layout.size() ||
+				( types != null && types.length != layout.size() ) ) {
+			throw new IllegalArgumentException("Row does not match its layout");
+		}
+		this.numbers = numbers;
+		this.texts = texts;
+		this.types = types;
+	}
+
+	/**
+	 * The columns of this row
+	 */
+	public abstract Layout getLayout();
+
+	public long getId() {
+		return getLong(LTIService.LTI_ID);
+	}
+
+	public long getCreatedAt() {
+		return getTime(LTIService.LTI_CREATED_AT);
+	}
+
+	public long getUpdatedAt() {
+		return getTime(LTIService.LTI_UPDATED_AT);
+	}
+
+	public boolean isNull(int column) {
+		if ( getLayout().getKind(column) == Layout.TEXT ) return texts[column] == null;
+		return numbers[column] == NULL;
+	}
+
+	public long getLong(int column) {
+		long value = numbers[column];
+		return value == NULL ? -1 : value;
+	}
+
+	public int getInt(int column) {
+		return (int) getLong(column);
+	}
+
+	public long getTime(int column) {
+		long value = numbers[column];
+		return value == NULL ? 0 : value;
+	}
+
+	public String getString(int column) {
+		return texts[column];
+	}
+
+	/**
+	 * Look up a column by its LTIService constant
+	 */
+	public long getLong(String field) {
+		return getLong(getLayout().column(field));
+	}
+
+	public int getInt(String field) {
+		return getInt(getLayout().column(field));
+	}
+
+	public long getTime(String field) {
+		return getTime(getLayout().column(field));
+	}
+
+	public String getString(String field) {
+		return getString(getLayout().column(field));
+	}
+
+	/**
+	 * The row as the map API returns it - numbers in the class the database
+	 * gave them, dates as Timestamp and every column present, null or not.
+	 * Like the maps read from the database, keys are looked up ignoring case.
+	 */
+	public Map<String, Object> toMap() {
+		Layout layout = getLayout();
+		Map<String, Object> row = new RowMap(layout);
+		for (int i = 0; i < layout.size(); i++) {
+			Object value = null;
+			switch ( layout.getKind(i) ) {
+				case Layout.NUMBER:
+					if ( numbers[i] != NULL ) value = toNumber(numbers[i], types == null ? null : types[i]);
+					break;
+				case Layout.DATE:
+					if ( numbers[i] != NULL ) value = new Timestamp(numbers[i]);
+					break;
+				default:
+					value = texts[i];
+			}
+			row.put(layout.getField(i), value);
+		}
+		return row;
+	}
+
+	/**
+	 * A copy of the numbers for building an adjusted row - the text is
+	 * immutable and can be shared with the new row.
+	 */
+	protected long[] copyNumbers() {
+		return numbers.clone();
+	}
+
+	protected String[] getTexts() {
+		return texts;
+	}
+
+	protected Class<?>[] getTypes() {
+		return types;
+	}
+
+	// Box a number back into the class it was read as
+	private static Object toNumber(long value, Class<?> type) {
+		if ( type == null || type == Long.class ) return new Long(value);
+		if ( type == Integer.class ) return new Integer((int) value);
+		if ( type == Short.class ) return new Short((short) value);
+		if ( type == Byte.class ) return new Byte((byte) value);
+		if ( type == BigDecimal.class ) return BigDecimal.valueOf(value);
+		if ( type == BigInteger.class ) return BigInteger.valueOf(value);
+		if ( type == Double.class ) return new Double(value);
+		if ( type == Float.class ) return new Float(value);
+		if ( type == Boolean.class ) return Boolean.valueOf(value != 0);
+		return new Long(value);
+	}
+
+	/**
+	 * The class of each number in a map as returned by the map API
+	 */
+	protected static Class<?>[] typesFromMap(Layout layout, Map<String, Object> row) {
+		Class<?>[] types = new Class<?>[layout.size()];
+		for (int i = 0; i < layout.size(); i++) {
+			if ( layout.getKind(i) != Layout.NUMBER ) continue;
+			Object o = row.get(layout.getField(i));
+			if ( o instanceof Number || o instanceof Boolean ) types[i] = o.getClass();
+		}
+		return types;
+	}
+
+	/**
+	 * Build the arrays for a row from a map as returned by the map API
+	 */
+	protected static long[] numbersFromMap(Layout layout, Map<String, Object> row) {
+		long[] numbers = layout.newNumbers();
+		for (int i = 0; i < layout.size(); i++) {
+			Object o = row.get(layout.getField(i));
+			if ( o == null ) continue;
+			if ( layout.getKind(i) == Layout.DATE ) {
+				if ( o instanceof Date ) numbers[i] = ((Date) o).getTime();
+			} else if ( layout.getKind(i) == Layout.NUMBER ) {
+				if ( o instanceof Number ) {
+					numbers[i] = ((Number) o).longValue();
+				} else if ( o instanceof Boolean ) {
+					numbers[i] = ((Boolean) o).booleanValue() ? 1 : 0;
+				} else {
+					try {
+						numbers[i] = Long.parseLong(o.toString().trim());
+					} catch (NumberFormatException e) {
+						// Leave it null
+					}
+				}
+			}
+		}
+		return numbers;
+	}
+
+	protected static String[] textsFromMap(Layout layout, Map<String, Object> row) {
+		String[] texts = new String[layout.size()];
+		for (int i = 0; i < layout.size(); i++) {
+			if ( layout.getKind(i) != Layout.TEXT ) continue;
+			Object o = row.get(layout.getField(i));
+			if ( o != null ) texts[i] = o.toString();
+		}
+		return texts;
+	}
+
+	/**
+	 * A row map whose keys keep the case of the model but can be looked up
+	 * in any case, as the database may hand column names back in its own case.
+	 */
+	private static final class RowMap extends LinkedHashMap<String, Object> {
+
+		private final Layout layout;
+
+		RowMap(Layout layout) {
+			super(layout.size() * 2);
+			this.layout = layout;
+		}
+
+		// The key as the model spells it, or the key itself if it is not a column
+		private Object modelKey(Object key) {
+			if ( ! (key instanceof String) || super.containsKey(key) ) return key;
+			int column = layout.indexOf((String) key);
+			return column < 0 ? key : layout.getField(column);
+		}
+
+		public Object get(Object key) {
+			return super.get(modelKey(key));
+		}
+
+		public boolean containsKey(Object key) {
+			return super.containsKey(modelKey(key));
+		}
+
+		public Object put(String key, Object value) {
+			return super.put((String) modelKey(key), value);
+		}
+
+		public Object remove(Object key) {
+			return super.remove(modelKey(key));
+		}
+	}
+
+	/**
+	 * <p>
+	 * The columns of a Foorm model and how each one is held, worked out once
+	 * per model.  Header lines are not columns and are left out.
+	 * </p>
+	 */
+	public static final class Layout implements Serializable {
+
+		public static final int TEXT = 0;
+		public static final int NUMBER = 1;
+		public static final int DATE = 2;
+
+		private final String[] fields;
+		private final String[] types;
+		private final int[] kinds;
+		private final Map<String, Integer> columns = new HashMap<String, Integer>();
+
+		public Layout(String[] model) {
+			String[] fields = new String[model.length];
+			String[] types = new String[model.length];
+			int count = 0;
+			for (String line : model) {
+				String[] parts = line.split(":");
+				if ( parts.length < 2 ) {
+					throw new IllegalArgumentException("All model elements must include field name and type");
+				}
+				if ( "header".equals(parts[1]) ) continue;
+				fields[count] = parts[0];
+				types[count] = parts[1];
+				count++;
+			}
+			this.fields = Arrays.copyOf(fields, count);
+			this.types = Arrays.copyOf(types, count);
+			this.kinds = new int[count];
+			for (int i = 0; i < count; i++) {
+				String type = this.types[i];
+				if ( "key".equals(type) || "integer".equals(type) || "long".equals(type) ||
+						"radio".equals(type) || "checkbox".equals(type) ) {
+					kinds[i] = NUMBER;
+				} else if ( "autodate".equals(type) ) {
+					kinds[i] = DATE;
+				} else {
+					kinds[i] = TEXT;
+				}
+				// Databases hand back column names in their own case
+				columns.put(this.fields[i].toLowerCase(), new Integer(i));
+			}
+		}
+
+		public int size() {
+			return fields.length;
+		}
+
+		public String getField(int column) {
+			return fields[column];
+		}
+
+		/**
+		 * The Foorm type of the column (text, integer, checkbox, ...)
+		 */
+		public String getType(int column) {
+			return types[column];
+		}
+
+		public int getKind(int column) {
+			return kinds[column];
+		}
+
+		/**
+		 * @return The column for the field, ignoring case, or -1 if it is not in the model
+		 */
+		public int indexOf(String field) {
+			if ( field == null ) return -1;
+			Integer column = columns.get(field.toLowerCase());
+			return column == null ? -1 : column.intValue();
+		}
+
+		/**
+		 * Like indexOf but the field must be in the model
+		 */
+		public int column(String field) {
+			int column = indexOf(field);
+			if ( column < 0 ) throw new IllegalArgumentException(field + " is not in the model");
+			return column;
+		}
+
+		/**
+		 * A numbers array for a new row with every column null
+		 */
+		public long[] newNumbers() {
+			long[] numbers = new long[fields.length];
+			Arrays.fill(numbers, NULL);
+			return numbers;
+		}
+	}
+}
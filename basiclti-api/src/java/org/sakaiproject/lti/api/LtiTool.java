@@ -0,0 +1,227 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.lti.api;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * An immutable, typed row from lti_tools.  The columns come from
+ * {@link LTIService#TOOL_MODEL}.
+ * </p>
+ */
+public final class LtiTool extends LtiRow {
+
+	public static final Layout LAYOUT = new Layout(LTIService.TOOL_MODEL);
+
+	private static final int VERSION = LAYOUT.column(LTIService.LTI_VERSION);
+	private static final int SITE_ID = LAYOUT.column(LTIService.LTI_SITE_ID);
+	private static final int TITLE = LAYOUT.column(LTIService.LTI_TITLE);
+	private static final int ALLOWTITLE = LAYOUT.column(LTIService.LTI_ALLOWTITLE);
+	private static final int PAGETITLE = LAYOUT.column(LTIService.LTI_PAGETITLE);
+	private static final int ALLOWPAGETITLE = LAYOUT.column(LTIService.LTI_ALLOWPAGETITLE);
+	private static final int DESCRIPTION = LAYOUT.column(LTIService.LTI_DESCRIPTION);
+	private static final int STATUS = LAYOUT.column(LTIService.LTI_STATUS);
+	private static final int VISIBLE = LAYOUT.column(LTIService.LTI_VISIBLE);
+	private static final int RESOURCE_HANDLER = LAYOUT.column(LTIService.LTI_RESOURCE_HANDLER);
+	private static final int DEPLOYMENT_ID = LAYOUT.column(LTIService.LTI_DEPLOYMENT_ID);
+	private static final int LAUNCH = LAYOUT.column(LTIService.LTI_LAUNCH);
+	private static final int ALLOWLAUNCH = LAYOUT.column(LTIService.LTI_ALLOWLAUNCH);
+	private static final int CONSUMERKEY = LAYOUT.column(LTIService.LTI_CONSUMERKEY);
+	private static final int ALLOWCONSUMERKEY = LAYOUT.column(LTIService.LTI_ALLOWCONSUMERKEY);
+	private static final int SECRET = LAYOUT.column(LTIService.LTI_SECRET);
+	private static final int ALLOWSECRET = LAYOUT.column(LTIService.LTI_ALLOWSECRET);
+	private static final int FRAMEHEIGHT = LAYOUT.column(LTIService.LTI_FRAMEHEIGHT);
+	private static final int ALLOWFRAMEHEIGHT = LAYOUT.column(LTIService.LTI_ALLOWFRAMEHEIGHT);
+	private static final int SENDNAME = LAYOUT.column(LTIService.LTI_SENDNAME);
+	private static final int SENDEMAILADDR = LAYOUT.column(LTIService.LTI_SENDEMAILADDR);
+	private static final int ALLOWOUTCOMES = LAYOUT.column(LTIService.LTI_ALLOWOUTCOMES);
+	private static final int ALLOWROSTER = LAYOUT.column(LTIService.LTI_ALLOWROSTER);
+	private static final int ALLOWSETTINGS = LAYOUT.column(LTIService.LTI_ALLOWSETTINGS);
+	private static final int ALLOWLORI = LAYOUT.column(LTIService.LTI_ALLOWLORI);
+	private static final int NEWPAGE = LAYOUT.column(LTIService.LTI_NEWPAGE);
+	private static final int DEBUG = LAYOUT.column(LTIService.LTI_DEBUG);
+	private static final int CUSTOM = LAYOUT.column(LTIService.LTI_CUSTOM);
+	private static final int SETTINGS = LAYOUT.column(LTIService.LTI_SETTINGS);
+	private static final int PARAMETER = LAYOUT.column(LTIService.LTI_PARAMETER);
+	private static final int ENABLED_CAPABILITY = LAYOUT.column(LTIService.LTI_ENABLED_CAPABILITY);
+	private static final int ALLOWCUSTOM = LAYOUT.column(LTIService.LTI_ALLOWCUSTOM);
+	private static final int XMLIMPORT = LAYOUT.column(LTIService.LTI_XMLIMPORT);
+	private static final int SPLASH = LAYOUT.column(LTIService.LTI_SPLASH);
+
+	public LtiTool(long[] numbers, String[] texts) {
+		this(numbers, texts, null);
+	}
+
+	public LtiTool(long[] numbers, String[] texts, Class<?>[] types) {
+		super(LAYOUT, numbers, texts, types);
+	}
+
+	/**
+	 * @return The typed row or null if the row is null
+	 */
+	public static LtiTool fromMap(Map<String, Object> row) {
+		if ( row == null ) return null;
+		return new LtiTool(numbersFromMap(LAYOUT, row), textsFromMap(LAYOUT, row), typesFromMap(LAYOUT, row));
+	}
+
+	public Layout getLayout() {
+		return LAYOUT;
+	}
+
+	public int getVersion() {
+		return getInt(VERSION);
+	}
+
+	public String getSiteId() {
+		return getString(SITE_ID);
+	}
+
+	public String getTitle() {
+		return getString(TITLE);
+	}
+
+	public int getAllowtitle() {
+		return getInt(ALLOWTITLE);
+	}
+
+	public String getPagetitle() {
+		return getString(PAGETITLE);
+	}
+
+	public int getAllowpagetitle() {
+		return getInt(ALLOWPAGETITLE);
+	}
+
+	public String getDescription() {
+		return getString(DESCRIPTION);
+	}
+
+	public int getStatus() {
+		return getInt(STATUS);
+	}
+
+	public int getVisible() {
+		return getInt(VISIBLE);
+	}
+
+	public String getResourceHandler() {
+		return getString(RESOURCE_HANDLER);
+	}
+
+	public long getDeploymentId() {
+		return getLong(DEPLOYMENT_ID);
+	}
+
+	public String getLaunch() {
+		return getString(LAUNCH);
+	}
+
+	public int getAllowlaunch() {
+		return getInt(ALLOWLAUNCH);
+	}
+
+	public String getConsumerkey() {
+		return getString(CONSUMERKEY);
+	}
+
+	public int getAllowconsumerkey() {
+		return getInt(ALLOWCONSUMERKEY);
+	}
+
+	public String getSecret() {
+		return getString(SECRET);
+	}
+
+	public int getAllowsecret() {
+		return getInt(ALLOWSECRET);
+	}
+
+	public int getFrameheight() {
+		return getInt(FRAMEHEIGHT);
+	}
+
+	public int getAllowframeheight() {
+		return getInt(ALLOWFRAMEHEIGHT);
+	}
+
+	public int getSendname() {
+		return getInt(SENDNAME);
+	}
+
+	public int getSendemailaddr() {
+		return getInt(SENDEMAILADDR);
+	}
+
+	public int getAllowoutcomes() {
+		return getInt(ALLOWOUTCOMES);
+	}
+
+	public int getAllowroster() {
+		return getInt(ALLOWROSTER);
+	}
+
+	public int getAllowsettings() {
+		return getInt(ALLOWSETTINGS);
+	}
+
+	public int getAllowlori() {
+		return getInt(ALLOWLORI);
+	}
+
+	public int getNewpage() {
+		return getInt(NEWPAGE);
+	}
+
+	public int getDebug() {
+		return getInt(DEBUG);
+	}
+
+	public String getCustom() {
+		return getString(CUSTOM);
+	}
+
+	public String getSettings() {
+		return getString(SETTINGS);
+	}
+
+	public String getParameter() {
+		return getString(PARAMETER);
+	}
+
+	public String getEnabledCapability() {
+		return getString(ENABLED_CAPABILITY);
+	}
+
+	public int getAllowcustom() {
+		return getInt(ALLOWCUSTOM);
+	}
+
+	public String getXmlimport() {
+		return getString(XMLIMPORT);
+	}
+
+	public String getSplash() {
+		return getString(SPLASH);
+	}
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.lti.api;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An external consumer allowed to launch into Sakai through the provider,
+ * as held by the {@link ProviderConsumerRegistry}.  Never changes once
+ * built - a reload builds new ones.
+ */
+public final class ProviderConsumer {
+
+    /** Configured in sakai.properties as basiclti.provider.KEY.secret */
+    public static final String SOURCE_CONFIG = "config";
+
+    /** The consumer key and secret of an lti_deploy row */
+    public static final String SOURCE_DEPLOY = "deploy";
+
+    private final String consumerKey;
+    private final String secret;
+    private final boolean trusted;
+    private final Set<String> allowedTools;
+    private final String forcedURIScheme;
+    private final String source;
+
+    /**
+     * @param secret The secret in plain text
+     * @param allowedTools The tool ids this consumer may launch
+     * @param forcedURIScheme The scheme to check signatures against, or null to use the request's
+     */
+    public ProviderConsumer(String consumerKey, String secret, boolean trusted,
+            Set<String> allowedTools, String forcedURIScheme, String source) {
+        this.consumerKey = consumerKey;
+        this.secret = secret;
+        this.trusted = trusted;
+        this.allowedTools = Collections.unmodifiableSet(new HashSet<String>(allowedTools));
+        this.forcedURIScheme = forcedURIScheme;
+        this.source = source;
+    }
+
+    public String getConsumerKey() {
+        return consumerKey;
+    }
+
+    public String getSecret() {
+        return secret;
+    }
+
+    /**
+     * Listed in basiclti.provider.highly.trusted.consumers
+     */
+    public boolean isTrusted() {
+        return trusted;
+    }
+
+    public Set<String> getAllowedTools() {
+        return allowedTools;
+    }
+
+    public boolean isToolAllowed(String toolId) {
+        return toolId != null && allowedTools.contains(toolId);
+    }
+
+    public String getForcedURIScheme() {
+        return forcedURIScheme;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String toString() {
+        // Never the secret
+        return "ProviderConsumer[" + consumerKey + " source=" + source + " trusted=" + trusted + "]";
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.lti.api;
+
+/**
+ * The consumers allowed to launch into Sakai through the provider, with
+ * their secrets, trust and the tools they may launch, read once from
+ * sakai.properties (and lti_deploy if basiclti.provider.registry.deploys
+ * is true) rather than on every launch.
+ * <p>
+ * The properties read are the ones the provider has always used:
+ * <pre>
+ * basiclti.provider.KEY.secret
+ * basiclti.provider.highly.trusted.consumers=KEY1:KEY2
+ * basiclti.provider.allowedtools=sakai.announcements:sakai.resources
+ * basiclti.provider.forcedurischeme=https
+ * </pre>
+ * along with basiclti.provider.KEY.allowedtools and
+ * basiclti.provider.KEY.forcedurischeme to override the last two for one
+ * consumer.  Everything is read again every basiclti.provider.registry.refresh
+ * seconds and swapped in as a whole, so a lookup never sees half of a
+ * reload.
+ */
+public interface ProviderConsumerRegistry {
+
+    /**
+     * @return The consumer with this key, or null if it has no secret
+     */
+    public ProviderConsumer getConsumer(String consumerKey);
+
+    /**
+     * Whether the key is listed in basiclti.provider.highly.trusted.consumers,
+     * whether or not it has a secret
+     */
+    public boolean isTrustedConsumer(String consumerKey);
+
+    /**
+     * Whether the consumer may launch the tool.  Consumers without a secret
+     * get basiclti.provider.allowedtools.
+     */
+    public boolean isToolAllowed(String consumerKey, String toolId);
+
+    /**
+     * The scheme to check the consumer's signatures against, or null
+     */
+    public String getForcedURIScheme(String consumerKey);
+
+    /**
+     * Read everything again now
+     */
+    public void reload();
+}
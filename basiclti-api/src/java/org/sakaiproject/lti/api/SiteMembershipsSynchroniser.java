@@ -1,7 +1,19 @@
 package org.sakaiproject.lti.api;
 
+import java.util.Map;
 
 public interface SiteMembershipsSynchroniser {
 
     public void synchroniseSiteMemberships(String siteId, String membershipsId, String membershipsUrl, String oauth_consumer_key, String callbackType) throws LTIException;
+
+    /**
+     * Synchronise the site for a row of lti_memberships_jobs. The request is
+     * made conditional on the ETag and Last-Modified stored on the row and
+     * the site is left alone if the roster is the same as last time.
+     *
+     * @return false if the roster had not changed and the site was not touched
+     * @throws LTIException if the roster could not be fetched or applied in
+     *  full, in which case the stored roster is left as it was
+     */
+    public boolean synchroniseSiteMemberships(Map<String, Object> job) throws LTIException;
 }
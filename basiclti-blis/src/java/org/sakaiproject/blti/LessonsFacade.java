@@ -19,15 +19,28 @@
 
 package org.sakaiproject.blti;
 
-import java.net.URL;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.Properties;
 import java.util.UUID;
 
 import org.sakaiproject.component.cover.ComponentManager;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlReader;
+import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -48,12 +61,143 @@ public class LessonsFacade {
 
     protected static LTIService ltiService = null;
     protected static SimplePageToolDao simplePageToolDao = null;
+    protected static SqlService sqlService = null;
+
+	// All of the page items in a site on Lessons pages, in page order
+	private static final String PAGE_ITEMS_SQL =
+		"select i.id, i.pageId, i.sakaiId, i.name from lesson_builder_items i, lesson_builder_pages p " +
+		"where p.siteId = ? and i.pageId = p.pageId and i.type = " + SimplePageItem.PAGE +
+		" order by i.pageId, i.sequence";
+
+	private static final String LESSONS_EVENT_PREFIX = "lessonbuilder.";
+
+	/**
+	 * LessonsStructure keyed by site id, dropped when Lessons in that site
+	 * changes anywhere in the cluster
+	 */
+	protected static Cache structureCache = null;
+
+	private static Observer structureObserver = new Observer() {
+		public void update(Observable o, Object arg) {
+			if ( ! (arg instanceof Event) || structureCache == null ) return;
+			Event event = (Event) arg;
+			if ( ! event.getModify() ) return;
+			String name = event.getEvent();
+			if ( name == null || ! name.startsWith(LESSONS_EVENT_PREFIX) ) return;
+			String siteId = event.getContext();
+			if ( siteId == null ) {
+				structureCache.clear();
+			} else {
+				structureCache.remove(siteId);
+			}
+		}
+	};
 
-	public static void init() {
+	public static synchronized void init() {
         if ( ltiService == null ) ltiService = (LTIService) ComponentManager.get("org.sakaiproject.lti.api.LTIService");
         if ( simplePageToolDao == null ) simplePageToolDao = (SimplePageToolDao)ComponentManager.get(SimplePageToolDao.class);
+        if ( sqlService == null ) sqlService = (SqlService) ComponentManager.get("org.sakaiproject.db.api.SqlService");
+        if ( structureCache == null ) {
+            MemoryService memoryService = (MemoryService) ComponentManager.get("org.sakaiproject.memory.api.MemoryService");
+            if ( memoryService != null ) structureCache = memoryService.getCache("org.sakaiproject.blti.LessonsFacade.structureCache");
+            EventTrackingService eventTrackingService = (EventTrackingService) ComponentManager.get("org.sakaiproject.event.api.EventTrackingService");
+            if ( eventTrackingService != null ) eventTrackingService.addObserver(structureObserver);
+        }
     }
 
+	/**
+	 * The Lessons folders in a site, from the cache if we have it
+	 */
+	public static LessonsStructure getStructure(String siteId)
+	{
+		LessonsStructure structure = null;
+		if ( structureCache != null ) structure = (LessonsStructure) structureCache.get(siteId);
+		if ( structure != null ) return structure;
+		structure = loadStructure(siteId);
+		if ( structureCache != null ) structureCache.put(siteId, structure);
+		return structure;
+	}
+
+	public static void invalidateStructure(String siteId)
+	{
+		if ( structureCache != null && siteId != null ) structureCache.remove(siteId);
+	}
+
+	// The top level items come from the DAO and everything below them from one
+	// read of all the page items in the site
+	private static LessonsStructure loadStructure(String siteId)
+	{
+		List<LessonsStructure.Folder> top = new ArrayList<LessonsStructure.Folder>();
+		for (SimplePageItem i : simplePageToolDao.findItemsInSite(siteId)) {
+			if (i.getType() != SimplePageItem.PAGE) continue;
+			addFolder(top, i.getId(), i.getSakaiId(), i.getName());
+		}
+
+		Map<Long, List<LessonsStructure.Folder>> children = null;
+		if ( sqlService != null && ServerConfigurationService.getBoolean("basiclti.lori.lessons.bulkread", true) ) {
+			children = readPageItems(siteId);
+		}
+		if ( children == null ) children = walkPageItems(top);
+		return new LessonsStructure(top, children);
+	}
+
+	private static Map<Long, List<LessonsStructure.Folder>> readPageItems(String siteId)
+	{
+		final Map<Long, List<LessonsStructure.Folder>> children = new HashMap<Long, List<LessonsStructure.Folder>>();
+		try {
+			sqlService.dbRead(PAGE_ITEMS_SQL, new Object[] { siteId }, new SqlReader() {
+				public Object readSqlResultRecord(ResultSet result) {
+					try {
+						Long pageId = Long.valueOf(result.getLong(2));
+						List<LessonsStructure.Folder> folders = children.get(pageId);
+						if ( folders == null ) {
+							folders = new ArrayList<LessonsStructure.Folder>();
+							children.put(pageId, folders);
+						}
+						addFolder(folders, result.getLong(1), result.getString(3), result.getString(4));
+					} catch (SQLException e) {
+						M_log.warn("Could not read Lessons item: "+e.getMessage());
+					}
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			M_log.warn("Could not read Lessons items for site="+siteId+", reading page by page: "+e.getMessage());
+			return null;
+		}
+		return children;
+	}
+
+	// Without the bulk read we fall back to reading each page that can be reached
+	private static Map<Long, List<LessonsStructure.Folder>> walkPageItems(List<LessonsStructure.Folder> top)
+	{
+		Map<Long, List<LessonsStructure.Folder>> children = new HashMap<Long, List<LessonsStructure.Folder>>();
+		Set<Long> seen = new HashSet<Long>();
+		List<LessonsStructure.Folder> todo = new ArrayList<LessonsStructure.Folder>(top);
+		while ( todo.size() > 0 && seen.size() <= LessonsStructure.MAX_FOLDERS ) {
+			LessonsStructure.Folder folder = todo.remove(0);
+			Long pageId = folder.getPageId();
+			if ( ! seen.add(pageId) ) continue;
+			List<LessonsStructure.Folder> folders = new ArrayList<LessonsStructure.Folder>();
+			for (SimplePageItem i : simplePageToolDao.findItemsOnPage(pageId)) {
+				if (i.getType() != SimplePageItem.PAGE) continue;
+				addFolder(folders, i.getId(), i.getSakaiId(), i.getName());
+			}
+			children.put(pageId, folders);
+			todo.addAll(folders);
+		}
+		return children;
+	}
+
+	private static void addFolder(List<LessonsStructure.Folder> folders, long itemId, String sakaiId, String name)
+	{
+		try {
+			folders.add(new LessonsStructure.Folder(itemId, Long.valueOf(sakaiId), name));
+		} catch (NumberFormatException e) {
+			M_log.debug("Skipping Lessons page item "+itemId+" with sakaiId="+sakaiId);
+		}
+	}
+
     public static List<SimplePageItem> findItemsInSite(String context_id)
     {
         return simplePageToolDao.findItemsInSite(context_id);
@@ -69,24 +213,14 @@ public class LessonsFacade {
         return simplePageToolDao.findItem(pageId);
     }
 
-	public static SimplePageItem findFolder(List<SimplePageItem> sitePages, Long folderId, 
-		 List<Long> structureList, int depth)
+	/**
+	 * The page item for a folder, or null if it is not in the structure
+	 */
+	public static SimplePageItem findFolder(LessonsStructure structure, Long folderId)
 	{
-        if ( folderId == null ) return null;
-		if ( depth > 10 ) return null;
-		for (SimplePageItem i : sitePages) {
-			if ( structureList.size() > 100 ) return null;
-			if (i.getType() != SimplePageItem.PAGE) continue;
-            // System.out.println("d="+depth+" o="+structureList.size()+" Id="+i.getId()+" SakaiId="+i.getSakaiId()+" title="+i.getName());
-			Long pageNum = Long.valueOf(i.getSakaiId());
-            if ( folderId.equals(pageNum) ) return i;
-			structureList.add(i.getId());
-
-			List<SimplePageItem> items = simplePageToolDao.findItemsOnPage(pageNum);
-            SimplePageItem retval = findFolder(items, folderId, structureList, depth+1);
-            if ( retval != null ) return retval;
-		}
-        return null;
+		LessonsStructure.Folder folder = structure.findFolder(folderId);
+		if ( folder == null ) return null;
+		return simplePageToolDao.findItem(folder.getItemId());
 	}
 
 	public static SimplePageItem addLessonsFolder(SimplePageItem thePage, String nameStr, int startPos)
@@ -116,6 +250,7 @@ public class LessonsFacade {
 		elist = new ArrayList<String>();
 		simplePageToolDao.saveItem(subPageItem,  elist, "ERROR WAS HERE", false);
 		M_log.debug("Item Saved "+elist);
+		invalidateStructure(actualPage.getSiteId());
 		// System.out.println("subItem = "+subPageItem);
 		return subPageItem;
 	}
@@ -134,6 +269,7 @@ public class LessonsFacade {
 		SimplePageItem i = simplePageToolDao.makeItem(0, 0, SimplePageItem.PAGE, l.toString(), title);
 		simplePageToolDao.saveItem(i,elist, "ERROR WAS HERE", false);
 		M_log.debug("SimplePageItem added="+i.getId());
+		invalidateStructure(siteId);
 		return i;
 	}
 
@@ -142,86 +278,110 @@ public class LessonsFacade {
     {
 		if ( ltiService == null ) return null;
 
+		List<String[]> launches = new ArrayList<String[]>();
+		launches.add(new String[] { launchUrl, bltiTitle, strXml, custom });
+		List<String> errors = new ArrayList<String>();
+		String sakaiId = doImportTools(siteId, launches, errors).get(0);
+		if ( errors.get(0) != null ) throw new Exception(errors.get(0));
+		return sakaiId;
+	}
+
+	/**
+	 * Import a number of launches into a site with a single batch insert
+	 *
+	 * @param launches Each entry is { launchUrl, bltiTitle, strXml, custom }
+	 * @param errors Filled with the error for each launch or null on success
+	 * @return A list with the sakaiId for each launch or null on failure
+	 */
+	public static List<String> doImportTools(String siteId, List<String[]> launches, List<String> errors)
+	{
+		List<String> retval = new ArrayList<String>();
+		errors.clear();
+		if ( ltiService == null ) {
+			for (String[] launch : launches) {
+				retval.add(null);
+				errors.add("LTI Service not available");
+			}
+			return retval;
+		}
+
+		// Load the candidate tools once for all of the launches
+		List<Map<String,Object>> globalTools = ltiService.getToolsDao(null,null,0,0,"!admin");
+		List<Map<String,Object>> siteTools = null;
+
+		List<Properties> contents = new ArrayList<Properties>();
+		List<Integer> positions = new ArrayList<Integer>();
+		for (String[] launch : launches) {
+			retval.add(null);
+			errors.add(null);
+			Map<String,Object> theTool = findImportTool(launch[0], globalTools);
+			if ( theTool == null ) {
+				if ( siteTools == null ) siteTools = ltiService.getToolsDao(null,null,0,0,siteId);
+				theTool = findImportTool(launch[0], siteTools);
+			}
+			if ( theTool == null ) {
+				M_log.error("LORI Launch configuration not found- "+launch[0]);
+				errors.set(retval.size() - 1, "LORI Launch configuration not found");
+				continue;
+			}
+			contents.add(getImportContent(siteId, theTool, launch[0], launch[1], launch[2], launch[3]));
+			positions.add(retval.size() - 1);
+		}
+
+		if ( contents.size() < 1 ) return retval;
+
+		// Insert as admin into siteId
+		List<Object> results = ltiService.insertContentsDao(contents, "!admin");
+		for (int i = 0; i < results.size(); i++) {
+			Object result = results.get(i);
+			if ( result instanceof Long ) {
+				M_log.debug("Adding LTI tool "+result);
+				retval.set(positions.get(i), "/blti/" + result);
+			} else {
+				M_log.error("Could not insert content - "+result);
+				errors.set(positions.get(i), "Could not insert content - "+result);
+			}
+		}
+		return retval;
+	}
+
+	// Prefer the longest match
+	private static Map<String,Object> findImportTool(String launchUrl, List<Map<String,Object>> tools)
+	{
 		String toolUrl = launchUrl;
 		int pos = toolUrl.indexOf("?");
 		if ( pos > 0 ) {
 			toolUrl = toolUrl.substring(0, pos);
 		}
 
-		String toolName = toolUrl;
-		try {
-			URL launch = new URL(launchUrl);
-			toolName = launch.getProtocol() + "://" + launch.getAuthority();
-		} catch ( Exception e ) {
-			toolName = toolUrl;
-		}
-
-		// Check for global tool configurations (prefer global)
 		Map<String,Object> theTool = null;
-		List<Map<String,Object>> tools = ltiService.getToolsDao(null,null,0,0,"!admin");
 		String lastLaunch = "";
 		for ( Map<String,Object> tool : tools ) {
 			String toolLaunch = (String) tool.get(LTIService.LTI_LAUNCH);
-			// Prefer the longest match
+			if ( toolLaunch == null ) continue;
 			if ( toolUrl.startsWith(toolLaunch) && toolLaunch.length() > lastLaunch.length()) {
 				theTool = tool;
 				lastLaunch = toolLaunch;
 			}
 		}
+		return theTool;
+	}
 
-		// Check for within-site tool configurations (prefer global)
-		if ( theTool == null ) {
-			tools = ltiService.getToolsDao(null,null,0,0,siteId);
-			lastLaunch = "";
-			for ( Map<String,Object> tool : tools ) {
-				String toolLaunch = (String) tool.get(LTIService.LTI_LAUNCH);
-				// Prefer the longest match
-				if ( toolUrl.startsWith(toolLaunch) && toolLaunch.length() > lastLaunch.length()) {
-					theTool = tool;
-					lastLaunch = toolLaunch;
-				}
-			}
-		}
-
-		// If we still do not have a tool configuration throw an error
-		if ( theTool == null ) {
-			M_log.error("LORI Launch configuration not found- "+toolUrl);
-			throw new Exception("LORI Launch configuration not found");
-		}
-	
-		// Found a tool - time to insert content
-		Map<String,Object> theContent = null;
-		Long contentKey = null;
-		if ( theTool != null ) {
-			Properties props = new Properties ();
-			String toolId = foorm.getLong(theTool.get(LTIService.LTI_ID)).toString();
-			props.setProperty(LTIService.LTI_TOOL_ID,toolId);
-			props.setProperty(LTIService.LTI_PLACEMENTSECRET, UUID.randomUUID().toString());
-			props.setProperty(LTIService.LTI_TITLE, bltiTitle);
-			props.setProperty(LTIService.LTI_PAGETITLE, bltiTitle);
-			props.setProperty(LTIService.LTI_LAUNCH,launchUrl);
-			props.setProperty(LTIService.LTI_SITE_ID,siteId);
-
-			if ( strXml != null) props.setProperty(LTIService.LTI_XMLIMPORT,strXml);
-			if ( custom != null ) props.setProperty(LTIService.LTI_CUSTOM,custom);
-
-			M_log.debug("Inserting content associted with toolId="+toolId);
-
-			// Insert as admin into siteId, on error throw upwards
-			Object result = ltiService.insertContentDao(props, "!admin");
-			if ( result instanceof String ) {
-				M_log.error("Could not insert content - "+result);
-			} else {
-				M_log.debug("Adding LTI tool "+result);
-			}
-			if ( result instanceof Long ) theContent = ltiService.getContentDao((Long) result, siteId);
-		}
-	
-		String sakaiId = null;
-		if ( theContent != null ) {
-			sakaiId = "/blti/" + theContent.get(LTIService.LTI_ID);
-		}
-		return sakaiId;
+	private static Properties getImportContent(String siteId, Map<String,Object> theTool, 
+		String launchUrl, String bltiTitle, String strXml, String custom)
+	{
+		Properties props = new Properties ();
+		String toolId = foorm.getLong(theTool.get(LTIService.LTI_ID)).toString();
+		props.setProperty(LTIService.LTI_TOOL_ID,toolId);
+		props.setProperty(LTIService.LTI_PLACEMENTSECRET, UUID.randomUUID().toString());
+		props.setProperty(LTIService.LTI_TITLE, bltiTitle);
+		props.setProperty(LTIService.LTI_PAGETITLE, bltiTitle);
+		props.setProperty(LTIService.LTI_LAUNCH,launchUrl);
+		props.setProperty(LTIService.LTI_SITE_ID,siteId);
+
+		if ( strXml != null) props.setProperty(LTIService.LTI_XMLIMPORT,strXml);
+		if ( custom != null ) props.setProperty(LTIService.LTI_CUSTOM,custom);
+		return props;
 	}
 
 	public static boolean addLessonsLaunch(SimplePageItem thePage, String sakaiId, String nameStr, int startPos) 
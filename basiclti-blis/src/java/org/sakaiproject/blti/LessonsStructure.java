@@ -0,0 +1,119 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.blti;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The page items (folders) of the Lessons tool in one site, arranged as a
+ * tree.  It is built in one go by LessonsFacade.getStructure and cached per
+ * site so LORI structure listings and folder lookups do not go back to the
+ * database for every page.  It never changes once built.
+ */
+public class LessonsStructure implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// The same limits the recursive walks have always used
+	public static final int MAX_DEPTH = 10;
+	public static final int MAX_FOLDERS = 100;
+
+	/**
+	 * A Lessons item that points at a sub-page
+	 */
+	public static class Folder implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long itemId;
+		private final Long pageId;
+		private final String name;
+
+		public Folder(long itemId, Long pageId, String name)
+		{
+			this.itemId = itemId;
+			this.pageId = pageId;
+			this.name = name;
+		}
+
+		/** The id of the SimplePageItem */
+		public long getItemId() { return itemId; }
+
+		/** The page this item leads to - the item's sakaiId */
+		public Long getPageId() { return pageId; }
+
+		public String getName() { return name; }
+	}
+
+	private final List<Folder> top;
+	private final Map<Long, List<Folder>> children;
+
+	/**
+	 * @param top The folders at the top of the site
+	 * @param children The folders on each page, in page order, keyed by page id
+	 */
+	public LessonsStructure(List<Folder> top, Map<Long, List<Folder>> children)
+	{
+		this.top = Collections.unmodifiableList(new ArrayList<Folder>(top));
+		this.children = new HashMap<Long, List<Folder>>(children);
+	}
+
+	public List<Folder> getTopFolders()
+	{
+		return top;
+	}
+
+	/**
+	 * The folders on the page a folder leads to
+	 */
+	public List<Folder> getFolders(Folder folder)
+	{
+		List<Folder> retval = children.get(folder.getPageId());
+		if ( retval == null ) return Collections.emptyList();
+		return Collections.unmodifiableList(retval);
+	}
+
+	/**
+	 * Find the folder leading to a page in the order the tree is walked,
+	 * giving up at the same depth and size as the old recursive lookup.
+	 */
+	public Folder findFolder(Long pageId)
+	{
+		if ( pageId == null ) return null;
+		return findFolder(top, pageId, new int[1], 1);
+	}
+
+	private Folder findFolder(List<Folder> folders, Long pageId, int[] seen, int depth)
+	{
+		if ( depth > MAX_DEPTH ) return null;
+		for (Folder folder : folders) {
+			if ( seen[0] > MAX_FOLDERS ) return null;
+			if ( pageId.equals(folder.getPageId()) ) return folder;
+			seen[0]++;
+			Folder retval = findFolder(getFolders(folder), pageId, seen, depth+1);
+			if ( retval != null ) return retval;
+		}
+		return null;
+	}
+}
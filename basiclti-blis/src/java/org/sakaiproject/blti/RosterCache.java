@@ -0,0 +1,251 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.blti;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.sakaiproject.authz.cover.AuthzGroupService;
+import org.sakaiproject.component.cover.ComponentManager;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.site.api.SiteService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The rendered members of a site as returned by
+ * basic-lis-readmembershipsforcontext, sorted by user id.
+ * <p>
+ * Each site has one cache entry holding a roster for every variant asked
+ * for - which of names, emails and result sourcedids are released changes
+ * what goes in each member.  The entry is dropped when the site, its
+ * groups or its realm change anywhere in the cluster.  When a user's
+ * details change or the user is removed the sites they are a member of are
+ * dropped.  Logins and logouts are ignored.
+ * <p>
+ * The cache is sized like any other Sakai cache (memory.org.sakaiproject.blti.RosterCache.rosterCache)
+ * and shows up with its hit counts in the Memory tool.  The hit ratio is
+ * also logged every basiclti.roster.cache.stats lookups.
+ */
+public class RosterCache {
+
+	private static Log M_log = LogFactory.getLog(RosterCache.class);
+
+	// site.upd, site.upd.site.mbrshp, site.upd.grp.mbrshp, site.del
+	private static final String SITE_EVENT_PREFIX = "site.";
+	// realm.upd, realm.upd.own, realm.del
+	private static final String REALM_EVENT_PREFIX = "realm.";
+	// user.upd.any, user.upd.own - user.login and user.logout are modify events too
+	private static final String USER_UPDATE_PREFIX = "user.upd";
+	private static final String USER_DELETE = "user.del";
+	private static final String USER_REFERENCE = "/user/";
+	private static final String SITE_REFERENCE = "/site/";
+
+	protected static Cache rosterCache = null;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	// Bumped on every invalidation so a roster built across one is not stored.
+	// Sites share the counters by hash so a change to one site rarely turns
+	// away a roster for another.
+	private static final int GENERATION_STRIPES = 64;
+	private static final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+	private static int statsEvery = 1000;
+
+	private static Observer rosterObserver = new Observer() {
+		public void update(Observable o, Object arg) {
+			if ( ! (arg instanceof Event) || rosterCache == null ) return;
+			Event event = (Event) arg;
+			if ( ! event.getModify() ) return;
+			String name = event.getEvent();
+			if ( name == null ) return;
+			if ( name.startsWith(USER_UPDATE_PREFIX) || USER_DELETE.equals(name) ) {
+				invalidateUser(getUserId(event.getResource()));
+			} else if ( name.startsWith(SITE_EVENT_PREFIX) || name.startsWith(REALM_EVENT_PREFIX) ) {
+				String siteId = getSiteId(event.getResource());
+				if ( siteId == null ) siteId = event.getContext();
+				if ( siteId == null ) {
+					invalidateAll();
+				} else {
+					invalidate(siteId);
+				}
+			}
+		}
+	};
+
+	public static synchronized void init() {
+		if ( rosterCache != null ) return;
+		if ( ! ServerConfigurationService.getBoolean("basiclti.roster.cache", true) ) return;
+		statsEvery = ServerConfigurationService.getInt("basiclti.roster.cache.stats", 1000);
+		MemoryService memoryService = (MemoryService) ComponentManager.get("org.sakaiproject.memory.api.MemoryService");
+		EventTrackingService eventTrackingService = (EventTrackingService) ComponentManager.get("org.sakaiproject.event.api.EventTrackingService");
+		// Without events we would never know when to drop a roster
+		if ( memoryService == null || eventTrackingService == null ) return;
+		rosterCache = memoryService.getCache("org.sakaiproject.blti.RosterCache.rosterCache");
+		eventTrackingService.addObserver(rosterObserver);
+	}
+
+	public static synchronized void destroy() {
+		if ( rosterCache == null ) return;
+		EventTrackingService eventTrackingService = (EventTrackingService) ComponentManager.get("org.sakaiproject.event.api.EventTrackingService");
+		if ( eventTrackingService != null ) eventTrackingService.deleteObserver(rosterObserver);
+		M_log.info(getStats());
+		rosterCache = null;
+	}
+
+	public static boolean isEnabled() {
+		return rosterCache != null;
+	}
+
+	/**
+	 * Call before building a roster and pass the result to put
+	 */
+	public static long getGeneration(String siteId) {
+		return generations.get(stripe(siteId));
+	}
+
+	private static int stripe(String siteId) {
+		return (siteId.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+	}
+
+	/**
+	 * @return The cached members or null.  The list and its maps are shared
+	 *  and must not be modified.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Map<String,Object>> get(String siteId, String variant) {
+		if ( rosterCache == null ) return null;
+		Map<String, List<Map<String,Object>>> rosters = (Map<String, List<Map<String,Object>>>) rosterCache.get(siteId);
+		List<Map<String,Object>> retval = rosters == null ? null : rosters.get(variant);
+		long lookups;
+		if ( retval == null ) {
+			lookups = misses.incrementAndGet() + hits.get();
+		} else {
+			lookups = hits.incrementAndGet() + misses.get();
+		}
+		if ( statsEvery > 0 && lookups % statsEvery == 0 ) M_log.info(getStats());
+		return retval;
+	}
+
+	/**
+	 * Store a roster unless the cache has been invalidated since the
+	 * generation was read
+	 */
+	@SuppressWarnings("unchecked")
+	public static void put(String siteId, String variant, List<Map<String,Object>> members, long built) {
+		if ( rosterCache == null ) return;
+		synchronized (rosterObserver) {
+			if ( built != generations.get(stripe(siteId)) ) return;
+			Map<String, List<Map<String,Object>>> old = (Map<String, List<Map<String,Object>>>) rosterCache.get(siteId);
+			// Entries are shared between threads so they are replaced rather than changed
+			HashMap<String, List<Map<String,Object>>> rosters = old == null ?
+				new HashMap<String, List<Map<String,Object>>>() : new HashMap<String, List<Map<String,Object>>>(old);
+			rosters.put(variant, members);
+			rosterCache.put(siteId, rosters);
+		}
+	}
+
+	public static void invalidate(String siteId) {
+		if ( rosterCache == null ) return;
+		synchronized (rosterObserver) {
+			generations.incrementAndGet(stripe(siteId));
+			rosterCache.remove(siteId);
+		}
+		invalidations.incrementAndGet();
+	}
+
+	public static void invalidateAll() {
+		if ( rosterCache == null ) return;
+		synchronized (rosterObserver) {
+			for (int i = 0; i < GENERATION_STRIPES; i++) {
+				generations.incrementAndGet(i);
+			}
+			rosterCache.clear();
+		}
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Drop the rosters of every site the user is in.  If we cannot tell
+	 * which sites those are everything goes.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void invalidateUser(String userId) {
+		if ( rosterCache == null ) return;
+		if ( userId == null ) {
+			invalidateAll();
+			return;
+		}
+		Set<String> siteIds = new HashSet<String>();
+		try {
+			Set<String> realms = AuthzGroupService.getAuthzGroupsIsAllowed(userId, SiteService.SITE_VISIT, null);
+			for (String realm : realms) {
+				String siteId = getSiteId(realm);
+				if ( siteId != null ) siteIds.add(siteId);
+			}
+		} catch (Exception e) {
+			M_log.warn("Could not find the sites for " + userId + ": " + e.getMessage());
+			invalidateAll();
+			return;
+		}
+		for (String siteId : siteIds) {
+			invalidate(siteId);
+		}
+	}
+
+	public static String getStats() {
+		long h = hits.get();
+		long m = misses.get();
+		long ratio = h + m == 0 ? 0 : (h * 100) / (h + m);
+		return "Roster cache hits=" + h + " misses=" + m + " ratio=" + ratio + "% invalidations=" + invalidations.get();
+	}
+
+	// /user/USER_ID
+	private static String getUserId(String ref) {
+		if ( ref == null || ! ref.startsWith(USER_REFERENCE) ) return null;
+		String userId = ref.substring(USER_REFERENCE.length());
+		return userId.length() > 0 ? userId : null;
+	}
+
+	// /site/SITE_ID, /site/SITE_ID/group/GROUP_ID or /realm//site/SITE_ID
+	private static String getSiteId(String ref) {
+		if ( ref == null ) return null;
+		int pos = ref.indexOf(SITE_REFERENCE);
+		if ( pos < 0 ) return null;
+		String siteId = ref.substring(pos + SITE_REFERENCE.length());
+		pos = siteId.indexOf('/');
+		if ( pos >= 0 ) siteId = siteId.substring(0, pos);
+		return siteId.length() > 0 ? siteId : null;
+	}
+}
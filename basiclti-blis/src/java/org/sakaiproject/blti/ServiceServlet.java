@@ -22,11 +22,14 @@ package org.sakaiproject.blti;
 import java.lang.StringBuffer;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.TreeMap;
@@ -51,7 +54,15 @@ import net.oauth.SimpleOAuthValidator;
 import net.oauth.server.OAuthServlet;
 import net.oauth.signature.OAuthSignatureMethod;
 
+import org.imsglobal.basiclti.Base64;
+import org.imsglobal.basiclti.DigestUtil;
 import org.imsglobal.basiclti.XMLMap;
+import org.imsglobal.basiclti.XMLMapWriter;
+import org.imsglobal.basiclti.XMLPaths;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.Element;
@@ -83,9 +94,9 @@ import org.sakaiproject.tool.cover.ToolManager;
 import org.sakaiproject.user.api.User;
 import org.sakaiproject.user.cover.UserDirectoryService;
 import org.sakaiproject.util.ResourceLoader;
+import org.sakaiproject.basiclti.util.RequestLimits;
 import org.sakaiproject.basiclti.util.SakaiBLTIUtil;
 import org.imsglobal.basiclti.BasicLTIConstants;
-import org.sakaiproject.basiclti.util.LegacyShaUtil;
 import org.sakaiproject.util.FormattedText;
 
 import org.sakaiproject.lessonbuildertool.SimplePageItem;
@@ -93,6 +104,7 @@ import org.sakaiproject.lessonbuildertool.SimplePageItem;
 import org.imsglobal.pox.IMSPOXRequest;
 
 import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.lti2.SakaiLTI2Services;
 import org.sakaiproject.util.foorm.SakaiFoorm;
 import org.sakaiproject.util.foorm.FoormUtil;
 
@@ -130,6 +142,28 @@ public class ServiceServlet extends HttpServlet {
 
     protected static LTIService ltiService = null;
 
+	// Everything we read from the body of a POX request, pulled out in one pass
+	protected static final XMLPaths POX_PATHS = new XMLPaths(
+		"/resultRecord/sourcedGUID/sourcedId",
+		"/resultRecord/result/resultScore/textString",
+		"/resultRecord/result/resultData/text",
+		"/resultRecord/result/sourcedId",
+		"/params/sourcedGUID/sourcedId",
+		"/params/courseId",
+		"/params/folderId");
+
+	// Paging for basic-lis-readmembershipsforcontext
+	protected static final String ROSTER_LIMIT = "limit";
+	protected static final String ROSTER_CONTINUATION = "continuation";
+
+	private static final String APPLICATION_JSON = "application/json";
+
+	private static final Comparator<Member> MEMBER_ORDER = new Comparator<Member>() {
+		public int compare(Member a, Member b) {
+			return a.getUserId().compareTo(b.getUserId());
+		}
+	};
+
 	protected static XPath xpath = null;
 	protected static XPathExpression LESSONS_RESOURCES_EXPR = null;
 	protected static XPathExpression LESSONS_FOLDER_EXPR = null;
@@ -174,16 +208,15 @@ public class ServiceServlet extends HttpServlet {
 			String msg = rb.getString(s) + ": " + message;
 			M_log.info(msg);
 			theMap.put("/message_response/statusinfo/description", FormattedText.escapeHtmlFormattedText(msg));
-			String theXml = XMLMap.getXML(theMap, true);
-			PrintWriter out = response.getWriter();
-			out.println(theXml);
-			M_log.info("doError="+theXml);
+			XMLMapWriter.writeDocument(theMap, response.getWriter(), true);
+			if ( M_log.isDebugEnabled() ) M_log.debug("doError="+XMLMap.getXML(theMap, true));
 		}
 
 	@Override
 		public void init(ServletConfig config) throws ServletException {
 			super.init(config);
             LessonsFacade.init();
+			RosterCache.init();
 			if ( ltiService == null ) ltiService = (LTIService) ComponentManager.get("org.sakaiproject.lti.api.LTIService");
 			try {
 				xpath = XPathFactory.newInstance().newXPath();
@@ -333,6 +366,8 @@ public class ServiceServlet extends HttpServlet {
 				return;
 			}
 
+			if ( ! admitRequest(response, request.getParameter("oauth_consumer_key"), message_type) ) return;
+
 			// Perform the Outcomee first because we use the SakaiBLTIUtil code for this
 			if ( "basicoutcome".equals(message_type) ) {
 				processOutcome(request, response, lti_message_type, sourcedid, theMap);
@@ -454,15 +489,13 @@ public class ServiceServlet extends HttpServlet {
 				return;
 			}
 
-			String pre_hash = placement_secret + ":::" + user_id + ":::" + placement_id;
-			String received_signature = LegacyShaUtil.sha256Hash(pre_hash);
+			String received_signature = SakaiBLTIUtil.getSourceDIDSignature(placement_secret, user_id, placement_id);
 			M_log.debug("Received signature="+signature+" received="+received_signature);
 			boolean matched = signature.equals(received_signature);
 
 			String old_placement_secret  = pitch.getProperty(LTIService.LTI_OLDPLACEMENTSECRET);
 			if ( old_placement_secret != null && ! matched ) {
-				pre_hash = placement_secret + ":::" + user_id + ":::" + placement_id;
-				received_signature = LegacyShaUtil.sha256Hash(pre_hash);
+				received_signature = SakaiBLTIUtil.getSourceDIDSignature(old_placement_secret, user_id, placement_id);
 				M_log.debug("Received signature II="+signature+" received="+received_signature);
 				matched = signature.equals(received_signature);
 			}
@@ -571,9 +604,7 @@ public class ServiceServlet extends HttpServlet {
 			theMap.put("/message_response/statusinfo/codemajor", "Success");
 			theMap.put("/message_response/statusinfo/severity", "Status");
 			theMap.put("/message_response/statusinfo/codeminor", "fullsuccess");
-			String theXml = XMLMap.getXML(theMap, true);
-			PrintWriter out = response.getWriter();
-			out.println(theXml);
+			XMLMapWriter.writeDocument(theMap, response.getWriter(), true);
 		}
 
 	protected void processOutcome(HttpServletRequest request, HttpServletResponse response, 
@@ -624,9 +655,7 @@ public class ServiceServlet extends HttpServlet {
 
 			if ( ! success ) return;
 
-			String theXml = XMLMap.getXML(theMap, true);
-			PrintWriter out = response.getWriter();
-			out.println(theXml);
+			XMLMapWriter.writeDocument(theMap, response.getWriter(), true);
 		}
 
 	protected void processRoster(HttpServletRequest request, HttpServletResponse response, 
@@ -642,70 +671,92 @@ public class ServiceServlet extends HttpServlet {
 				return;
 			}
 
+			// Optional paging - without a limit the whole roster is returned as it always was
+			int limit = 0;
+			String limitStr = request.getParameter(ROSTER_LIMIT);
+			if ( limitStr != null && limitStr.length() > 0 ) {
+				try {
+					limit = Integer.parseInt(limitStr);
+				} catch (NumberFormatException e) {
+					limit = -1;
+				}
+				if ( limit < 1 ) {
+					doError(request, response, theMap, "outcomes.invalid", ROSTER_LIMIT+"="+limitStr, null);
+					return;
+				}
+				int maxLimit = ServerConfigurationService.getInt("basiclti.roster.limit.max", 1000);
+				if ( maxLimit > 0 && limit > maxLimit ) limit = maxLimit;
+			}
+			String after = null;
+			String continuation = request.getParameter(ROSTER_CONTINUATION);
+			if ( continuation != null && continuation.length() > 0 ) {
+				after = decodeContinuation(continuation);
+				if ( after == null ) {
+					doError(request, response, theMap, "roster.continuation", continuation, null);
+					return;
+				}
+			}
+
 			String releaseName = pitch.getProperty(LTIService.LTI_SENDNAME);
 			String releaseEmail = pitch.getProperty(LTIService.LTI_SENDEMAILADDR);
 			String assignment = pitch.getProperty("assignment");
 			String allowOutcomes = ServerConfigurationService.getString(
 					SakaiBLTIUtil.BASICLTI_OUTCOMES_ENABLED, SakaiBLTIUtil.BASICLTI_OUTCOMES_ENABLED_DEFAULT);
 			if ( ! "true".equals(allowOutcomes) ) allowOutcomes = null;
+			boolean sendName = "on".equals(releaseName);
+			boolean sendEmail = "on".equals(releaseEmail);
+			String placement_secret = null;
+			if ( "true".equals(allowOutcomes) && assignment != null ) {
+				placement_secret = pitch.getProperty(LTIService.LTI_PLACEMENTSECRET);
+			}
 
-			String maintainRole = site.getMaintainRole();
+			// What is released changes each member - the sourcedids also depend on the placement
+			String variant = ( sendName ? "n" : "-" ) + ( sendEmail ? "e" : "-" );
+			if ( placement_secret != null ) variant = variant + ":" + placement_id + ":" + DigestUtil.sha1Hex(placement_secret);
 
 			SakaiBLTIUtil.pushAdvisor();
 			boolean success = false;
+			String next = null;
 			try { 
-				List<Map<String,Object>> lm = new ArrayList<Map<String,Object>>();
-				Set<Member> members = site.getMembers();
-				for (Member member : members ) {
-					Map<String,Object> mm = new TreeMap<String,Object>();
-					Role role = member.getRole();
-					String ims_user_id = member.getUserId();
-					mm.put("/user_id",ims_user_id);
-					String ims_role = "Learner";
-					if ( maintainRole != null && maintainRole.equals(role.getId())) ims_role = "Instructor";
-                    // This is incorrect according to
-                    // http://developers.imsglobal.org/ext_membership.html. It
-                    // should be roles. If we can determine that nobody is using
-                    // the role tag, we should remove it.
-					mm.put("/role",ims_role);
-					mm.put("/roles",ims_role);
-					User user = null;
-					if ( "true".equals(allowOutcomes) && assignment != null ) {
-						user = UserDirectoryService.getUser(ims_user_id);
-						String placement_secret  = pitch.getProperty(LTIService.LTI_PLACEMENTSECRET);
-						String result_sourcedid = SakaiBLTIUtil.getSourceDID(user, placement_id, placement_secret);
-						if ( result_sourcedid != null ) mm.put("/lis_result_sourcedid",result_sourcedid);
-					}
-
-					if ( "on".equals(releaseName) || "on".equals(releaseEmail) ) {
-						if ( user == null ) user = UserDirectoryService.getUser(ims_user_id);
-						if ( "on".equals(releaseName) ) {
-							mm.put("/person_name_given",user.getFirstName());
-							mm.put("/person_name_family",user.getLastName());
-							mm.put("/person_name_full",user.getDisplayName());
-						}
-						if ( "on".equals(releaseEmail) ) {
-							mm.put("/person_contact_email_primary",user.getEmail());
-							mm.put("/person_sourcedid",user.getEid());
+				List<Map<String,Object>> lm = null;
+				if ( RosterCache.isEnabled() ) {
+					// The whole roster is cached and pages are taken from it
+					List<Map<String,Object>> all = RosterCache.get(siteId, variant);
+					if ( all == null ) {
+						long built = RosterCache.getGeneration(siteId);
+						List<Member> members = getSortedMembers(site);
+						all = new ArrayList<Map<String,Object>>(members.size());
+						for (Member member : members ) {
+							all.add(getRosterMember(site, member, placement_id, placement_secret, sendName, sendEmail));
 						}
+						RosterCache.put(siteId, variant, all, built);
+					}
+					int start = 0;
+					if ( after != null ) {
+						while ( start < all.size() && ((String) all.get(start).get("/user_id")).compareTo(after) <= 0 ) start++;
+					}
+					int end = all.size();
+					if ( limit > 0 && start + limit < end ) {
+						end = start + limit;
+						next = encodeContinuation((String) all.get(end-1).get("/user_id"));
+					}
+					lm = all.subList(start, end);
+				} else {
+					// Only the members on the page are looked up
+					List<Member> members = getSortedMembers(site);
+					int start = 0;
+					if ( after != null ) {
+						while ( start < members.size() && members.get(start).getUserId().compareTo(after) <= 0 ) start++;
+					}
+					int end = members.size();
+					if ( limit > 0 && start + limit < end ) {
+						end = start + limit;
+						next = encodeContinuation(members.get(end-1).getUserId());
+					}
+					lm = new ArrayList<Map<String,Object>>(end - start);
+					for (Member member : members.subList(start, end) ) {
+						lm.add(getRosterMember(site, member, placement_id, placement_secret, sendName, sendEmail));
 					}
-
-                    Collection groups = site.getGroupsWithMember(ims_user_id);
-
-                    if (groups.size() > 0) {
-                        List<Map<String, Object>> lgm = new ArrayList<Map<String, Object>>();
-                        for (Iterator i = groups.iterator();i.hasNext();) {
-                            Group group = (Group) i.next();
-                            Map<String, Object> groupMap = new HashMap<String, Object>();
-                            groupMap.put("/id", group.getId());
-                            groupMap.put("/title", group.getTitle());
-                            groupMap.put("/set", new HashMap(groupMap));
-                            lgm.add(groupMap);
-                        }
-                        mm.put("/groups/group", lgm);
-                    }
-
-					lm.add(mm);
 				}
 				theMap.put("/message_response/members/member", lm);
 				success = true;
@@ -717,14 +768,179 @@ public class ServiceServlet extends HttpServlet {
 
 			if ( ! success ) return;
 
+			if ( next != null ) theMap.put("/message_response/continuation", next);
 			theMap.put("/message_response/statusinfo/codemajor", "Success");
 			theMap.put("/message_response/statusinfo/severity", "Status");
 			theMap.put("/message_response/statusinfo/codeminor", "fullsuccess");
-			String theXml = XMLMap.getXML(theMap, true);
-			PrintWriter out = response.getWriter();
-			out.println(theXml);
-			M_log.debug(theXml);
+			String jsonType = getJSONType(request);
+			if ( jsonType != null ) {
+				response.setContentType(jsonType);
+				JSONValue.writeJSONString(toJSON(theMap), response.getWriter());
+			} else {
+				XMLMapWriter.writeDocument(theMap, response.getWriter(), true);
+			}
+			if ( M_log.isDebugEnabled() ) M_log.debug(XMLMap.getXML(theMap, true));
+		}
+
+	// Sorted by user id so a page always picks up after the last id sent
+	protected static List<Member> getSortedMembers(Site site)
+	{
+		List<Member> members = new ArrayList<Member>(site.getMembers());
+		Collections.sort(members, MEMBER_ORDER);
+		return members;
+	}
+
+	/**
+	 * One member of a roster as a map for XMLMap
+	 *
+	 * @param placement_secret Only set when result sourcedids are sent
+	 */
+	protected static Map<String,Object> getRosterMember(Site site, Member member, String placement_id,
+			String placement_secret, boolean sendName, boolean sendEmail)
+		throws Exception
+		{
+			String maintainRole = site.getMaintainRole();
+			Map<String,Object> mm = new TreeMap<String,Object>();
+			Role role = member.getRole();
+			String ims_user_id = member.getUserId();
+			mm.put("/user_id",ims_user_id);
+			String ims_role = "Learner";
+			if ( maintainRole != null && maintainRole.equals(role.getId())) ims_role = "Instructor";
+			// This is incorrect according to
+			// http://developers.imsglobal.org/ext_membership.html. It
+			// should be roles. If we can determine that nobody is using
+			// the role tag, we should remove it.
+			mm.put("/role",ims_role);
+			mm.put("/roles",ims_role);
+			User user = null;
+			if ( placement_secret != null ) {
+				user = UserDirectoryService.getUser(ims_user_id);
+				String result_sourcedid = SakaiBLTIUtil.getSourceDID(user, placement_id, placement_secret);
+				if ( result_sourcedid != null ) mm.put("/lis_result_sourcedid",result_sourcedid);
+			}
+
+			if ( sendName || sendEmail ) {
+				if ( user == null ) user = UserDirectoryService.getUser(ims_user_id);
+				if ( sendName ) {
+					mm.put("/person_name_given",user.getFirstName());
+					mm.put("/person_name_family",user.getLastName());
+					mm.put("/person_name_full",user.getDisplayName());
+				}
+				if ( sendEmail ) {
+					mm.put("/person_contact_email_primary",user.getEmail());
+					mm.put("/person_sourcedid",user.getEid());
+				}
+			}
+
+			Collection groups = site.getGroupsWithMember(ims_user_id);
+
+			if (groups.size() > 0) {
+				List<Map<String, Object>> lgm = new ArrayList<Map<String, Object>>();
+				for (Iterator i = groups.iterator();i.hasNext();) {
+					Group group = (Group) i.next();
+					Map<String, Object> groupMap = new HashMap<String, Object>();
+					groupMap.put("/id", group.getId());
+					groupMap.put("/title", group.getTitle());
+					groupMap.put("/set", new HashMap(groupMap));
+					lgm.add(groupMap);
+				}
+				mm.put("/groups/group", lgm);
+			}
+			return mm;
+		}
+
+	// The continuation is the last user id on the page, kept opaque so tools do not read anything into it
+	protected static String encodeContinuation(String userId)
+	{
+		try {
+			return new String(Base64.encode(userId.getBytes("UTF-8")), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected static String decodeContinuation(String continuation)
+	{
+		try {
+			byte [] bytes = Base64.decode(continuation.getBytes("UTF-8"));
+			if ( bytes == null || bytes.length < 1 ) return null;
+			return new String(bytes, "UTF-8");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tools that take the JSON form of the roster ask for it in the Accept
+	 * header, either by the format we advertise or as plain application/json.
+	 *
+	 * @return The type to send back or null for the XML form
+	 */
+	protected static String getJSONType(HttpServletRequest request)
+	{
+		String accept = request.getHeader("Accept");
+		if ( accept == null ) return null;
+		boolean plain = false;
+		for (String range : accept.split(",")) {
+			String [] parts = range.split(";");
+			if ( getQuality(parts) <= 0 ) continue;
+			String type = parts[0].trim().toLowerCase();
+			if ( SakaiLTI2Services.ROSTER_JSON_FORMAT.equals(type) ) return SakaiLTI2Services.ROSTER_JSON_FORMAT;
+			if ( APPLICATION_JSON.equals(type) ) plain = true;
+		}
+		return plain ? APPLICATION_JSON : null;
+	}
+
+	// The q parameter of a media range, 1 when it is missing or unreadable
+	private static float getQuality(String [] parts)
+	{
+		for (int i = 1; i < parts.length; i++) {
+			String param = parts[i].trim();
+			if ( ! param.startsWith("q=") ) continue;
+			try {
+				return Float.parseFloat(param.substring(2).trim());
+			} catch (NumberFormatException e) {
+				return 1;
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * The JSON equivalent of a map in the form taken by XMLMap.getXML - each
+	 * step in a path becomes a nested object and lists become arrays.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static JSONObject toJSON(Map<?,?> theMap)
+	{
+		JSONObject retval = new JSONObject();
+		for (Map.Entry<?,?> entry : theMap.entrySet()) {
+			if ( ! ( entry.getKey() instanceof String ) ) continue;
+			String [] path = ((String) entry.getKey()).split("/");
+			JSONObject parent = retval;
+			for (int i = 1; i < path.length - 1; i++) {
+				Object child = parent.get(path[i]);
+				if ( ! ( child instanceof JSONObject ) ) {
+					child = new JSONObject();
+					parent.put(path[i], child);
+				}
+				parent = (JSONObject) child;
+			}
+			if ( path.length < 2 ) continue;
+			Object value = entry.getValue();
+			if ( value instanceof Map ) {
+				value = toJSON((Map<?,?>) value);
+			} else if ( value instanceof List ) {
+				JSONArray array = new JSONArray();
+				for (Object item : (List<?>) value) {
+					array.add(item instanceof Map ? toJSON((Map<?,?>) item) : item);
+				}
+				value = array;
+			}
+			parent.put(path[path.length-1], value);
 		}
+		return retval;
+	}
 
 	/* IMS POX XML versions of this service */
 	public void doErrorXML(HttpServletRequest request,HttpServletResponse response, 
@@ -738,22 +954,34 @@ public class ServiceServlet extends HttpServlet {
 			M_log.info(msg);
 			response.setContentType("application/xml");
 			PrintWriter out = response.getWriter();
-            String output = null;
             if ( pox == null ) {
-                output = IMSPOXRequest.getFatalResponse(msg);
+                IMSPOXRequest.writeFatalResponse(out, msg);
             } else {
-				String body = null;
+				Map<String,String> body = null;
 				String operation = pox.getOperation();
 				if ( operation != null ) {
-					body = "<"+operation.replace("Request", "Response")+"/>";
+					body = new TreeMap<String,String>();
+					body.put("/"+operation.replace("Request", "Response"), "");
 				}
-                output = pox.getResponseFailure(msg, null, body);
+                pox.writeResponseFailure(out, msg, null, body);
             }
-			out.println(output);
-			M_log.debug(output);
 		}
 
 
+	/**
+	 * Outcomes have their own limit so a consumer's grade sync cannot use up
+	 * what the rest of its calls are allowed.  Both are per consumer key -
+	 * the sourcedid is not checked yet so nothing in it can pick the bucket.
+	 */
+	protected boolean admitRequest(HttpServletResponse response, String oauth_consumer_key,
+			String message_type) throws IOException
+	{
+		if ( "basicoutcome".equals(message_type) ) {
+			return RequestLimits.admit(RequestLimits.OUTCOMES, oauth_consumer_key, response);
+		}
+		return RequestLimits.admit(RequestLimits.SERVICE, oauth_consumer_key, response);
+	}
+
 	@SuppressWarnings("unchecked")
     protected void doPostJSON(HttpServletRequest request, HttpServletResponse response) 
             throws ServletException, IOException 
@@ -787,7 +1015,7 @@ public class ServiceServlet extends HttpServlet {
 				return;
 			}
 
-			IMSPOXRequest pox = new IMSPOXRequest(request);
+			IMSPOXRequest pox = new IMSPOXRequest(request, POX_PATHS);
 			if ( ! pox.valid ) {
 				doErrorXML(request, response, pox, "pox.invalid", pox.errorMessage, null);
 				return;
@@ -798,8 +1026,8 @@ public class ServiceServlet extends HttpServlet {
 
 			String sourcedid = null;
 			String message_type = null;
-            if ( M_log.isDebugEnabled() ) M_log.debug("POST\n"+XMLMap.prettyPrint(pox.postBody));
-			Map<String,String> bodyMap = pox.getBodyMap();
+            if ( M_log.isDebugEnabled() ) M_log.debug("POST\n"+XMLMap.prettyPrint(pox.getPostBody()));
+			Map<String,String> bodyMap = pox.getBodyValues(POX_PATHS);
 			if ( ( "replaceResultRequest".equals(lti_message_type) || "readResultRequest".equals(lti_message_type) ||
                    "deleteResultRequest".equals(lti_message_type) )  && allowOutcomes != null ) {
 				sourcedid = bodyMap.get("/resultRecord/sourcedGUID/sourcedId");
@@ -811,13 +1039,15 @@ public class ServiceServlet extends HttpServlet {
                 sourcedid = bodyMap.get("/params/sourcedGUID/sourcedId");
 				message_type = "addstructure";
 			} else {
-				String output = pox.getResponseUnsupported("Not supported "+lti_message_type);
 				response.setContentType("application/xml");
-				PrintWriter out = response.getWriter();
-				out.println(output);
+				pox.writeResponseUnsupported(response.getWriter(), "Not supported "+lti_message_type);
 				return;
 			}
 
+			// Grade calls and LORI calls share this endpoint but not their limits,
+			// so the consumer is admitted once the operation is known
+			if ( ! admitRequest(response, RequestLimits.getConsumerKey(request), message_type) ) return;
+
 			// No point continuing without a sourcedid
 			if(BasicLTIUtil.isBlank(sourcedid)) {
 				doErrorXML(request, response, pox, "outcomes.missing", "sourcedid", null);
@@ -912,15 +1142,13 @@ public class ServiceServlet extends HttpServlet {
 				return;
 			}
 
-			String pre_hash = placement_secret + ":::" + user_id + ":::" + placement_id;
-			String received_signature = LegacyShaUtil.sha256Hash(pre_hash);
+			String received_signature = SakaiBLTIUtil.getSourceDIDSignature(placement_secret, user_id, placement_id);
 			M_log.debug("Received signature="+signature+" received="+received_signature);
 			boolean matched = signature.equals(received_signature);
 
 			String old_placement_secret  = pitch.getProperty(LTIService.LTI_OLDPLACEMENTSECRET);
 			if ( old_placement_secret != null && ! matched ) {
-				pre_hash = placement_secret + ":::" + user_id + ":::" + placement_id;
-				received_signature = LegacyShaUtil.sha256Hash(pre_hash);
+				received_signature = SakaiBLTIUtil.getSourceDIDSignature(old_placement_secret, user_id, placement_id);
 				M_log.debug("Received signature II="+signature+" received="+received_signature);
 				matched = signature.equals(received_signature);
 			}
@@ -940,10 +1168,8 @@ public class ServiceServlet extends HttpServlet {
 				processAddResourceXML(request, response, lti_message_type, siteId, pox);
 			} else {
 				response.setContentType("application/xml");
-				PrintWriter writer = response.getWriter();
 				String desc = "Message received and validated operation="+pox.getOperation();
-				String output = pox.getResponseUnsupported(desc);
-				writer.println(output);
+				pox.writeResponseUnsupported(response.getWriter(), desc);
 			}
 		}
 
@@ -952,7 +1178,7 @@ public class ServiceServlet extends HttpServlet {
 		throws java.io.IOException
 	{
             // userId is irrelevant as this is server to server
-			Map<String,String> bodyMap = pox.getBodyMap();
+			Map<String,String> bodyMap = pox.getBodyValues(POX_PATHS);
 			String context_id = bodyMap.get("/params/courseId");
 			if ( context_id == null || ! context_id.equals(siteId) ) {
 				doErrorXML(request, response, pox, "outcomes.sourcedid", "sourcedid", null);
@@ -961,20 +1187,9 @@ public class ServiceServlet extends HttpServlet {
 			}
 
 			// First make sure that we have Lessons in the site
-			SitePage lessonsPage = null;
 			ToolConfiguration lessonsConfig = null;
 			try {
-				Site site = SiteService.getSite(siteId);
-				for (SitePage page : (List<SitePage>)site.getPages()) {
-					for(ToolConfiguration tool : (List<ToolConfiguration>) page.getTools()) {
-						String tid = tool.getToolId();
-						if ( "sakai.lessonbuildertool".equals(tid) ) {
-							lessonsPage = page;
-							lessonsConfig = tool;
-							break;
-						}
-					}
-				}
+				lessonsConfig = findLessonsTool(siteId);
 			} catch (IdUnusedException ex) {
 				doErrorXML(request, response, pox, "outcomes.notools", "sourcedid", null);
 				M_log.warn("Could not scan site for Lessons tool.");
@@ -986,12 +1201,13 @@ public class ServiceServlet extends HttpServlet {
 				doErrorXML(request, response, pox, "outcomes.nolessons", "sourcedid", null);
 				return;
 			}
+			SitePage lessonsPage = lessonsConfig.getContainingPage();
 
 			// Now lets find the structure within Lessons
 			List<Long> structureList = new ArrayList<Long>();
 
-			List<SimplePageItem> sitePages = LessonsFacade.findItemsInSite(context_id);
-			List<Map<String,Object>> structureMap = iteratePagesXML(sitePages,structureList,0);
+			LessonsStructure structure = LessonsFacade.getStructure(context_id);
+			List<Map<String,Object>> structureMap = iteratePagesXML(structure, structure.getTopFolders(), structureList, 0);
 
 			if ( structureMap.size() < 1 ) {
 				Map<String,Object> cMap = new TreeMap<String,Object>();
@@ -1004,12 +1220,8 @@ public class ServiceServlet extends HttpServlet {
 
 			Map<String,Object> theMap = new TreeMap<String,Object>();
 			theMap.put("/getCourseStructureResponse/resources/resource",structureMap);
-			String theXml = XMLMap.getXMLFragment(theMap, true);
-			String output = pox.getResponseSuccess("processCourseStructureXml", theXml);
-
-			PrintWriter out = response.getWriter();
-			out.println(output);
-			M_log.debug(output);
+			pox.writeResponseSuccess(response.getWriter(), "processCourseStructureXml", theMap);
+			if ( M_log.isDebugEnabled() ) M_log.debug(XMLMap.getXMLFragment(theMap, true));
 			return;
 	}
 
@@ -1018,7 +1230,7 @@ public class ServiceServlet extends HttpServlet {
 		throws java.io.IOException
 	{
             // userId is irrelevant because this is server to server
-			Map<String,String> bodyMap = pox.getBodyMap();
+			Map<String,String> bodyMap = pox.getBodyValues(POX_PATHS);
 			String context_id = bodyMap.get("/params/courseId");
 
 			if ( context_id == null || ! context_id.equals(siteId) ) {
@@ -1032,46 +1244,29 @@ public class ServiceServlet extends HttpServlet {
 			try { folderId = new Long(folder_id); }
 			catch (Exception e) { folderId = null; }
 
-			List<Long> structureList = new ArrayList<Long>();
-			List<SimplePageItem> sitePages = LessonsFacade.findItemsInSite(context_id);
-			SimplePageItem thePage = LessonsFacade.findFolder(sitePages, folderId, structureList, 1);
+			LessonsStructure structure = LessonsFacade.getStructure(context_id);
+			SimplePageItem thePage = LessonsFacade.findFolder(structure, folderId);
 
 			// Something wrong, add on the first page
-			if ( thePage == null ) {
+			if ( thePage == null && structure.getTopFolders().size() > 0 ) {
 				M_log.debug("Inserting at top...");
-				for (SimplePageItem i : sitePages) {
-					if (i.getType() != SimplePageItem.PAGE) continue;
-					// System.out.println("item="+i.getName()+"id="+i.getId()+" sakaiId="+i.getSakaiId());
-					thePage = i;
-					break;
-				}
+				thePage = LessonsFacade.findItem(structure.getTopFolders().get(0).getItemId());
 			}
 
 			// No pages in Lessons yet... 
 			// If we can find the Lessons tool, lets add its first page. 
 			if ( thePage == null ) {
 				M_log.debug("Creating top page...");
-				SitePage lessonsPage = null;
 				ToolConfiguration lessonsConfig = null;
 				try {
-					Site site = SiteService.getSite(siteId);
-					for (SitePage page : (List<SitePage>)site.getPages()) {
-						for(ToolConfiguration tool : (List<ToolConfiguration>) page.getTools()) {
-							String tid = tool.getToolId();
-							if ( "sakai.lessonbuildertool".equals(tid) ) {
-								lessonsPage = page;
-								lessonsConfig = tool;
-								break;
-							}
-						}
-					}
+					lessonsConfig = findLessonsTool(siteId);
 				} catch (IdUnusedException ex) {
 					M_log.warn("Could not load site.");
 				}
 				if ( lessonsConfig == null ) {
 					M_log.warn("Could not find sakai.lessonbulder in site="+siteId);
 				} else {
-					String title = lessonsPage.getTitle();
+					String title = lessonsConfig.getContainingPage().getTitle();
 					String toolId = lessonsConfig.getPageId();
 					thePage = LessonsFacade.addFirstPage(siteId, toolId, title);
 				}
@@ -1083,7 +1278,7 @@ public class ServiceServlet extends HttpServlet {
 				return;
 			}
 
-			Element bodyElement = pox.bodyElement;
+			Element bodyElement = pox.getBodyElement();
 			// System.out.println(XMLMap.nodeToString(bodyElement));
 			// System.out.println(XMLMap.nodeToString(bodyElement, true));
 			NodeList nl = null;
@@ -1117,24 +1312,24 @@ public class ServiceServlet extends HttpServlet {
 
             Map<String,Object> theMap = new TreeMap<String,Object>();
             theMap.put("/addCourseResourcesResponse/resources/resource",resultList);
-            String theXml = XMLMap.getXMLFragment(theMap, true);
 
 			response.setContentType("application/xml");
-			String output = null;
 			if ( success ) {
-				output = pox.getResponseSuccess("Items Added",theXml);
+				pox.writeResponseSuccess(response.getWriter(), "Items Added", theMap);
 			} else {
-				output = pox.getResponseFailure("Items were not added", null);
+				pox.writeResponseFailure(response.getWriter(), "Items were not added", null, null);
 			}
-
-			PrintWriter out = response.getWriter();
-			out.println(output);
-			M_log.debug(output);
+			if ( M_log.isDebugEnabled() ) M_log.debug(XMLMap.getXMLFragment(theMap, true));
 	}
 
 	protected void recursivelyAddResourcesXML(String siteId, SimplePageItem thePage, NodeList nl, 
         int startPos, List<Map<String,String>> resultList)
 	{
+		// The LTI launches at this level are inserted as one batch once the folders are done
+		List<String[]> launches = new ArrayList<String[]>();
+		List<Map<String,String>> launchResults = new ArrayList<Map<String,String>>();
+		List<Integer> launchPositions = new ArrayList<Integer>();
+
 		for(int i=0, cnt=nl.getLength(); i<cnt; i++)
 		{
 			Node node = nl.item(i);
@@ -1215,59 +1410,78 @@ public class ServiceServlet extends HttpServlet {
 
             Map<String,String> result = new TreeMap<String,String> ();
             result.put("/tempId",tempId);
-
-			// Time to add the launch tool
-			String sakaiId = null;
-            try {
-			    sakaiId = LessonsFacade.doImportTool(siteId, launchUrl, titleStr, null, launchParams);
-                if ( sakaiId == null ) {
-                    result.put("/status", "failure");
-                    result.put("/description","doImportTool failed");
-				    M_log.warn("Unable to add LTI Placement "+titleStr);
-                } else {
-                    result.put("/status", "success");
-                    result.put("/description","doImportTool success");
-                    result.put("/id", sakaiId);
-                }
-            } catch (Exception e) {
-                sakaiId = null;
-                e.printStackTrace();
-                result.put("/status", "failure");
-                result.put("/description", e.getMessage());
-            }
             resultList.add(result);
 
-			if ( sakaiId == null ) continue;
+			launches.add(new String[] { launchUrl, titleStr, null, launchParams });
+			launchResults.add(result);
+			launchPositions.add(startPos);
+		}
+
+		if ( launches.size() < 1 ) return;
+
+		// Time to add the launch tools
+		List<String> sakaiIds = null;
+		List<String> errors = new ArrayList<String>();
+		try {
+			sakaiIds = LessonsFacade.doImportTools(siteId, launches, errors);
+		} catch (Exception e) {
+			M_log.error("Unable to add LTI Placements to site "+siteId, e);
+			// Nothing was inserted - keep the errors already found for each launch
+			for (int i = 0; i < launchResults.size(); i++) {
+				String error = i < errors.size() ? errors.get(i) : null;
+				Map<String,String> result = launchResults.get(i);
+				result.put("/status", "failure");
+				result.put("/description", error != null ? error : e.getMessage());
+			}
+			return;
+		}
+
+		for (int i = 0; i < launches.size(); i++) {
+			String sakaiId = sakaiIds.get(i);
+			String titleStr = launches.get(i)[1];
+			Map<String,String> result = launchResults.get(i);
+			if ( sakaiId == null ) {
+				String error = errors.get(i);
+				result.put("/status", "failure");
+				result.put("/description", error != null ? error : "doImportTool failed");
+				M_log.warn("Unable to add LTI Placement "+titleStr);
+				continue;
+			}
+			result.put("/status", "success");
+			result.put("/description","doImportTool success");
+			result.put("/id", sakaiId);
 
-			LessonsFacade.addLessonsLaunch(thePage, sakaiId, titleStr, startPos);
+			LessonsFacade.addLessonsLaunch(thePage, sakaiId, titleStr, launchPositions.get(i));
 		}
 	}
 
-	protected List<Map<String,Object>> iteratePagesXML(List<SimplePageItem> sitePages, 
-		List<Long> structureList, int depth)
+	// Site is cached by SiteService so this does not go to the database
+	protected ToolConfiguration findLessonsTool(String siteId) throws IdUnusedException
+	{
+		Site site = SiteService.getSite(siteId);
+		return site.getToolForCommonId("sakai.lessonbuildertool");
+	}
+
+	protected List<Map<String,Object>> iteratePagesXML(LessonsStructure structure, 
+		List<LessonsStructure.Folder> folders, List<Long> structureList, int depth)
 	{
 		List<Map<String,Object>> structureMap = new ArrayList<Map<String,Object>>();
 
-		if ( depth > 10 ) return null;
-		for (SimplePageItem i : sitePages) {
+		if ( depth > LessonsStructure.MAX_DEPTH ) return null;
+		for (LessonsStructure.Folder folder : folders) {
 			if ( structureList.size() > 50 ) return structureMap;
-            // System.out.println("d="+depth+" o="+structureList.size()+" Page ="+i.getSakaiId()+" title="+i.getName());
-			if (i.getType() != SimplePageItem.PAGE) continue;
-			Long pageNum = Long.valueOf(i.getSakaiId());
 
-			String title = i.getName();
+			String title = folder.getName();
 			if ( structureList.size() == 50 ) title = " ... ";
-			structureList.add(i.getId());
+			structureList.add(folder.getItemId());
 
 			Map<String,Object> cMap = new TreeMap<String,Object>();
-			cMap.put("/folderId",i.getSakaiId());
+			cMap.put("/folderId",folder.getPageId().toString());
 			cMap.put("/title",title);
 			cMap.put("/description",title);
 			cMap.put("/type","folder");
 
-			List<SimplePageItem> items = LessonsFacade.findItemsOnPage(pageNum);
-            // System.out.println("Items="+items);
-		    List<Map<String,Object>> subMap = iteratePagesXML(items, structureList, depth+1);
+		    List<Map<String,Object>> subMap = iteratePagesXML(structure, structure.getFolders(folder), structureList, depth+1);
             if (subMap != null && subMap.size() > 0 ) {
 			    cMap.put("/resources/resource",subMap);
             }
@@ -1284,7 +1498,7 @@ public class ServiceServlet extends HttpServlet {
 			boolean isRead = BasicLTIUtil.equals(lti_message_type, "readResultRequest");
 			boolean isDelete = BasicLTIUtil.equals(lti_message_type, "deleteResultRequest");
 
-			Map<String,String> bodyMap = pox.getBodyMap();
+			Map<String,String> bodyMap = pox.getBodyValues(POX_PATHS);
 			String result_resultscore_textstring = bodyMap.get("/resultRecord/result/resultScore/textString");
 			String result_resultdata_text = bodyMap.get("/resultRecord/result/resultData/text");
 			String sourced_id = bodyMap.get("/resultRecord/result/sourcedId");
@@ -1353,20 +1567,14 @@ public class ServiceServlet extends HttpServlet {
 
 			if ( !success ) return;
 
-			String output = null;
-			String theXml = "";
-			if ( theMap.size() > 0 ) theXml = XMLMap.getXMLFragment(theMap, true);
-			output = pox.getResponseSuccess(message, theXml);
-
 			response.setContentType("application/xml");
-			PrintWriter out = response.getWriter();
-			out.println(output);
-			M_log.debug(output);
+			pox.writeResponseSuccess(response.getWriter(), message, theMap);
+			if ( M_log.isDebugEnabled() ) M_log.debug(message+" "+XMLMap.getXMLFragment(theMap, true));
 		}
 
 
 	public void destroy() {
-
+		RosterCache.destroy();
 	}
 
 }
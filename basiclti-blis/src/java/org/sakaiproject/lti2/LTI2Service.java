@@ -32,6 +32,10 @@ import java.util.ArrayList;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Properties;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -57,7 +61,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.imsglobal.basiclti.BasicLTIUtil;
 import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
 import org.sakaiproject.util.ResourceLoader;
+import org.sakaiproject.basiclti.util.RequestLimits;
 import org.sakaiproject.basiclti.util.SakaiBLTIUtil;
 import org.imsglobal.basiclti.BasicLTIConstants;
 import org.imsglobal.lti2.LTI2Constants;
@@ -115,10 +124,66 @@ public class LTI2Service extends HttpServlet {
 
 	private static final String APPLICATION_JSON = "application/json";
 
+	private static final String SETTINGS_REFERENCE = LTIService.REFERENCE_ROOT + "/settings/";
+
+	// What DBLTIService posts when a row changes, followed by table/id
+	private static final String ROW_REFERENCE = LTIService.REFERENCE_ROOT + "/cache/";
+	private static final String DEPLOY_REFERENCE = ROW_REFERENCE + "lti_deploy/";
+
+	// An ObjectWriter is immutable and thread safe once built (Jackson 1.x)
+	private static final ObjectWriter PROFILE_WRITER = new ObjectMapper().defaultPrettyPrintingWriter();
+
+	protected EventTrackingService eventTrackingService = null;
+
+	/**
+	 * Resolved settings hierarchies keyed by scope/id, dropped when one of
+	 * the content, tool, binding or deploy rows they were built from changes
+	 * anywhere in the cluster
+	 */
+	protected Cache settingsCache = null;
+
+	/**
+	 * The settingsCache keys built from each row, keyed by table/id as
+	 * DBLTIService announces it.  Bindings that do not exist yet are keyed
+	 * by binding/tool_id,site_id so inserting one drops the links below it.
+	 */
+	private final ConcurrentMap<String, Set<String>> settingsDependents = new ConcurrentHashMap<String, Set<String>>();
+
+	/**
+	 * Serialized tool consumer profiles keyed by deploy id, dropped when
+	 * that deploy row changes
+	 */
+	protected Cache profileCache = null;
+
+	private Observer settingsObserver = new Observer() {
+		public void update(Observable o, Object arg) {
+			if ( ! (arg instanceof Event) ) return;
+			Event event = (Event) arg;
+			if ( ! LTIService.EVENT_CACHE_INVALIDATE.equals(event.getEvent()) ) return;
+			String ref = event.getResource();
+			if ( ref == null ) return;
+			if ( ref.startsWith(ROW_REFERENCE) ) {
+				dropSettings(ref.substring(ROW_REFERENCE.length()));
+			} else if ( ref.startsWith(SETTINGS_REFERENCE) ) {
+				dropSettings(ref.substring(SETTINGS_REFERENCE.length()));
+			}
+			if ( profileCache != null && ref.startsWith(DEPLOY_REFERENCE) ) {
+				profileCache.remove(ref.substring(DEPLOY_REFERENCE.length()));
+			}
+		}
+	};
+
 	@Override
 	public void init(ServletConfig config) throws ServletException {
 		super.init(config);
 		if ( ltiService == null ) ltiService = (LTIService) ComponentManager.get("org.sakaiproject.lti.api.LTIService");
+		if ( eventTrackingService == null ) eventTrackingService = (EventTrackingService) ComponentManager.get("org.sakaiproject.event.api.EventTrackingService");
+		MemoryService memoryService = (MemoryService) ComponentManager.get("org.sakaiproject.memory.api.MemoryService");
+		if ( memoryService != null ) {
+			settingsCache = memoryService.getCache("org.sakaiproject.lti2.LTI2Service.settingsCache");
+			profileCache = memoryService.getCache("org.sakaiproject.lti2.LTI2Service.profileCache");
+		}
+		if ( eventTrackingService != null ) eventTrackingService.addObserver(settingsObserver);
 
 		resourceUrl = SakaiBLTIUtil.getOurServerUrl() + LTI2_PATH;
 		LTI2ResultItem = StandardServices.LTI2ResultItem(resourceUrl 
@@ -170,6 +235,17 @@ public class LTI2Service extends HttpServlet {
 			return;
 		}
 		String controller = parts[3];
+
+		// Results have their own limit, both are per consumer key - or per
+		// deployment for the profile and registration
+		String limitKey = RequestLimits.getConsumerKey(request);
+		if ( SVC_Result.equals(controller) ) {
+			if ( ! RequestLimits.admit(RequestLimits.OUTCOMES, limitKey, response) ) return;
+		} else {
+			if ( limitKey == null && parts.length > 4 ) limitKey = parts[4];
+			if ( ! RequestLimits.admit(RequestLimits.SERVICE, limitKey, response) ) return;
+		}
+
 		if ( SVC_tc_profile.equals(controller) && parts.length == 5 ) {
 			String profile_id = parts[4];
 			getToolConsumerProfile(request,response,profile_id);
@@ -206,25 +282,47 @@ public class LTI2Service extends HttpServlet {
 			return;
 		}
 
-		ToolConsumer consumer = getToolConsumerProfile(deploy, profile_id);
-
-		ObjectMapper mapper = new ObjectMapper();
 		try {
-			// http://stackoverflow.com/questions/6176881/how-do-i-make-jackson-pretty-print-the-json-content-it-generates
-			ObjectWriter writer = mapper.defaultPrettyPrintingWriter();
-			// ***IMPORTANT!!!*** for Jackson 2.x use the line below instead of the one above: 
-			// ObjectWriter writer = mapper.writer().withDefaultPrettyPrinter();
-			// System.out.println(mapper.writeValueAsString(consumer));
+			SerializedProfile profile = getSerializedProfile(deploy, profile_id);
+			response.setHeader("ETag", profile.getETag());
+			if ( ResolvedSettings.matches(request.getHeader("If-None-Match"), profile.getETag()) ) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			byte[] json = profile.getJson();
 			response.setContentType(APPLICATION_JSON);
-			PrintWriter out = response.getWriter();
-			out.println(writer.writeValueAsString(consumer));
-			// System.out.println(writer.writeValueAsString(consumer));
+			response.setCharacterEncoding("UTF-8");
+			response.setContentLength(json.length);
+			response.getOutputStream().write(json);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * The profile for a deploy as it is sent to tools.  The profile only
+	 * changes when the deploy row or the server configuration changes so
+	 * it is built and serialized once and the bytes are kept until the
+	 * deploy is updated.
+	 */
+	protected SerializedProfile getSerializedProfile(Map<String, Object> deploy, String profile_id)
+		throws IOException
+	{
+		Long deployKey = foorm.getLongNull(deploy.get(LTIService.LTI_ID));
+		String cacheKey = deployKey == null ? null : deployKey.toString();
+		if ( profileCache != null && cacheKey != null ) {
+			SerializedProfile profile = (SerializedProfile) profileCache.get(cacheKey);
+			if ( profile != null && profile_id.equals(profile.getProfileId()) ) return profile;
+		}
+
+		ToolConsumer consumer = getToolConsumerProfile(deploy, profile_id);
+		// writeValueAsBytes always produces UTF-8
+		SerializedProfile profile = new SerializedProfile(profile_id, PROFILE_WRITER.writeValueAsBytes(consumer));
+		if ( profileCache != null && cacheKey != null ) profileCache.put(cacheKey, profile);
+		return profile;
+	}
+
 	protected ToolConsumer getToolConsumerProfile(Map<String, Object> deploy, String profile_id)
 	{
 		// Load the configuration data
@@ -340,7 +438,7 @@ public class LTI2Service extends HttpServlet {
 			return;
 		}
 
-		JSONObject providerProfile = (JSONObject) JSONValue.parse(jsonRequest.getPostBody());
+		JSONObject providerProfile = (JSONObject) JSONValue.parse(jsonRequest.getPostBodyReader());
 		// System.out.println("OBJ:"+providerProfile);
 		if ( providerProfile == null  ) {
 			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -471,7 +569,7 @@ public class LTI2Service extends HttpServlet {
 			try {
 				jsonRequest = new IMSJSONRequest(request);
 				// System.out.println(jsonRequest.getPostBody());
-				JSONObject requestData = (JSONObject) JSONValue.parse(jsonRequest.getPostBody());
+				JSONObject requestData = (JSONObject) JSONValue.parse(jsonRequest.getPostBodyReader());
 				String comment = (String) requestData.get(LTI2Constants.COMMENT);
 				JSONObject resultScore = (JSONObject) requestData.get(LTI2Constants.RESULTSCORE);
 				Object oGrade = resultScore.get(LTI2Constants.VALUE);
@@ -552,7 +650,7 @@ public class LTI2Service extends HttpServlet {
 		if ( "PUT".equals(request.getMethod()) ) {
 			try {
 				jsonRequest = new IMSJSONRequest(request);
-				requestData = (JSONObject) JSONValue.parse(jsonRequest.getPostBody());
+				requestData = (JSONObject) JSONValue.parse(jsonRequest.getPostBodyReader());
 			} catch (Exception e) {
 				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 				doErrorJSON(request,response, jsonRequest, "Could not parse JSON", e);
@@ -563,6 +661,7 @@ public class LTI2Service extends HttpServlet {
 		String consumer_key = null;
 		String siteId = null;
 		String placement_id = null;
+		String oauth_secret = null;
 
 		Map<String,Object> content = null;
 		Long contentKey = null;
@@ -576,156 +675,190 @@ public class LTI2Service extends HttpServlet {
 		if ( LTI2Util.SCOPE_LtiLink.equals(scope) || LTI2Util.SCOPE_ToolProxyBinding.equals(scope) ) {
 			placement_id = parts[5];
 			M_log.debug("placement_id="+placement_id);
-			String contentStr = placement_id.substring(8);
-			contentKey = SakaiBLTIUtil.getLongKey(contentStr);
-			if ( contentKey  >= 0 ) {
-				// Leave off the siteId - bypass all checking - because we need to 
-				// find the siteId from the content item
-				content = ltiService.getContentDao(contentKey);
-				if ( content != null ) siteId = (String) content.get(LTIService.LTI_SITE_ID);
-			}
-	
-			if ( content == null || siteId == null ) {
-				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-				doErrorJSON(request,response, jsonRequest, "Bad content item", null);
-				return;
-			}
+		}
+
+		// A GET can be answered from the already resolved hierarchy, PUT needs the rows
+		String cacheKey = scope + "/" + parts[5];
+		ResolvedSettings resolved = null;
+		if ( settingsCache != null && "GET".equals(request.getMethod()) ) {
+			resolved = (ResolvedSettings) settingsCache.get(cacheKey);
+		}
+
+		// The secret is not kept in the cache so it is read from its row
+		if ( resolved != null ) {
+			consumer_key = resolved.getConsumerKey();
+			oauth_secret = getSecret(resolved);
+			if ( oauth_secret == null ) resolved = null;
+		}
+
+		if ( resolved == null ) {
+			if ( LTI2Util.SCOPE_LtiLink.equals(scope) || LTI2Util.SCOPE_ToolProxyBinding.equals(scope) ) {
+				String contentStr = placement_id.substring(8);
+				contentKey = SakaiBLTIUtil.getLongKey(contentStr);
+				if ( contentKey  >= 0 ) {
+					// Leave off the siteId - bypass all checking - because we need to 
+					// find the siteId from the content item
+					content = ltiService.getContentDao(contentKey);
+					if ( content != null ) siteId = (String) content.get(LTIService.LTI_SITE_ID);
+				}
+
+				if ( content == null || siteId == null ) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					doErrorJSON(request,response, jsonRequest, "Bad content item", null);
+					return;
+				}
+
+				toolKey = SakaiBLTIUtil.getLongKey(content.get(LTIService.LTI_TOOL_ID));
+				if ( toolKey >= 0 ) {
+					tool = ltiService.getToolDao(toolKey, siteId);
+				}
 	
-			toolKey = SakaiBLTIUtil.getLongKey(content.get(LTIService.LTI_TOOL_ID));
-			if ( toolKey >= 0 ) {
-				tool = ltiService.getToolDao(toolKey, siteId);
+				if ( tool == null ) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					doErrorJSON(request,response, jsonRequest, "Bad tool item", null);
+					return;
+				}
+
+				// Adjust the content items based on the tool items
+				ltiService.filterContent(content, tool);
+
+				// Check settings to see if we are allowed to do this 
+				if (foorm.getLong(content.get(LTIService.LTI_ALLOWOUTCOMES)) > 0 ||
+					foorm.getLong(tool.get(LTIService.LTI_ALLOWOUTCOMES)) > 0 ) {
+					// Good news 
+				} else {
+					response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+					doErrorJSON(request,response, jsonRequest, "Item does not allow tool settings", null);
+					return;
+				}
+
 			}
-		
-			if ( tool == null ) {
-				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-				doErrorJSON(request,response, jsonRequest, "Bad tool item", null);
-				return;
+
+			if ( LTI2Util.SCOPE_ToolProxyBinding.equals(scope) || LTI2Util.SCOPE_LtiLink.equals(scope) ) {
+				proxyBinding = ltiService.getProxyBindingDao(toolKey,siteId);
+				if ( proxyBinding != null ) {
+					proxyBindingKey = SakaiBLTIUtil.getLongKey(proxyBinding.get(LTIService.LTI_ID));
+				}
 			}
-	
-			// Adjust the content items based on the tool items
-			ltiService.filterContent(content, tool);
 
-			// Check settings to see if we are allowed to do this 
-			if (foorm.getLong(content.get(LTIService.LTI_ALLOWOUTCOMES)) > 0 ||
-				foorm.getLong(tool.get(LTIService.LTI_ALLOWOUTCOMES)) > 0 ) {
-				// Good news 
+			// Retrieve the deployment if needed
+			if ( LTI2Util.SCOPE_ToolProxy.equals(scope) ) {
+				consumer_key = parts[5];
+				deploy = ltiService.getDeployForConsumerKeyDao(consumer_key);
+				if ( deploy == null ) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					doErrorJSON(request,response, jsonRequest, "Bad deploy item", null);
+					return;
+				}
+				deployKey = SakaiBLTIUtil.getLongKey(deploy.get(LTIService.LTI_ID));
 			} else {
-				response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-				doErrorJSON(request,response, jsonRequest, "Item does not allow tool settings", null);
-				return;
+				if ( tool == null ) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					doErrorJSON(request,response, jsonRequest, "Bad tool item", null);
+					return;
+				}
+				deployKey = SakaiBLTIUtil.getLongKey(tool.get(LTIService.LTI_DEPLOYMENT_ID));
+				if ( deployKey >= 0 ) {
+					deploy = ltiService.getDeployDao(deployKey);
+				}
+				if ( deploy == null ) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					doErrorJSON(request,response, jsonRequest, "Bad deploy item", null);
+					return;
+				}
+				consumer_key = (String) deploy.get(LTIService.LTI_CONSUMERKEY);
 			}
 
-		}
+			// Check settings to see if we are allowed to do this 
+			if ( deploy != null ) {
+				if (foorm.getLong(deploy.get(LTIService.LTI_ALLOWOUTCOMES)) > 0 ) {
+					// Good news 
+				} else {
+					response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+					doErrorJSON(request,response, jsonRequest, "Deployment does not allow tool settings", null);
+					return;
+				}
+			}
 
-		if ( LTI2Util.SCOPE_ToolProxyBinding.equals(scope) || LTI2Util.SCOPE_LtiLink.equals(scope) ) {
-			proxyBinding = ltiService.getProxyBindingDao(toolKey,siteId);
+			// Load the old settings - they are parsed once when the hierarchy is resolved
+			String link_str = null;
+			String binding_str = null;
+			String proxy_str = null;
+			if ( content != null ) {
+				link_str = (String) content.get(LTIService.LTI_SETTINGS);
+			}
 			if ( proxyBinding != null ) {
-				proxyBindingKey = SakaiBLTIUtil.getLongKey(proxyBinding.get(LTIService.LTI_ID));
+				binding_str = (String) proxyBinding.get(LTIService.LTI_SETTINGS);
 			}
-		}
-
-		// Retrieve the deployment if needed
-		if ( LTI2Util.SCOPE_ToolProxy.equals(scope) ) {
-			consumer_key = parts[5];
-			deploy = ltiService.getDeployForConsumerKeyDao(consumer_key);
-			if ( deploy == null ) {
-				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-				doErrorJSON(request,response, jsonRequest, "Bad deploy item", null);
-				return;
+			if ( deploy != null ) {
+				proxy_str = (String) deploy.get(LTIService.LTI_SETTINGS);
 			}
-			deployKey = SakaiBLTIUtil.getLongKey(deploy.get(LTIService.LTI_ID));
-		} else {
-			if ( tool == null ) {
-				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-				doErrorJSON(request,response, jsonRequest, "Bad tool item", null);
-				return;
+
+	/*
+			if ( distinct && link_settings != null && scope.equals(LTI2Util.SCOPE_LtiLink) ) {
+				Iterator i = link_settings.keySet().iterator();
+				while ( i.hasNext() ) {
+					String key = (String) i.next();
+					if ( binding_settings != null ) binding_settings.remove(key);
+					if ( proxy_settings != null ) proxy_settings.remove(key);
+				}
 			}
-			deployKey = SakaiBLTIUtil.getLongKey(tool.get(LTIService.LTI_DEPLOYMENT_ID));
-			if ( deployKey >= 0 ) {
-				deploy = ltiService.getDeployDao(deployKey);
+
+			if ( distinct && binding_settings != null && scope.equals(LTI2Util.SCOPE_ToolProxyBinding) ) {
+				Iterator i = binding_settings.keySet().iterator();
+				while ( i.hasNext() ) {
+					String key = (String) i.next();
+					if ( proxy_settings != null ) proxy_settings.remove(key);
+				}
 			}
-			if ( deploy == null ) {
+	*/
+
+			// Get the secret for the request and remember which row it came from
+			String secretTable = null;
+			Long secretKey = null;
+			if ( LTI2Util.SCOPE_LtiLink.equals(scope) ) {
+				oauth_secret = (String) content.get(LTIService.LTI_SECRET);
+				secretTable = "lti_content";
+				secretKey = contentKey;
+				if ( oauth_secret == null || oauth_secret.length() < 1 ) {
+					oauth_secret = (String) tool.get(LTIService.LTI_SECRET);
+					secretTable = "lti_tools";
+					secretKey = toolKey;
+				}
+			} else if ( LTI2Util.SCOPE_ToolProxyBinding.equals(scope) ) {
+				oauth_secret = (String) tool.get(LTIService.LTI_SECRET);
+				secretTable = "lti_tools";
+				secretKey = toolKey;
+			} else if ( LTI2Util.SCOPE_ToolProxy.equals(scope) ) {
+				oauth_secret = (String) deploy.get(LTIService.LTI_SECRET);
+				secretTable = "lti_deploy";
+				secretKey = deployKey;
+			} else {
 				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-				doErrorJSON(request,response, jsonRequest, "Bad deploy item", null);
+				doErrorJSON(request,response, jsonRequest, "Bad Setttings Scope="+scope, null);
 				return;
 			}
-			consumer_key = (String) deploy.get(LTIService.LTI_CONSUMERKEY);
-		}
 
-		// Check settings to see if we are allowed to do this 
-		if ( deploy != null ) {
-			if (foorm.getLong(deploy.get(LTIService.LTI_ALLOWOUTCOMES)) > 0 ) {
-				// Good news 
-			} else {
+			// Make sure we have a key and secret
+			if ( oauth_secret == null || consumer_key == null ) {
 				response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-				doErrorJSON(request,response, jsonRequest, "Deployment does not allow tool settings", null);
+				doErrorJSON(request,response, jsonRequest, "Key or secret is null, key="+consumer_key, null);
 				return;
 			}
-		}
 
-		// The URLs for the various settings resources
-		String settingsUrl = SakaiBLTIUtil.getOurServerUrl() + LTI2_PATH + SVC_Settings;
-		String proxy_url = settingsUrl + "/" + LTI2Util.SCOPE_ToolProxy + "/" + consumer_key;
-		String binding_url = settingsUrl + "/" + LTI2Util.SCOPE_ToolProxyBinding + "/" + placement_id;
-		String link_url = settingsUrl + "/" + LTI2Util.SCOPE_LtiLink + "/" + placement_id;
-
-		// Load and parse the old settings...
-		JSONObject link_settings = new JSONObject ();
-		JSONObject binding_settings = new JSONObject ();
-		JSONObject proxy_settings = new JSONObject();
-		if ( content != null ) {
-			link_settings = LTI2Util.parseSettings((String) content.get(LTIService.LTI_SETTINGS));
-		}
-		if ( proxyBinding != null ) {
-			binding_settings = LTI2Util.parseSettings((String) proxyBinding.get(LTIService.LTI_SETTINGS));
-		}
-		if ( deploy != null ) {
-			proxy_settings = LTI2Util.parseSettings((String) deploy.get(LTIService.LTI_SETTINGS));
-		}
-
-/*
-		if ( distinct && link_settings != null && scope.equals(LTI2Util.SCOPE_LtiLink) ) {
-			Iterator i = link_settings.keySet().iterator();
-			while ( i.hasNext() ) {
-				String key = (String) i.next();
-				if ( binding_settings != null ) binding_settings.remove(key);
-				if ( proxy_settings != null ) proxy_settings.remove(key);
+			resolved = new ResolvedSettings(scope, consumer_key, secretTable, secretKey, siteId,
+				link_str, binding_str, proxy_str);
+			if ( settingsCache != null && "GET".equals(request.getMethod()) ) {
+				// Record the rows first so a change that lands meanwhile still drops the entry
+				addDependent(cacheKey, content == null ? null : "lti_content/" + contentKey);
+				addDependent(cacheKey, tool == null ? null : "lti_tools/" + toolKey);
+				addDependent(cacheKey, proxyBinding == null ? null : "lti_binding/" + proxyBindingKey);
+				addDependent(cacheKey, tool == null ? null : bindingReference(toolKey, siteId));
+				addDependent(cacheKey, deploy == null ? null : "lti_deploy/" + deployKey);
+				settingsCache.put(cacheKey, resolved);
 			}
 		}
 
-		if ( distinct && binding_settings != null && scope.equals(LTI2Util.SCOPE_ToolProxyBinding) ) {
-			Iterator i = binding_settings.keySet().iterator();
-			while ( i.hasNext() ) {
-				String key = (String) i.next();
-				if ( proxy_settings != null ) proxy_settings.remove(key);
-			}
-		}
-*/
-
-		// Get the secret for the request...
-		String oauth_secret = null;
-		if ( LTI2Util.SCOPE_LtiLink.equals(scope) ) {
-			oauth_secret = (String) content.get(LTIService.LTI_SECRET);
-			if ( oauth_secret == null || oauth_secret.length() < 1 ) {
-				oauth_secret = (String) tool.get(LTIService.LTI_SECRET);
-			}
-		} else if ( LTI2Util.SCOPE_ToolProxyBinding.equals(scope) ) {
-			oauth_secret = (String) tool.get(LTIService.LTI_SECRET);
-		} else if ( LTI2Util.SCOPE_ToolProxy.equals(scope) ) {
-			oauth_secret = (String) deploy.get(LTIService.LTI_SECRET);
-		} else {
-			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-			doErrorJSON(request,response, jsonRequest, "Bad Setttings Scope="+scope, null);
-			return;
-		}
-
-		// Make sure we have a key and secret
-		if ( oauth_secret == null || consumer_key == null ) {
-			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-			doErrorJSON(request,response, jsonRequest, "Key or secret is null, key="+consumer_key, null);
-			return;
-		}
-
 		// Validate the incoming message
 		Object retval = SakaiBLTIUtil.validateMessage(request, URL, oauth_secret, consumer_key);
 		if ( retval instanceof String ) {
@@ -734,11 +867,25 @@ public class LTI2Service extends HttpServlet {
 			return;
 		}
 
+		// The URLs for the various settings resources
+		String settingsUrl = SakaiBLTIUtil.getOurServerUrl() + LTI2_PATH + SVC_Settings;
+		String proxy_url = settingsUrl + "/" + LTI2Util.SCOPE_ToolProxy + "/" + consumer_key;
+		String binding_url = settingsUrl + "/" + LTI2Util.SCOPE_ToolProxyBinding + "/" + placement_id;
+		String link_url = settingsUrl + "/" + LTI2Util.SCOPE_LtiLink + "/" + placement_id;
+
 		// For a GET request we depend on LTI2Util to do the GET logic
 		if ( "GET".equals(request.getMethod()) ) { 
+			// Tools that poll their settings get a 304 until something changes
+			String etag = resolved.getETag(distinct, bubbleAll, acceptComplex);
+			response.setHeader("ETag", etag);
+			if ( ResolvedSettings.matches(request.getHeader("If-None-Match"), etag) ) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+
 			Object obj = LTI2Util.getSettings(request, scope,
-				link_settings, binding_settings, proxy_settings,
-				link_url, binding_url, proxy_url);
+				resolved.getLinkSettings(), resolved.getBindingSettings(), 
+				resolved.getProxySettings(), link_url, binding_url, proxy_url);
 
 			if ( obj instanceof String ) {
 				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -803,6 +950,11 @@ public class LTI2Service extends HttpServlet {
 				doErrorJSON(request,response, jsonRequest, (String) retval, null);
 				return;
 			}
+			if ( LTI2Util.SCOPE_ToolProxyBinding.equals(scope) ) {
+				invalidateSettings(cacheKey, bindingReference(toolKey, siteId));
+			} else {
+				invalidateSettings(cacheKey);
+			}
 			response.setStatus(HttpServletResponse.SC_OK);
 		} else {
 			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -819,13 +971,82 @@ public class LTI2Service extends HttpServlet {
 				M_log.error(e.getLocalizedMessage(), e);
 			}
 			M_log.info(message);
-			if ( json != null ) M_log.info(json.postBody);
+			if ( json != null ) M_log.info(json.getPostBody());
 
 			String jsonText = IMSJSONRequest.doErrorJSON(request, response, json, message, e);
 			M_log.debug(jsonText);
 		}
 
+	/**
+	 * Drop the resolved settings on this node and tell the other nodes to
+	 * drop theirs.  Each key is a settingsCache key or a row that settings
+	 * were built from, in which case everything built from it goes.
+	 */
+	protected void invalidateSettings(String... keys)
+	{
+		for ( String key : keys ) {
+			dropSettings(key);
+			if ( eventTrackingService != null ) {
+				eventTrackingService.post(eventTrackingService.newEvent(LTIService.EVENT_CACHE_INVALIDATE, 
+					SETTINGS_REFERENCE + key, false));
+			}
+		}
+	}
+
+	// Drop a settingsCache entry and the entries built from a row with this key
+	private void dropSettings(String key)
+	{
+		if ( settingsCache == null || key == null ) return;
+		settingsCache.remove(key);
+		Set<String> dependents = settingsDependents.remove(key);
+		if ( dependents == null ) return;
+		for ( String cacheKey : dependents ) {
+			settingsCache.remove(cacheKey);
+		}
+	}
+
+	private void addDependent(String cacheKey, String row)
+	{
+		if ( row == null ) return;
+		Set<String> dependents = settingsDependents.get(row);
+		if ( dependents == null ) {
+			Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			dependents = settingsDependents.putIfAbsent(row, created);
+			if ( dependents == null ) dependents = created;
+		}
+		dependents.add(cacheKey);
+	}
+
+	private static String bindingReference(Long toolKey, String siteId)
+	{
+		return "binding/" + toolKey + "," + siteId;
+	}
+
+	/**
+	 * Read the secret for cached settings from the row it came from - the
+	 * rows are cached by LTIService so this does not usually hit the database.
+	 *
+	 * @return The secret or null if the row or its secret is gone
+	 */
+	private String getSecret(ResolvedSettings resolved)
+	{
+		Long key = resolved.getSecretKey();
+		Map<String,Object> row = null;
+		if ( "lti_content".equals(resolved.getSecretTable()) ) {
+			row = ltiService.getContentDao(key);
+		} else if ( "lti_tools".equals(resolved.getSecretTable()) ) {
+			row = ltiService.getToolDao(key, resolved.getSiteId());
+		} else if ( "lti_deploy".equals(resolved.getSecretTable()) ) {
+			row = ltiService.getDeployDao(key);
+		}
+		if ( row == null ) return null;
+		String secret = (String) row.get(LTIService.LTI_SECRET);
+		if ( secret == null || secret.length() < 1 ) return null;
+		return secret;
+	}
+
 	public void destroy() {
+		if ( eventTrackingService != null ) eventTrackingService.deleteObserver(settingsObserver);
 	}
 
 }
@@ -0,0 +1,132 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *			 http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.lti2;
+
+import java.io.Serializable;
+
+import org.json.simple.JSONObject;
+
+import org.imsglobal.lti2.LTI2Util;
+import org.sakaiproject.basiclti.util.PortableShaUtil;
+
+/**
+ * The settings hierarchy for one LtiLink, ToolProxyBinding or ToolProxy
+ * with each level already parsed, along with the key needed to validate
+ * requests against it.  The secret is not held here since instances live
+ * in a shared cache - only the row it is read from.  Instances are shared
+ * between requests so the getters hand back copies that
+ * LTI2Util.getSettings can modify.
+ */
+public class ResolvedSettings implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String consumerKey;
+	private final String secretTable;
+	private final Long secretKey;
+	private final String siteId;
+	private final JSONObject linkSettings;
+	private final JSONObject bindingSettings;
+	private final JSONObject proxySettings;
+	private final String hash;
+
+	/**
+	 * @param secretTable The table holding the secret (lti_content, lti_tools or lti_deploy)
+	 * @param secretKey The id of the row holding the secret
+	 * @param siteId The site of the link or binding, null for a ToolProxy
+	 */
+	public ResolvedSettings(String scope, String consumerKey, String secretTable, Long secretKey,
+		String siteId, String linkStr, String bindingStr, String proxyStr)
+	{
+		this.consumerKey = consumerKey;
+		this.secretTable = secretTable;
+		this.secretKey = secretKey;
+		this.siteId = siteId;
+		linkSettings = LTI2Util.parseSettings(linkStr);
+		bindingSettings = LTI2Util.parseSettings(bindingStr);
+		proxySettings = LTI2Util.parseSettings(proxyStr);
+		hash = PortableShaUtil.sha1Hash(scope + "\n" + consumerKey + "\n" +
+			linkStr + "\n" + bindingStr + "\n" + proxyStr);
+	}
+
+	public String getConsumerKey() {
+		return consumerKey;
+	}
+
+	public String getSecretTable() {
+		return secretTable;
+	}
+
+	public Long getSecretKey() {
+		return secretKey;
+	}
+
+	public String getSiteId() {
+		return siteId;
+	}
+
+	public JSONObject getLinkSettings() {
+		return copy(linkSettings);
+	}
+
+	public JSONObject getBindingSettings() {
+		return copy(bindingSettings);
+	}
+
+	public JSONObject getProxySettings() {
+		return copy(proxySettings);
+	}
+
+	/**
+	 * The entity tag for one rendering of these settings.  The bubble mode and
+	 * the response format change the body so they are part of the tag.
+	 */
+	public String getETag(boolean distinct, boolean bubbleAll, boolean acceptComplex)
+	{
+		String variant = distinct ? "distinct" : ( bubbleAll ? "all" : "none" );
+		return "\"" + hash + "-" + variant + ( acceptComplex ? "-c" : "-s" ) + "\"";
+	}
+
+	/**
+	 * Check an If-None-Match header against an entity tag
+	 */
+	public static boolean matches(String ifNoneMatch, String etag)
+	{
+		if ( ifNoneMatch == null || etag == null ) return false;
+		String [] tags = ifNoneMatch.split(",");
+		for ( String tag : tags ) {
+			tag = tag.trim();
+			if ( tag.startsWith("W/") ) tag = tag.substring(2);
+			if ( "*".equals(tag) || etag.equals(tag) ) return true;
+		}
+		return false;
+	}
+
+	// The values are all strings or nested objects that are never modified
+	// so a copy of the top level is enough
+	@SuppressWarnings("unchecked")
+	private static JSONObject copy(JSONObject settings)
+	{
+		if ( settings == null ) return null;
+		JSONObject retval = new JSONObject();
+		retval.putAll(settings);
+		return retval;
+	}
+}
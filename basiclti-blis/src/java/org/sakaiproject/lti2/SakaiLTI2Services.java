@@ -15,12 +15,18 @@ public class SakaiLTI2Services {
 		return ret;
     }
 
+    public static final String ROSTER_JSON_FORMAT = "application/vnd.sakai.lti.v1.roster+json";
+
+    // Both formats take the optional limit and continuation parameters -
+    // the JSON form is returned to requests that Accept ROSTER_JSON_FORMAT
+    // or application/json
     public static Service_offered BasicRoster(String endpoint) {
 		Service_offered ret = new Service_offered();
 		ret.setEndpoint(endpoint);
 		ret.set_id("tcp:SakaiRosterForm");
 		ret.set_type("RestService");
-		ret.setFormat("application/vnd.sakai.lti.v1.roster+form");
+		ret.setFormat(new String[] { "application/vnd.sakai.lti.v1.roster+form",
+			ROSTER_JSON_FORMAT });
 		ret.setAction("POST");
 		return ret;
     }
@@ -0,0 +1,61 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *			 http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.lti2;
+
+import java.io.Serializable;
+
+import org.imsglobal.basiclti.DigestUtil;
+
+/**
+ * The tool consumer profile for one deployment, already serialized as
+ * UTF-8 JSON, along with the entity tag for those bytes.  The bytes are
+ * written straight to the response and must not be modified.
+ */
+public class SerializedProfile implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String profileId;
+	private final byte[] json;
+	private final String etag;
+
+	public SerializedProfile(String profileId, byte[] json)
+	{
+		this.profileId = profileId;
+		this.json = json;
+		this.etag = "\"" + DigestUtil.hex(DigestUtil.digest(DigestUtil.SHA1, json)) + "\"";
+	}
+
+	/**
+	 * The consumer key the profile was built for - a deployment can change
+	 * its key so this is checked before the cached bytes are used.
+	 */
+	public String getProfileId() {
+		return profileId;
+	}
+
+	public byte[] getJson() {
+		return json;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+}
@@ -39,71 +39,26 @@
 
 package org.sakaiproject.basiclti.util;
 
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import org.imsglobal.basiclti.DigestUtil;
 
 public class LegacyShaUtil {
-	private static final char[] TOHEX = "0123456789abcdef".toCharArray();
 	public static final String UTF8 = "UTF8";
 
-    public static byte[] sha1(final String todigest) {
-        try {
-            byte[] b = todigest.getBytes("UTF-8");
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            return sha1.digest(b);
-        } catch (UnsupportedEncodingException e) {
-            throw new Error(e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new Error(e);
-        }
-    }
+	public static byte[] sha1(final String todigest) {
+		return DigestUtil.digest(DigestUtil.SHA1, todigest);
+	}
 
 	public static String sha1Hash(final String tohash) {
-		byte[] b = null;
-		try {
-			b = tohash.getBytes("UTF-8");
-			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-			b = sha1.digest(b);
-		} catch (UnsupportedEncodingException e) {
-			throw new Error(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new Error(e);
-		}
-		return byteToHex(b);
+		return DigestUtil.legacyHex(DigestUtil.digest(DigestUtil.SHA1, tohash));
 	}
 
 	public static String sha256Hash(final String tohash) {
-		byte[] b = null;
-		try {
-			b = tohash.getBytes("UTF-8");
-			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-			b = sha256.digest(b);
-		} catch (UnsupportedEncodingException e) {
-			throw new Error(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new Error(e);
-		}
-		return byteToHex(b);
+		return DigestUtil.legacyHex(DigestUtil.digest(DigestUtil.SHA256, tohash));
 	}
 
 	public static String byteToHex(final byte[] base) {
-		if (base != null) {
-			char[] c = new char[base.length * 2];
-			int i = 0;
-
-			for (byte b : base) {
-				int j = b;
-				j = j + 128;
-				c[i++] = TOHEX[j / 0x10];
-				c[i++] = TOHEX[j % 0x10];
-			}
-			return new String(c);
-		} else {
-			return null;
-		}
+		return DigestUtil.legacyHex(base);
 	}
-	
 
 	public static byte[] hexToByte(String hex) {
 		if (hex == null) {
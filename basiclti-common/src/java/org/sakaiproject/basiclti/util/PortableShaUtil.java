@@ -19,69 +19,28 @@
 package org.sakaiproject.basiclti.util;
 
 import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import org.imsglobal.basiclti.Base64;
+import org.imsglobal.basiclti.DigestUtil;
 
 public class PortableShaUtil {
 	public static final String UTF8 = "UTF8";
 
 	public static byte[] sha1(final String todigest) {
-		try {
-			byte[] b = todigest.getBytes("UTF-8");
-			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-			return sha1.digest(b);
-		} catch (UnsupportedEncodingException e) {
-			throw new Error(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new Error(e);
-		}
+		return DigestUtil.digest(DigestUtil.SHA1, todigest);
 	}
 
 	public static String sha1Hash(final String tohash) {
-		byte[] b = null;
-		try {
-			b = tohash.getBytes("UTF-8");
-			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-			b = sha1.digest(b);
-		} catch (UnsupportedEncodingException e) {
-			throw new Error(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new Error(e);
-		}
-		return bin2hex(b);
+		return DigestUtil.hex(DigestUtil.digest(DigestUtil.SHA1, tohash));
 	}
 
 	public static String sha256Hash(final String tohash) {
-		byte[] b = null;
-		try {
-			b = tohash.getBytes("UTF-8");
-			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-			b = sha256.digest(b);
-		} catch (UnsupportedEncodingException e) {
-			throw new Error(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new Error(e);
-		}
-		return bin2hex(b);
+		return DigestUtil.hex(DigestUtil.digest(DigestUtil.SHA256, tohash));
 	}
 
 	public static String sha512Hash(final String tohash) {
-		byte[] b = null;
-		try {
-			b = tohash.getBytes("UTF-8");
-			MessageDigest sha512 = MessageDigest.getInstance("SHA-512");
-			b = sha512.digest(b);
-		} catch (UnsupportedEncodingException e) {
-			throw new Error(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new Error(e);
-		}
-		return bin2hex(b);
+		return DigestUtil.hex(DigestUtil.digest(DigestUtil.SHA512, tohash));
 	}
 
-	private static final char[] TOHEX = "0123456789abcdef".toCharArray();
-
 	/**
 	 * Checks to see if a string is legitimate hex data
          */
@@ -99,21 +58,7 @@ public class PortableShaUtil {
 	// http://csrc.nist.gov/groups/ST/toolkit/documents/Examples/SHA256.pdf
 	// Using lower case as convention
 	public static String bin2hex(final byte[] base) {
-		if (base != null) {
-			char[] c = new char[base.length * 2];
-			int i = 0;
-
-			for (byte b : base) {
-				int j = b;
-				// j = j + 128;  // Wrong - not portable
-				j = j & 0xff; // Right - portable
-				c[i++] = TOHEX[j / 0x10];
-				c[i++] = TOHEX[j % 0x10];
-			}
-			return new String(c);
-		} else {
-			return null;
-		}
+		return DigestUtil.hex(base);
 	}
 
 	/**
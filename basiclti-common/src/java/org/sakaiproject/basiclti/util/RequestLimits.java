@@ -0,0 +1,195 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.basiclti.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthMessage;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.imsglobal.basiclti.TokenBucketLimiter;
+
+import org.sakaiproject.component.cover.ServerConfigurationService;
+
+/**
+ * Admission control for the provider and the LTI services, checked before
+ * any signature is verified or anything is read from the database.  Each
+ * limit is a TokenBucketLimiter with its own buckets so a storm of one kind
+ * of request cannot use up another's:
+ * <pre>
+ * launch   - provider launches, per oauth_consumer_key
+ * service  - settings, roster, LORI and LTI2 calls, per oauth_consumer_key
+ * outcomes - grade calls, per oauth_consumer_key
+ * </pre>
+ * A limit is off until it is given a rate:
+ * <pre>
+ * basiclti.ratelimit.launch.rate=20
+ * basiclti.ratelimit.launch.burst=200
+ * basiclti.ratelimit.launch.maxkeys=10000
+ * </pre>
+ * The rate is requests per second and the burst defaults to ten seconds
+ * worth.  The settings are read again every basiclti.ratelimit.refresh
+ * seconds (default 60, 0 to read them only once).  A rejected request
+ * gets a 429 with a Retry-After header.  The
+ * counts are logged on the first rejection and every hundredth after it,
+ * and can be read with getStats.
+ */
+public class RequestLimits {
+
+	private static Log M_log = LogFactory.getLog(RequestLimits.class);
+
+	public static final String LAUNCH = "launch";
+	public static final String SERVICE = "service";
+	public static final String OUTCOMES = "outcomes";
+
+	// Not in the servlet 2.5 constants
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private static final String CONFIG_PREFIX = "basiclti.ratelimit.";
+	private static final int LOG_EVERY = 100;
+
+	// The limiter for each limit along with the settings it was built from
+	private static final ConcurrentHashMap<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+	/**
+	 * Take a token for the key from the named limit.  If there is none the
+	 * response is finished with a 429 and the caller should stop.
+	 *
+	 * @param key The consumer key or placement, null shares one bucket
+	 * @return true if the request may go ahead
+	 */
+	public static boolean admit(String limit, String key, HttpServletResponse response) throws IOException
+	{
+		TokenBucketLimiter limiter = getLimiter(limit);
+		if ( limiter == null ) return true;
+		long wait = limiter.acquire(key);
+		if ( wait == 0 ) return true;
+
+		long rejected = limiter.getRejected();
+		if ( rejected % LOG_EVERY == 1 ) {
+			M_log.warn("LTI rate limit " + limit + " rejected key=" + key + " retry=" + wait + "ms rejected=" + rejected
+				+ " admitted=" + limiter.getAdmitted());
+		}
+
+		// Whole seconds, rounded up so the caller never comes back too soon
+		response.setHeader("Retry-After", Long.toString((wait + 999) / 1000));
+		response.setStatus(SC_TOO_MANY_REQUESTS);
+		response.setContentType("text/plain");
+		PrintWriter out = response.getWriter();
+		out.println("Too many requests - try again later");
+		return false;
+	}
+
+	/**
+	 * The admitted and rejected counts of each limit in use
+	 */
+	public static Map<String, long[]> getStats()
+	{
+		Map<String, long[]> retval = new TreeMap<String, long[]>();
+		for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+			TokenBucketLimiter limiter = entry.getValue().limiter;
+			if ( limiter == null ) continue;
+			retval.put(entry.getKey(), new long[] { limiter.getAdmitted(), limiter.getRejected() });
+		}
+		return retval;
+	}
+
+	/**
+	 * The consumer key from the OAuth Authorization header or the
+	 * parameters, without reading a POX or JSON body
+	 */
+	public static String getConsumerKey(HttpServletRequest request)
+	{
+		String authorization = request.getHeader("Authorization");
+		if ( authorization != null && authorization.regionMatches(true, 0, "OAuth ", 0, 6) ) {
+			for (OAuth.Parameter parameter : OAuthMessage.decodeAuthorization(authorization)) {
+				if ( OAuth.OAUTH_CONSUMER_KEY.equals(parameter.getKey()) ) return parameter.getValue();
+			}
+		}
+		return request.getParameter(OAuth.OAUTH_CONSUMER_KEY);
+	}
+
+	/*
+	 * The settings are read once per refresh period, by one thread while the
+	 * rest carry on with what is there.  The limiter is only rebuilt when
+	 * they have changed so its buckets survive a refresh.
+	 */
+	private static TokenBucketLimiter getLimiter(String name)
+	{
+		Limit limit = limits.get(name);
+		long now = System.currentTimeMillis();
+		if ( limit != null && ( now < limit.nextCheck || ! limit.checking.compareAndSet(false, true) ) ) {
+			return limit.limiter;
+		}
+
+		String rateStr = ServerConfigurationService.getString(CONFIG_PREFIX + name + ".rate", null);
+		double rate = 0;
+		if ( rateStr != null && rateStr.trim().length() > 0 ) {
+			try {
+				rate = Double.parseDouble(rateStr.trim());
+			} catch (NumberFormatException e) {
+				M_log.warn("Bad " + CONFIG_PREFIX + name + ".rate=" + rateStr);
+			}
+		}
+		int refresh = ServerConfigurationService.getInt(CONFIG_PREFIX + "refresh", 60);
+		long nextCheck = refresh > 0 ? now + refresh * 1000L : Long.MAX_VALUE;
+
+		String settings = "off";
+		TokenBucketLimiter limiter = null;
+		if ( rate > 0 ) {
+			int burst = ServerConfigurationService.getInt(CONFIG_PREFIX + name + ".burst", (int) Math.ceil(rate * 10));
+			int maxKeys = ServerConfigurationService.getInt(CONFIG_PREFIX + name + ".maxkeys", 10000);
+			settings = rate + "/" + burst + "/" + maxKeys;
+			if ( limit != null && limit.settings.equals(settings) ) {
+				limiter = limit.limiter;
+			} else {
+				limiter = new TokenBucketLimiter(rate, burst, maxKeys);
+				M_log.info("LTI rate limit " + name + " rate=" + rate + "/s burst=" + burst);
+			}
+		}
+		limits.put(name, new Limit(settings, limiter, nextCheck));
+		return limiter;
+	}
+
+	private static class Limit {
+		final String settings;
+		final TokenBucketLimiter limiter;
+		final long nextCheck;
+		final AtomicBoolean checking = new AtomicBoolean(false);
+
+		Limit(String settings, TokenBucketLimiter limiter, long nextCheck)
+		{
+			this.settings = settings;
+			this.limiter = limiter;
+			this.nextCheck = nextCheck;
+		}
+	}
+}
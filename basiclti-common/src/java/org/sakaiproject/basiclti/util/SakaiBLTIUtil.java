@@ -27,6 +27,9 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Enumeration;
+import java.util.Date;
+import java.util.UUID;
+import java.text.SimpleDateFormat;
 import java.net.URL;
 
 import javax.servlet.http.HttpServletRequest;
@@ -35,12 +38,18 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.imsglobal.basiclti.BasicLTIUtil;
+import org.imsglobal.basiclti.DigestUtil;
 import org.imsglobal.basiclti.BasicLTIConstants;
 
 import org.imsglobal.lti2.LTI2Constants;
 import org.imsglobal.lti2.LTI2Util;
 
 import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.lti.api.LtiBinding;
+import org.sakaiproject.lti.api.LtiContent;
+import org.sakaiproject.lti.api.LtiDeploy;
+import org.sakaiproject.lti.api.LtiRow;
+import org.sakaiproject.lti.api.LtiTool;
 
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.cover.SessionManager;
@@ -112,6 +121,11 @@ public class SakaiBLTIUtil {
 	public static final String BASICLTI_ENCRYPTION_KEY = "basiclti.encryption.key";
 	public static final String BASICLTI_LAUNCH_SESSION_TIMEOUT = "basiclti.launch.session.timeout";
 
+	public static final String ISO_8601_FORMAT = "yyyy-MM-dd'T'HH:mm:ssz";
+
+	// Held while a placement secret is made so two launches do not make two
+	private static final Object PLACEMENT_SECRET_LOCK = new Object();
+
 	public static final String SVC_tc_profile = "tc_profile";
 	public static final String SVC_tc_registration = "tc_registration";
 	public static final String SVC_Settings = "Settings";
@@ -601,6 +615,11 @@ public class SakaiBLTIUtil {
 	// This must return an HTML message as the [0] in the array
 	// If things are successful - the launch URL is in [1]
 	public static String[] postLaunchHTML(Map<String, Object> content, Map<String,Object> tool, LTIService ltiService, ResourceLoader rb)
+	{
+		return postLaunchHTML(LtiContent.fromMap(content), LtiTool.fromMap(tool), ltiService, rb);
+	}
+
+	public static String[] postLaunchHTML(LtiContent content, LtiTool tool, LTIService ltiService, ResourceLoader rb)
 	{
 		if ( content == null ) {
 			return postError("<p>" + getRB(rb, "error.content.missing" ,"Content item is missing or improperly configured.")+"</p>" ); 
@@ -609,15 +628,15 @@ public class SakaiBLTIUtil {
 			return postError("<p>" + getRB(rb, "error.tool.missing" ,"Tool item is missing or improperly configured.")+"</p>" ); 
 		}
 
-		int status = getInt(tool.get(LTIService.LTI_STATUS));
+		int status = tool.getStatus();
 		if ( status == 1 ) return postError("<p>" + getRB(rb, "tool.disabled" ,"Tool is currently disabled")+"</p>" ); 
 
 		// Go with the content url first
-		String launch_url = (String) content.get(LTIService.LTI_LAUNCH);
-		if ( launch_url == null ) launch_url = (String) tool.get(LTIService.LTI_LAUNCH);
+		String launch_url = content.getLaunch();
+		if ( launch_url == null ) launch_url = tool.getLaunch();
 		if ( launch_url == null ) return postError("<p>" + getRB(rb, "error.nolaunch" ,"This tool is not yet configured.")+"</p>" );
 
-		String context = (String) content.get(LTIService.LTI_SITE_ID);
+		String context = content.getSiteId();
 		Site site = null;
 		try {
 			site = SiteService.getSite(context);
@@ -627,19 +646,18 @@ public class SakaiBLTIUtil {
 		}
 
 		// Percolate up to get the other objects...
-		Map<String, Object> proxyBinding = null;
-		Map<String, Object> deploy = null; 
+		LtiBinding proxyBinding = null;
+		LtiDeploy deploy = null; 
 
-		Long deployKey = getLongKey(tool.get(LTIService.LTI_DEPLOYMENT_ID));
+		long deployKey = tool.getDeploymentId();
 		if ( deployKey >= 0 ) {
-			deploy = ltiService.getDeployDao(deployKey);
+			deploy = ltiService.getLtiDeployDao(new Long(deployKey));
 		}
 
-		Long toolKey = getLongKey(tool.get(LTIService.LTI_ID));
-		proxyBinding = ltiService.getProxyBindingDao(toolKey,context);
+		proxyBinding = ltiService.getLtiProxyBindingDao(new Long(tool.getId()),context);
 
-		Long toolVersion = getLongNull(tool.get(LTIService.LTI_VERSION));
-		boolean isLTI1 = toolVersion == null || (!toolVersion.equals(LTIService.LTI_VERSION_2));
+		int toolVersion = tool.getVersion();
+		boolean isLTI1 = toolVersion != LTIService.LTI_VERSION_2.intValue();
 		M_log.debug("toolVersion="+toolVersion+" isLTI1="+isLTI1);
 
 		// Start building up the properties
@@ -658,19 +676,19 @@ public class SakaiBLTIUtil {
 		if ( deploy != null ) {
 			setProperty(lti2subst,"ToolConsumerProfile.url", getOurServerUrl() + 
 				LTI2_PATH + SVC_tc_profile + "/" + 
-				(String) deploy.get(LTIService.LTI_CONSUMERKEY));;  
+				deploy.getConsumerkey());
 		}
 
-		String resource_link_id = "content:"+content.get(LTIService.LTI_ID);
+		String resource_link_id = "content:"+content.getId();
 		setProperty(ltiProps,BasicLTIConstants.RESOURCE_LINK_ID,resource_link_id);
 		setProperty(lti2subst,"ResourceLink.id",resource_link_id);
 
 		setProperty(toolProps, "launch_url", launch_url);
 
-		String secret = (String) content.get(LTIService.LTI_SECRET);
-		if ( secret == null ) secret = (String) tool.get(LTIService.LTI_SECRET);
-		String key = (String) content.get(LTIService.LTI_CONSUMERKEY);
-		if ( key == null ) key = (String) tool.get(LTIService.LTI_CONSUMERKEY);
+		String secret = content.getSecret();
+		if ( secret == null ) secret = tool.getSecret();
+		String key = content.getConsumerkey();
+		if ( key == null ) key = tool.getConsumerkey();
 
 		if ( LTIService.LTI_SECRET_INCOMPLETE.equals(key) && LTIService.LTI_SECRET_INCOMPLETE.equals(secret) ) {
 			return postError("<p>" + getRB(rb, "error.tool.partial" ,"Tool item is incomplete, missing a key and secret.")+"</p>" ); 
@@ -679,27 +697,27 @@ public class SakaiBLTIUtil {
 		setProperty(toolProps, LTIService.LTI_SECRET, secret );
 		setProperty(toolProps, "key", key );
 
-		int debug = getInt(tool.get(LTIService.LTI_DEBUG));
-		if ( debug == 2 ) debug = getInt(content.get(LTIService.LTI_DEBUG));
+		int debug = tool.getDebug();
+		if ( debug == 2 ) debug = content.getDebug();
 		setProperty(toolProps, LTIService.LTI_DEBUG, debug+"");
 
-		int frameheight = getInt(tool.get(LTIService.LTI_FRAMEHEIGHT));
-		if ( frameheight == 2 ) frameheight = getInt(content.get(LTIService.LTI_FRAMEHEIGHT));
+		int frameheight = tool.getFrameheight();
+		if ( frameheight == 2 ) frameheight = content.getFrameheight();
 		setProperty(toolProps, LTIService.LTI_FRAMEHEIGHT, frameheight+"" );
 
-		int newpage = getInt(tool.get(LTIService.LTI_NEWPAGE));
-		if ( newpage == 2 ) newpage = getInt(content.get(LTIService.LTI_NEWPAGE));
+		int newpage = tool.getNewpage();
+		if ( newpage == 2 ) newpage = content.getNewpage();
 		setProperty(toolProps, LTIService.LTI_NEWPAGE, newpage+"" );
 
-		String title = (String) content.get(LTIService.LTI_TITLE);
-		if ( title == null ) title = (String) tool.get(LTIService.LTI_TITLE);
+		String title = content.getTitle();
+		if ( title == null ) title = tool.getTitle();
 		if ( title != null ) {
 			setProperty(ltiProps,BasicLTIConstants.RESOURCE_LINK_TITLE,title);
 			setProperty(lti2subst,"ResourceLink.title",title);
 		}
 
-		int releasename = getInt(tool.get(LTIService.LTI_SENDNAME));
-		int releaseemail = getInt(tool.get(LTIService.LTI_SENDEMAILADDR));
+		int releasename = tool.getSendname();
+		int releaseemail = tool.getSendemailaddr();
 
 		User user = UserDirectoryService.getCurrentUser();
 		if ( user != null )
@@ -727,11 +745,11 @@ public class SakaiBLTIUtil {
 			}
 		}
 
-		int allowoutcomes = getInt(tool.get(LTIService.LTI_ALLOWOUTCOMES));
-		int allowroster = getInt(tool.get(LTIService.LTI_ALLOWROSTER));
-		int allowsettings = getInt(tool.get(LTIService.LTI_ALLOWSETTINGS));
-		int allowlori = getInt(tool.get(LTIService.LTI_ALLOWLORI));
-		String placement_secret = (String) content.get(LTIService.LTI_PLACEMENTSECRET);
+		int allowoutcomes = tool.getAllowoutcomes();
+		int allowroster = tool.getAllowroster();
+		int allowsettings = tool.getAllowsettings();
+		int allowlori = tool.getAllowlori();
+		String placement_secret = content.getPlacementsecret();
 		// int tool_id = getInt(tool.get(LTIService.LTI_ID));
 
 		String result_sourcedid = getSourceDID(user, resource_link_id, placement_secret);
@@ -789,21 +807,21 @@ public class SakaiBLTIUtil {
 		// Merge all the sources of properties according to the arcane precedence for launch
 		Properties custom = new Properties();
 
-		LTI2Util.mergeLTI2Custom(custom, (String) content.get(LTIService.LTI_SETTINGS));
-		LTI2Util.mergeLTI2Custom(custom, (String) tool.get(LTIService.LTI_SETTINGS));
-		LTI2Util.mergeLTI2Parameters(custom, (String) tool.get(LTIService.LTI_PARAMETER));
+		LTI2Util.mergeLTI2Custom(custom, content.getSettings());
+		LTI2Util.mergeLTI2Custom(custom, tool.getSettings());
+		LTI2Util.mergeLTI2Parameters(custom, tool.getParameter());
 		if ( proxyBinding != null ) {
-			LTI2Util.mergeLTI2Custom(custom, (String) proxyBinding.get(LTIService.LTI_SETTINGS));
+			LTI2Util.mergeLTI2Custom(custom, proxyBinding.getSettings());
 		}
 		if ( deploy != null ) {
-			LTI2Util.mergeLTI2Custom(custom, (String) deploy.get(LTIService.LTI_SETTINGS));
+			LTI2Util.mergeLTI2Custom(custom, deploy.getSettings());
 		}
 
-		int allowCustom = getInt(tool.get(LTIService.LTI_ALLOWCUSTOM));
+		int allowCustom = tool.getAllowcustom();
 		if ( allowCustom == 1 ) 
-			LTI2Util.mergeLTI1Custom(custom, (String) content.get(LTIService.LTI_CUSTOM));
+			LTI2Util.mergeLTI1Custom(custom, content.getCustom());
 
-		LTI2Util.mergeLTI1Custom(custom, (String) tool.get(LTIService.LTI_CUSTOM));
+		LTI2Util.mergeLTI1Custom(custom, tool.getCustom());
 
 		// System.out.println("ltiProps="+ltiProps);
 		// System.out.println("toolProps="+toolProps);
@@ -926,6 +944,7 @@ public class SakaiBLTIUtil {
 		if ( placementId == null ) return postError("<p>" + getRB(rb, "error.missing" ,"Error, missing placementId")+"</p>" );
 		ToolConfiguration placement = SiteService.findTool(placementId);
 		if ( placement == null ) return postError("<p>" + getRB(rb, "error.load" ,"Error, cannot load placement=")+placementId+".</p>");
+		placement = checkPlacementSecret(placement);
 
 		// Add user, course, etc to the launch parameters
 		Properties ltiProps = new Properties();
@@ -942,6 +961,48 @@ public class SakaiBLTIUtil {
 		return postLaunchHTML(toolProps, ltiProps, rb);
 	}
 
+	/**
+	 * A placement that allows outcomes, settings, roster or LORI needs a
+	 * placement secret to sign its sourcedids.  Placements set up from
+	 * registration defaults and never edited do not have one, so it is made
+	 * on the first launch.
+	 *
+	 * @return The placement, reloaded if the secret was added
+	 */
+	public static ToolConfiguration checkPlacementSecret(ToolConfiguration placement)
+	{
+		if ( ! needsPlacementSecret(placement) ) return placement;
+		synchronized (PLACEMENT_SECRET_LOCK) {
+			// Someone may have got here first
+			ToolConfiguration current = SiteService.findTool(placement.getId());
+			if ( current == null || ! needsPlacementSecret(current) ) return current == null ? placement : current;
+			String uuid = UUID.randomUUID().toString();
+			String date_secret = new SimpleDateFormat(ISO_8601_FORMAT).format(new Date());
+			current.getPlacementConfig().setProperty("imsti.placementsecret", uuid);
+			current.getPlacementConfig().setProperty("imsti.placementsecretdate", date_secret);
+			// The launching user does not need to be able to change the site
+			pushAdvisor();
+			try {
+				current.save();
+			} catch (Exception e) {
+				M_log.warn("Could not save placement secret for "+current.getId()+": "+e.getMessage());
+			} finally {
+				popAdvisor();
+			}
+			return current;
+		}
+	}
+
+	private static boolean needsPlacementSecret(ToolConfiguration placement)
+	{
+		Properties config = placement.getConfig();
+		if ( toNull(config.getProperty("imsti.placementsecret")) != null ) return false;
+		return "on".equals(config.getProperty("imsti.allowoutcomes")) ||
+			"on".equals(config.getProperty("imsti.allowsettings")) ||
+			"on".equals(config.getProperty("imsti.allowroster")) ||
+			"on".equals(config.getProperty("imsti.allowlori"));
+	}
+
 	public static String[] postLaunchHTML(Properties toolProps, Properties ltiProps, ResourceLoader rb)
 	{
 
@@ -1024,11 +1085,21 @@ public class SakaiBLTIUtil {
 	{
 		if ( placementSecret == null ) return null;
 		String suffix = ":::" +  user.getId() + ":::" + placeStr;
-		String base_string = placementSecret + suffix;
-		String signature = LegacyShaUtil.sha256Hash(base_string);
+		String signature = DigestUtil.legacyHex(DigestUtil.digest(DigestUtil.SHA256, placementSecret, suffix));
 		return signature + suffix;
 	}
 
+	/**
+	 * The signature at the front of a sourcedid - this is the same as
+	 * LegacyShaUtil.sha256Hash(placementSecret + ":::" + userId + ":::" + placementId)
+	 * without building the string
+	 */
+	public static String getSourceDIDSignature(String placementSecret, String userId, String placementId)
+	{
+		return DigestUtil.legacyHex(DigestUtil.digest(DigestUtil.SHA256,
+			placementSecret, ":::", userId, ":::", placementId));
+	}
+
 	public static String[] postError(String str) {
 		String [] retval = { str };
 		return retval;
@@ -1194,15 +1265,13 @@ public class SakaiBLTIUtil {
 			return "Could not find placement secret";
 		}
 
-		String pre_hash = placement_secret + ":::" + user_id + ":::" + placement_id;
-		String received_signature = LegacyShaUtil.sha256Hash(pre_hash);
+		String received_signature = getSourceDIDSignature(placement_secret, user_id, placement_id);
 		M_log.debug("Received signature="+signature+" received="+received_signature);
 		boolean matched = signature.equals(received_signature);
 
 		String old_placement_secret  = pitch.getProperty(LTIService.LTI_OLDPLACEMENTSECRET);
 		if ( old_placement_secret != null && ! matched ) {
-			pre_hash = placement_secret + ":::" + user_id + ":::" + placement_id;
-			received_signature = LegacyShaUtil.sha256Hash(pre_hash);
+			received_signature = getSourceDIDSignature(old_placement_secret, user_id, placement_id);
 			M_log.debug("Received signature II="+signature+" received="+received_signature);
 			matched = signature.equals(received_signature);
 		}
@@ -1364,8 +1433,8 @@ public class SakaiBLTIUtil {
 				retval.setProperty(field, value);
 			}
 		} else { // Get information from content item
-			Map<String,Object> content = null;
-			Map<String,Object> tool = null;
+			LtiContent content = null;
+			LtiTool tool = null;
 
 			String contentStr = placement_id.substring(8);
 			Long contentKey = getLongKey(contentStr);
@@ -1373,65 +1442,42 @@ public class SakaiBLTIUtil {
 
 			// Leave off the siteId - bypass all checking - because we need to 
 			// finde the siteId from the content item
-			content = ltiService.getContentDao(contentKey);
+			content = ltiService.getLtiContentDao(contentKey, null);
 			if ( content == null ) return null;
-			siteId = (String) content.get(LTIService.LTI_SITE_ID);
+			siteId = content.getSiteId();
 			if ( siteId == null ) return null;
 
 			retval.setProperty("contentKey",contentStr);
 			retval.setProperty(LTIService.LTI_SITE_ID,siteId);
 
-			Long toolKey = getLongKey(content.get(LTIService.LTI_TOOL_ID));
+			long toolKey = content.getToolId();
 			if ( toolKey < 0 ) return null;
-			tool = ltiService.getToolDao(toolKey, siteId);
+			tool = ltiService.getLtiToolDao(new Long(toolKey), siteId);
 			if ( tool == null ) return null;
 
 			// Adjust the content items based on the tool items
-			if ( tool != null || content != null )
-			{
-				ltiService.filterContent(content, tool);
-			}
+			content = ltiService.filterContent(content, tool);
 
-			for (String formInput : LTIService.TOOL_MODEL) {
-				Properties info = parseFormString(formInput);
-				String field = info.getProperty("field", null);
-				String type = info.getProperty("type", null);
-				Object o = tool.get(field);
-				if ( o instanceof String ) {
-					retval.setProperty(field,(String) o);
-					continue;
-				}
-				if ( "checkbox".equals(type) ) {
-					int check = getInt(o);
-					if ( check == 1 ) {	
-						retval.setProperty(field,"on");
-					} else {
-						retval.setProperty(field,"off");
-					}
-				}
-			}
+			setRowProperties(retval, tool);
+			setRowProperties(retval, content);
+			retval.setProperty("assignment",content.getTitle());
+		}
+		return retval;
+	}
 
-			for (String formInput : LTIService.CONTENT_MODEL) {
-				Properties info = parseFormString(formInput);
-				String field = info.getProperty("field", null);
-				String type = info.getProperty("type", null);
-				Object o = content.get(field);
-				if ( o instanceof String ) {
-					retval.setProperty(field,(String) o);
-					continue;
-				}
-				if ( "checkbox".equals(type) ) {
-					int check = getInt(o);
-					if ( check == 1 ) {	
-						retval.setProperty(field,"on");
-					} else {
-						retval.setProperty(field,"off");
-					}
-				}
+	// Text columns are copied as is and checkboxes become on or off
+	private static void setRowProperties(Properties retval, LtiRow row)
+	{
+		LtiRow.Layout layout = row.getLayout();
+		for (int i = 0; i < layout.size(); i++) {
+			String field = layout.getField(i);
+			if ( layout.getKind(i) == LtiRow.Layout.TEXT ) {
+				String value = row.getString(i);
+				if ( value != null ) retval.setProperty(field, value);
+			} else if ( "checkbox".equals(layout.getType(i)) ) {
+				retval.setProperty(field, row.getInt(i) == 1 ? "on" : "off");
 			}
-			retval.setProperty("assignment",(String)content.get("title"));
 		}
-		return retval;
 	}
 
 	public static boolean isPlacement(String placement_id) {
@@ -19,7 +19,11 @@
 
 package org.sakaiproject.basiclti.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,6 +68,8 @@ import org.sakaiproject.util.ResourceLoader;
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.event.api.NotificationService;
 import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.lti.api.LtiContent;
+import org.sakaiproject.lti.api.LtiTool;
 //import org.sakaiproject.event.cover.EventTrackingService;
 import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.util.Validator;
@@ -89,6 +95,20 @@ public class BasicLTISecurityServiceImpl implements EntityProducer {
 	public static final String TOOL_REGISTRATION = "sakai.basiclti";
 	public static final String EVENT_BASICLTI_LAUNCH = "basiclti.launch";
 
+	// Elements for the lti_content rows and the tools they launch
+	public static final String ARCHIVE_CONTENT = "ltiContent";
+	public static final String ARCHIVE_TOOL = "ltiTool";
+	public static final String ARCHIVE_FIELD = "field";
+	public static final String ARCHIVE_NAME = "name";
+	// The title of the site page a content item was linked to, if any
+	public static final String ARCHIVE_LINK = "link";
+
+	// These do not make sense in another site or on another server
+	private static final List<String> ARCHIVE_SKIP = Arrays.asList(LTIService.LTI_ID, 
+		LTIService.LTI_SITE_ID, LTIService.LTI_PLACEMENT, LTIService.LTI_PLACEMENTSECRET, 
+		LTIService.LTI_OLDPLACEMENTSECRET, LTIService.LTI_SECRET, LTIService.LTI_CREATED_AT, 
+		LTIService.LTI_UPDATED_AT);
+
 	protected static SakaiFoorm foorm = new SakaiFoorm();
 
 	// Note: security needs a proper Resource reference
@@ -303,17 +323,17 @@ public class BasicLTISecurityServiceImpl implements EntityProducer {
 						   } 
 						   else if ( refId.startsWith("content:") && refId.length() > 8 ) 
 						   {
-							   Map<String,Object> content = null;
-							   Map<String,Object> tool = null;
+							   LtiContent content = null;
+							   LtiTool tool = null;
 
 							   String contentStr = refId.substring(8);
 							   Long contentKey = foorm.getLongKey(contentStr);
 							   if ( contentKey >= 0 )
 							   {
-								   content = ltiService.getContentDao(contentKey,ref.getContext());
+								   content = ltiService.getLtiContentDao(contentKey,ref.getContext());
 								   if ( content != null ) 
 								   {
-									   String siteId = (String) content.get(LTIService.LTI_SITE_ID);
+									   String siteId = content.getSiteId();
 									   if ( siteId == null || ! siteId.equals(ref.getContext()) )  
 									   {
 										   content = null;
@@ -321,12 +341,12 @@ public class BasicLTISecurityServiceImpl implements EntityProducer {
 								   }
 								   if ( content != null ) 
 								   {
-									   Long toolKey = foorm.getLongKey(content.get(LTIService.LTI_TOOL_ID));
-									   if ( toolKey >= 0 ) tool = ltiService.getToolDao(toolKey, ref.getContext());
+									   long toolKey = content.getToolId();
+									   if ( toolKey >= 0 ) tool = ltiService.getLtiToolDao(new Long(toolKey), ref.getContext());
 									   if ( tool != null ) 
 									   {
 										   // SITE_ID can be null for the tool
-										   String siteId = (String) tool.get(LTIService.LTI_SITE_ID);
+										   String siteId = tool.getSiteId();
 										   if ( siteId != null && ! siteId.equals(ref.getContext()) ) 
 										   {
 											   tool = null;
@@ -335,16 +355,13 @@ public class BasicLTISecurityServiceImpl implements EntityProducer {
 								   }
 
 								   // Adjust the content items based on the tool items
-								   if ( tool != null || content != null ) 
-								   {
-									   ltiService.filterContent(content, tool);
-								   }
+								   content = ltiService.filterContent(content, tool);
 							   }
 							   String splash = null;
-							   if ( tool != null ) splash = (String) tool.get("splash");
+							   if ( tool != null ) splash = tool.getSplash();
 							   String splashParm = req.getParameter("splash");
 							   String siteId = null;
-							   if ( tool != null ) siteId = (String) tool.get(LTIService.LTI_SITE_ID);
+							   if ( tool != null ) siteId = tool.getSiteId();
 							   if ( splashParm == null && splash != null && splash.trim().length() > 1 )
 							   {
 									// XSS Note: Administrator-created tools can put HTML in the splash.
@@ -488,11 +505,22 @@ public class BasicLTISecurityServiceImpl implements EntityProducer {
 			try {
 				Site site = SiteService.getSite(siteId);
 			
+				// All of the pages are added and then the site is saved once
+				int added = 0;
 				for(int i=0; i < nodeList.getLength(); i++)
 				{
-					BasicLTIArchiveBean basicLTI = new BasicLTIArchiveBean(nodeList.item(i));
+					// A node that cannot be read is skipped rather than losing the rest
+					BasicLTIArchiveBean basicLTI = null;
+					try {
+						basicLTI = new BasicLTIArchiveBean(nodeList.item(i));
+					} catch (Exception e) {
+						logger.warn("Could not merge basicLTI tool into "+siteId, e);
+						results.append(", could not merge a basicLTI tool");
+						continue;
+					}
 					logger.info("BASIC LTI: " + basicLTI);
 					results.append(", merging basicLTI tool " + basicLTI.getPageTitle());
+					added++;
 				
 					SitePage sitePage = site.addPage();
 					sitePage.setTitle(basicLTI.getPageTitle());
@@ -507,9 +535,10 @@ public class BasicLTISecurityServiceImpl implements EntityProducer {
 					{
 						toolConfiguration.getPlacementConfig().setProperty((String)key, (String)basicLTI.getSiteToolProperties().get(key));
 					}
-				
-					SiteService.save(site);
 				}
+				if ( added > 0 ) SiteService.save(site);
+
+				mergeContents(siteId, root, results);
 			} catch (IdUnusedException ie) {
 				// This would be thrown by SiteService.getSite(siteId)
 				ie.printStackTrace();
@@ -559,6 +588,9 @@ public class BasicLTISecurityServiceImpl implements EntityProducer {
 					}
 				}
 
+				int contents = archiveContents(siteId, doc, basicLtiList);
+				results.append("archiving basiclti ("+contents+") content items archived\n");
+
 				((Element) stack.peek()).appendChild(basicLtiList);
 				stack.push(basicLtiList);
 				stack.pop();
@@ -576,4 +608,164 @@ public class BasicLTISecurityServiceImpl implements EntityProducer {
 
 			return results.toString();
 		}
+
+	/**
+	 * Write the lti_content rows for a site, followed by the launch url and
+	 * title of each tool they use so merge can find the same tool on the
+	 * receiving server.  Rows are written as they are read.
+	 */
+	protected int archiveContents(String siteId, Document doc, Element parent)
+	{
+		if ( ltiService == null ) return 0;
+		List<Map<String,Object>> contents = ltiService.getSiteContentsDao(siteId);
+		String[] fields = foorm.getFields(LTIService.CONTENT_MODEL);
+		Map<Long, Boolean> toolIds = new HashMap<Long, Boolean> ();
+		for ( Map<String,Object> content : contents ) {
+			Element element = rowToElement(doc, ARCHIVE_CONTENT, content, fields);
+			String placement = (String) content.get(LTIService.LTI_PLACEMENT);
+			ToolConfiguration linked = placement == null || placement.length() < 1 ? null : SiteService.findTool(placement);
+			if ( linked != null && linked.getContainingPage() != null ) {
+				element.setAttribute(ARCHIVE_LINK, linked.getContainingPage().getTitle());
+			}
+			parent.appendChild(element);
+			Long toolId = foorm.getLongNull(content.get(LTIService.LTI_TOOL_ID));
+			if ( toolId != null ) toolIds.put(toolId, Boolean.TRUE);
+		}
+
+		String[] toolFields = { LTIService.LTI_ID, LTIService.LTI_TITLE, LTIService.LTI_LAUNCH };
+		for ( Long toolId : toolIds.keySet() ) {
+			Map<String,Object> tool = ltiService.getToolDao(toolId, siteId);
+			if ( tool == null ) continue;
+			Element toolElement = doc.createElement(ARCHIVE_TOOL);
+			for ( String field : toolFields ) {
+				addField(doc, toolElement, field, tool.get(field));
+			}
+			parent.appendChild(toolElement);
+		}
+		return contents.size();
+	}
+
+	/**
+	 * Insert the archived lti_content rows into a site.  Tools are matched by
+	 * launch url against one list of the tools the site can see, preferring a
+	 * site tool over a global one, and the rows go in as a single batch.
+	 * Rows the site already has (same tool, title and launch) are skipped so
+	 * merging the same archive twice does not duplicate them.  Rows that were
+	 * linked to a site page get a new page and placement.
+	 */
+	protected void mergeContents(String siteId, Element root, StringBuilder results)
+	{
+		org.w3c.dom.NodeList contentList = root.getElementsByTagName(ARCHIVE_CONTENT);
+		if ( ltiService == null || contentList.getLength() < 1 ) return;
+
+		// Old tool id to launch url from the archive
+		Map<String, String> archivedLaunch = new HashMap<String, String> ();
+		org.w3c.dom.NodeList toolList = root.getElementsByTagName(ARCHIVE_TOOL);
+		for(int i=0; i < toolList.getLength(); i++) {
+			Properties tool = elementToProperties(toolList.item(i));
+			String id = tool.getProperty(LTIService.LTI_ID);
+			String launch = tool.getProperty(LTIService.LTI_LAUNCH);
+			if ( id != null && launch != null ) archivedLaunch.put(id, launch);
+		}
+
+		// Launch url to new tool id - global tools first so site tools win
+		List<Map<String,Object>> tools = ltiService.getSiteToolsDao(siteId);
+		Map<String, Long> launchTool = new HashMap<String, Long> ();
+		for ( int pass = 0; pass < 2; pass++ ) {
+			for ( Map<String,Object> tool : tools ) {
+				boolean global = tool.get(LTIService.LTI_SITE_ID) == null;
+				if ( global != ( pass == 0 ) ) continue;
+				String launch = (String) tool.get(LTIService.LTI_LAUNCH);
+				Long id = foorm.getLongNull(tool.get(LTIService.LTI_ID));
+				if ( launch != null && id != null ) launchTool.put(launch, id);
+			}
+		}
+
+		// The rows already in the site
+		Set<String> existing = new HashSet<String> ();
+		for ( Map<String,Object> content : ltiService.getSiteContentsDao(siteId) ) {
+			existing.add(contentIdentity(foorm.getLongNull(content.get(LTIService.LTI_TOOL_ID)),
+				content.get(LTIService.LTI_TITLE), content.get(LTIService.LTI_LAUNCH)));
+		}
+
+		List<Properties> newContents = new ArrayList<Properties> ();
+		List<String> links = new ArrayList<String> ();
+		int skipped = 0;
+		for(int i=0; i < contentList.getLength(); i++) {
+			Properties content = elementToProperties(contentList.item(i));
+			String launch = archivedLaunch.get(content.getProperty(LTIService.LTI_TOOL_ID));
+			Long toolId = launch == null ? null : launchTool.get(launch);
+			if ( toolId == null || existing.contains(contentIdentity(toolId, 
+					content.getProperty(LTIService.LTI_TITLE), content.getProperty(LTIService.LTI_LAUNCH))) ) {
+				skipped++;
+				continue;
+			}
+			content.setProperty(LTIService.LTI_TOOL_ID, toolId.toString());
+			content.setProperty(LTIService.LTI_SITE_ID, siteId);
+			newContents.add(content);
+			String link = ((Element) contentList.item(i)).getAttribute(ARCHIVE_LINK);
+			links.add(link == null || link.length() < 1 ? null : link);
+		}
+
+		int inserted = 0;
+		if ( newContents.size() > 0 ) {
+			List<Object> retval = ltiService.insertContentsDao(newContents, siteId);
+			for ( int i = 0; i < retval.size(); i++ ) {
+				Object result = retval.get(i);
+				if ( ! ( result instanceof Long ) ) {
+					logger.warn("Could not merge lti_content into "+siteId+": "+result);
+					continue;
+				}
+				inserted++;
+				if ( links.get(i) == null ) continue;
+				Object linked = ltiService.insertToolSiteLink(result.toString(), links.get(i), siteId);
+				if ( linked instanceof String ) {
+					logger.warn("Could not link merged lti_content "+result+" into "+siteId+": "+linked);
+				}
+			}
+		}
+		results.append(", merged " + inserted + " content items");
+		if ( skipped + newContents.size() - inserted > 0 ) {
+			results.append(" (" + (skipped + newContents.size() - inserted) + " skipped)");
+		}
+	}
+
+	// What makes two content items in a site the same for merge
+	private static String contentIdentity(Long toolId, Object title, Object launch)
+	{
+		return toolId + "\n" + title + "\n" + launch;
+	}
+
+	private static Element rowToElement(Document doc, String name, Map<String,Object> row, String[] fields)
+	{
+		Element element = doc.createElement(name);
+		for ( String field : fields ) {
+			if ( ARCHIVE_SKIP.contains(field) ) continue;
+			addField(doc, element, field, row.get(field));
+		}
+		return element;
+	}
+
+	private static void addField(Document doc, Element parent, String name, Object value)
+	{
+		if ( value == null ) return;
+		Element field = doc.createElement(ARCHIVE_FIELD);
+		field.setAttribute(ARCHIVE_NAME, name);
+		field.setTextContent(value.toString());
+		parent.appendChild(field);
+	}
+
+	private static Properties elementToProperties(Node node)
+	{
+		Properties retval = new Properties();
+		org.w3c.dom.NodeList children = node.getChildNodes();
+		for(int i=0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if ( ! ( child instanceof Element ) || ! ARCHIVE_FIELD.equals(child.getNodeName()) ) continue;
+			String name = ((Element) child).getAttribute(ARCHIVE_NAME);
+			if ( name == null || name.length() < 1 ) continue;
+			retval.setProperty(name, child.getTextContent());
+		}
+		return retval;
+	}
 }
@@ -34,6 +34,10 @@ import org.sakaiproject.event.api.UsageSessionService;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.exception.PermissionException;
 import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.lti.api.LtiBinding;
+import org.sakaiproject.lti.api.LtiContent;
+import org.sakaiproject.lti.api.LtiDeploy;
+import org.sakaiproject.lti.api.LtiTool;
 import org.sakaiproject.site.api.SiteService;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SitePage;
@@ -47,6 +51,8 @@ import org.sakaiproject.util.foorm.SakaiFoorm;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Collection;
+import java.util.Set;
 
 /**
  * <p>
@@ -258,6 +264,10 @@ public abstract class BaseLTIService implements LTIService {
 		if ( content == null ) return null;
 		int key = getInt(content.get(LTIService.LTI_ID));
 		String siteId = (String) content.get(LTIService.LTI_SITE_ID);
+		return getContentLaunch(key, siteId);
+	}
+
+	protected String getContentLaunch(long key, String siteId) {
 		if (key < 0 || siteId == null)
 			return null;
 		return LAUNCH_PREFIX + siteId + "/content:" + key;
@@ -494,6 +504,33 @@ public abstract class BaseLTIService implements LTIService {
 			content.put(LTIService.LTI_NEWPAGE, newProp);
 	}
 
+	/**
+	 * The typed form of filterContent - the rows are immutable so the
+	 * adjusted content is returned as a new row.
+	 */
+	public LtiContent filterContent(LtiContent content, LtiTool tool) {
+		if (content == null || tool == null)
+			return content;
+		int heightOverride = tool.getAllowframeheight();
+		int toolHeight = tool.getFrameheight();
+		int contentHeight = content.getFrameheight();
+		int frameHeight = 1200;
+		if (toolHeight > 0)
+			frameHeight = toolHeight;
+		if (heightOverride == 1 && contentHeight > 0)
+			frameHeight = contentHeight;
+
+		int debug = getCorrectProperty(content.getDebug(), tool.getDebug(), getAllowProperty(tool, LTIService.LTI_DEBUG));
+		int newpage = getCorrectProperty(content.getNewpage(), tool.getNewpage(), getAllowProperty(tool, LTIService.LTI_NEWPAGE));
+		return content.withDisplay(frameHeight, newpage, debug);
+	}
+
+	// The allow column is optional in the tool model
+	private static int getAllowProperty(LtiTool tool, String propName) {
+		int column = tool.getLayout().indexOf("allow" + propName);
+		return column < 0 ? -1 : tool.getInt(column);
+	}
+
 	/**
 	 * 
 	 * @param propName
@@ -503,12 +540,20 @@ public abstract class BaseLTIService implements LTIService {
 	 */
 	public static Integer getCorrectProperty(String propName, Map<String, Object> content,
 			Map<String, Object> tool) {
-		int toolProp = getInt(tool.get(propName));
-		int contentProp = getInt(content.get(propName));
-		if (toolProp == -1 || contentProp == -1)
+		int prop = getCorrectProperty(getInt(content.get(propName)), getInt(tool.get(propName)),
+			getInt(tool.get("allow" + propName)));
+		if (prop == -1)
 			return null;
+		return new Integer(prop);
+	}
+
+	/**
+	 * @return The value the tool forces on the content or -1 to leave it alone
+	 */
+	public static int getCorrectProperty(int contentProp, int toolProp, int allowProp) {
+		if (toolProp == -1 || contentProp == -1)
+			return -1;
 
-		int allowProp = getInt(tool.get("allow" + propName));
 		int allowCode = -1;
 		if (allowProp >= 0) {
 			allowCode = allowProp;
@@ -518,14 +563,14 @@ public abstract class BaseLTIService implements LTIService {
 
 		// There is no control row assertion
 		if (allowCode == -1)
-			return null;
+			return -1;
 
 		// If the control property wants to override
 		if (allowCode == 0 && toolProp != 0)
-			return new Integer(0);
+			return 0;
 		if (allowCode == 1 && toolProp != 1)
-			return new Integer(1);
-		return null;
+			return 1;
+		return -1;
 	}
 
     protected abstract Object insertMembershipsJobDao(String siteId, String membershipsId, String membershipsUrl, String consumerKey, String ltiVersion);
@@ -540,6 +585,30 @@ public abstract class BaseLTIService implements LTIService {
 		return getMembershipsJobsDao();
 	}
 
+	protected abstract List<Map<String, Object>> claimMembershipsJobsDao(String owner, long startedAt, int max, int leaseSeconds);
+
+	public List<Map<String, Object>> claimMembershipsJobs(String owner, long startedAt, int max, int leaseSeconds) {
+		return claimMembershipsJobsDao(owner, startedAt, max, leaseSeconds);
+	}
+
+	protected abstract boolean renewMembershipsJobLeaseDao(String siteId, String owner, int leaseSeconds);
+
+	public boolean renewMembershipsJobLease(String siteId, String owner, int leaseSeconds) {
+		return renewMembershipsJobLeaseDao(siteId, owner, leaseSeconds);
+	}
+
+	protected abstract boolean releaseMembershipsJobDao(String siteId, String owner, int nextRunSeconds);
+
+	public boolean releaseMembershipsJob(String siteId, String owner, int nextRunSeconds) {
+		return releaseMembershipsJobDao(siteId, owner, nextRunSeconds);
+	}
+
+	protected abstract boolean updateMembershipsJobRosterDao(String siteId, String digest, String etag, String lastModified);
+
+	public boolean updateMembershipsJobRoster(String siteId, String digest, String etag, String lastModified) {
+		return updateMembershipsJobRosterDao(siteId, digest, etag, lastModified);
+	}
+
 	public Object insertTool(Properties newProps) {
 		return insertToolDao(newProps, getContext(), isAdmin(), isMaintain());
 	}
@@ -616,6 +685,13 @@ public abstract class BaseLTIService implements LTIService {
 
 	protected abstract Object insertContentDao(Properties newProps, String siteId, boolean isAdminRole, boolean isMaintainRole);
 
+	public List<Object> insertContentsDao(List<Properties> newProps, String siteId)
+	{
+		return insertContentsDao(newProps, siteId, true, true);
+	}
+
+	protected abstract List<Object> insertContentsDao(List<Properties> newProps, String siteId, boolean isAdminRole, boolean isMaintainRole);
+
 	public Map<String, Object> getContent(Long key) {
 		return getContentDao(key, getContext(), isAdmin());
 	}
@@ -646,6 +722,13 @@ public abstract class BaseLTIService implements LTIService {
 
 	protected abstract List<Map<String, Object>> getContentsDao(String search, String order, int first, int last, String siteId, boolean isAdminRole);
 
+	public Set<String> getExistingPlacements(Collection<String> placementIds)
+	{
+		return getExistingPlacementsDao(placementIds, getContext(), isAdmin());
+	}
+
+	protected abstract Set<String> getExistingPlacementsDao(Collection<String> placementIds, String siteId, boolean isAdminRole);
+
 	public Object insertToolContent(String id, String toolId, Properties reqProps)
 	{
 		return insertToolContentDao(id, toolId, reqProps, getContext(), isAdmin(), isMaintain());
@@ -896,6 +979,39 @@ public abstract class BaseLTIService implements LTIService {
 
 	protected abstract List<Map<String, Object>> getDeploysDao(String search, String order, int first, int last, String siteId, boolean isAdminRole);
 
+	/* Typed views of the rows, read straight from the database */
+	public LtiTool getLtiTool(Long key) {
+		return getLtiToolDao(key, getContext(), isAdmin());
+	}
+
+	public LtiTool getLtiToolDao(Long key, String siteId) {
+		return getLtiToolDao(key, siteId, true);
+	}
+
+	protected abstract LtiTool getLtiToolDao(Long key, String siteId, boolean isAdminRole);
+
+	public abstract LtiTool getLtiToolForResourceHandlerDao(String resourceType);
+
+	public LtiContent getLtiContent(Long key) {
+		return getLtiContentDao(key, getContext(), isAdmin());
+	}
+
+	public LtiContent getLtiContentDao(Long key, String siteId) {
+		return getLtiContentDao(key, siteId, true);
+	}
+
+	protected abstract LtiContent getLtiContentDao(Long key, String siteId, boolean isAdminRole);
+
+	public LtiDeploy getLtiDeployDao(Long key) {
+		return getLtiDeployDao(key, null, true);
+	}
+
+	protected abstract LtiDeploy getLtiDeployDao(Long key, String siteId, boolean isAdminRole);
+
+	public abstract LtiDeploy getLtiDeployForConsumerKeyDao(String consumerKey);
+
+	public abstract LtiBinding getLtiProxyBindingDao(Long tool_id, String siteId);
+
 	public abstract Object insertProxyBindingDao(Properties newProps);
 	public abstract Object updateProxyBindingDao(Long key, Object newProps);
 	public abstract boolean deleteProxyBindingDao(Long key);
@@ -27,23 +27,43 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.event.api.Event;
 import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.lti.api.LtiBinding;
+import org.sakaiproject.lti.api.LtiContent;
+import org.sakaiproject.lti.api.LtiDeploy;
+import org.sakaiproject.lti.api.LtiRow;
+import org.sakaiproject.lti.api.LtiTool;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
 import org.springframework.jdbc.core.ColumnMapRowMapper;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 
+import java.io.StringReader;
+
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.sql.DataSource;
 
@@ -89,6 +109,56 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		m_autoDdl = Boolean.valueOf(value);
 	}
 
+	/** Dependency: MemoryService */
+	protected MemoryService m_memoryService = null;
+
+	/**
+	 * Dependency: MemoryService.
+	 * 
+	 * @param service
+	 *          The MemoryService.
+	 */
+	public void setMemoryService(MemoryService service) {
+		m_memoryService = service;
+	}
+
+	/** The prefix for the references in cache invalidation events */
+	private static final String CACHE_REFERENCE = REFERENCE_ROOT + "/cache/";
+
+	/** The tables whose rows are read through the row cache */
+	private static final List<String> CACHED_TABLES = Arrays.asList("lti_tools", "lti_deploy", "lti_binding");
+
+	/** The tables whose changes are announced to caches outside this service */
+	private static final List<String> ANNOUNCED_TABLES = Arrays.asList("lti_content", "lti_tools", "lti_deploy", "lti_binding");
+
+	/**
+	 * Rows keyed by table/id and ids keyed by table:index/value
+	 */
+	private Cache m_rowCache = null;
+
+	/**
+	 * Bumped for a table whenever one of its rows is invalidated so a read
+	 * that started before a write cannot put the old row back afterwards
+	 */
+	private final AtomicLongArray m_cacheVersions = new AtomicLongArray(ANNOUNCED_TABLES.size());
+
+	/**
+	 * Drops cached rows when any node posts an invalidation event
+	 */
+	private Observer m_cacheObserver = new Observer() {
+		public void update(Observable o, Object arg) {
+			if ( ! (arg instanceof Event) ) return;
+			Event event = (Event) arg;
+			if ( ! EVENT_CACHE_INVALIDATE.equals(event.getEvent()) ) return;
+			String ref = event.getResource();
+			if ( ref == null || ! ref.startsWith(CACHE_REFERENCE) || m_rowCache == null ) return;
+			String cacheKey = ref.substring(CACHE_REFERENCE.length());
+			int pos = cacheKey.indexOf('/');
+			if ( pos > 0 ) bumpCacheVersion(cacheKey.substring(0, pos));
+			m_rowCache.remove(cacheKey);
+		}
+	};
+
 	/**
 	 * 
 	 */
@@ -98,6 +168,37 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 	 */
 	private org.springframework.jdbc.core.JdbcTemplate jdbcTemplate = null;
 
+	/*
+	 * Typed rows are read straight from the ResultSet.  The cached tables
+	 * always go through these and the map API is built from the typed row.
+	 */
+	private static final LtiRowMapper<LtiTool> TOOL_MAPPER = new LtiRowMapper<LtiTool>(LtiTool.LAYOUT) {
+		protected LtiTool newRow(long[] numbers, String[] texts, Class<?>[] types) {
+			return new LtiTool(numbers, texts, types);
+		}
+	};
+
+	private static final LtiRowMapper<LtiDeploy> DEPLOY_MAPPER = new LtiRowMapper<LtiDeploy>(LtiDeploy.LAYOUT) {
+		protected LtiDeploy newRow(long[] numbers, String[] texts, Class<?>[] types) {
+			return new LtiDeploy(numbers, texts, types);
+		}
+	};
+
+	private static final LtiRowMapper<LtiBinding> BINDING_MAPPER = new LtiRowMapper<LtiBinding>(LtiBinding.LAYOUT) {
+		protected LtiBinding newRow(long[] numbers, String[] texts, Class<?>[] types) {
+			return new LtiBinding(numbers, texts, types);
+		}
+	};
+
+	private static final int CONTENT_ID = LtiContent.LAYOUT.column(LTI_ID);
+	private static final int CONTENT_SITE_ID = LtiContent.LAYOUT.column(LTI_SITE_ID);
+
+	private final LtiRowMapper<LtiContent> contentMapper = new LtiRowMapper<LtiContent>(LtiContent.LAYOUT) {
+		protected LtiContent newRow(long[] numbers, String[] texts, Class<?>[] types) {
+			return new LtiContent(numbers, texts, types, getContentLaunch(numbers[CONTENT_ID], texts[CONTENT_SITE_ID]));
+		}
+	};
+
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * Init and Destroy
 	 *********************************************************************************************************************************************************************************************************************************************************/
@@ -112,22 +213,39 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 			dataSource = (DataSource) ComponentManager.get("javax.sql.DataSource");
 		if (jdbcTemplate == null && dataSource != null)
 			jdbcTemplate = new JdbcTemplate(dataSource);
+		if (m_memoryService == null)
+			m_memoryService = (MemoryService) ComponentManager.get("org.sakaiproject.memory.api.MemoryService");
+
+		if (m_memoryService != null)
+			m_rowCache = m_memoryService.getCache("org.sakaiproject.lti.impl.DBLTIService.rowCache");
+		if (m_eventTrackingService != null) m_eventTrackingService.addObserver(m_cacheObserver);
 
 		try {
 			boolean doReset = false;
 			if (doReset) M_log.error("DO NOT RUN IN PRODUCTION WITH doReset TRUE");
 
-			foorm.autoDDL("lti_content", LTIService.CONTENT_MODEL, m_sql, m_autoDdl, doReset, M_log);
-			foorm.autoDDL("lti_tools", LTIService.TOOL_MODEL, m_sql, m_autoDdl, doReset, M_log);
-			foorm.autoDDL("lti_deploy", LTIService.DEPLOY_MODEL, m_sql, m_autoDdl, doReset, M_log);
-			foorm.autoDDL("lti_binding", LTIService.BINDING_MODEL, m_sql, m_autoDdl, doReset, M_log);
-			foorm.autoDDL("lti_memberships_jobs", LTIService.MEMBERSHIPS_JOBS_MODEL, m_sql, m_autoDdl, doReset, M_log);
+			// One query tells us which tables have changed models since the last reconcile
+			Map<String, String> ledger = foorm.loadSchemaLedger(m_sql, m_autoDdl, M_log);
+
+			foorm.autoDDL("lti_content", LTIService.CONTENT_MODEL, m_sql, m_autoDdl, doReset, M_log, ledger);
+			foorm.autoDDL("lti_tools", LTIService.TOOL_MODEL, m_sql, m_autoDdl, doReset, M_log, ledger);
+			foorm.autoDDL("lti_deploy", LTIService.DEPLOY_MODEL, m_sql, m_autoDdl, doReset, M_log, ledger);
+			foorm.autoDDL("lti_binding", LTIService.BINDING_MODEL, m_sql, m_autoDdl, doReset, M_log, ledger);
+			foorm.autoDDL("lti_memberships_jobs", LTIService.MEMBERSHIPS_JOBS_MODEL, m_sql, m_autoDdl, doReset, M_log, ledger);
 			super.init();
 		} catch (Exception t) {
 			M_log.warn("init(): ", t);
 		}
 	}
 
+	/**
+	 * Returns to uninitialized state.
+	 */
+	public void destroy() {
+		if (m_eventTrackingService != null) m_eventTrackingService.deleteObserver(m_cacheObserver);
+		super.destroy();
+	}
+
     /**
      *
      */
@@ -166,6 +284,82 @@ public class DBLTIService extends BaseLTIService implements LTIService {
         return getThingsDao("lti_memberships_jobs", LTIService.MEMBERSHIPS_JOBS_MODEL, null, null, "SITE_ID = '" + siteId + "'", null, null, 0, 0, siteId, true);
     }
 
+	/** A job nobody holds - never leased, released, or the lease has run out */
+	private static final String MEMBERSHIPS_JOB_FREE = "(lease_expires IS NULL OR lease_expires < ?)";
+
+	/** A job that is due and has not run since a given time */
+	private static final String MEMBERSHIPS_JOB_DUE = "(next_run IS NULL OR next_run <= ?) AND (last_run IS NULL OR last_run < ?)";
+
+	/**
+	 * Pick some due jobs and lease them with one UPDATE whose WHERE clause
+	 * repeats the checks, so when nodes race for the same rows each row
+	 * goes to exactly one of them.  The rows we won are the ones carrying
+	 * our owner token and expiry.
+	 */
+	protected List<Map<String, Object>> claimMembershipsJobsDao(String owner, long startedAt, int max, int leaseSeconds) {
+		List<Map<String, Object>> retval = new ArrayList<Map<String, Object>>();
+		if ( max < 1 ) return retval;
+
+		Long now = new Long(System.currentTimeMillis() / 1000);
+		Long expires = new Long(now.longValue() + leaseSeconds);
+
+		Long since = new Long(startedAt);
+		String statement = "SELECT SITE_ID FROM lti_memberships_jobs WHERE " + MEMBERSHIPS_JOB_FREE +
+			" AND " + MEMBERSHIPS_JOB_DUE;
+		String pagedStatement = foorm.getPagedSelect(statement, 0, max - 1, m_sql.getVendor());
+		if ( pagedStatement != null ) statement = pagedStatement;
+		List candidates = m_sql.dbRead(statement, new Object[] { now, now, since }, null);
+		if ( candidates == null || candidates.size() < 1 ) return retval;
+
+		StringBuilder sql = new StringBuilder("UPDATE lti_memberships_jobs SET lease_owner = ?, lease_expires = ? WHERE ");
+		sql.append(MEMBERSHIPS_JOB_FREE).append(" AND ").append(MEMBERSHIPS_JOB_DUE).append(" AND SITE_ID IN (");
+		List<Object> fields = new ArrayList<Object>();
+		fields.add(owner);
+		fields.add(expires);
+		fields.add(now);
+		fields.add(now);
+		fields.add(since);
+		for ( int i = 0; i < candidates.size(); i++ ) {
+			if ( i > 0 ) sql.append(',');
+			sql.append('?');
+			fields.add(candidates.get(i));
+		}
+		sql.append(')');
+		int count = m_sql.dbWriteCount(sql.toString(), fields.toArray(), null, null, false);
+		if (M_log.isDebugEnabled()) M_log.debug("claimMembershipsJobsDao owner=" + owner + " candidates=" + candidates.size() + " claimed=" + count);
+		if ( count < 1 ) return retval;
+
+		String[] columns = foorm.getFields(LTIService.MEMBERSHIPS_JOBS_MODEL);
+		return getResultSet("SELECT * FROM lti_memberships_jobs WHERE lease_owner = ? AND lease_expires = ?",
+			new Object[] { owner, expires }, columns);
+	}
+
+	protected boolean renewMembershipsJobLeaseDao(String siteId, String owner, int leaseSeconds) {
+		Long now = new Long(System.currentTimeMillis() / 1000);
+		Object [] fields = { new Long(now.longValue() + leaseSeconds), siteId, owner, now };
+		int count = m_sql.dbWriteCount("UPDATE lti_memberships_jobs SET lease_expires = ? " +
+			"WHERE SITE_ID = ? AND lease_owner = ? AND lease_expires >= ?", fields, null, null, false);
+		return count == 1;
+	}
+
+	protected boolean releaseMembershipsJobDao(String siteId, String owner, int nextRunSeconds) {
+		Long now = new Long(System.currentTimeMillis() / 1000);
+		Object [] fields = { now, new Long(now.longValue() + nextRunSeconds), siteId, owner };
+		int count = m_sql.dbWriteCount("UPDATE lti_memberships_jobs SET lease_owner = NULL, lease_expires = NULL, " +
+			"last_run = ?, next_run = ? WHERE SITE_ID = ? AND lease_owner = ?", fields, null, null, false);
+		return count == 1;
+	}
+
+	protected boolean updateMembershipsJobRosterDao(String siteId, String digest, String etag, String lastModified) {
+		// These come from the consumer so keep them inside the columns
+		if ( etag != null && etag.length() > 256 ) etag = null;
+		if ( lastModified != null && lastModified.length() > 64 ) lastModified = null;
+		Object [] fields = { digest, etag, lastModified, siteId };
+		int count = m_sql.dbWriteCount("UPDATE lti_memberships_jobs SET roster_digest = ?, roster_etag = ?, " +
+			"roster_modified = ? WHERE SITE_ID = ?", fields, null, null, false);
+		return count > 0;
+	}
+
 	/**
 	 * 
 	 */
@@ -181,7 +375,12 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 	 */
 	protected Map<String, Object> getToolDao(Long key, String siteId, boolean isAdminRole) 
 	{
-		return getThingDao("lti_tools", LTIService.TOOL_MODEL, key, siteId, isAdminRole);
+		return toMap(getLtiToolDao(key, siteId, isAdminRole));
+	}
+
+	protected LtiTool getLtiToolDao(Long key, String siteId, boolean isAdminRole) 
+	{
+		return getRowDao("lti_tools", LTIService.TOOL_MODEL, TOOL_MAPPER, key, siteId, isAdminRole);
 	}
 
 	/**
@@ -205,6 +404,13 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		return updateThingDao("lti_tools", LTIService.TOOL_MODEL, null, key, (Object) newProps, siteId, isAdminRole, isMaintainRole);
 	}
 
+	public List<Map<String, Object>> getSiteToolsDao(String siteId) {
+		if ( siteId == null ) throw new IllegalArgumentException("siteId must be non-null");
+		String search = "lti_tools." + LTI_SITE_ID + " IS NULL OR lti_tools." + LTI_SITE_ID + " = ?";
+		return getThingsDao("lti_tools", LTIService.TOOL_MODEL, null, null, search, 
+			new Object[] { siteId }, null, null, 0, 0, siteId, true);
+	}
+
 	/**
 	 * 
 	 * {@inheritDoc}
@@ -266,20 +472,128 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 
 		if (!isMaintainRole) return null;
 
+		Object toolKey = getContentToolKey(newProps);
+		if ( toolKey instanceof String ) return toolKey;
+
+		// Load the tool we are aiming for Using DAO
+		Map<String, Object> tool = getToolDao((Long) toolKey, siteId, isAdminRole);
+		Object contentModel = getContentInsertModel(tool, isAdminRole);
+		if ( contentModel instanceof String ) return contentModel;
+
+		contentModel = prepareContentInsert(tool, (String[]) contentModel, newProps);
+		return insertThingDao("lti_content", (String[]) contentModel, LTIService.CONTENT_MODEL, newProps, siteId, isAdminRole, isMaintainRole);
+	}
+
+	/**
+	 * Insert a list of content items, loading each tool and computing its content 
+	 * model once and inserting rows with the same columns as a single JDBC batch.
+	 *
+	 * @return A list with one entry per item - String (failure) or Long (key on success)
+	 */
+	protected List<Object> insertContentsDao(List<Properties> newPropsList, String siteId, 
+		boolean isAdminRole, boolean isMaintainRole) 
+	{
+		if ( newPropsList == null ) {
+			throw new IllegalArgumentException(
+					"newPropsList must be non-null");
+		}
+		if (siteId == null && !isAdminRole ) {
+			throw new IllegalArgumentException("siteId must be non-null for non-admins");
+		}
+
+		List<Object> retval = new ArrayList<Object>(newPropsList.size());
+		if (!isMaintainRole) {
+			for (int i = 0; i < newPropsList.size(); i++) retval.add(null);
+			return retval;
+		}
+
+		// Each tool is loaded and its content model is computed only once
+		Map<Long, Map<String, Object>> tools = new HashMap<Long, Map<String, Object>> ();
+		Map<Long, Object> models = new HashMap<Long, Object> ();
+
+		// Rows that validate are grouped by their column list so each group is one batch
+		Map<String, List<Integer>> batches = new LinkedHashMap<String, List<Integer>> ();
+		List<Map<String, Object>> mappings = new ArrayList<Map<String, Object>> ();
+
+		String[] columns = foorm.getFields(LTIService.CONTENT_MODEL);
+		for (Properties newProps : newPropsList) {
+			retval.add(null);
+			mappings.add(null);
+			int row = retval.size() - 1;
+			if ( newProps == null ) {
+				retval.set(row, rb.getString("error.missing.toolid"));
+				continue;
+			}
+
+			Object toolKey = getContentToolKey(newProps);
+			if ( toolKey instanceof String ) {
+				retval.set(row, toolKey);
+				continue;
+			}
+
+			if ( ! models.containsKey(toolKey) ) {
+				Map<String, Object> tool = getToolDao((Long) toolKey, siteId, isAdminRole);
+				tools.put((Long) toolKey, tool);
+				models.put((Long) toolKey, getContentInsertModel(tool, isAdminRole));
+			}
+			Object contentModel = models.get(toolKey);
+			if ( contentModel instanceof String ) {
+				retval.set(row, contentModel);
+				continue;
+			}
+			contentModel = prepareContentInsert(tools.get(toolKey), (String[]) contentModel, newProps);
+
+			Object mapping = extractInsertMapping((String[]) contentModel, columns, newProps, siteId, isAdminRole);
+			if ( mapping instanceof String ) {
+				retval.set(row, mapping);
+				continue;
+			}
+			mappings.set(row, (Map<String, Object>) mapping);
+
+			String batchKey = foorm.insertForm((Map<String, Object>) mapping)[0];
+			List<Integer> batch = batches.get(batchKey);
+			if ( batch == null ) {
+				batch = new ArrayList<Integer> ();
+				batches.put(batchKey, batch);
+			}
+			batch.add(row);
+		}
+
+		for (List<Integer> batch : batches.values()) {
+			List<Map<String, Object>> batchMappings = new ArrayList<Map<String, Object>> ();
+			for (Integer row : batch) batchMappings.add(mappings.get(row));
+			List<Object> keys = insertBatchDao("lti_content", LTIService.CONTENT_MODEL, batchMappings);
+			for (int i = 0; i < batch.size(); i++) {
+				retval.set(batch.get(i), keys.get(i));
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Parse the tool_id from a new content item
+	 *
+	 * @return Returns String (failure) or Long (tool key on success)
+	 */
+	private Object getContentToolKey(Properties newProps)
+	{
 		String toolId = newProps.getProperty(LTI_TOOL_ID);
 		if (toolId == null)
 			return rb.getString("error.missing.toolid");
-		Long toolKey = null;
 		try {
-			toolKey = new Long(toolId);
+			return new Long(toolId);
 		} catch (Exception e) {
 			return rb.getString("error.invalid.toolid");
 		}
+	}
 
-		// Load the tool we are aiming for Using DAO
-		Map<String, Object> tool = null;
-		tool = getToolDao(toolKey, siteId, isAdminRole);
-			
+	/**
+	 * Compute the model used to insert content associated with a tool
+	 *
+	 * @return Returns String (failure) or String[] (the model on success)
+	 */
+	private Object getContentInsertModel(Map<String, Object> tool, boolean isAdminRole)
+	{
 		if ( tool == null ) {
 			return rb.getString("error.invalid.toolid");
 		}
@@ -293,44 +607,53 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		}
 
 		String[] contentModel = getContentModelDao(tool, isAdminRole);
-		String[] columns = foorm.getFields(contentModel);
-		
+		if (contentModel == null)
+			return rb.getString("error.invalid.toolid");
+
 		// Since page title and title are both required and dynamically hideable, 
 		// They may not be in the model.  If they are not there, add them for the purpose
-		// of the insert, and then copy the values from the tool.
+		// of the insert, and then copy the values from the tool in prepareContentInsert.
 		List<String> contentModelList = new ArrayList<String>(Arrays.asList(contentModel));
-		List<String> contentModelColumns = new ArrayList<String>(Arrays.asList(columns));
-		if (!contentModelColumns.contains(LTI_TITLE) || !contentModelColumns.contains(LTI_PAGETITLE))
-		{
-			String toolTitle = (String) tool.get(LTI_TITLE);
-			if ( toolTitle == null ) toolTitle = "...";  // should not happen
-			if (!contentModelColumns.contains(LTI_TITLE))
-			{
-				contentModelList.add(LTI_TITLE + ":text");
-				newProps.put(LTI_TITLE, toolTitle);
-			}
-
-			if (!contentModelColumns.contains(LTI_PAGETITLE))
-			{
-				// May happen for old / upgraded tool items
-				String pageTitle = (String) tool.get(LTI_PAGETITLE);
-				if ( pageTitle == null ) pageTitle = toolTitle;
-				contentModelList.add(LTI_PAGETITLE + ":text");
-				newProps.put(LTI_PAGETITLE, pageTitle);
-			}
-			contentModel = contentModelList.toArray(new String[contentModelList.size()]);
+		List<String> contentModelColumns = Arrays.asList(foorm.getFields(contentModel));
+		if (!contentModelColumns.contains(LTI_TITLE)) {
+			contentModelList.add(LTI_TITLE + ":text");
+		}
+		if (!contentModelColumns.contains(LTI_PAGETITLE)) {
+			contentModelList.add(LTI_PAGETITLE + ":text");
+		}
+		return contentModelList.toArray(new String[contentModelList.size()]);
+	}
+
+	/**
+	 * Copy the values from the tool that are not editable in the content item
+	 * into the new content item.
+	 *
+	 * @return The model to use for this particular insert
+	 */
+	private String[] prepareContentInsert(Map<String, Object> tool, String[] contentModel, Properties newProps)
+	{
+		// The bare entries are only present when getContentInsertModel added them
+		List<String> contentModelList = Arrays.asList(contentModel);
+		String toolTitle = (String) tool.get(LTI_TITLE);
+		if ( toolTitle == null ) toolTitle = "...";  // should not happen
+		if (contentModelList.contains(LTI_TITLE + ":text")) {
+			newProps.put(LTI_TITLE, toolTitle);
+		}
+		if (contentModelList.contains(LTI_PAGETITLE + ":text")) {
+			// May happen for old / upgraded tool items
+			String pageTitle = (String) tool.get(LTI_PAGETITLE);
+			if ( pageTitle == null ) pageTitle = toolTitle;
+			newProps.put(LTI_PAGETITLE, pageTitle);
 		}
 
 		// If resource_handler is not in content and is in the tool, copy it
 		if ( newProps.getProperty(LTI_RESOURCE_HANDLER) == null && tool.get(LTI_RESOURCE_HANDLER) != null ) {
 			newProps.put(LTI_RESOURCE_HANDLER, (String) tool.get(LTI_RESOURCE_HANDLER));
+			contentModelList = new ArrayList<String>(contentModelList);
 			contentModelList.add(LTI_RESOURCE_HANDLER + ":text");
 			contentModel = contentModelList.toArray(new String[contentModelList.size()]);
 		}
-		
-		if (contentModel == null)
-			return rb.getString("error.invalid.toolid");
-		return insertThingDao("lti_content", contentModel, LTIService.CONTENT_MODEL, newProps, siteId, isAdminRole, isMaintainRole);
+		return contentModel;
 	}
 
 	/**
@@ -346,6 +669,10 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		return retval;
 	}
 
+	protected LtiContent getLtiContentDao(Long key, String siteId, boolean isAdminRole) {
+		return getRowDao("lti_content", LTIService.CONTENT_MODEL, contentMapper, key, siteId, isAdminRole);
+	}
+
 	/**
 	 * 
 	 * {@inheritDoc}
@@ -436,6 +763,62 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		return contents;
 	}
 
+	public List<Map<String, Object>> getSiteContentsDao(String siteId) {
+		if ( siteId == null ) throw new IllegalArgumentException("siteId must be non-null");
+		String search = "lti_content." + LTI_SITE_ID + " = ?";
+		List<Map<String, Object>> contents = getThingsDao("lti_content", LTIService.CONTENT_MODEL, 
+			null, null, search, new Object[] { siteId }, null, null, 0, 0, siteId, true);
+		for (Map<String, Object> content : contents) {
+			content.put("launch_url", getContentLaunch(content));
+		}
+		return contents;
+	}
+
+	/** How many placement ids go into one IN clause - well under the Oracle limit of 1000 */
+	private static final int PLACEMENT_BATCH = 500;
+
+	/**
+	 * 
+	 * {@inheritDoc}
+	 * 
+	 * @see org.sakaiproject.lti.impl.BaseLTIService#getExistingPlacementsDao(java.util.Collection,
+	 *      java.lang.String, boolean)
+	 */
+	protected Set<String> getExistingPlacementsDao(Collection<String> placementIds, String siteId, boolean isAdminRole) {
+		if (siteId == null && !isAdminRole ) {
+			throw new IllegalArgumentException("siteId must be non-null for non-admins");
+		}
+		Set<String> retval = new HashSet<String>();
+		if ( placementIds == null ) return retval;
+		Set<String> unique = new HashSet<String>(placementIds);
+		unique.remove(null);
+		unique.remove("");
+		List<String> ids = new ArrayList<String>(unique);
+
+		for ( int start = 0; start < ids.size(); start += PLACEMENT_BATCH ) {
+			List<String> batch = ids.subList(start, Math.min(start + PLACEMENT_BATCH, ids.size()));
+			StringBuilder sql = new StringBuilder("SELECT TOOL_ID FROM SAKAI_SITE_TOOL WHERE TOOL_ID IN (");
+			for ( int i = 0; i < batch.size(); i++ ) {
+				if ( i > 0 ) sql.append(',');
+				sql.append('?');
+			}
+			sql.append(')');
+			List<Object> fields = new ArrayList<Object>(batch);
+
+			// Non-admins only see the placements in their own site
+			if ( ! isAdminRole ) {
+				sql.append(" AND SITE_ID = ?");
+				fields.add(siteId);
+			}
+			List found = m_sql.dbRead(sql.toString(), fields.toArray(), null);
+			if ( found == null ) continue;
+			for ( Object id : found ) {
+				if ( id != null ) retval.add(id.toString());
+			}
+		}
+		return retval;
+	}
+
 	/**
 	 * 
 	 */
@@ -474,9 +857,14 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 	 * @see org.sakaiproject.lti.api.LTIService#getDeployDao(java.lang.Long, java.lang.String, boolean)
 	 */
 	protected Map<String, Object> getDeployDao(Long key, String siteId, boolean isAdminRole) 
+	{
+		return toMap(getLtiDeployDao(key, siteId, isAdminRole));
+	}
+
+	protected LtiDeploy getLtiDeployDao(Long key, String siteId, boolean isAdminRole) 
 	{
 		if ( ! isAdminRole ) throw new IllegalArgumentException("Currently we support admins/Dao access");
-		return getThingDao("lti_deploy", LTIService.DEPLOY_MODEL, key, siteId, isAdminRole);
+		return getRowDao("lti_deploy", LTIService.DEPLOY_MODEL, DEPLOY_MAPPER, key, siteId, isAdminRole);
 	}
 
 	/**
@@ -537,34 +925,37 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		return deleteThingDao("lti_binding", LTIService.BINDING_MODEL, key, null, true, true);
 	}
 	public Map<String, Object> getProxyBindingDao(Long key) {
-		return getThingDao("lti_binding", LTIService.BINDING_MODEL, key, null, true);
+		return toMap(getRowDao("lti_binding", LTIService.BINDING_MODEL, BINDING_MAPPER, key, null, true));
 	}
 
 	public Map<String, Object> getProxyBindingDao(Long tool_id, String siteId) {
+		return toMap(getLtiProxyBindingDao(tool_id, siteId));
+	}
+
+	public LtiBinding getLtiProxyBindingDao(Long tool_id, String siteId) {
 		if (tool_id == null || siteId == null) {
 			throw new IllegalArgumentException("tool_id and siteId must be non-null");
 		}
 
-		String[] model = LTIService.BINDING_MODEL;
-		String[] columns = foorm.getFields(model);
+		String index = LTI_TOOL_ID + "," + LTI_SITE_ID;
+		String value = tool_id + "," + siteId;
+		long version = getCacheVersion("lti_binding");
+		LtiBinding cached = (LtiBinding) getCachedRow("lti_binding", index, value);
+		if ( cached != null && tool_id.longValue() == cached.getToolId()
+				&& siteId.equals(cached.getSiteId()) ) {
+			return cached;
+		}
 
-		String statement = "SELECT " + foorm.formSelect(model) + " FROM lti_binding WHERE " + 
+		String statement = "SELECT " + foorm.formSelect(LTIService.BINDING_MODEL) + " FROM lti_binding WHERE " + 
 			LTI_SITE_ID + " = ? AND " + LTI_TOOL_ID + " = ?";
 
 		Object [] fields = new Object[2];
 		fields[0] = siteId;
 		fields[1] = tool_id;
 
-		M_log.debug(statement);
-		List rv = getResultSet(statement, fields, columns);
-
-		if ((rv != null) && (rv.size() > 0)) {
-			if ( rv.size() > 1 ) {
-				M_log.warn("Warning more than one row returned: "+statement);
-			}
-			return (Map<String, Object>) rv.get(0);
-		}
-		return null;
+		LtiBinding row = readRowDao(statement, fields, BINDING_MAPPER);
+		putCachedRow("lti_binding", index, value, row, version);
+		return row;
 	}
 
 
@@ -609,8 +1000,6 @@ public class DBLTIService extends BaseLTIService implements LTIService {
             return null;
         }
 
-		HashMap<String, Object> newMapping = new HashMap<String, Object>();
-
 		String[] columns = null;
 		String theKey = null;
 		if (fullModel == null) {
@@ -621,6 +1010,43 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 			theKey = foorm.formSqlKey(fullModel);
 		}
 
+		Object mapping = extractInsertMapping(formModel, columns, newProps, siteId, isAdminRole);
+		if (mapping instanceof String)
+			return mapping;
+		Map<String, Object> newMapping = (Map<String, Object>) mapping;
+
+		String seqName = foorm.getSqlSequence(table, theKey, m_sql.getVendor());
+
+		String[] insertInfo = foorm.insertForm(newMapping);
+		String makeSql = "INSERT INTO " + table + " ( " + insertInfo[0] + " ) VALUES ( "
+			+ insertInfo[1] + " )";
+		if ("oracle".equals(m_sql.getVendor()) && theKey != null && seqName != null) {
+
+			makeSql = "INSERT INTO " + table + " ( " + theKey + ", " + insertInfo[0]
+				+ " ) VALUES ( " + seqName + ".NextVal, " + insertInfo[1] + " )";
+		}
+
+		final String sql = makeSql;
+
+		// System.out.println("Insert SQL="+sql);
+		final Object[] fields = foorm.getInsertObjects(newMapping);
+
+		Long retval = m_sql.dbInsert(null, sql, fields, LTI_ID);
+
+		M_log.debug("Count="+retval+" Insert="+sql);
+		return retval;
+	}
+
+	/**
+	 * Validate a new row and build the column mapping to insert
+	 *
+	 * @return Returns String (failure) or Map (the column mapping on success)
+	 */
+	private Object extractInsertMapping(String[] formModel, String[] columns, Object newProps, 
+		String siteId, boolean isAdminRole)
+	{
+		HashMap<String, Object> newMapping = new HashMap<String, Object>();
+
 		// Insert the SITE_ID if it is not present in case it is required
 		if (!isAdminRole && (Arrays.asList(columns).contains(LTI_SITE_ID))) {
 			((Map) newProps).put(LTI_SITE_ID, siteId);
@@ -635,28 +1061,151 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		if (!isAdminRole && (Arrays.asList(columns).contains(LTI_SITE_ID))) {
 			newMapping.put(LTI_SITE_ID, siteId);
 		}
-		String seqName = foorm.getSqlSequence(table, theKey, m_sql.getVendor());
+		return newMapping;
+	}
 
-		String[] insertInfo = foorm.insertForm(newMapping);
-		String makeSql = "INSERT INTO " + table + " ( " + insertInfo[0] + " ) VALUES ( "
-			+ insertInfo[1] + " )";
-		if ("oracle".equals(m_sql.getVendor()) && theKey != null && seqName != null) {
+	/**
+	 * Insert a group of rows that share the same columns using JDBC batching
+	 *
+	 * On Oracle the keys are allocated from the sequence in a single query 
+	 * before the insert, elsewhere they are read back as generated keys.  If
+	 * the driver does not hand back a key for every row the batch is rolled
+	 * back and the rows are inserted one at a time.
+	 *
+	 * @param mappings
+	 *		The validated column mappings - these must all have the same columns
+	 * @return A list with a Long key or a String error for each mapping
+	 */
+	private List<Object> insertBatchDao(String table, String[] model, List<Map<String, Object>> mappings)
+	{
+		List<Object> retval = new ArrayList<Object>(mappings.size());
+		if ( mappings.size() < 1 ) return retval;
+
+		String vendor = m_sql.getVendor();
+		String theKey = foorm.formSqlKey(model);
+		String seqName = foorm.getSqlSequence(table, theKey, vendor);
+		boolean useSequence = "oracle".equals(vendor) && theKey != null && seqName != null;
+
+		// Bind every row in the same column order, with the column's own type for nulls
+		List<String> columns = new ArrayList<String>(mappings.get(0).keySet());
+		int[] sqlTypes = new int[columns.size()];
+		for (int i = 0; i < columns.size(); i++) {
+			sqlTypes[i] = foorm.formSqlType(model, columns.get(i));
+		}
 
-			makeSql = "INSERT INTO " + table + " ( " + theKey + ", " + insertInfo[0]
-				+ " ) VALUES ( " + seqName + ".NextVal, " + insertInfo[1] + " )";
+		String[] insertInfo = foorm.insertForm(mappings.get(0));
+		String rowSql = "INSERT INTO " + table + " ( " + insertInfo[0] + " ) VALUES ( "
+			+ insertInfo[1] + " )";
+		String sql = rowSql;
+		if ( useSequence ) {
+			sql = "INSERT INTO " + table + " ( " + theKey + ", " + insertInfo[0]
+				+ " ) VALUES ( ?, " + insertInfo[1] + " )";
 		}
 
-		final String sql = makeSql;
+		Connection conn = null;
+		boolean autoCommit = true;
+		boolean rowByRow = false;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			conn = m_sql.borrowConnection();
+			autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+
+			List<Long> keys = new ArrayList<Long>(mappings.size());
+			if ( useSequence ) {
+				Statement st = conn.createStatement();
+				ResultSet seq = st.executeQuery("SELECT " + seqName + ".NEXTVAL FROM DUAL CONNECT BY LEVEL <= " + mappings.size());
+				while ( seq.next() ) keys.add(new Long(seq.getLong(1)));
+				seq.close();
+				st.close();
+				if ( keys.size() != mappings.size() ) throw new SQLException(seqName+" returned "+keys.size()+" keys for "+mappings.size()+" rows");
+				pstmt = conn.prepareStatement(sql);
+			} else {
+				pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+			}
 
-		// System.out.println("Insert SQL="+sql);
-		final Object[] fields = foorm.getInsertObjects(newMapping);
+			for (int i = 0; i < mappings.size(); i++) {
+				Map<String, Object> mapping = mappings.get(i);
+				int pos = 1;
+				if ( useSequence ) pstmt.setLong(pos++, keys.get(i).longValue());
+				for (int j = 0; j < columns.size(); j++) {
+					setBatchField(pstmt, pos++, mapping.get(columns.get(j)), sqlTypes[j]);
+				}
+				pstmt.addBatch();
+			}
+			pstmt.executeBatch();
 
-		Long retval = m_sql.dbInsert(null, sql, fields, LTI_ID);
+			if ( ! useSequence ) {
+				rs = pstmt.getGeneratedKeys();
+				while ( rs.next() ) keys.add(new Long(rs.getLong(1)));
+			}
 
-		M_log.debug("Count="+retval+" Insert="+sql);
+			// Without a key for every row we cannot tell the caller which row is which
+			if ( keys.size() != mappings.size() ) {
+				M_log.warn("Batch insert returned "+keys.size()+" keys for "+mappings.size()+" rows, inserting one at a time: "+sql);
+				conn.rollback();
+				rowByRow = true;
+			} else {
+				conn.commit();
+				retval.addAll(keys);
+				M_log.debug("Count="+mappings.size()+" Batch Insert="+sql);
+			}
+		} catch (SQLException e) {
+			M_log.warn("Batch insert failed: "+sql, e);
+			try {
+				if ( conn != null ) conn.rollback();
+			} catch (SQLException ee) {
+				M_log.warn("Batch rollback failed", ee);
+			}
+			retval.clear();
+			for (int i = 0; i < mappings.size(); i++) {
+				retval.add(rb.getString("error.batch.insert"));
+			}
+		} finally {
+			try {
+				if ( rs != null ) rs.close();
+				if ( pstmt != null ) pstmt.close();
+				if ( conn != null ) conn.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				M_log.debug("Batch cleanup failed", e);
+			}
+			if ( conn != null ) m_sql.returnConnection(conn);
+		}
+
+		if ( rowByRow ) {
+			if ( useSequence ) {
+				rowSql = "INSERT INTO " + table + " ( " + theKey + ", " + insertInfo[0]
+					+ " ) VALUES ( " + seqName + ".NextVal, " + insertInfo[1] + " )";
+			}
+			for (Map<String, Object> mapping : mappings) {
+				Object[] fields = new Object[columns.size()];
+				for (int j = 0; j < columns.size(); j++) fields[j] = mapping.get(columns.get(j));
+				Long key = m_sql.dbInsert(null, rowSql, fields, LTI_ID);
+				if ( key == null ) {
+					retval.add(rb.getString("error.batch.insert"));
+				} else {
+					retval.add(key);
+				}
+			}
+		}
 		return retval;
 	}
 
+	private void setBatchField(PreparedStatement pstmt, int pos, Object field, int sqlType) 
+		throws SQLException
+	{
+		if ( field == null ) {
+			pstmt.setNull(pos, sqlType);
+		} else if ( field instanceof String && ((String) field).length() > 4000 ) {
+			// Large values need to be streamed on some vendors (i.e. Oracle CLOB)
+			String str = (String) field;
+			pstmt.setCharacterStream(pos, new StringReader(str), str.length());
+		} else {
+			pstmt.setObject(pos, field);
+		}
+	}
+
 	/**
 	 * 
 	 * @param table
@@ -675,10 +1224,88 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		if (siteId == null && !isAdminRole ) {
 			throw new IllegalArgumentException("siteId must be non-null for non-admins");
 		}
+		String[] columns = foorm.getFields(model);
+		return readThingDao(table, model, columns, key, siteId, isAdminRole);
+	}
+
+	/**
+	 * Read a typed row by key.  Rows from the cached tables are stored as the
+	 * admin sees them and filtered here.  The cached row is immutable so it is
+	 * handed out without a copy.
+	 */
+	private <T extends LtiRow> T getRowDao(String table, String[] model, LtiRowMapper<T> mapper, 
+			Long key, String siteId, boolean isAdminRole)
+	{
+		if (table == null || model == null || key == null) {
+			throw new IllegalArgumentException("table, model, and key must all be non-null");
+		}
+		if (siteId == null && !isAdminRole ) {
+			throw new IllegalArgumentException("siteId must be non-null for non-admins");
+		}
+
+		if ( CACHED_TABLES.contains(table) ) {
+			long version = getCacheVersion(table);
+			T row = (T) getCachedRow(table, key);
+			if ( row == null ) {
+				row = readRowDao(table, model, mapper, key, null, true);
+				if ( row == null ) return null;
+				putCachedRow(table, key, row, version);
+			}
+			if (!isAdminRole && row.getLayout().indexOf(LTI_SITE_ID) >= 0 ) {
+				String rowSite = row.getString(LTI_SITE_ID);
+				if ( rowSite != null && ! rowSite.equals(siteId) ) return null;
+			}
+			return row;
+		}
+		return readRowDao(table, model, mapper, key, siteId, isAdminRole);
+	}
+
+	private <T extends LtiRow> T readRowDao(String table, String[] model, LtiRowMapper<T> mapper, 
+			Long key, String siteId, boolean isAdminRole)
+	{
+		String statement = "SELECT " + foorm.formSelect(model) + " from " + table
+			+ " WHERE id = ?";
+		Object fields[] = null;
+
+		// Non-admins only see global (SITE_ID IS NULL) or in their site
+		if (!isAdminRole && Arrays.asList(foorm.getFields(model)).indexOf(LTI_SITE_ID) >= 0 ) {
+			statement += " AND (SITE_ID = ? OR SITE_ID IS NULL)";
+			fields = new Object[2];
+			fields[0] = key;
+			fields[1] = siteId;
+		} else {
+			fields = new Object[1];
+			fields[0] = key;
+		}
+		return readRowDao(statement, fields, mapper);
+	}
+
+	// Returns the first row or null, warning if there is more than one
+	private <T extends LtiRow> T readRowDao(String statement, Object[] fields, LtiRowMapper<T> mapper)
+	{
+		M_log.debug(statement);
+		List<T> rv = jdbcTemplate.query(statement, fields, mapper);
+
+		if ((rv != null) && (rv.size() > 0)) {
+			if ( rv.size() > 1 ) {
+				M_log.warn("Warning more than one row returned: "+statement);
+			}
+			return rv.get(0);
+		}
+		return null;
+	}
+
+	private static Map<String, Object> toMap(LtiRow row)
+	{
+		return row == null ? null : row.toMap();
+	}
+
+	private Map<String, Object> readThingDao(String table, String[] model, String[] columns, 
+			Long key, String siteId, boolean isAdminRole)
+	{
 		String statement = "SELECT " + foorm.formSelect(model) + " from " + table
 			+ " WHERE id = ?";
 		Object fields[] = null;
-		String[] columns = foorm.getFields(model);
 
 		// Non-admins only see global (SITE_ID IS NULL) or in their site
 		if (!isAdminRole && Arrays.asList(columns).indexOf(LTI_SITE_ID) >= 0 ) {
@@ -718,6 +1345,17 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 	public List<Map<String, Object>> getThingsDao(String table, String[] model, 
 		String extraSelect, String joinClause, String search, String groupBy, String order, 
 		int first, int last, String siteId, boolean isAdminRole) 
+	{
+		return getThingsDao(table, model, extraSelect, joinClause, search, null, groupBy, order, 
+			first, last, siteId, isAdminRole);
+	}
+
+	/**
+	 * Like getThingsDao but the search can have ? placeholders for searchFields
+	 */
+	private List<Map<String, Object>> getThingsDao(String table, String[] model, 
+		String extraSelect, String joinClause, String search, Object[] searchFields, 
+		String groupBy, String order, int first, int last, String siteId, boolean isAdminRole) 
 	{
 		if (table == null || model == null ) {
 			throw new IllegalArgumentException("table and model must be non-null");
@@ -759,6 +1397,11 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 			} else { 
 				whereClause += " (" + search + ") ";
 			}
+			if ( searchFields != null && searchFields.length > 0 ) {
+				Object[] siteFields = fields == null ? new Object[0] : fields;
+				fields = Arrays.copyOf(siteFields, siteFields.length + searchFields.length);
+				System.arraycopy(searchFields, 0, fields, siteFields.length, searchFields.length);
+			}
 		}
 
 		if ( whereClause.length() > 0 ) statement += " WHERE " + whereClause;
@@ -824,6 +1467,7 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 
 		int count = m_sql.dbWriteCount(statement, fields, null, null, false);
 		M_log.debug("Count="+count+" Delete="+statement);
+		invalidateCachedRow(table, key);
 		return count == 1;
 	}
 
@@ -902,61 +1546,134 @@ public class DBLTIService extends BaseLTIService implements LTIService {
 		int count = m_sql.dbWriteCount(sql, fields, null, null, false);
 
 		M_log.debug("Count="+count+" Update="+sql);
+		invalidateCachedRow(table, key);
 		return count == 1;
 	}
 
 	/*-- Straight-up API methods ------------------------*/
 
 	public Map<String, Object> getToolForResourceHandlerDao(String resourceType)
+	{
+		return toMap(getLtiToolForResourceHandlerDao(resourceType));
+	}
+
+	public LtiTool getLtiToolForResourceHandlerDao(String resourceType)
 	{
 		if (resourceType == null ) {
 			throw new IllegalArgumentException("resourceType must be non-null");
 		}
 
-		String[] model = LTIService.TOOL_MODEL;
-		String[] columns = foorm.getFields(model);
-		String statement = "SELECT " + foorm.formSelect(model) + " FROM lti_tools WHERE " + 
+		long version = getCacheVersion("lti_tools");
+		LtiTool cached = (LtiTool) getCachedRow("lti_tools", LTI_RESOURCE_HANDLER, resourceType);
+		if ( cached != null && resourceType.equals(cached.getResourceHandler()) ) return cached;
+
+		String statement = "SELECT " + foorm.formSelect(LTIService.TOOL_MODEL) + " FROM lti_tools WHERE " + 
 			LTI_RESOURCE_HANDLER + " = ? ";
 
 		Object [] fields = new Object[1];
 		fields[0] = resourceType;
 
-		M_log.debug(statement);
-		List rv = getResultSet(statement, fields, columns);
-
-		if ((rv != null) && (rv.size() > 0)) {
-			if ( rv.size() > 1 ) {
-				M_log.warn("Warning more than one row returned: "+statement);
-			}
-			return (Map<String, Object>) rv.get(0);
-		}
-		return null;
+		LtiTool row = readRowDao(statement, fields, TOOL_MAPPER);
+		putCachedRow("lti_tools", LTI_RESOURCE_HANDLER, resourceType, row, version);
+		return row;
 	}
 
 	public Map<String, Object> getDeployForConsumerKeyDao(String consumerKey)
+	{
+		return toMap(getLtiDeployForConsumerKeyDao(consumerKey));
+	}
+
+	public LtiDeploy getLtiDeployForConsumerKeyDao(String consumerKey)
 	{
 		if (consumerKey == null ) {
 			throw new IllegalArgumentException("consumerKey must be non-null");
 		}
 
-		String[] model = LTIService.DEPLOY_MODEL;
-		String[] columns = foorm.getFields(model);
-		String statement = "SELECT " + foorm.formSelect(model) + " FROM lti_deploy WHERE " + 
+		long version = getCacheVersion("lti_deploy");
+		LtiDeploy cached = (LtiDeploy) getCachedRow("lti_deploy", LTI_CONSUMERKEY, consumerKey);
+		if ( cached != null && consumerKey.equals(cached.getConsumerkey()) ) return cached;
+
+		String statement = "SELECT " + foorm.formSelect(LTIService.DEPLOY_MODEL) + " FROM lti_deploy WHERE " + 
 			LTI_CONSUMERKEY + " = ? ";
 
 		Object [] fields = new Object[1];
 		fields[0] = consumerKey;
 
-		M_log.debug(statement);
-		List rv = getResultSet(statement, fields, columns);
+		LtiDeploy row = readRowDao(statement, fields, DEPLOY_MAPPER);
+		putCachedRow("lti_deploy", LTI_CONSUMERKEY, consumerKey, row, version);
+		return row;
+	}
 
-		if ((rv != null) && (rv.size() > 0)) {
-			if ( rv.size() > 1 ) {
-				M_log.warn("Warning more than one row returned: "+statement);
-			}
-			return (Map<String, Object>) rv.get(0);
+	/*-- Row cache ------------------------*/
+
+	// Cached rows are immutable so they are returned as is
+	private LtiRow getCachedRow(String table, Long key)
+	{
+		if ( m_rowCache == null || key == null ) return null;
+		Object row = m_rowCache.get(table + "/" + key);
+		if ( ! (row instanceof LtiRow) ) return null;
+		return (LtiRow) row;
+	}
+
+	// The secondary index holds the id which is then looked up in the cache
+	// The caller must check that the row still matches the index value
+	private LtiRow getCachedRow(String table, String index, String value)
+	{
+		if ( m_rowCache == null ) return null;
+		Object key = m_rowCache.get(table + ":" + index + "/" + value);
+		if ( ! (key instanceof Long) ) return null;
+		return getCachedRow(table, (Long) key);
+	}
+
+	// The version is taken before the row is read.  If the table was invalidated
+	// since then the row may be stale so it is not cached.  The version is checked
+	// again after the put because the invalidation bumps it before removing.
+	private void putCachedRow(String table, Long key, LtiRow row, long version)
+	{
+		if ( m_rowCache == null || key == null || row == null ) return;
+		String cacheKey = table + "/" + key;
+		if ( version != getCacheVersion(table) ) return;
+		m_rowCache.put(cacheKey, row);
+		if ( version != getCacheVersion(table) ) m_rowCache.remove(cacheKey);
+	}
+
+	private void putCachedRow(String table, String index, String value, LtiRow row, long version)
+	{
+		if ( m_rowCache == null || row == null || row.isNull(row.getLayout().column(LTI_ID)) ) return;
+		Long key = new Long(row.getId());
+		putCachedRow(table, key, row, version);
+		m_rowCache.put(table + ":" + index + "/" + value, key);
+	}
+
+	private long getCacheVersion(String table)
+	{
+		int pos = ANNOUNCED_TABLES.indexOf(table);
+		return pos < 0 ? 0 : m_cacheVersions.get(pos);
+	}
+
+	private void bumpCacheVersion(String table)
+	{
+		int pos = ANNOUNCED_TABLES.indexOf(table);
+		if ( pos >= 0 ) m_cacheVersions.incrementAndGet(pos);
+	}
+
+	/**
+	 * Drop a row from the local cache and tell the other nodes to do the same.
+	 * Secondary index entries are checked against the row when read so they
+	 * do not need to be removed.  Content rows are not cached here but the
+	 * event is still posted so views built from them (like the LTI2 settings
+	 * cache) can be dropped.
+	 */
+	private void invalidateCachedRow(String table, Long key)
+	{
+		if ( key == null || ! ANNOUNCED_TABLES.contains(table) ) return;
+		String cacheKey = table + "/" + key;
+		bumpCacheVersion(table);
+		if ( m_rowCache != null ) m_rowCache.remove(cacheKey);
+		if ( m_eventTrackingService != null ) {
+			m_eventTrackingService.post(m_eventTrackingService.newEvent(EVENT_CACHE_INVALIDATE, 
+				CACHE_REFERENCE + cacheKey, false));
 		}
-		return null;
 	}
 
 
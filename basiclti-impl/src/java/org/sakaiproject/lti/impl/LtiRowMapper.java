@@ -0,0 +1,104 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.lti.impl;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.sakaiproject.lti.api.LtiRow;
+import org.sakaiproject.lti.api.LtiRow.Layout;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+
+/**
+ * Reads a ResultSet straight into the arrays of a typed row without going
+ * through a column map.  Columns that are not in the layout (like RNUM) are
+ * skipped.
+ */
+public abstract class LtiRowMapper<T extends LtiRow> implements RowMapper<T> {
+
+	private final Layout layout;
+
+	// The number classes of the last row, shared by the rows that agree with it
+	private volatile Class<?>[] lastTypes;
+
+	public LtiRowMapper(Layout layout) {
+		this.layout = layout;
+	}
+
+	/**
+	 * Make the row from the filled in arrays
+	 */
+	protected abstract T newRow(long[] numbers, String[] texts, Class<?>[] types);
+
+	public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+		long[] numbers = layout.newNumbers();
+		String[] texts = new String[layout.size()];
+		Class<?>[] types = new Class<?>[layout.size()];
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int columnCount = rsmd.getColumnCount();
+		for (int i = 1; i <= columnCount; i++) {
+			int column = layout.indexOf(JdbcUtils.lookupColumnName(rsmd, i));
+			if ( column < 0 ) continue;
+			switch ( layout.getKind(column) ) {
+				case Layout.NUMBER:
+					// Read the value the way the column map does to keep its class
+					Object value = JdbcUtils.getResultSetValue(rs, i);
+					if ( value instanceof Number ) {
+						numbers[column] = ((Number) value).longValue();
+						types[column] = value.getClass();
+					} else if ( value instanceof Boolean ) {
+						numbers[column] = ((Boolean) value).booleanValue() ? 1 : 0;
+						types[column] = Boolean.class;
+					} else if ( value != null ) {
+						numbers[column] = rs.getLong(i);
+					}
+					break;
+				case Layout.DATE:
+					Timestamp time = rs.getTimestamp(i);
+					if ( time != null ) numbers[column] = time.getTime();
+					break;
+				default:
+					// Handles CLOB columns the same way the column map does
+					Object o = JdbcUtils.getResultSetValue(rs, i);
+					if ( o != null ) texts[column] = o.toString();
+			}
+		}
+		return newRow(numbers, texts, shareTypes(types));
+	}
+
+	// A column's class is the same from row to row so most rows can share one array
+	private Class<?>[] shareTypes(Class<?>[] types) {
+		Class<?>[] last = lastTypes;
+		if ( last != null ) {
+			boolean same = true;
+			for (int i = 0; i < types.length && same; i++) {
+				same = types[i] == null || types[i] == last[i];
+			}
+			if ( same ) return last;
+		}
+		lastTypes = types;
+		return types;
+	}
+}
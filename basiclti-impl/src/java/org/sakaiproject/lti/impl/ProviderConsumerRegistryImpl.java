@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.lti.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.sakaiproject.basiclti.util.SakaiBLTIUtil;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.lti.api.LtiDeploy;
+import org.sakaiproject.lti.api.ProviderConsumer;
+import org.sakaiproject.lti.api.ProviderConsumerRegistry;
+
+/**
+ * Holds everything the provider knows about its consumers in one
+ * Snapshot, which a reload replaces as a whole.
+ * <p>
+ * sakai.properties cannot be listed by prefix so consumers are read the
+ * first time their key is seen and kept until the next reload.  The keys in
+ * basiclti.provider.consumers, the highly trusted consumers and every key
+ * seen so far are read up front on each reload.  Keys with no secret are
+ * remembered (up to a limit) so a flood of made up keys does not reach
+ * the configuration or lti_deploy on every request.
+ */
+public class ProviderConsumerRegistryImpl implements ProviderConsumerRegistry {
+
+	private static Log M_log = LogFactory.getLog(ProviderConsumerRegistryImpl.class);
+
+    private static final String CONFIG_PREFIX = "basiclti.provider.";
+    private static final String DEPLOY_REFERENCE = LTIService.REFERENCE_ROOT + "/cache/lti_deploy/";
+    private static final int MAX_UNKNOWN = 1000;
+
+    private ServerConfigurationService serverConfigurationService = null;
+    public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
+        this.serverConfigurationService = serverConfigurationService;
+    }
+
+    private LTIService ltiService = null;
+    public void setLtiService(LTIService ltiService) {
+        this.ltiService = ltiService;
+    }
+
+    private EventTrackingService eventTrackingService = null;
+    public void setEventTrackingService(EventTrackingService eventTrackingService) {
+        this.eventTrackingService = eventTrackingService;
+    }
+
+    private volatile Snapshot snapshot = null;
+    private volatile long nextReload = 0;
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+    // A deploy's key or secret changed somewhere in the cluster
+    private Observer deployObserver = new Observer() {
+        public void update(Observable o, Object arg) {
+            if (!(arg instanceof Event)) return;
+            Event event = (Event) arg;
+            if (!LTIService.EVENT_CACHE_INVALIDATE.equals(event.getEvent())) return;
+            String ref = event.getResource();
+            if (ref == null || !ref.startsWith(DEPLOY_REFERENCE)) return;
+            Snapshot current = snapshot;
+            if (current != null && current.deploys) nextReload = 0;
+        }
+    };
+
+    public void init() {
+        reload();
+        if (eventTrackingService != null) eventTrackingService.addObserver(deployObserver);
+    }
+
+    public void destroy() {
+        if (eventTrackingService != null) eventTrackingService.deleteObserver(deployObserver);
+    }
+
+    public ProviderConsumer getConsumer(String consumerKey) {
+        if (consumerKey == null || consumerKey.length() < 1) return null;
+        Snapshot current = current();
+        ProviderConsumer consumer = current.consumers.get(consumerKey);
+        if (consumer != null || current.unknown.contains(consumerKey)) return consumer;
+
+        consumer = load(current, consumerKey);
+        if (consumer == null) {
+            current.unknown.add(consumerKey);
+            return null;
+        }
+        ProviderConsumer existing = current.consumers.putIfAbsent(consumerKey, consumer);
+        return existing == null ? consumer : existing;
+    }
+
+    public boolean isTrustedConsumer(String consumerKey) {
+        return consumerKey != null && current().trusted.contains(consumerKey);
+    }
+
+    public boolean isToolAllowed(String consumerKey, String toolId) {
+        if (toolId == null) return false;
+        ProviderConsumer consumer = getConsumer(consumerKey);
+        if (consumer != null) return consumer.isToolAllowed(toolId);
+        return current().allowedTools.contains(toolId);
+    }
+
+    public String getForcedURIScheme(String consumerKey) {
+        ProviderConsumer consumer = getConsumer(consumerKey);
+        if (consumer != null) return consumer.getForcedURIScheme();
+        return current().forcedURIScheme;
+    }
+
+    /**
+     * Build a new snapshot and swap it in.  Lookups carry on against the
+     * old one until it is in place.
+     */
+    public void reload() {
+        Snapshot old = snapshot;
+        Snapshot fresh = new Snapshot(
+                getBoolean("registry.deploys", false),
+                split(getString("highly.trusted.consumers", null)),
+                split(getString("allowedtools", "")),
+                getString("forcedurischeme", null));
+
+        Set<String> keys = new HashSet<String>(split(getString("consumers", null)));
+        keys.addAll(fresh.trusted);
+        if (old != null) keys.addAll(old.consumers.keySet());
+        for (String key : keys) {
+            ProviderConsumer consumer = load(fresh, key);
+            if (consumer != null) fresh.consumers.put(key, consumer);
+        }
+
+        int refresh = serverConfigurationService == null ? 0 : serverConfigurationService.getInt(CONFIG_PREFIX + "registry.refresh", 60);
+        snapshot = fresh;
+        nextReload = refresh > 0 ? System.currentTimeMillis() + refresh * 1000L : Long.MAX_VALUE;
+        if (M_log.isDebugEnabled()) M_log.debug("Loaded " + fresh.consumers.size() + " provider consumers");
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null || System.currentTimeMillis() >= nextReload) {
+            // One thread reloads, the rest keep using what is there
+            if (reloading.compareAndSet(false, true)) {
+                try {
+                    reload();
+                } finally {
+                    reloading.set(false);
+                }
+            }
+            if (snapshot != null) current = snapshot;
+        }
+        return current;
+    }
+
+    private ProviderConsumer load(Snapshot snap, String consumerKey) {
+        String prefix = CONFIG_PREFIX + consumerKey + ".";
+        String secret = serverConfigurationService.getString(prefix + "secret", null);
+        String source = ProviderConsumer.SOURCE_CONFIG;
+
+        if (secret == null && snap.deploys && ltiService != null) {
+            LtiDeploy deploy = ltiService.getLtiDeployForConsumerKeyDao(consumerKey);
+            // status is 0 for enable and 1 for disable
+            if (deploy != null && deploy.getStatus() == 0) {
+                secret = SakaiBLTIUtil.decryptSecret(deploy.getSecret());
+                source = ProviderConsumer.SOURCE_DEPLOY;
+            }
+        }
+        if (secret == null || secret.length() < 1) return null;
+
+        String tools = serverConfigurationService.getString(prefix + "allowedtools", null);
+        Set<String> allowedTools = tools == null ? snap.allowedTools : split(tools);
+        String forcedURIScheme = serverConfigurationService.getString(prefix + "forcedurischeme", snap.forcedURIScheme);
+        return new ProviderConsumer(consumerKey, secret, snap.trusted.contains(consumerKey),
+                allowedTools, forcedURIScheme, source);
+    }
+
+    private String getString(String name, String dflt) {
+        if (serverConfigurationService == null) return dflt;
+        return serverConfigurationService.getString(CONFIG_PREFIX + name, dflt);
+    }
+
+    private boolean getBoolean(String name, boolean dflt) {
+        if (serverConfigurationService == null) return dflt;
+        return serverConfigurationService.getBoolean(CONFIG_PREFIX + name, dflt);
+    }
+
+    // The colon separated lists the provider properties have always used
+    private static Set<String> split(String list) {
+        Set<String> retval = new HashSet<String>();
+        if (list == null) return retval;
+        for (String item : list.split(":")) {
+            item = item.trim();
+            if (item.length() > 0) retval.add(item);
+        }
+        return retval;
+    }
+
+    private static class Snapshot {
+        final boolean deploys;
+        final Set<String> trusted;
+        final Set<String> allowedTools;
+        final String forcedURIScheme;
+        final ConcurrentHashMap<String, ProviderConsumer> consumers = new ConcurrentHashMap<String, ProviderConsumer>();
+        final Set<String> unknown = Collections.synchronizedSet(Collections.newSetFromMap(
+                new LinkedHashMap<String, Boolean>() {
+                    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                        return size() > MAX_UNKNOWN;
+                    }
+                }));
+
+        Snapshot(boolean deploys, Set<String> trusted, Set<String> allowedTools, String forcedURIScheme) {
+            this.deploys = deploys;
+            this.trusted = Collections.unmodifiableSet(trusted);
+            this.allowedTools = Collections.unmodifiableSet(allowedTools);
+            this.forcedURIScheme = forcedURIScheme;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.sakaiproject.event.api.NotificationService;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.lti.api.SiteEmailPreferenceSetter;
 import org.sakaiproject.site.api.Site;
+import org.sakaiproject.user.api.Preferences;
 import org.sakaiproject.user.api.PreferencesEdit;
 import org.sakaiproject.user.api.PreferencesService;
 import org.sakaiproject.user.api.User;
@@ -52,29 +53,34 @@ public class SiteEmailPreferenceSetterImpl implements SiteEmailPreferenceSetter
 
             try {
 
+                int notificationPref = NotificationService.PREF_IMMEDIATE;
+
+                if (emailDeliveryPreference.equals("none")) {
+                    notificationPref = NotificationService.PREF_NONE;
+                } else if (emailDeliveryPreference.equals("digest")) {
+                    notificationPref = NotificationService.PREF_DIGEST;
+                }
+
+                String toolId = ((String) payload.get("tool_id")).replaceFirst("\\.",":");
+                String prefsType = NotificationService.PREFS_TYPE + toolId + "_override";
+                String value = Integer.toString(notificationPref);
+
+                // Skip the locked edit when the override is already what the consumer sent
+                Preferences prefs = preferencesService.getPreferences(user.getId());
+                if (prefs != null && value.equals(prefs.getProperties(prefsType).getProperty(site.getId()))) {
+                    return;
+                }
+
                 PreferencesEdit pe = null;
                 try {
                     pe = preferencesService.edit(user.getId());
                 } catch(IdUnusedException idue) {
                     pe = preferencesService.add(user.getId());
                 }
-                
-                if (emailDeliveryPreference != null && emailDeliveryPreference.length() > 0) {
-
-                    int notificationPref = NotificationService.PREF_IMMEDIATE;
-
-                    if (emailDeliveryPreference.equals("none")) {
-                        notificationPref = NotificationService.PREF_NONE;
-                    } else if (emailDeliveryPreference.equals("digest")) {
-                        notificationPref = NotificationService.PREF_DIGEST;
-                    }
 
-                    String toolId = ((String) payload.get("tool_id")).replaceFirst("\\.",":");
-
-                    ResourcePropertiesEdit propsEdit = pe.getPropertiesEdit(NotificationService.PREFS_TYPE + toolId + "_override");
-                    propsEdit.removeProperty(site.getId());
-                    propsEdit.addProperty(site.getId(), Integer.toString(notificationPref));
-                }
+                ResourcePropertiesEdit propsEdit = pe.getPropertiesEdit(prefsType);
+                propsEdit.removeProperty(site.getId());
+                propsEdit.addProperty(site.getId(), value);
 
                 preferencesService.commit(pe);
             } catch (Exception e) {
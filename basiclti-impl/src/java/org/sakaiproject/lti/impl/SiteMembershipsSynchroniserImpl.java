@@ -1,24 +1,33 @@
 package org.sakaiproject.lti.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import org.imsglobal.basiclti.BasicLTIConstants;
+import org.imsglobal.basiclti.DigestUtil;
+import org.imsglobal.basiclti.XMLMapWriter;
+import org.imsglobal.pox.IMSPOXRequest;
 
 import net.oauth.*;
+import net.oauth.client.PooledHttpClient;
+import net.oauth.http.HttpMessage;
+import net.oauth.http.HttpResponseMessage;
 import net.oauth.signature.OAuthSignatureMethod;
 
-import org.sakaiproject.basiclti.util.LegacyShaUtil;
-
 import org.sakaiproject.authz.api.SecurityAdvisor;
 import org.sakaiproject.authz.cover.SecurityService;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.lti.api.LTIException;
+import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.lti.api.ProviderConsumer;
+import org.sakaiproject.lti.api.ProviderConsumerRegistry;
 import org.sakaiproject.lti.api.SiteMembershipUpdater;
 import org.sakaiproject.lti.api.UserFinderOrCreator;
 import org.sakaiproject.lti.api.SiteMembershipsSynchroniser;
@@ -30,13 +39,20 @@ import org.sakaiproject.user.api.User;
 
 import org.sakaiproject.component.api.ServerConfigurationService;
 
-import java.net.HttpURLConnection;
 import java.net.URL;
 
+import java.security.MessageDigest;
+
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,6 +61,12 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
 
 	private static Log M_log = LogFactory.getLog(SiteMembershipsSynchroniserImpl.class);
 
+    private static final String UTF_8 = "UTF-8";
+
+    private static final int STATUS_NOT_MODIFIED = 304;
+
+    private static final String MEMBERSHIPS_FAIL = "memberships.fail";
+
     private UserFinderOrCreator userFinderOrCreator = null;
     public void setUserFinderOrCreator(UserFinderOrCreator userFinderOrCreator) {
         this.userFinderOrCreator = userFinderOrCreator;
@@ -65,6 +87,43 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
         this.siteService = siteService;
     }
 
+    private LTIService ltiService = null;
+    public void setLtiService(LTIService ltiService) {
+        this.ltiService = ltiService;
+    }
+
+    private ProviderConsumerRegistry providerConsumerRegistry = null;
+    public void setProviderConsumerRegistry(ProviderConsumerRegistry providerConsumerRegistry) {
+        this.providerConsumerRegistry = providerConsumerRegistry;
+    }
+
+    /**
+     * What a job row knew about the roster before this sync and what the
+     * consumer sent this time
+     */
+    private static class RosterState {
+        final String digest;
+        final String etag;
+        final String lastModified;
+        String newDigest = null;
+        String newEtag = null;
+        String newLastModified = null;
+        boolean unchanged = false;
+
+        RosterState(String digest, String etag, String lastModified) {
+            this.digest = digest;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        // A 304 is only any use if we know what the roster it refers to looked like
+        void addConditions(HttpMessage request) {
+            if (digest == null) return;
+            if (etag != null) request.headers.add(new OAuth.Parameter("If-None-Match", etag));
+            if (lastModified != null) request.headers.add(new OAuth.Parameter("If-Modified-Since", lastModified));
+        }
+    }
+
 	private void pushAdvisor() {
 
 		// setup a security advisor
@@ -81,6 +140,33 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
 	}
 
     public void synchroniseSiteMemberships(final String siteId, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, final String callbackType) throws LTIException {
+        try {
+            synchroniseSiteMemberships(siteId, membershipsId, membershipsUrl, oauth_consumer_key, callbackType, null);
+        } catch (LTIException ltie) {
+            if (!MEMBERSHIPS_FAIL.equals(ltie.getErrorKey())) throw ltie;
+            // The launch goes ahead and the scheduled job will try again
+            M_log.error("Failed to synchronise memberships for site '" + siteId + "'.", ltie);
+        }
+    }
+
+    public boolean synchroniseSiteMemberships(Map<String, Object> job) throws LTIException {
+
+        String siteId = (String) job.get("SITE_ID");
+        String membershipsId = (String) job.get("memberships_id");
+        String membershipsUrl = (String) job.get("memberships_url");
+        String consumerKey = (String) job.get("consumerkey");
+        String ltiVersion = (String) job.get("lti_version");
+
+        // Without the old digest every roster looks new and is applied in full
+        boolean skipUnchanged = serverConfigurationService.getBoolean("basiclti.memberships.sync.skipunchanged", true);
+        RosterState state = new RosterState(skipUnchanged ? (String) job.get("roster_digest") : null,
+                (String) job.get("roster_etag"), (String) job.get("roster_modified"));
+
+        synchroniseSiteMemberships(siteId, membershipsId, membershipsUrl, consumerKey, ltiVersion, state);
+        return !state.unchanged;
+    }
+
+    private void synchroniseSiteMemberships(final String siteId, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, final String callbackType, RosterState state) throws LTIException {
 
         Site site = null;
 
@@ -91,24 +177,34 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
         }
 
         if (BasicLTIConstants.LTI_VERSION_1.equals(callbackType)) {
-            synchronizeLTI1SiteMemberships(site, membershipsId, membershipsUrl, oauth_consumer_key);
+            synchronizeLTI1SiteMemberships(site, membershipsId, membershipsUrl, oauth_consumer_key, state);
         } else if ("ext-moodle-2".equals(callbackType)) {
             // This is non standard. Moodle's core LTI plugin does not currently do memberships and 
             // a fix for this has been proposed at https://tracker.moodle.org/browse/MDL-41724. I don't
             // think this will ever become core and the first time memberships will appear in core lti
             // is with LTI2. At that point this code will be replaced with standard LTI2 JSON type stuff.
-            synchronizeMoodleExtSiteMemberships(site, membershipsId, membershipsUrl, oauth_consumer_key);
+            synchronizeMoodleExtSiteMemberships(site, membershipsId, membershipsUrl, oauth_consumer_key, state);
         }
     }
 
-    private final void synchronizeLTI1SiteMemberships(final Site site, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key) throws LTIException {
+    private String getSecret(String oauth_consumer_key) throws LTIException {
 
-        // Lookup the secret
-        final String configPrefix = "basiclti.provider." + oauth_consumer_key + ".";
-        final String oauth_secret = serverConfigurationService.getString(configPrefix+ "secret", null);
+        String oauth_secret = null;
+        if (providerConsumerRegistry != null) {
+            ProviderConsumer consumer = providerConsumerRegistry.getConsumer(oauth_consumer_key);
+            if (consumer != null) oauth_secret = consumer.getSecret();
+        } else {
+            oauth_secret = serverConfigurationService.getString("basiclti.provider." + oauth_consumer_key + ".secret", null);
+        }
         if (oauth_secret == null) {
             throw new LTIException( "launch.key.notfound", oauth_consumer_key, null);
         }
+        return oauth_secret;
+    }
+
+    private final void synchronizeLTI1SiteMemberships(final Site site, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, RosterState state) throws LTIException {
+
+        final String oauth_secret = getSecret(oauth_consumer_key);
 
         OAuthMessage om = new OAuthMessage("POST", membershipsUrl, null);
         om.addParameter(OAuth.OAUTH_CONSUMER_KEY, oauth_consumer_key);
@@ -126,57 +222,34 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
             OAuthSignatureMethod osm = OAuthSignatureMethod.newMethod(OAuth.HMAC_SHA1, new OAuthAccessor(oc));
             osm.sign(om);
 
-            URL url = new URL(membershipsUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setDoInput(true);
-            connection.setInstanceFollowRedirects(false); 
-            connection.setRequestMethod("POST");
-            connection.setUseCaches (false);
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-            bw.write(OAuth.formEncode(om.getParameters()));
-            bw.flush();
-            bw.close();
-
-            processMembershipsResponse(connection, site, oauth_consumer_key);
+            HttpMessage request = HttpMessage.newRequest(om, ParameterStyle.BODY);
+            if (state != null) state.addConditions(request);
+            HttpResponseMessage response = PooledHttpClient.getDefault().execute(request, null);
+
+            processMembershipsResponse(response, site, oauth_consumer_key, state);
+        } catch (LTIException ltie) {
+            throw ltie;
         } catch (Exception e) {
-            e.printStackTrace();
+            throw new LTIException(MEMBERSHIPS_FAIL, e.getMessage(), e);
         }
     }
 
-    private final void synchronizeMoodleExtSiteMemberships(final Site site, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key) throws LTIException {
+    private final void synchronizeMoodleExtSiteMemberships(final Site site, final String membershipsId, final String membershipsUrl, final String oauth_consumer_key, RosterState state) throws LTIException {
 
-        // Lookup the secret
-        final String configPrefix = "basiclti.provider." + oauth_consumer_key + ".";
-        final String oauth_secret = serverConfigurationService.getString(configPrefix+ "secret", null);
-        if (oauth_secret == null) {
-            throw new LTIException( "launch.key.notfound", oauth_consumer_key, null);
-        }
+        final String oauth_secret = getSecret(oauth_consumer_key);
 
         String type = "readMembershipsWithGroups";
         String uuid = UUID.randomUUID().toString();
-        String xml = "<sourcedId>" + membershipsId + "</sourcedId>";
-
-        StringBuilder sb = new StringBuilder("<?xml version = \"1.0\" encoding = \"UTF-8\"?>");
-        sb.append("<imsx_POXEnvelope xmlns = \"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">");
-        sb.append("<imsx_POXHeader>");
-        sb.append("<imsx_POXRequestHeaderInfo>");
-        sb.append("<imsx_version>V1.0</imsx_version>");
-        sb.append("<imsx_messageIdentifier>" + uuid + "</imsx_messageIdentifier>");
-        sb.append("</imsx_POXRequestHeaderInfo>");
-        sb.append("</imsx_POXHeader>");
-        sb.append("<imsx_POXBody>");
-        sb.append("<" + type + "Request>");
-        sb.append(xml);
-        sb.append("</" + type + "Request>");
-        sb.append("</imsx_POXBody>");
-        sb.append("</imsx_POXEnvelope>");
-
-        String callXml = sb.toString();
-
-        if(M_log.isDebugEnabled()) M_log.debug("callXml: " + callXml);
-
-        String bodyHash = OAuthSignatureMethod.base64Encode(LegacyShaUtil.sha1(callXml));
+
+        byte[] callBytes = null;
+        try {
+            callBytes = writeMembershipsRequest(type, uuid, membershipsId);
+            if(M_log.isDebugEnabled()) M_log.debug("callXml: " + new String(callBytes, UTF_8));
+        } catch (IOException e) {
+            throw new LTIException(MEMBERSHIPS_FAIL, e.getMessage(), e);
+        }
+
+        String bodyHash = OAuthSignatureMethod.base64Encode(DigestUtil.digest(DigestUtil.SHA1, callBytes));
         M_log.debug(bodyHash);
 
         OAuthMessage om = new OAuthMessage("POST", membershipsUrl, null);
@@ -196,40 +269,92 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
 
             if(M_log.isDebugEnabled()) M_log.debug("AUTHZ HEADER: " + authzHeader);
 
-            URL url = new URL(membershipsUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setDoInput(true);
-            connection.setInstanceFollowRedirects(false); 
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", authzHeader);
-            connection.setRequestProperty("Content-Length", "" + Integer.toString(callXml.getBytes().length));
-            connection.setRequestProperty("Content-Type", "text/xml");
-            connection.setUseCaches (false);
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-            bw.write(callXml);
-            bw.flush();
-            bw.close();
-
-            processMembershipsResponse(connection, site, oauth_consumer_key);
+            // The body hash was computed over these bytes so send exactly those
+            HttpMessage request = new HttpMessage("POST", new URL(membershipsUrl), new ByteArrayInputStream(callBytes));
+            request.headers.add(new OAuth.Parameter("Authorization", authzHeader));
+            request.headers.add(new OAuth.Parameter(HttpMessage.CONTENT_LENGTH, Integer.toString(callBytes.length)));
+            request.headers.add(new OAuth.Parameter(HttpMessage.CONTENT_TYPE, "text/xml"));
+            if (state != null) state.addConditions(request);
+            HttpResponseMessage response = PooledHttpClient.getDefault().execute(request, null);
+
+            processMembershipsResponse(response, site, oauth_consumer_key, state);
+        } catch (LTIException ltie) {
+            throw ltie;
         } catch (Exception e) {
-            e.printStackTrace();
+            throw new LTIException(MEMBERSHIPS_FAIL, e.getMessage(), e);
         }
     }
 
-    private void processMembershipsResponse(HttpURLConnection connection, Site site, String oauth_consumer_key) throws Exception {
+    /**
+     * The POX request, written straight into the bytes that are hashed and sent
+     */
+    private static byte[] writeMembershipsRequest(String type, String uuid, String membershipsId) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new OutputStreamWriter(bytes, UTF_8);
+        try {
+            XMLMapWriter writer = new XMLMapWriter(out, false);
+            writer.startDocument();
+            writer.startElement("imsx_POXEnvelope");
+            writer.namespace(IMSPOXRequest.NAMESPACE);
+            writer.startElement("imsx_POXHeader");
+            writer.startElement("imsx_POXRequestHeaderInfo");
+            writer.element("imsx_version", "V1.0");
+            writer.element("imsx_messageIdentifier", uuid);
+            writer.endElement();
+            writer.endElement();
+            writer.startElement("imsx_POXBody");
+            writer.startElement(type + "Request");
+            writer.element("sourcedId", membershipsId);
+            writer.endDocument();
+        } catch (XMLStreamException e) {
+            throw XMLMapWriter.ioException(e);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void processMembershipsResponse(HttpResponseMessage response, Site site, String oauth_consumer_key, RosterState state) throws Exception {
 
         M_log.debug("processMembershipsResponse");
 
-        BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        POXMembershipsResponse poxMembershipsResponse = new POXMembershipsResponse(br);
+        int status = response.getStatusCode();
+        if (status == STATUS_NOT_MODIFIED && state != null && state.digest != null) {
+            if (M_log.isDebugEnabled()) M_log.debug("Memberships for site " + site.getId() + " not modified");
+            state.unchanged = true;
+            return;
+        }
+        if (status != HttpResponseMessage.STATUS_OK) {
+            throw new LTIException(MEMBERSHIPS_FAIL, "Memberships request to " + response.url + " returned status " + status, null);
+        }
+
+        InputStream body = response.getBody();
+        if (body == null) {
+            throw new LTIException(MEMBERSHIPS_FAIL, "Memberships request to " + response.url + " returned no body", null);
+        }
 
-        connection.disconnect();
+        String contentType = response.getHeader(HttpMessage.CONTENT_TYPE);
+        String charset = contentType != null && contentType.indexOf("charset") >= 0 ? response.getContentCharset() : "UTF-8";
+        BufferedReader br = new BufferedReader(new InputStreamReader(body, charset));
+        POXMembershipsResponse poxMembershipsResponse = new POXMembershipsResponse(br);
+        br.close();
 
         List<POXMembershipsResponse.Member> members = poxMembershipsResponse.getMembers();
 
         Map<String,List<POXMembershipsResponse.Member>> consumerGroups = poxMembershipsResponse.getGroups();
 
+        if (state != null) {
+            state.newDigest = rosterDigest(members, consumerGroups, oauth_consumer_key);
+            state.newEtag = response.getHeader("ETag");
+            state.newLastModified = response.getHeader("Last-Modified");
+            if (state.newDigest.equals(state.digest)) {
+                if (M_log.isDebugEnabled()) M_log.debug("Memberships for site " + site.getId() + " unchanged");
+                state.unchanged = true;
+                recordRoster(site.getId(), state);
+                return;
+            }
+        }
+
         if (M_log.isDebugEnabled()) {
             for (POXMembershipsResponse.Member member : members) {
                 M_log.debug("Member:");
@@ -265,6 +390,7 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
         }
 
         Collection sakaiGroups = site.getGroups();
+        List<String> failedGroups = new ArrayList<String>();
 
         for (String consumerGroupTitle : consumerGroups.keySet()) {
             M_log.debug("Processing consumer group '" + consumerGroupTitle + "' ...");
@@ -301,9 +427,63 @@ public class SiteMembershipsSynchroniserImpl implements SiteMembershipsSynchroni
                 M_log.info("Updated  site=" + site.getId() + " group=" + consumerGroupTitle);
             } catch (Exception e) {
                 M_log.error("Failed to add group '" + consumerGroupTitle + "' to site", e);
+                failedGroups.add(consumerGroupTitle);
             } finally {
                 popAdvisor();
             }
         }
+
+        // Leave the old digest so the next run applies the roster again
+        if (failedGroups.size() > 0) {
+            throw new LTIException(MEMBERSHIPS_FAIL, "Failed to save groups " + failedGroups + " in site " + site.getId(), null);
+        }
+
+        if (state != null) recordRoster(site.getId(), state);
+    }
+
+    /**
+     * A digest of everything in a roster that is applied to the site. The
+     * POX envelope carries message ids that change on every call so the
+     * response bytes cannot be used for this.
+     */
+    private static String rosterDigest(List<POXMembershipsResponse.Member> members,
+            Map<String,List<POXMembershipsResponse.Member>> groups, String oauth_consumer_key) {
+
+        MessageDigest md = DigestUtil.getDigest(DigestUtil.SHA256);
+        addField(md, oauth_consumer_key);
+        for (POXMembershipsResponse.Member member : members) {
+            DigestUtil.update(md, "\nmember");
+            addField(md, member.userId);
+            addField(md, member.firstName);
+            addField(md, member.lastName);
+            addField(md, member.email);
+            addField(md, member.role);
+        }
+        // The groups come back in a HashMap
+        for (Map.Entry<String,List<POXMembershipsResponse.Member>> group : new TreeMap<String,List<POXMembershipsResponse.Member>>(groups).entrySet()) {
+            DigestUtil.update(md, "\ngroup");
+            addField(md, group.getKey());
+            for (POXMembershipsResponse.Member member : group.getValue()) {
+                addField(md, member.userId);
+                addField(md, member.role);
+            }
+        }
+        return DigestUtil.hex(md.digest());
+    }
+
+    private static void addField(MessageDigest md, String value) {
+        DigestUtil.update(md, "\0");
+        if (value != null) DigestUtil.update(md, value);
+    }
+
+    private void recordRoster(String siteId, RosterState state) {
+
+        if (ltiService == null) return;
+        if (state.unchanged && same(state.etag, state.newEtag) && same(state.lastModified, state.newLastModified)) return;
+        ltiService.updateMembershipsJobRoster(siteId, state.newDigest, state.newEtag, state.newLastModified);
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 }
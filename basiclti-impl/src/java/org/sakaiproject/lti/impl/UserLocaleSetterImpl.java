@@ -38,6 +38,8 @@ public class UserLocaleSetterImpl implements UserLocaleSetter {
 
 	private static Log M_log = LogFactory.getLog(UserFinderOrCreatorImpl.class);
 
+    private static final String RESOURCELOADER_PREFS = "sakai:resourceloader";
+
     private PreferencesService preferencesService = null;
     public void setPreferencesService(PreferencesService  preferencesService) {
         this.preferencesService = preferencesService;
@@ -51,6 +53,12 @@ public class UserLocaleSetterImpl implements UserLocaleSetter {
         String locale = (String) payload.get(BasicLTIConstants.LAUNCH_PRESENTATION_LOCALE);
         if(locale != null && locale.length() > 0) {
             try {
+                // Most launches carry the locale we already have - don't lock and rewrite the preferences for it
+                Preferences prefs = preferencesService.getPreferences(user.getId());
+                if (prefs != null && locale.equals(prefs.getProperties(RESOURCELOADER_PREFS).getProperty(Preferences.FIELD_LOCALE))) {
+                    return;
+                }
+
                 PreferencesEdit pe = null;
                 try {
                     pe = preferencesService.edit(user.getId());
@@ -58,7 +66,7 @@ public class UserLocaleSetterImpl implements UserLocaleSetter {
                     pe = preferencesService.add(user.getId());
                 }
                 
-                ResourcePropertiesEdit propsEdit = pe.getPropertiesEdit("sakai:resourceloader");
+                ResourcePropertiesEdit propsEdit = pe.getPropertiesEdit(RESOURCELOADER_PREFS);
                 propsEdit.removeProperty(Preferences.FIELD_LOCALE);
                 propsEdit.addProperty(Preferences.FIELD_LOCALE,locale);
                 preferencesService.commit(pe);
@@ -66,8 +66,10 @@ public class UserPictureSetterImpl implements UserPictureSetter {
             try {
                 profileImageLogic.saveOfficialImageUrl(user.getId(), imageUrl);
                 ProfilePreferences prefs = profilePreferencesLogic.getPreferencesRecordForUser(user.getId());
-                prefs.setUseOfficialImage(true);
-                profilePreferencesLogic.savePreferencesRecord(prefs);
+                if (!prefs.isUseOfficialImage()) {
+                    prefs.setUseOfficialImage(true);
+                    profilePreferencesLogic.savePreferencesRecord(prefs);
+                }
             } catch(Exception e) {
                 M_log.error("Failed to setup launcher's Profile2 picture.",e);
             }
@@ -3,9 +3,21 @@ package org.sakaiproject.lti.impl.jobs;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.lti.api.LTIException;
 import org.sakaiproject.lti.api.LTIService;
 import org.sakaiproject.lti.api.SiteMembershipsSynchroniser;
@@ -14,10 +26,23 @@ import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.quartz.StatefulJob;
 
+/**
+ * Synchronises the memberships of every LTI provisioned site.
+ *
+ * Every node in the cluster can run this at the same time. A run claims
+ * batches of due jobs by taking a lease on their rows in
+ * lti_memberships_jobs and works through each batch on a small pool of
+ * threads, running no more than a few jobs at once against any one
+ * consumer host. The lease is renewed as each job starts so a site is
+ * never synchronised by two threads or nodes at once, and a node that
+ * dies only holds its jobs until the lease runs out.
+ */
 public class SiteMembershipsSyncJob implements StatefulJob {
-	
+
 	private static Log M_log = LogFactory.getLog(SiteMembershipsSyncJob.class);
-	
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
     private LTIService ltiService = null;
     public void setLtiService(LTIService ltiService) {
         this.ltiService = ltiService;
@@ -28,25 +53,147 @@ public class SiteMembershipsSyncJob implements StatefulJob {
         this.siteMembershipsSynchroniser = siteMembershipsSynchroniser;
     }
 
+    private ServerConfigurationService serverConfigurationService = null;
+    public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
+        this.serverConfigurationService = serverConfigurationService;
+    }
+
 	public void execute(JobExecutionContext context) throws JobExecutionException {
 
         M_log.info("SiteMembershipsSyncJob.execute");
 
-        // Get the current list of jobs
-        List<Map<String, Object>> jobs = ltiService.getMembershipsJobs();
+        int threads = Math.max(1, getInt("basiclti.memberships.sync.threads", 4));
+        int perHost = Math.max(1, getInt("basiclti.memberships.sync.perhost", 2));
+        int batchSize = Math.max(1, getInt("basiclti.memberships.sync.batch", threads * 10));
+        int leaseSeconds = Math.max(60, getInt("basiclti.memberships.sync.lease", 1800));
+        // By default every job runs once per scheduled run, as it always has
+        int intervalSeconds = Math.max(0, getInt("basiclti.memberships.sync.interval", 0));
 
-        for (Map<String, Object> job : jobs) {
-            String siteId = (String) job.get("SITE_ID");
-            String membershipsId = (String) job.get("memberships_id");
-            String membershipsUrl = (String) job.get("memberships_url");
-            String consumerKey = (String) job.get("consumerkey");
-            String ltiVersion = (String) job.get("lti_version");
-
-            try {
-                siteMembershipsSynchroniser.synchroniseSiteMemberships(siteId, membershipsId, membershipsUrl, consumerKey, ltiVersion);
-            } catch (LTIException ltie) {
-                M_log.error("Failed to synchronise memberships for site '" + siteId + "'.", ltie);
+        long startedAt = System.currentTimeMillis() / 1000;
+        String owner = getOwner();
+        Counts counts = new Counts();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lti-memberships-sync-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
             }
+        });
+
+        try {
+            while (true) {
+                List<Map<String, Object>> jobs = ltiService.claimMembershipsJobs(owner, startedAt, batchSize, leaseSeconds);
+                if (jobs == null || jobs.size() < 1) break;
+                if (M_log.isDebugEnabled()) M_log.debug("Claimed " + jobs.size() + " memberships jobs as " + owner);
+                runBatch(pool, jobs, owner, perHost, leaseSeconds, intervalSeconds, counts);
+            }
+        } catch (InterruptedException ie) {
+            M_log.warn("SiteMembershipsSyncJob interrupted - unfinished jobs will be picked up when their leases run out.");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
         }
+
+        M_log.info("SiteMembershipsSyncJob finished synced=" + counts.synced + " unchanged=" + counts.unchanged + " failed=" + counts.failed
+                + " lost=" + counts.lost + " seconds=" + (System.currentTimeMillis() / 1000 - startedAt));
 	}
+
+    /**
+     * Run one batch to completion. The jobs are queued by consumer host
+     * and each host gets at most perHost workers draining its queue, so a
+     * slow consumer can hold up only its own share of the pool.
+     */
+    private void runBatch(ExecutorService pool, List<Map<String, Object>> jobs, final String owner, int perHost,
+            final int leaseSeconds, final int intervalSeconds, final Counts counts) throws InterruptedException {
+
+        Map<String, Queue<Map<String, Object>>> byHost = new LinkedHashMap<String, Queue<Map<String, Object>>>();
+        for (Map<String, Object> job : jobs) {
+            String host = getHost((String) job.get("memberships_url"));
+            Queue<Map<String, Object>> queue = byHost.get(host);
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<Map<String, Object>>();
+                byHost.put(host, queue);
+            }
+            queue.add(job);
+        }
+
+        List<Callable<Object>> workers = new ArrayList<Callable<Object>>();
+        for (final Queue<Map<String, Object>> queue : byHost.values()) {
+            int count = Math.min(perHost, queue.size());
+            for (int i = 0; i < count; i++) {
+                workers.add(new Callable<Object>() {
+                    public Object call() {
+                        Map<String, Object> job;
+                        while ((job = queue.poll()) != null) {
+                            synchronise(job, owner, leaseSeconds, intervalSeconds, counts);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+
+        // Jobs that never got started keep their lease until it runs out
+        pool.invokeAll(workers);
+    }
+
+    private void synchronise(Map<String, Object> job, String owner, int leaseSeconds, int intervalSeconds, Counts counts) {
+
+        String siteId = (String) job.get("SITE_ID");
+
+        // The batch may have waited behind a slow host - make sure the job is still ours
+        if (!ltiService.renewMembershipsJobLease(siteId, owner, leaseSeconds)) {
+            M_log.warn("Lost the lease on the memberships job for site '" + siteId + "' before it started.");
+            counts.lost.incrementAndGet();
+            return;
+        }
+
+        try {
+            if (siteMembershipsSynchroniser.synchroniseSiteMemberships(job)) {
+                counts.synced.incrementAndGet();
+            } else {
+                counts.unchanged.incrementAndGet();
+            }
+        } catch (LTIException ltie) {
+            M_log.error("Failed to synchronise memberships for site '" + siteId + "'.", ltie);
+            counts.failed.incrementAndGet();
+        } catch (RuntimeException re) {
+            M_log.error("Failed to synchronise memberships for site '" + siteId + "'.", re);
+            counts.failed.incrementAndGet();
+        } finally {
+            if (!ltiService.releaseMembershipsJob(siteId, owner, intervalSeconds)) {
+                M_log.warn("The lease on the memberships job for site '" + siteId + "' ran out while it was running.");
+            }
+        }
+    }
+
+    // Unique to this run so a lease left over from an earlier run is never mistaken for ours
+    private String getOwner() {
+        String serverId = serverConfigurationService == null ? null : serverConfigurationService.getServerId();
+        String owner = (serverId == null ? "" : serverId + "/") + UUID.randomUUID().toString();
+        return owner.length() > 99 ? owner.substring(owner.length() - 99) : owner;
+    }
+
+    private int getInt(String name, int dflt) {
+        if (serverConfigurationService == null) return dflt;
+        return serverConfigurationService.getInt(name, dflt);
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = new URI(url).getHost();
+            if (host != null) return host.toLowerCase();
+        } catch (Exception e) {
+            // Fall through - the synchroniser will report the bad url
+        }
+        return "";
+    }
+
+    private static class Counts {
+        final AtomicInteger synced = new AtomicInteger();
+        final AtomicInteger unchanged = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger lost = new AtomicInteger();
+    }
 }
@@ -30,6 +30,7 @@ import java.util.logging.Logger;
 
 import java.lang.Number;
 import java.sql.ResultSetMetaData;
+import java.sql.Types;
 
 /**
  * 
@@ -631,7 +632,7 @@ public class Foorm {
 
 		if ("key".equals(type))
 			return formInputKey(value, field);
-		if ("integer".equals(type))
+		if ("integer".equals(type) || "long".equals(type))
 			return formInputInteger(value, field, label, required, size, loader);
 		if ("text".equals(type))
 			return formInputText((String) value, field, label, required, size, loader);
@@ -932,7 +933,7 @@ public class Foorm {
 			return ""; // Key will be handled by the caller
 		if ("autodate".equals(type))
 			return "";
-		if ("integer".equals(type))
+		if ("integer".equals(type) || "long".equals(type))
 			return formOutputInteger(getLongNull(value), field, label, loader);
 		if ("text".equals(type))
 			return formOutputText((String) value, field, label, loader);
@@ -1082,6 +1083,28 @@ public class Foorm {
 				}
 			}
 
+			if ("long".equals(type)) {
+				if (dataField == null) {
+					if (dataMap != null)
+						dataMap.put(field, null);
+				} else if (dataField instanceof Number) {
+					if (dataMap != null)
+						dataMap.put(field, ((Number) dataField).longValue());
+				} else {
+					try {
+						Long lval = new Long(sdf);
+						if (dataMap != null)
+							dataMap.put(field, lval);
+					} catch (Exception e) {
+						if (sb.length() > 0)
+							sb.append(", ");
+						error = getI18N("foorm.integer.field", "Field should be an integer:", loader) + " " + getI18N(label, loader);
+						sb.append(error);
+						if ( errors != null ) errors.put(label, error);
+					}
+				}
+			}
+
 			if ("id".equals(type)) {
 				if (sdf == null) {
 					if (dataMap != null)
@@ -1389,6 +1412,12 @@ public class Foorm {
 			} else {
 				schema = "INT";
 			}
+		} else if ("long".equals(type)) {
+			if ("oracle".equals(vendor)) {
+				schema = "NUMBER(19)";
+			} else {
+				schema = "BIGINT";
+			}
 		} else if ("url".equals(type) || "text".equals(type) || "textarea".equals(type)) {
 			if ("oracle".equals(vendor)) {
 				if (maxlength < 4000) {
@@ -1423,6 +1452,25 @@ public class Foorm {
 		return "    " + field + " " + schema;
 	}
 
+	/**
+	 * The java.sql.Types value used to bind a null into a model's column
+	 * 
+	 * @return Types.VARCHAR if the column is not in the model
+	 */
+	public int formSqlType(String[] formDefinition, String fieldName) {
+		String formField = getFormField(formDefinition, fieldName);
+		if (formField == null)
+			return Types.VARCHAR;
+		String type = parseFormString(formField).getProperty("type", null);
+		if ("key".equals(type) || "integer".equals(type) || "radio".equals(type) || "checkbox".equals(type))
+			return Types.INTEGER;
+		if ("long".equals(type))
+			return Types.BIGINT;
+		if ("autodate".equals(type))
+			return Types.TIMESTAMP;
+		return Types.VARCHAR;
+	}
+
 	public String getFormField(String [] formDefinition, String fieldName)
 	{
 		for (String formField : formDefinition) {
@@ -1455,6 +1503,7 @@ public class Foorm {
 			if (maxlength < 1) maxlength = 80;
 
 			String sqlType = null;
+			String sqlClass = null;
 			boolean autoIncrement = false;
 			int sqlLength = -1;
 			boolean isNullable = false;			
@@ -1464,7 +1513,8 @@ public class Foorm {
 					if ( field.equalsIgnoreCase(md.getColumnLabel(i)) ) {
 						sqlLength = md.getColumnDisplaySize(i);
 						autoIncrement = md.isAutoIncrement(i);
-						sqlType = getSuperType(md.getColumnClassName(i));
+						sqlClass = md.getColumnClassName(i);
+						sqlType = getSuperType(sqlClass);
 						isNullable = (md.isNullable(i) == ResultSetMetaData.columnNullable);
 						break;
 					}
@@ -1505,6 +1555,13 @@ public class Foorm {
 			} else if ("radio".equals(type) || "checkbox".equals(type) || "integer".equals(type) ) {
 				if ( NUMBER_TYPE.equals(sqlType)) continue;
 				logger.severe(field+" must be Integer field");
+			} else if ("long".equals(type)) {
+				if ( ! NUMBER_TYPE.equals(sqlType)) {
+					logger.severe(field+" must be Long field");
+					continue;
+				}
+				// Widen a column that started out as an integer
+				if ( "java.lang.Integer".equals(sqlClass) || "java.lang.Short".equals(sqlClass) ) shouldAlter = true;
 			}
 
 			if ( shouldAlter ) {
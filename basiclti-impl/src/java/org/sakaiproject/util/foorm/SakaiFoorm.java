@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -16,11 +17,25 @@ import java.sql.Statement;
 import org.sakaiproject.util.ResourceLoader;
 import org.sakaiproject.util.FormattedText;
 import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.basiclti.util.PortableShaUtil;
 
 import org.apache.commons.logging.Log;
 
 public class SakaiFoorm extends Foorm {
 
+	/** The table that records the model hash last applied to each table */
+	public static final String LEDGER_TABLE = "lti_schema_ledger";
+
+	static String[] LEDGER_MODEL = {
+		"table_name:text:maxlength=99:required=true",
+		"model_hash:text:maxlength=64:required=true",
+		"updated_at:autodate" };
+
+	// Foorm keys are always auto-increment integers so the ledger's key is added by hand.
+	// It stops two nodes starting together from recording the same table twice.
+	static final String LEDGER_PRIMARY_KEY = "ALTER TABLE " + LEDGER_TABLE +
+		" ADD CONSTRAINT " + LEDGER_TABLE + "_pk PRIMARY KEY ( table_name )";
+
 	// Abstract to be overridden
 	@Override
 		public String htmlSpecialChars(String str)
@@ -41,7 +56,104 @@ public class SakaiFoorm extends Foorm {
 			return super.loadI18N(str, loader);
 		}
 
+	/**
+	 * Compute the hash of a model as it would be applied for a particular vendor
+	 */
+	public String modelHash(String table, String[] model, String vendor)
+	{
+		StringBuffer sb = new StringBuffer();
+		sb.append(vendor).append('\n').append(table).append('\n');
+		for (String line : model) {
+			sb.append(line).append('\n');
+		}
+		return PortableShaUtil.sha256Hash(sb.toString());
+	}
+
+	/**
+	 * Load the schema ledger in a single query, creating the ledger table if needed
+	 *
+	 * @return A map from table name to model hash - empty if the ledger is
+	 * not there or could not be read
+	 */
+	public Map<String, String> loadSchemaLedger(SqlService m_sql, boolean m_autoDdl, Log M_log)
+	{
+		Map<String, String> ledger = new HashMap<String, String>();
+		String query = "SELECT table_name, model_hash FROM " + LEDGER_TABLE;
+		Connection conn = null;
+		boolean failed = false;
+		try {
+			conn = m_sql.borrowConnection();
+			Statement st = conn.createStatement();
+			ResultSet rs = st.executeQuery(query);
+			while ( rs.next() ) {
+				ledger.put(rs.getString(1), rs.getString(2));
+			}
+			rs.close();
+			st.close();
+		} catch (SQLException e) {
+			failed = true;
+		} finally {
+			if ( conn != null ) m_sql.returnConnection(conn);
+		}
+
+		if ( failed ) { // table must not exist
+			String[] sqls = formSqlTable(LEDGER_TABLE, LEDGER_MODEL, m_sql.getVendor(), false);
+			sqls = Arrays.copyOf(sqls, sqls.length + 1);
+			sqls[sqls.length - 1] = LEDGER_PRIMARY_KEY;
+			runDDL(sqls, m_sql, m_autoDdl, M_log);
+		}
+		return ledger;
+	}
+
+	/**
+	 * Record the model hash for a table in the schema ledger
+	 */
+	public boolean storeSchemaLedger(String table, String hash, SqlService m_sql)
+	{
+		java.sql.Timestamp now = new java.sql.Timestamp(new Date().getTime());
+		Object [] fields = new Object[] { hash, now, table };
+		int count = m_sql.dbWriteCount("UPDATE " + LEDGER_TABLE + 
+			" SET model_hash = ?, updated_at = ? WHERE table_name = ?", fields, null, null, false);
+		if ( count > 0 ) return true;
+		Object [] insert = new Object[] { table, hash, now };
+		if ( m_sql.dbWriteFailQuiet(null, "INSERT INTO " + LEDGER_TABLE + 
+			" ( table_name, model_hash, updated_at ) VALUES ( ?, ?, ? )", insert) ) return true;
+		// Another node inserted the row first - the primary key kept it to one
+		return m_sql.dbWriteCount("UPDATE " + LEDGER_TABLE + 
+			" SET model_hash = ?, updated_at = ? WHERE table_name = ?", fields, null, null, false) > 0;
+	}
+
+	/**
+	 * Reconcile a table with its model only if the model has changed since the
+	 * last successful reconcile recorded in the schema ledger.
+	 *
+	 * @param ledger The ledger as returned by loadSchemaLedger
+	 */
 	public void autoDDL(String table, String[] model, SqlService m_sql, boolean m_autoDdl, 
+				boolean doReset, Log M_log, Map<String, String> ledger)
+	{
+		String hash = modelHash(table, model, m_sql.getVendor());
+		if ( ! doReset && ledger != null && hash.equals(ledger.get(table)) ) {
+			M_log.debug("Schema unchanged for "+table);
+			return;
+		}
+
+		boolean success = autoDDL(table, model, m_sql, m_autoDdl, doReset, M_log);
+		if ( success && m_autoDdl && ledger != null ) {
+			if ( storeSchemaLedger(table, hash, m_sql) ) {
+				ledger.put(table, hash);
+			} else {
+				M_log.warn("Could not record schema ledger for "+table);
+			}
+		}
+	}
+
+	/**
+	 * Reconcile a table with its model
+	 *
+	 * @return true if the table matches the model when we are done
+	 */
+	public boolean autoDDL(String table, String[] model, SqlService m_sql, boolean m_autoDdl, 
 				boolean doReset, Log M_log)
 	{
 		// Use very carefully - for testing table creation
@@ -72,6 +184,17 @@ public class SakaiFoorm extends Foorm {
 			}
 
 		}
+		return runDDL(sqls, m_sql, m_autoDdl, M_log);
+	}
+
+	/**
+	 * Run schema statements, or just log them when autoDdl is off
+	 *
+	 * @return true if every statement was run successfully
+	 */
+	boolean runDDL(String[] sqls, SqlService m_sql, boolean m_autoDdl, Log M_log)
+	{
+		boolean success = true;
 		for (String sql : sqls) { 
 			M_log.debug(sql);  
 			if ( m_autoDdl ) {
@@ -84,11 +207,14 @@ public class SakaiFoorm extends Foorm {
 					}
 				} else {
 					M_log.error("SQL Failure:\n"+sql);
+					success = false;
 				}
 			} else {
 				M_log.error("SQL Needed:\n"+sql);
+				success = false;
 			}
 		}
+		return success;
 	}
 
 }
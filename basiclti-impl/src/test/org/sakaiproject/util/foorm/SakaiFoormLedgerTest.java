@@ -0,0 +1,209 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.util.foorm;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.sakaiproject.db.api.SqlService;
+
+/*
+ * Runs the schema ledger against an in-memory hsqldb behind just enough of
+ * a SqlService to satisfy SakaiFoorm.
+ */
+public class SakaiFoormLedgerTest {
+
+	private static Log M_log = LogFactory.getLog(SakaiFoormLedgerTest.class);
+
+	private static int databases = 0;
+
+	// No key - formSqlTable gives hsqldb two primary keys for one
+	static String [] test_model = {
+		"title:text:maxlength=80",
+		"created_at:autodate"
+	};
+
+	static String [] test_model_2 = {
+		"title:text:maxlength=80",
+		"stuff:text:maxlength=80",
+		"created_at:autodate"
+	};
+
+	static String [] int_model = {
+		"title:text:maxlength=80",
+		"stamp:integer"
+	};
+
+	static String [] long_model = {
+		"title:text:maxlength=80",
+		"stamp:long"
+	};
+
+	Connection conn = null;
+	SqlService m_sql = null;
+	SakaiFoorm foorm = new SakaiFoorm();
+
+	// Every statement SakaiFoorm ran and every time it borrowed a connection
+	List<String> executed = new ArrayList<String>();
+	int borrowed = 0;
+
+	@Before
+	public void setUp() throws Exception {
+		Class.forName("org.hsqldb.jdbcDriver");
+		conn = DriverManager.getConnection("jdbc:hsqldb:mem:ledger" + (databases++), "sa", "");
+		m_sql = (SqlService) Proxy.newProxyInstance(SqlService.class.getClassLoader(),
+			new Class[] { SqlService.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if ( "getVendor".equals(name) ) return "hsqldb";
+					if ( "borrowConnection".equals(name) ) {
+						borrowed++;
+						return conn;
+					}
+					if ( "returnConnection".equals(name) ) return null;
+					if ( "dbWriteFailQuiet".equals(name) ) return write((String) args[1], (Object[]) args[2]) >= 0;
+					if ( "dbWrite".equals(name) ) return write((String) args[0], (Object[]) args[1]) >= 0;
+					if ( "dbWriteCount".equals(name) ) return write((String) args[0], (Object[]) args[1]);
+					throw new UnsupportedOperationException(name);
+				}
+			});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Statement st = conn.createStatement();
+		st.execute("SHUTDOWN");
+		st.close();
+		conn.close();
+	}
+
+	// Returns the update count or -1 on failure like the real SqlService
+	int write(String sql, Object[] fields) {
+		executed.add(sql);
+		try {
+			PreparedStatement st = conn.prepareStatement(sql);
+			for (int i = 0; fields != null && i < fields.length; i++) {
+				st.setObject(i + 1, fields[i]);
+			}
+			int count = st.executeUpdate();
+			st.close();
+			return count;
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	@Test
+	public void testAppliedMigrationIsSkipped() {
+		Map<String, String> ledger = foorm.loadSchemaLedger(m_sql, true, M_log);
+		assertTrue("new ledger should be empty", ledger.isEmpty());
+		foorm.autoDDL("lti_ledger_test", test_model, m_sql, true, false, M_log, ledger);
+		assertTrue("table should be created", executed.toString().contains("CREATE TABLE lti_ledger_test"));
+
+		// Next start up
+		ledger = foorm.loadSchemaLedger(m_sql, true, M_log);
+		assertEquals(foorm.modelHash("lti_ledger_test", test_model, "hsqldb"), ledger.get("lti_ledger_test"));
+		executed.clear();
+		borrowed = 0;
+		foorm.autoDDL("lti_ledger_test", test_model, m_sql, true, false, M_log, ledger);
+		assertEquals("unchanged model should not touch the database", 0, borrowed);
+		assertTrue("unchanged model should run nothing", executed.isEmpty());
+	}
+
+	@Test
+	public void testChangedModelIsApplied() {
+		Map<String, String> ledger = foorm.loadSchemaLedger(m_sql, true, M_log);
+		foorm.autoDDL("lti_ledger_test", test_model, m_sql, true, false, M_log, ledger);
+
+		ledger = foorm.loadSchemaLedger(m_sql, true, M_log);
+		executed.clear();
+		foorm.autoDDL("lti_ledger_test", test_model_2, m_sql, true, false, M_log, ledger);
+		assertTrue("new column should be added", executed.toString().contains("ADD COLUMN     stuff"));
+		ledger = foorm.loadSchemaLedger(m_sql, true, M_log);
+		assertEquals(foorm.modelHash("lti_ledger_test", test_model_2, "hsqldb"), ledger.get("lti_ledger_test"));
+	}
+
+	@Test
+	public void testIntegerWidenedToLong() throws SQLException {
+		Map<String, String> ledger = foorm.loadSchemaLedger(m_sql, true, M_log);
+		foorm.autoDDL("lti_ledger_test", int_model, m_sql, true, false, M_log, ledger);
+
+		ledger = foorm.loadSchemaLedger(m_sql, true, M_log);
+		executed.clear();
+		foorm.autoDDL("lti_ledger_test", long_model, m_sql, true, false, M_log, ledger);
+		assertTrue("column should be widened", executed.toString().contains("stamp BIGINT"));
+
+		// Epoch seconds after 2038
+		long stamp = 3000000000L;
+		assertEquals(1, write("INSERT INTO lti_ledger_test ( title, stamp ) VALUES ( ?, ? )",
+			new Object[] { "later", new Long(stamp) }));
+		Statement st = conn.createStatement();
+		try {
+			ResultSet rs = st.executeQuery("SELECT stamp FROM lti_ledger_test");
+			assertTrue(rs.next());
+			assertEquals(stamp, rs.getLong(1));
+		} finally {
+			st.close();
+		}
+	}
+
+	@Test
+	public void testLedgerHoldsOneRowPerTable() throws SQLException {
+		foorm.loadSchemaLedger(m_sql, true, M_log);
+		assertTrue(foorm.storeSchemaLedger("lti_ledger_test", "first", m_sql));
+		assertTrue(foorm.storeSchemaLedger("lti_ledger_test", "second", m_sql));
+		assertEquals("second", foorm.loadSchemaLedger(m_sql, true, M_log).get("lti_ledger_test"));
+
+		// What a second node starting at the same moment would try
+		Statement st = conn.createStatement();
+		try {
+			st.executeUpdate("INSERT INTO " + SakaiFoorm.LEDGER_TABLE +
+				" ( table_name, model_hash, updated_at ) VALUES ( 'lti_ledger_test', 'third', CURRENT_TIMESTAMP )");
+			fail("primary key should reject a second row for the same table");
+		} catch (SQLException e) {
+			// expected
+		} finally {
+			st.close();
+		}
+	}
+}
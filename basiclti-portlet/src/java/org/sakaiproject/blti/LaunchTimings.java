@@ -0,0 +1,306 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.blti;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Times the stages of one provider launch and each BLTIProcessor run
+ * during it.  Every time goes into a histogram kept per consumer key and
+ * stage, and a launch taking longer than basiclti.provider.timing.slow
+ * milliseconds has its whole trace logged so the stage that dominates can
+ * be seen.
+ * <pre>
+ *    LaunchTimings timings = LaunchTimings.start(oauth_consumer_key);
+ *    validate(...);
+ *    timings.stage("validate");
+ *    timings.validated();
+ *    ...
+ *    timings.finish(true);
+ * </pre>
+ * The histograms are logged every basiclti.provider.timing.report launches
+ * and can be read with getHistograms.  Times are held back until validated
+ * is called, so a made up consumer key never gets a histogram of its own -
+ * a launch that fails before then is counted under "other".  Only the
+ * first basiclti.provider.timing.maxkeys valid keys are kept apart.
+ * <p>
+ * The statics are thread safe, a LaunchTimings belongs to one request.
+ */
+public class LaunchTimings {
+
+	private static Log M_log = LogFactory.getLog(LaunchTimings.class);
+
+	public static final String TOTAL = "total";
+	public static final String OTHER_KEY = "other";
+
+	// Upper bounds in milliseconds, the last bucket takes everything above
+	private static final long[] BOUNDS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private static final ConcurrentMap<String, Boolean> consumerKeys = new ConcurrentHashMap<String, Boolean>();
+	private static final AtomicLong launches = new AtomicLong();
+
+	/** Records nothing - for callers that have no launch to time */
+	public static final LaunchTimings NONE = new LaunchTimings(OTHER_KEY, false);
+
+	// The launch this thread is running, between start and finish
+	private static final ThreadLocal<LaunchTimings> CURRENT = new ThreadLocal<LaunchTimings>();
+
+	// The key from the request, and the one times go under once validated
+	private final String requestedKey;
+	private String consumerKey = OTHER_KEY;
+	private boolean tagged = false;
+	private final boolean enabled;
+	// Times recorded before the launch was validated
+	private final List<String> pendingNames = new ArrayList<String>();
+	private final List<Long> pendingNanos = new ArrayList<Long>();
+	private final long started;
+	private long mark;
+	// Stage names and their times in order, for the slow launch trace
+	private final List<String> trace;
+
+	private LaunchTimings(String consumerKey, boolean enabled)
+	{
+		this.requestedKey = consumerKey;
+		this.enabled = enabled;
+		this.started = System.nanoTime();
+		this.mark = started;
+		this.trace = new ArrayList<String>();
+	}
+
+	/**
+	 * Start timing a launch.  When basiclti.provider.timing is false the
+	 * LaunchTimings returned records nothing.
+	 */
+	public static LaunchTimings start(String consumerKey)
+	{
+		LaunchTimings timings;
+		if ( ! ServerConfigurationService.getBoolean("basiclti.provider.timing", true) ) {
+			timings = new LaunchTimings(OTHER_KEY, false);
+		} else {
+			timings = new LaunchTimings(consumerKey, true);
+		}
+		CURRENT.set(timings);
+		return timings;
+	}
+
+	/**
+	 * The launch this thread started and has not finished, or NONE
+	 */
+	public static LaunchTimings current()
+	{
+		LaunchTimings timings = CURRENT.get();
+		return timings == null ? NONE : timings;
+	}
+
+	/**
+	 * Record the time since the last stage (or the start)
+	 */
+	public void stage(String name)
+	{
+		if ( ! enabled ) return;
+		long now = System.nanoTime();
+		record(name, now - mark);
+		mark = now;
+	}
+
+	/**
+	 * Call once the launch has passed validation - the times so far and
+	 * from now on go under its consumer key
+	 */
+	public void validated()
+	{
+		if ( ! enabled || tagged ) return;
+		useKey(tag(requestedKey));
+	}
+
+	private void useKey(String key)
+	{
+		consumerKey = key;
+		tagged = true;
+		for (int i = 0; i < pendingNames.size(); i++) {
+			add(pendingNames.get(i), pendingNanos.get(i).longValue());
+		}
+		pendingNames.clear();
+		pendingNanos.clear();
+	}
+
+	/**
+	 * Record one processor run that began at start (from System.nanoTime).
+	 * The time also counts towards the next stage.
+	 */
+	public void processor(String state, Object processor, long start)
+	{
+		if ( ! enabled ) return;
+		record("processor." + state + "." + processor.getClass().getSimpleName(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Record the whole launch and log the trace if it was slow
+	 *
+	 * @param success false when the launch ended in an error page
+	 */
+	public void finish(boolean success)
+	{
+		if ( CURRENT.get() == this ) CURRENT.remove();
+		if ( ! enabled ) return;
+		if ( ! tagged ) useKey(OTHER_KEY);
+		long elapsed = System.nanoTime() - started;
+		record(success ? TOTAL : TOTAL + ".failed", elapsed);
+		long slow = ServerConfigurationService.getInt("basiclti.provider.timing.slow", 2000);
+		if ( slow > 0 && elapsed / 1000000L >= slow ) {
+			StringBuilder sb = new StringBuilder("Slow LTI launch consumer=");
+			sb.append(consumerKey).append(" total=").append(elapsed / 1000000L).append("ms");
+			if ( ! success ) sb.append(" failed");
+			for (String item : trace) {
+				sb.append(' ').append(item);
+			}
+			M_log.warn(sb.toString());
+		}
+		long report = ServerConfigurationService.getInt("basiclti.provider.timing.report", 1000);
+		if ( report > 0 && launches.incrementAndGet() % report == 0 ) logHistograms();
+	}
+
+	private void record(String name, long nanos)
+	{
+		trace.add(name + "=" + (nanos / 1000000L) + "ms");
+		if ( tagged ) {
+			add(name, nanos);
+		} else {
+			pendingNames.add(name);
+			pendingNanos.add(Long.valueOf(nanos));
+		}
+	}
+
+	private void add(String name, long nanos)
+	{
+		long millis = nanos / 1000000L;
+		String key = consumerKey + "|" + name;
+		Histogram histogram = histograms.get(key);
+		if ( histogram == null ) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(key, created);
+			if ( histogram == null ) histogram = created;
+		}
+		histogram.add(millis);
+	}
+
+	private static String tag(String consumerKey)
+	{
+		if ( consumerKey == null || consumerKey.length() < 1 ) return OTHER_KEY;
+		if ( consumerKeys.containsKey(consumerKey) ) return consumerKey;
+		int max = ServerConfigurationService.getInt("basiclti.provider.timing.maxkeys", 500);
+		// A little over max under a race does no harm
+		if ( consumerKeys.size() >= max ) return OTHER_KEY;
+		consumerKeys.putIfAbsent(consumerKey, Boolean.TRUE);
+		return consumerKey;
+	}
+
+	/**
+	 * The upper bound in milliseconds of each bucket returned by
+	 * getHistograms - the last bucket has no bound
+	 */
+	public static long[] getBounds()
+	{
+		return BOUNDS.clone();
+	}
+
+	/**
+	 * A copy of every histogram keyed by "consumer key|stage".  Each array
+	 * holds the count in each bucket followed by the total count and the
+	 * sum of the times in milliseconds.
+	 */
+	public static Map<String, long[]> getHistograms()
+	{
+		Map<String, long[]> retval = new TreeMap<String, long[]>();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			retval.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return retval;
+	}
+
+	public static void logHistograms()
+	{
+		if ( ! M_log.isInfoEnabled() ) return;
+		for (Map.Entry<String, long[]> entry : getHistograms().entrySet()) {
+			long[] counts = entry.getValue();
+			long count = counts[BOUNDS.length+1];
+			if ( count < 1 ) continue;
+			long sum = counts[BOUNDS.length+2];
+			M_log.info("LTI launch timing " + entry.getKey() + " count=" + count + " mean=" + (sum / count)
+				+ "ms p50<=" + percentile(counts, 50) + " p95<=" + percentile(counts, 95)
+				+ " p99<=" + percentile(counts, 99));
+		}
+	}
+
+	public static void reset()
+	{
+		histograms.clear();
+		consumerKeys.clear();
+		launches.set(0);
+	}
+
+	// The bucket bound the percentile falls under, as text since the last is open
+	private static String percentile(long[] counts, int percent)
+	{
+		long count = counts[BOUNDS.length+1];
+		long wanted = (count * percent + 99) / 100;
+		long seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += counts[i];
+			if ( seen >= wanted ) return BOUNDS[i] + "ms";
+		}
+		return "inf";
+	}
+
+	private static class Histogram {
+		// One per bound plus the open bucket, then count and sum
+		private final AtomicLongArray values = new AtomicLongArray(BOUNDS.length + 3);
+
+		void add(long millis)
+		{
+			int i = 0;
+			while ( i < BOUNDS.length && millis > BOUNDS[i] ) i++;
+			values.incrementAndGet(i);
+			values.incrementAndGet(BOUNDS.length+1);
+			values.addAndGet(BOUNDS.length+2, millis);
+		}
+
+		long[] snapshot()
+		{
+			long[] retval = new long[values.length()];
+			for (int i = 0; i < retval.length; i++) {
+				retval[i] = values.get(i);
+			}
+			return retval;
+		}
+	}
+}
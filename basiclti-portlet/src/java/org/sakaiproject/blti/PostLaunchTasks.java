@@ -0,0 +1,192 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sakaiproject.blti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sakaiproject.authz.api.SecurityAdvisor;
+import org.sakaiproject.authz.cover.SecurityService;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The parts of a provider launch the user does not need to wait for -
+ * their picture and email preference and the site's title and label.  They are collected while the launch runs and handed to a small
+ * pool of threads once the redirect has been sent, so only finding the
+ * user, site, membership and tool stays on the critical path.
+ * <pre>
+ *    PostLaunchTasks postLaunch = new PostLaunchTasks();
+ *    final Map captured = postLaunch.capture(payload);
+ *    postLaunch.add("setupUserPicture", new Runnable() { ... });
+ *    ...
+ *    response.sendRedirect(url);
+ *    postLaunch.submit();
+ * </pre>
+ * Every task must be safe to run more than once and in any order as a
+ * later launch may overtake it.  There is no user session on the pool's
+ * threads so each task names the security functions it needs and runs
+ * under an advisor that allows just those.
+ * <p>
+ * basiclti.provider.postlaunch.defer=false runs the tasks on the request
+ * thread as before.  A full queue (basiclti.provider.postlaunch.queue) does
+ * the same rather than dropping work.
+ */
+public class PostLaunchTasks {
+
+	private static Log M_log = LogFactory.getLog(PostLaunchTasks.class);
+
+	private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	private static ThreadPoolExecutor executor = null;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<Runnable> tasks = new ArrayList<Runnable>();
+	private final List<String[]> functions = new ArrayList<String[]>();
+
+	public static synchronized void init() {
+		if ( executor != null ) return;
+		if ( ! ServerConfigurationService.getBoolean("basiclti.provider.postlaunch.defer", true) ) return;
+		int threads = Math.max(1, ServerConfigurationService.getInt("basiclti.provider.postlaunch.threads", 2));
+		int queue = Math.max(1, ServerConfigurationService.getInt("basiclti.provider.postlaunch.queue", 1000));
+		executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "lti-post-launch-" + threadNumber.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Stop taking tasks and give the queued ones a few seconds to finish
+	 */
+	public static synchronized void destroy() {
+		if ( executor == null ) return;
+		executor.shutdown();
+		try {
+			if ( ! executor.awaitTermination(10, TimeUnit.SECONDS) ) {
+				M_log.warn("Dropped " + executor.shutdownNow().size() + " post launch tasks on shutdown");
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+	}
+
+	/**
+	 * A copy of the launch parameters for a task to keep.  The OAuth message
+	 * belongs to the request so it is left out.
+	 */
+	public Map capture(Map payload) {
+		Map retval = new HashMap(payload);
+		retval.remove("oauth_message");
+		return retval;
+	}
+
+	/**
+	 * @param functions The security functions the task needs when it runs
+	 * without a user session
+	 */
+	public void add(String name, Runnable task, String... functions) {
+		names.add(name);
+		tasks.add(task);
+		this.functions.add(functions);
+	}
+
+	/**
+	 * Queue everything added so far, in order, as one unit of work
+	 */
+	public void submit() {
+		if ( tasks.isEmpty() ) return;
+		final List<String> names = new ArrayList<String>(this.names);
+		final List<Runnable> tasks = new ArrayList<Runnable>(this.tasks);
+		final List<String[]> functions = new ArrayList<String[]>(this.functions);
+		this.names.clear();
+		this.tasks.clear();
+		this.functions.clear();
+
+		ThreadPoolExecutor executor = PostLaunchTasks.executor;
+		if ( executor == null ) {
+			// On the request thread, which has its own session and cleanup
+			runAll(names, tasks, functions, false);
+			return;
+		}
+		final Thread caller = Thread.currentThread();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					// CallerRunsPolicy runs us on the request thread when the queue is full
+					runAll(names, tasks, functions, Thread.currentThread() != caller);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+			runAll(names, tasks, functions, false);
+		}
+	}
+
+	private static void runAll(List<String> names, List<Runnable> tasks, List<String[]> functions, boolean pooled) {
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				long start = System.currentTimeMillis();
+				boolean advised = pooled && functions.get(i).length > 0;
+				if ( advised ) pushAdvisor(functions.get(i));
+				try {
+					tasks.get(i).run();
+				} catch (RuntimeException e) {
+					M_log.warn("Post launch task " + names.get(i) + " failed", e);
+				} finally {
+					if ( advised ) SecurityService.popAdvisor();
+				}
+				if ( M_log.isDebugEnabled() ) {
+					M_log.debug("Post launch task " + names.get(i) + " took " + (System.currentTimeMillis() - start) + "ms");
+				}
+			}
+		} finally {
+			// Nothing a task left behind may leak into the next one
+			if ( pooled ) ThreadLocalManager.clear();
+		}
+	}
+
+	// Allows only the named functions and leaves everything else to the normal checks
+	private static void pushAdvisor(String[] functions) {
+		final List<String> allowed = Arrays.asList(functions);
+		SecurityService.pushAdvisor(new SecurityAdvisor() {
+			public SecurityAdvice isAllowed(String userId, String function,
+					String reference) {
+				return allowed.contains(function) ? SecurityAdvice.ALLOWED : SecurityAdvice.PASS;
+			}
+		});
+	}
+}
@@ -47,12 +47,15 @@ import org.sakaiproject.authz.cover.SecurityService;
 import org.sakaiproject.lti.api.BLTIProcessor;
 import org.sakaiproject.lti.api.LTIException;
 import org.sakaiproject.lti.api.LTIService;
+import org.sakaiproject.lti.api.ProviderConsumer;
+import org.sakaiproject.lti.api.ProviderConsumerRegistry;
 import org.sakaiproject.lti.api.SiteEmailPreferenceSetter;
 import org.sakaiproject.lti.api.UserFinderOrCreator;
 import org.sakaiproject.lti.api.UserLocaleSetter;
 import org.sakaiproject.lti.api.UserPictureSetter;
 import org.sakaiproject.lti.api.SiteMembershipUpdater;
 import org.sakaiproject.lti.api.SiteMembershipsSynchroniser;
+import org.sakaiproject.basiclti.util.RequestLimits;
 import org.sakaiproject.basiclti.util.SakaiBLTIUtil;
 import org.sakaiproject.basiclti.util.LegacyShaUtil;
 import org.sakaiproject.component.cover.ComponentManager;
@@ -69,6 +72,7 @@ import org.sakaiproject.tool.cover.SessionManager;
 import org.sakaiproject.tool.cover.ToolManager;
 import org.sakaiproject.user.api.Preferences;
 import org.sakaiproject.user.api.PreferencesEdit;
+import org.sakaiproject.user.api.PreferencesService;
 import org.sakaiproject.user.api.User;
 import org.sakaiproject.user.cover.UserDirectoryService;
 import org.sakaiproject.util.ResourceLoader;
@@ -114,6 +118,7 @@ public class ProviderServlet extends HttpServlet {
     private UserLocaleSetter userLocaleSetter = null;
     private UserPictureSetter userPictureSetter = null;
     private LTIService ltiService = null;
+    private ProviderConsumerRegistry providerConsumerRegistry = null;
 
     private List<BLTIProcessor> bltiProcessors = new ArrayList();
 
@@ -204,6 +209,11 @@ public class ProviderServlet extends HttpServlet {
             throw new ServletException("Failed to set ltiService.");
         }
 
+        providerConsumerRegistry = (ProviderConsumerRegistry) ComponentManager.getInstance().get("org.sakaiproject.lti.api.ProviderConsumerRegistry");
+        if (providerConsumerRegistry == null) {
+            throw new ServletException("Failed to set providerConsumerRegistry.");
+        }
+
         ApplicationContext ac = WebApplicationContextUtils.getWebApplicationContext(config.getServletContext());
 
         // load all instance of BLTIProcessor in component mgr by type detection
@@ -218,6 +228,8 @@ public class ProviderServlet extends HttpServlet {
                         .compareTo(((BLTIProcessor) (o2)).getOrder());
             }
         });
+
+        PostLaunchTasks.init();
 	}
 	
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -253,6 +265,11 @@ public class ProviderServlet extends HttpServlet {
 			return;
 		}
 
+		// Before anything is parsed, signed or looked up
+		if (!RequestLimits.admit(RequestLimits.LAUNCH, request.getParameter(OAuth.OAUTH_CONSUMER_KEY), response)) {
+			return;
+		}
+
 		if (M_log.isDebugEnabled()) {
 			Map<String, String[]> params = (Map<String, String[]>) request
 					.getParameterMap();
@@ -270,39 +287,53 @@ public class ProviderServlet extends HttpServlet {
 		// We also don't both checking their roles in the site.
         boolean isTrustedConsumer = isTrustedConsumer(payload);
 
+        LaunchTimings timings = LaunchTimings.start((String) payload.get(OAuth.OAUTH_CONSUMER_KEY));
+        PostLaunchTasks postLaunch = new PostLaunchTasks();
+        boolean success = false;
+
         try {
             invokeProcessors(payload, isTrustedConsumer, ProcessingState.beforeValidation);
 
             validate(payload, isTrustedConsumer);
+            timings.stage("validate");
+            timings.validated();
 
             invokeProcessors(payload, isTrustedConsumer, ProcessingState.afterValidation);
 
             User user = userFinderOrCreator.findOrCreateUser(payload, isTrustedConsumer);
+            timings.stage("findOrCreateUser");
             
             invokeProcessors(payload, isTrustedConsumer, ProcessingState.afterUserCreation, user);
 
             loginUser(ipAddress, user);
+            timings.stage("loginUser");
             
             invokeProcessors(payload, isTrustedConsumer, ProcessingState.afterLogin, user);
 
             // This needs to happen after login, when we have a session for the user.
             userLocaleSetter.setupUserLocale(payload, user, isTrustedConsumer);
-            
-            userPictureSetter.setupUserPicture(payload, user, isTrustedConsumer);
+            timings.stage("setupUserLocale");
 
-            Site site = findOrCreateSite(payload, isTrustedConsumer);
+            // Nothing after the launch depends on the picture so it is set once the redirect has gone
+            deferUserPicture(postLaunch, payload, user, isTrustedConsumer);
+
+            Site site = findOrCreateSite(payload, isTrustedConsumer, postLaunch);
+            timings.stage("findOrCreateSite");
 
             invokeProcessors(payload, isTrustedConsumer, ProcessingState.afterSiteCreation, user, site);
 
-            siteEmailPreferenceSetter.setupUserEmailPreferenceForSite(payload, user, site, isTrustedConsumer);
+            deferEmailPreference(postLaunch, payload, user, site, isTrustedConsumer);
 
             site = siteMembershipUpdater.addOrUpdateSiteMembership(payload, isTrustedConsumer, user, site);
+            timings.stage("addOrUpdateSiteMembership");
 
             syncSiteMembershipsOnceThenSchedule(payload, site, isTrustedConsumer);
+            timings.stage("syncSiteMemberships");
 
             invokeProcessors(payload, isTrustedConsumer, ProcessingState.afterSiteMembership, user, site);
 
             String toolPlacementId = addOrCreateTool(payload, isTrustedConsumer, user, site);
+            timings.stage("addOrCreateTool");
 
             invokeProcessors(payload, isTrustedConsumer, ProcessingState.beforeLaunch, user, site);
 
@@ -324,9 +355,13 @@ public class ProviderServlet extends HttpServlet {
             response.setContentType("text/html");
             response.setStatus(HttpServletResponse.SC_FOUND);
             response.sendRedirect(url.toString());
+            success = true;
 
         } catch (LTIException ltiException) {
             doError(request, response, ltiException.getErrorKey(), ltiException.getMessage(), ltiException.getCause());
+        } finally {
+            postLaunch.submit();
+            timings.finish(success);
         }
 
 
@@ -368,12 +403,18 @@ public class ProviderServlet extends HttpServlet {
         invokeProcessors(payload, trustedConsumer, processingState, user, site, null);
     }
 
-
+    /**
+     * Run every processor for the state, timing each one on its own and all
+     * of them together as the "processors.<state>" stage of the launch this
+     * thread is running.
+     */
     protected void invokeProcessors(Map payload, boolean trustedConsumer,
                                     ProcessingState processingState, User user,
                                     Site site, String toolPlacementId) throws LTIException{
+        LaunchTimings timings = LaunchTimings.current();
         if (!bltiProcessors.isEmpty()) {
             for (BLTIProcessor processor : bltiProcessors) {
+                long start = System.nanoTime();
                 switch (processingState) {
 
                     case beforeValidation:
@@ -400,7 +441,9 @@ public class ProviderServlet extends HttpServlet {
                     default:
                         M_log.error("unknown processing state of " + processingState);
                 }
+                timings.processor(processingState.name(), processor, start);
             }
+            timings.stage("processors." + processingState.name());
         }
     }
 
@@ -456,12 +499,7 @@ public class ProviderServlet extends HttpServlet {
           }
           // store modified tool_id back in payload
           payload.put("tool_id", tool_id);
-          final String allowedToolsConfig = ServerConfigurationService.getString("basiclti.provider.allowedtools", "");
-
-          final String[] allowedTools = allowedToolsConfig.split(":");
-          final List<String> allowedToolsList = Arrays.asList(allowedTools);
-
-          if (allowedTools != null && !allowedToolsList.contains(tool_id)) {
+          if (!providerConsumerRegistry.isToolAllowed(oauth_consumer_key, tool_id)) {
               throw new LTIException( "launch.tool.notallowed", tool_id, null);
           }
           final Tool toolCheck = ToolManager.getTool(tool_id);
@@ -527,14 +565,14 @@ public class ProviderServlet extends HttpServlet {
 
 
           // Lookup the secret
-          final String configPrefix = "basiclti.provider." + oauth_consumer_key + ".";
-          final String oauth_secret = ServerConfigurationService.getString(configPrefix+ "secret", null);
-          if (oauth_secret == null) {
+          final ProviderConsumer consumer = providerConsumerRegistry.getConsumer(oauth_consumer_key);
+          if (consumer == null) {
               throw new LTIException( "launch.key.notfound",oauth_consumer_key, null);
           }
+          final String oauth_secret = consumer.getSecret();
           final OAuthMessage oam = (OAuthMessage) payload.get("oauth_message");
           
-          final String forcedURIScheme = ServerConfigurationService.getString("basiclti.provider.forcedurischeme", null);
+          final String forcedURIScheme = consumer.getForcedURIScheme();
           
           if(forcedURIScheme != null) {
         	  try {
@@ -650,7 +688,33 @@ public class ProviderServlet extends HttpServlet {
         return toolPlacementId;
     }
 
-    protected Site findOrCreateSite(Map payload, boolean trustedConsumer) throws LTIException {
+    /**
+     * Queue the user's picture to be set after the launch
+     */
+    protected void deferUserPicture(PostLaunchTasks postLaunch, Map payload, final User user, final boolean isTrustedConsumer) {
+        if (isTrustedConsumer) return;
+        final Map captured = postLaunch.capture(payload);
+        postLaunch.add("setupUserPicture", new Runnable() {
+            public void run() {
+                userPictureSetter.setupUserPicture(captured, user, isTrustedConsumer);
+            }
+        });
+    }
+
+    /**
+     * Queue the user's email preference for the site to be set after the launch
+     */
+    protected void deferEmailPreference(PostLaunchTasks postLaunch, Map payload, final User user, final Site site, final boolean isTrustedConsumer) {
+        if (isTrustedConsumer) return;
+        final Map captured = postLaunch.capture(payload);
+        postLaunch.add("setupUserEmailPreference", new Runnable() {
+            public void run() {
+                siteEmailPreferenceSetter.setupUserEmailPreferenceForSite(captured, user, site, isTrustedConsumer);
+            }
+        }, PreferencesService.SECURE_ADD_PREFS, PreferencesService.SECURE_EDIT_PREFS);
+    }
+
+    protected Site findOrCreateSite(Map payload, boolean trustedConsumer, PostLaunchTasks postLaunch) throws LTIException {
 
         String context_id = (String) payload.get(BasicLTIConstants.CONTEXT_ID);
         String oauth_consumer_key = (String) payload.get("oauth_consumer_key");
@@ -675,7 +739,7 @@ public class ProviderServlet extends HttpServlet {
             try {
                 site = findSiteByLTIContextId(context_id);
                 if (site != null) {
-                    updateSiteDetailsIfChanged(site, context_title, context_label);
+                    updateSiteDetailsIfChanged(postLaunch, site, context_title, context_label);
                     return site;
                 }
             } catch (Exception e) {
@@ -686,7 +750,7 @@ public class ProviderServlet extends HttpServlet {
         } else {
             try {
                 site = SiteService.getSite(siteId);
-                updateSiteDetailsIfChanged(site, context_title, context_label);
+                updateSiteDetailsIfChanged(postLaunch, site, context_title, context_label);
                 return site;
             } catch (Exception e) {
                 if (M_log.isDebugEnabled()) {
@@ -767,7 +831,34 @@ public class ProviderServlet extends HttpServlet {
 		}
     }
 
-    private final void updateSiteDetailsIfChanged(Site site, String context_title, String context_label) {
+    /**
+     * Put a new title or label on the site we are launching into, and queue
+     * a save of it for after the launch.  The site in hand carries the
+     * change so a save of it later in the launch does not put back the old
+     * values.  The queued save starts from a fresh copy of the site and
+     * does nothing if that copy is already up to date.
+     */
+    private final void updateSiteDetailsIfChanged(PostLaunchTasks postLaunch, Site site, final String context_title, final String context_label) {
+
+        if (!applySiteDetails(site, context_title, context_label)) return;
+
+        final String siteId = site.getId();
+        postLaunch.add("updateSiteDetails", new Runnable() {
+            public void run() {
+                try {
+                    Site fresh = SiteService.getSite(siteId);
+                    if (applySiteDetails(fresh, context_title, context_label)) {
+                        SiteService.save(fresh);
+                        M_log.info("Updated  site=" + siteId + " title=" + context_title + " label=" + context_label);
+                    }
+                } catch (Exception e) {
+                    M_log.warn("Failed to update site title and/or label");
+                }
+            }
+        }, org.sakaiproject.site.api.SiteService.SECURE_UPDATE_SITE);
+    }
+
+    private static boolean applySiteDetails(Site site, String context_title, String context_label) {
 
         boolean changed = false;
 
@@ -781,14 +872,7 @@ public class ProviderServlet extends HttpServlet {
             changed = true;
         }
 
-        if(changed) {
-            try {
-                SiteService.save(site);
-                M_log.info("Updated  site=" + site.getId() + " title=" + context_title + " label=" + context_label);
-            } catch (Exception e) {
-                M_log.warn("Failed to update site title and/or label");
-            }
-        }
+        return changed;
     }
 
     private void loginUser(String ipAddress, User user) {
@@ -799,19 +883,8 @@ public class ProviderServlet extends HttpServlet {
     }
     
     protected boolean isTrustedConsumer(Map payload) {
-        boolean isTrustedConsumer = false;
         String oauth_consumer_key = (String) payload.get("oauth_consumer_key");
-
-        final String trustedConsumersConfig = ServerConfigurationService
-                .getString("basiclti.provider.highly.trusted.consumers", null);
-        if(BasicLTIUtil.isNotBlank(trustedConsumersConfig)) {
-            String[] trustedConsumers = trustedConsumersConfig.split(":");
-            List<String> trustedConsumersList = Arrays.asList(trustedConsumers);
-
-            if (trustedConsumersList.contains(oauth_consumer_key)) {
-                isTrustedConsumer = true;
-            }
-        }
+        boolean isTrustedConsumer = providerConsumerRegistry.isTrustedConsumer(oauth_consumer_key);
 
         if (M_log.isDebugEnabled()) {
             M_log.debug("Consumer=" + oauth_consumer_key);
@@ -821,7 +894,8 @@ public class ProviderServlet extends HttpServlet {
     }
 
     public void destroy() {
-
+        PostLaunchTasks.destroy();
+        LaunchTimings.logHistograms();
 	}
 
 
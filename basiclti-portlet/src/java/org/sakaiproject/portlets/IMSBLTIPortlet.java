@@ -73,6 +73,8 @@ import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.util.ResourceLoader;
 import org.sakaiproject.util.FormattedText;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.event.api.NotificationService;
 //import org.sakaiproject.event.cover.EventTrackingService;
@@ -116,11 +118,21 @@ public class IMSBLTIPortlet extends GenericPortlet {
 
 	public final static String CURRENT_HTTP_REQUEST = "org.sakaiproject.util.RequestFilter.http_request";
 
+	/** How long the assignment names for a site are kept */
+	public static final String GRADEBOOK_CACHE_SECONDS = "basiclti.portlet.gradebook.cache.seconds";
+	public static final int GRADEBOOK_CACHE_SECONDS_DEFAULT = 60;
+
+	// Site id to a CachedAssignments
+	private Cache assignmentCache = null;
+
 	public void init(PortletConfig config) throws PortletException {
 		super.init(config);
 
 		pContext = config.getPortletContext();
 
+		MemoryService memoryService = (MemoryService) ComponentManager.get("org.sakaiproject.memory.api.MemoryService");
+		if ( memoryService != null ) assignmentCache = memoryService.getCache("org.sakaiproject.portlets.IMSBLTIPortlet.assignmentCache");
+
 		// Populate the list of fields
 		fieldList.add("launch");
 		fieldList.add("secret");
@@ -157,6 +169,28 @@ public class IMSBLTIPortlet extends GenericPortlet {
 		return getCorrectProperty(request, "tooltitle", null);
 	}
 
+	// A cheap version of the check in SakaiBLTIUtil.loadFromPlacement - the
+	// descriptor was validated when it was saved so we only need to know
+	// that there is a launch url or a descriptor
+	public boolean isLaunchConfigured(Placement placement)
+	{
+		Properties config = placement.getConfig();
+		String launch = SakaiBLTIUtil.getCorrectProperty(config, "launch", placement);
+		if ( launch != null && launch.trim().length() > 0 ) return true;
+		String xml = SakaiBLTIUtil.getCorrectProperty(config, "xml", placement);
+		return xml != null && xml.trim().length() > 0;
+	}
+
+	// An http launch from an https page will be blocked by the browser
+	public boolean isForcePopup(boolean secure, String launch)
+	{
+		String serverUrl = ServerConfigurationService.getServerUrl();
+		if ( secure || ( serverUrl != null && serverUrl.startsWith("https://") ) ) {
+			if ( launch != null && launch.startsWith("http://") ) return true;
+		}
+		return false;
+	}
+
 	// Render the portlet - this is not supposed to change the state of the portlet
 	// Render may be called many times so if it changes the state - that is tacky
 	// Render will be called when someone presses "refresh" or when another portlet
@@ -182,46 +216,16 @@ public class IMSBLTIPortlet extends GenericPortlet {
 
 			// Get the properties
 			Properties sakaiProperties = getSakaiProperties();
-			String placementSecret = getSakaiProperty(sakaiProperties,"imsti.placementsecret");
-			String allowOutcomes = getSakaiProperty(sakaiProperties,"imsti.allowoutcomes");
-			String allowSettings = getSakaiProperty(sakaiProperties,"imsti.allowsettings");
-			String allowRoster = getSakaiProperty(sakaiProperties,"imsti.allowroster");
-			String allowLORI = getSakaiProperty(sakaiProperties,"imsti.allowlori");
-			String assignment = getSakaiProperty(sakaiProperties,"imsti.assignent");
 			String launch = getSakaiProperty(sakaiProperties,"imsti.launch");
 
-			if ( placementSecret == null && 
-			   ( "on".equals(allowOutcomes) || "on".equals(allowSettings) || 
-				 "on".equals(allowRoster) || "on".equals(allowLORI) ) ) {
-				String uuid = UUID.randomUUID().toString();
-				Date date = new Date();
-				SimpleDateFormat sdf = new SimpleDateFormat(ISO_8601_FORMAT);
-				String date_secret = sdf.format(date);
-				placement.getPlacementConfig().setProperty("imsti.placementsecret", uuid);
-				placement.getPlacementConfig().setProperty("imsti.placementsecretdate", date_secret);
-				placement.save();
-			}
-
-			// Check to see if our launch will be successful
-			String[] retval = SakaiBLTIUtil.postLaunchHTML(placement.getId(), rb);
-			if ( retval.length > 1 ) {
+			// Check to see if our launch will be successful - the full launch
+			// is only built when the iframe asks for it
+			if ( isLaunchConfigured(placement) ) {
 				String iframeUrl = "/access/basiclti/site/"+context+"/"+placement.getId();
 				String frameHeight =  getCorrectProperty(request, "frameheight", null);
 				dPrint("fh="+frameHeight);
 				String newPage =  getCorrectProperty(request, "newpage", null);
-				String serverUrl = ServerConfigurationService.getServerUrl();
-				boolean forcePopup = false;
-				if ( request.isSecure() || ( serverUrl != null && serverUrl.startsWith("https://") ) ) {
-					if ( launch != null && launch.startsWith("http://") ) {
-						forcePopup = true;
-					}
-				}
-
-				// Change "newpage" if forcePopup so the portal will do our pop up next time
-				if ( forcePopup && ! "on".equals(newPage) ) {
-					placement.getPlacementConfig().setProperty("imsti.newpage","on");
-					placement.save();
-				}
+				boolean forcePopup = isForcePopup(request.isSecure(), launch);
 
 				String maximize =  getCorrectProperty(request, "maximize", null);
 				StringBuffer text = new StringBuffer();
@@ -513,6 +517,7 @@ public class IMSBLTIPortlet extends GenericPortlet {
 			} else if ( action.equals("main") ) {
 				response.setPortletMode(PortletMode.VIEW);
 			} else if ( action.equals("edit") ) {
+				processActionEdit(action, request, response);
 				pSession.setAttribute("sakai.view", "edit");
 			} else if ( action.equals("edit.reset") ) {
 				pSession.setAttribute("sakai.view","edit.reset");
@@ -569,9 +574,42 @@ public class IMSBLTIPortlet extends GenericPortlet {
 			pSession.setAttribute("sakai.view", "edit");
 		}
 
+	// Placements from before the secret and popup settings were added are
+	// brought up to date here rather than when the tool is viewed.  The
+	// secret is also made on the first launch (SakaiBLTIUtil.checkPlacementSecret)
 	public void processActionEdit(String action,ActionRequest request, ActionResponse response)
 		throws PortletException, IOException {
 
+			Placement placement = ToolManager.getCurrentPlacement();
+			Properties sakaiProperties = getSakaiProperties();
+			boolean changed = false;
+
+			String placementSecret = getSakaiProperty(sakaiProperties,"imsti.placementsecret");
+			String allowOutcomes = getSakaiProperty(sakaiProperties,"imsti.allowoutcomes");
+			String allowSettings = getSakaiProperty(sakaiProperties,"imsti.allowsettings");
+			String allowRoster = getSakaiProperty(sakaiProperties,"imsti.allowroster");
+			String allowLORI = getSakaiProperty(sakaiProperties,"imsti.allowlori");
+			if ( placementSecret == null && 
+			   ( "on".equals(allowOutcomes) || "on".equals(allowSettings) || 
+				 "on".equals(allowRoster) || "on".equals(allowLORI) ) ) {
+				String uuid = UUID.randomUUID().toString();
+				Date date = new Date();
+				SimpleDateFormat sdf = new SimpleDateFormat(ISO_8601_FORMAT);
+				String date_secret = sdf.format(date);
+				placement.getPlacementConfig().setProperty("imsti.placementsecret", uuid);
+				placement.getPlacementConfig().setProperty("imsti.placementsecretdate", date_secret);
+				changed = true;
+			}
+
+			// Change "newpage" if forcePopup so the portal will do our pop up
+			String launch = getSakaiProperty(sakaiProperties,"imsti.launch");
+			String newPage = getCorrectProperty(request, "newpage", null);
+			if ( isForcePopup(request.isSecure(), launch) && ! "on".equals(newPage) ) {
+				placement.getPlacementConfig().setProperty("imsti.newpage","on");
+				changed = true;
+			}
+
+			if ( changed ) placement.save();
 		}
 
 	public Properties getSakaiProperties()
@@ -695,6 +733,11 @@ public class IMSBLTIPortlet extends GenericPortlet {
 						break;
 					}
 				}
+				// The assignment may have been added since the list was cached
+				if ( ! found ) {
+					assignments = getGradeBookAssignments(true);
+					if ( assignments != null ) found = assignments.contains(assignment);
+				}
 				if ( ! found ) {
 					setErrorMessage(request, rb.getString("error.gradable.badassign") + 
 							" " + FormattedText.escapeHtml(assignment,false));
@@ -779,6 +822,17 @@ public class IMSBLTIPortlet extends GenericPortlet {
 				}
 			}
 
+			// The portal needs to know to pop up an http launch from an https server
+			if ( imsTIXml == null && isForcePopup(request.isSecure(), imsTIUrl) ) {
+				try {
+					prefs.setValue("sakai:imsti.newpage", "on");
+					changed = true;
+				} catch (ReadOnlyException e) {
+					setErrorMessage(request, rb.getString("error.modify.prefs") );
+					return;
+				}
+			}
+
 			// Clear out the other setting
 			if ( imsType != null ) {
 				if ( imsType.equalsIgnoreCase("XML") ) {
@@ -896,6 +950,7 @@ public class IMSBLTIPortlet extends GenericPortlet {
 			asn.setReleased(true);
 			asn.setUngraded(false);
 			g.addAssignment(gradebookUid, asn);
+			if ( assignmentCache != null ) assignmentCache.remove(gradebookUid);
 			return true;
 		}
 		catch (ConflictingAssignmentNameException e)
@@ -914,7 +969,13 @@ public class IMSBLTIPortlet extends GenericPortlet {
 	// get all assignments from the Gradebook
 	protected List<String> getGradeBookAssignments()
 	{
-		List<String> retval = new ArrayList<String>();
+		return getGradeBookAssignments(false);
+	}
+
+	// The permission checks are made for every call, only the list of
+	// names is shared between the users of a site
+	protected List<String> getGradeBookAssignments(boolean refresh)
+	{
 		try
 		{
 			GradebookService g = (GradebookService)  ComponentManager
@@ -922,6 +983,16 @@ public class IMSBLTIPortlet extends GenericPortlet {
 
 			String gradebookUid = getContext();
 			if ( ! (g.isGradebookDefined(gradebookUid) && (g.currentUserHasEditPerm(gradebookUid) || g.currentUserHasGradingPerm(gradebookUid)) && g.currentUserHasGradeAllPerm(gradebookUid) ) ) return null;
+
+			int seconds = ServerConfigurationService.getInt(GRADEBOOK_CACHE_SECONDS, GRADEBOOK_CACHE_SECONDS_DEFAULT);
+			if ( assignmentCache != null && ! refresh && seconds > 0 ) {
+				CachedAssignments cached = (CachedAssignments) assignmentCache.get(gradebookUid);
+				if ( cached != null && System.currentTimeMillis() - cached.loaded < seconds * 1000L ) {
+					return new ArrayList<String>(cached.names);
+				}
+			}
+
+			List<String> retval = new ArrayList<String>();
 			List gradebookAssignments = g.getAssignments(gradebookUid);
 
 			// filtering out anything externally provided
@@ -931,6 +1002,7 @@ public class IMSBLTIPortlet extends GenericPortlet {
 				if ( gAssignment.isExternallyMaintained() ) continue;
 				retval.add(gAssignment.getName());
 			}
+			if ( assignmentCache != null ) assignmentCache.put(gradebookUid, new CachedAssignments(retval));
 			return retval;
 		}
 		catch (GradebookNotFoundException e)
@@ -940,4 +1012,17 @@ public class IMSBLTIPortlet extends GenericPortlet {
 		}
 	}
 
+	// The assignment names for one site and when they were loaded
+	private static class CachedAssignments implements java.io.Serializable {
+		private static final long serialVersionUID = 1L;
+		final ArrayList<String> names;
+		final long loaded;
+
+		CachedAssignments(List<String> names)
+		{
+			this.names = new ArrayList<String>(names);
+			this.loaded = System.currentTimeMillis();
+		}
+	}
+
 }
@@ -114,6 +114,9 @@ public class LTIAdminTool extends VelocityPortletPaneledAction
 	
 	private static String ALLOW_MAINTAINER_ADD_SYSTEM_TOOL = "lti:allow_maintainer_add_system_tool";
 
+	private static String SITE_PANEL_PAGE_SIZE = "basiclti.admin.site.pagesize";
+	private static int SITE_PANEL_PAGE_SIZE_DEFAULT = 200;
+
 	/** Service Implementations */
 	protected static ToolManager toolManager = null; 
 	protected static LTIService ltiService = null;
@@ -198,8 +201,23 @@ public class LTIAdminTool extends VelocityPortletPaneledAction
 		state.removeAttribute(STATE_POST);
 		state.removeAttribute(STATE_SUCCESS);
 
-		// this is for the "site tools" panel
-		List<Map<String,Object>> contents = ltiService.getContents(null,null,0,5000);
+		// this is for the "site tools" panel - one page at a time, we ask for
+		// one extra row to know if there is a next page
+		int pageSize = serverConfigurationService.getInt(SITE_PANEL_PAGE_SIZE, SITE_PANEL_PAGE_SIZE_DEFAULT);
+		if ( pageSize < 1 ) pageSize = SITE_PANEL_PAGE_SIZE_DEFAULT;
+		int pageStart = data.getParameters().getInt("start", 0);
+		if ( pageStart < 0 ) pageStart = 0;
+		List<Map<String,Object>> contents = ltiService.getContents(null,"lti_content.id",pageStart,pageStart+pageSize);
+		boolean hasNext = contents.size() > pageSize;
+		if ( hasNext ) contents = contents.subList(0, pageSize);
+
+		List<String> placements = new ArrayList<String>();
+		for ( Map<String,Object> content : contents ) {
+			String plstr = (String) content.get(LTIService.LTI_PLACEMENT);
+			if ( plstr != null ) placements.add(plstr);
+		}
+		Set<String> existing = ltiService.getExistingPlacements(placements);
+
 		for ( Map<String,Object> content : contents ) {
 			
 			Long tool_id_long = null;
@@ -211,14 +229,15 @@ public class LTIAdminTool extends VelocityPortletPaneledAction
 				// log the error
 				M_log.error("error parsing tool id " + content.get(LTIService.LTI_TOOL_ID));
 			}
-			context.put("tool_id_long", tool_id_long);
+			content.put("tool_id_long", tool_id_long);
 			String plstr = (String) content.get(LTIService.LTI_PLACEMENT);
-			ToolConfiguration tool = SiteService.findTool(plstr);
-			if ( tool == null ) {
+			if ( ! existing.contains(plstr) ) {
 				content.put(LTIService.LTI_PLACEMENT, null);
 			}
 		}
 		context.put("contents", contents);
+		if ( pageStart > 0 ) context.put("pagePrev", new Integer(Math.max(0, pageStart - pageSize)));
+		if ( hasNext ) context.put("pageNext", new Integer(pageStart + pageSize));
 		context.put("messageSuccess",state.getAttribute(STATE_SUCCESS));
 		context.put("isAdmin",new Boolean(ltiService.isAdmin()) );
 		context.put("getContext",toolManager.getCurrentPlacement().getContext());
@@ -917,7 +936,7 @@ public class LTIAdminTool extends VelocityPortletPaneledAction
 			    String oauth_secret = old_secret;
 			    oauth_secret = SakaiBLTIUtil.decryptSecret(oauth_secret);
 			    // System.out.println("key="+oauth_consumer_key+" secret="+oauth_secret);
-			    BasicLTIUtil.sendOAuthURL("GET", ack, oauth_consumer_key, oauth_secret);
+			    BasicLTIUtil.sendOAuthMessage("GET", ack, oauth_consumer_key, oauth_secret);
 			}
 		} else {
 			String oops = "Unable to update deployment key="+key;
@@ -0,0 +1,301 @@
+/*
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 IMS GLobal Learning Consortium
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package net.oauth.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import net.oauth.OAuth;
+import net.oauth.http.HttpClient;
+import net.oauth.http.HttpMessage;
+import net.oauth.http.HttpMessageDecoder;
+import net.oauth.http.HttpResponseMessage;
+
+/**
+ * An HttpClient for the outbound LTI calls (memberships, outcomes,
+ * registration acknowledgements).
+ * <p>
+ * Connections are HttpURLConnections so they come from the JVM keep-alive
+ * pool.  A connection only goes back into that pool when its response has
+ * been read to the end and closed, so every response body is read in full
+ * before execute returns.  The responses from LTI services are small XML
+ * and JSON documents so holding them in memory is not a concern.
+ * <p>
+ * The number of requests in flight to any one host is capped, requests ask
+ * for gzip or deflate and are decoded with HttpMessageDecoder, and there are
+ * always connect and read timeouts.  Simple counters are kept and logged
+ * every reportEvery requests so the behaviour can be checked in production.
+ */
+public class PooledHttpClient implements HttpClient {
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	public static final int DEFAULT_MAX_PER_HOST = 5;
+	public static final int DEFAULT_REPORT_EVERY = 1000;
+
+	private static final Logger M_log = Logger.getLogger(PooledHttpClient.class.getName());
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final PooledHttpClient DEFAULT = new PooledHttpClient(
+		DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_PER_HOST);
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int maxPerHost;
+	private final int reportEvery;
+
+	private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong hostWaits = new AtomicLong();
+	private final AtomicLong compressed = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong elapsedMillis = new AtomicLong();
+
+	public PooledHttpClient(int connectTimeout, int readTimeout, int maxPerHost)
+	{
+		this(connectTimeout, readTimeout, maxPerHost, DEFAULT_REPORT_EVERY);
+	}
+
+	/**
+	 * @param reportEvery Log the counters after this many requests, 0 to never log them
+	 */
+	public PooledHttpClient(int connectTimeout, int readTimeout, int maxPerHost, int reportEvery)
+	{
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxPerHost = maxPerHost < 1 ? 1 : maxPerHost;
+		this.reportEvery = reportEvery;
+	}
+
+	/**
+	 * The client shared by all the outbound LTI calls in this JVM
+	 */
+	public static PooledHttpClient getDefault()
+	{
+		return DEFAULT;
+	}
+
+	public HttpResponseMessage execute(HttpMessage request, Map<String, Object> parameters)
+		throws IOException
+	{
+		int connect = getInt(parameters, CONNECT_TIMEOUT, connectTimeout);
+		int read = getInt(parameters, READ_TIMEOUT, readTimeout);
+		Object follow = parameters == null ? null : parameters.get(FOLLOW_REDIRECTS);
+
+		URL url = request.url;
+		Semaphore permits = getPermits(url);
+		if ( ! permits.tryAcquire() ) {
+			hostWaits.incrementAndGet();
+			boolean acquired = false;
+			try {
+				acquired = permits.tryAcquire(connect, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if ( ! acquired ) {
+				failures.incrementAndGet();
+				throw new IOException("Too many requests in progress to "+url.getHost());
+			}
+		}
+
+		long count = requests.incrementAndGet();
+		long start = System.currentTimeMillis();
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(connect);
+			connection.setReadTimeout(read);
+			connection.setUseCaches(false);
+			connection.setInstanceFollowRedirects(Boolean.TRUE.equals(follow));
+			connection.setRequestMethod(request.method);
+
+			boolean acceptEncoding = false;
+			String length = null;
+			for (Map.Entry<String, String> header : request.headers) {
+				String name = header.getKey();
+				if ( HttpMessage.ACCEPT_ENCODING.equalsIgnoreCase(name) ) acceptEncoding = true;
+				if ( HttpMessage.CONTENT_LENGTH.equalsIgnoreCase(name) ) {
+					length = header.getValue();
+					continue;  // Set by the connection itself
+				}
+				connection.addRequestProperty(name, header.getValue());
+			}
+			if ( ! acceptEncoding ) {
+				connection.setRequestProperty(HttpMessage.ACCEPT_ENCODING, HttpMessageDecoder.ACCEPTED);
+			}
+
+			InputStream body = request.getBody();
+			if ( body != null ) {
+				connection.setDoOutput(true);
+				if ( length != null ) {
+					connection.setFixedLengthStreamingMode(Integer.parseInt(length));
+				}
+				OutputStream out = connection.getOutputStream();
+				try {
+					copy(body, out);
+				} finally {
+					out.close();
+					body.close();
+				}
+			}
+
+			int status = connection.getResponseCode();
+			byte[] content = readFully(connection);
+			bytesReceived.addAndGet(content.length);
+
+			Response response = new Response(request.method, url, status, content);
+			for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+				if ( header.getKey() == null ) continue;  // The status line
+				for (String value : header.getValue()) {
+					response.headers.add(new OAuth.Parameter(header.getKey(), value));
+				}
+			}
+			if ( response.getHeader(HttpMessage.CONTENT_ENCODING) != null ) compressed.incrementAndGet();
+			return HttpMessageDecoder.decode(response);
+		} catch (IOException e) {
+			failures.incrementAndGet();
+			if ( e instanceof SocketTimeoutException ) timeouts.incrementAndGet();
+			// A connection in an unknown state must not go back in the pool
+			if ( connection != null ) connection.disconnect();
+			throw e;
+		} finally {
+			elapsedMillis.addAndGet(System.currentTimeMillis() - start);
+			permits.release();
+			if ( reportEvery > 0 && count % reportEvery == 0 ) logMetrics();
+		}
+	}
+
+	public void logMetrics()
+	{
+		M_log.info("Outbound LTI http " + getMetrics());
+	}
+
+	/**
+	 * The counters for this client, suitable for logging
+	 */
+	public Map<String, Long> getMetrics()
+	{
+		Map<String, Long> retval = new TreeMap<String, Long>();
+		retval.put("requests", requests.get());
+		retval.put("failures", failures.get());
+		retval.put("timeouts", timeouts.get());
+		retval.put("hostWaits", hostWaits.get());
+		retval.put("compressed", compressed.get());
+		retval.put("bytesReceived", bytesReceived.get());
+		retval.put("elapsedMillis", elapsedMillis.get());
+		return retval;
+	}
+
+	private Semaphore getPermits(URL url)
+	{
+		String host = url.getProtocol() + "://" + url.getHost() + ":" +
+			( url.getPort() < 0 ? url.getDefaultPort() : url.getPort() );
+		Semaphore permits = hostPermits.get(host);
+		if ( permits == null ) {
+			Semaphore created = new Semaphore(maxPerHost, true);
+			permits = hostPermits.putIfAbsent(host, created);
+			if ( permits == null ) permits = created;
+		}
+		return permits;
+	}
+
+	// Read and close the body (or the error body) so the connection can be reused
+	private static byte[] readFully(HttpURLConnection connection) throws IOException
+	{
+		InputStream in = null;
+		try {
+			in = connection.getInputStream();
+		} catch (IOException e) {
+			in = connection.getErrorStream();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if ( in == null ) return out.toByteArray();
+		try {
+			copy(in, out);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ( (n = in.read(buffer)) > 0 ) {
+			out.write(buffer, 0, n);
+		}
+	}
+
+	private static int getInt(Map<String, Object> parameters, String name, int dflt)
+	{
+		if ( parameters == null ) return dflt;
+		Object value = parameters.get(name);
+		if ( value instanceof Number ) return ((Number) value).intValue();
+		if ( value != null ) {
+			try {
+				return Integer.parseInt(value.toString());
+			} catch (NumberFormatException e) {
+				// Fall through
+			}
+		}
+		return dflt;
+	}
+
+	/**
+	 * A response whose body has already been read from the connection
+	 */
+	private static class Response extends HttpResponseMessage {
+
+		private final int status;
+
+		Response(String method, URL url, int status, byte[] content)
+		{
+			super(method, url);
+			this.status = status;
+			this.body = new ByteArrayInputStream(content);
+		}
+
+		@Override
+		public int getStatusCode()
+		{
+			return status;
+		}
+	}
+}
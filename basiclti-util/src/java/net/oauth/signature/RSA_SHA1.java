@@ -22,6 +22,8 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -31,6 +33,8 @@ import java.security.spec.EncodedKeySpec;
 import java.security.spec.KeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.oauth.OAuth;
 import net.oauth.OAuthAccessor;
@@ -80,6 +84,11 @@ import net.oauth.signature.pem.PKCS1EncodedKeySpec;
  * or byte[]. In the latter two cases, the certificate must be DER-encoded
  * (byte[]) or PEM-encoded (String).
  *
+ * Keys given as a String or byte[] are parsed once and kept in a cache
+ * shared by all instances, keyed by a SHA-256 fingerprint of the key
+ * material, since a new signer is created for every message.  The
+ * Signature objects are kept per thread.
+ *
  * @author Dirk Balfanz
  *
  */
@@ -89,6 +98,27 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
     final static public String PUBLIC_KEY = "RSA-SHA1.PublicKey";
     final static public String X509_CERTIFICATE = "RSA-SHA1.X509Certificate";
 
+    /** The most parsed keys we will hold before starting over */
+    static final int MAX_CACHED_KEYS = 1000;
+
+    private static final ConcurrentMap<String, PrivateKey> PRIVATE_KEYS =
+        new ConcurrentHashMap<String, PrivateKey>();
+    private static final ConcurrentMap<String, PublicKey> PUBLIC_KEYS =
+        new ConcurrentHashMap<String, PublicKey>();
+
+    // Signature objects are not thread safe but can be initialized again
+    // for each use
+    private static final ThreadLocal<Signature> SIGNATURE = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance("SHA1withRSA");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
     private PrivateKey privateKey = null;
     private PublicKey publicKey = null;
     
@@ -221,7 +251,7 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
                                             "OAuthConsumer.setProperty when " +
                                             "generating RSA-SHA1 signatures.");
         }
-        Signature signer = Signature.getInstance("SHA1withRSA");
+        Signature signer = SIGNATURE.get();
         signer.initSign(privateKey);
         signer.update(message);
         return signer.sign();
@@ -234,7 +264,7 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
                                             " OAuthConsumer.setProperty when " +
                                             "verifying RSA-SHA1 signatures.");
         }
-        Signature verifier = Signature.getInstance("SHA1withRSA");
+        Signature verifier = SIGNATURE.get();
         verifier.initVerify(publicKey);
         verifier.update(message);
         return verifier.verify(signature);
@@ -253,6 +283,24 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
      * @throws GeneralSecurityException
      */
     private PrivateKey loadPrivateKey(Object privateKeyObject) 
+    throws IOException, GeneralSecurityException {
+
+        if (privateKeyObject instanceof PrivateKey) {
+            return (PrivateKey)privateKeyObject;
+        }
+        String fingerprint = fingerprint("private", privateKeyObject);
+        PrivateKey privateKey = fingerprint == null ? null : PRIVATE_KEYS.get(fingerprint);
+        if (privateKey == null) {
+            privateKey = parsePrivateKey(privateKeyObject);
+            if (fingerprint != null) {
+                if (PRIVATE_KEYS.size() >= MAX_CACHED_KEYS) PRIVATE_KEYS.clear();
+                PRIVATE_KEYS.put(fingerprint, privateKey);
+            }
+        }
+        return privateKey;
+    }
+
+    private PrivateKey parsePrivateKey(Object privateKeyObject) 
     throws IOException, GeneralSecurityException {
 
         PrivateKey privateKey;
@@ -297,6 +345,24 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
      * @throws GeneralSecurityException
      */
     private PublicKey loadPublicKey(Object publicKeyObject, boolean isCert) 
+    throws IOException, GeneralSecurityException {
+
+        if (publicKeyObject instanceof PublicKey) {
+            return (PublicKey)publicKeyObject;
+        }
+        String fingerprint = fingerprint(isCert ? "cert" : "public", publicKeyObject);
+        PublicKey publicKey = fingerprint == null ? null : PUBLIC_KEYS.get(fingerprint);
+        if (publicKey == null) {
+            publicKey = parsePublicKey(publicKeyObject, isCert);
+            if (fingerprint != null) {
+                if (PUBLIC_KEYS.size() >= MAX_CACHED_KEYS) PUBLIC_KEYS.clear();
+                PUBLIC_KEYS.put(fingerprint, publicKey);
+            }
+        }
+        return publicKey;
+    }
+
+    private PublicKey parsePublicKey(Object publicKeyObject, boolean isCert) 
     throws IOException, GeneralSecurityException {
 
         PublicKey publicKey;
@@ -334,4 +400,31 @@ public class RSA_SHA1 extends OAuthSignatureMethod {
 
         return publicKey;
     }
+
+    /**
+     * The cache key for a String or byte[] key or certificate, or null if
+     * the object is of a type we do not cache.  The kind is part of the
+     * fingerprint because the same bytes are parsed differently as a key
+     * and as a certificate.
+     */
+    static String fingerprint(String kind, Object keyObject)
+    throws UnsupportedEncodingException, NoSuchAlgorithmException {
+        byte[] material;
+        if (keyObject instanceof String) {
+            material = ((String)keyObject).getBytes("UTF-8");
+        } else if (keyObject instanceof byte[]) {
+            material = (byte[])keyObject;
+        } else {
+            return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(kind.getBytes("UTF-8"));
+        md.update((byte) 0);
+        return kind + ":" + base64Encode(md.digest(material));
+    }
+
+    /** The number of parsed keys and certificates held, for monitoring */
+    public static int getCachedKeyCount() {
+        return PRIVATE_KEYS.size() + PUBLIC_KEYS.size();
+    }
 }
@@ -52,12 +52,16 @@ import net.oauth.OAuthValidator;
 import net.oauth.SimpleOAuthValidator;
 import net.oauth.server.OAuthServlet;
 import net.oauth.signature.OAuthSignatureMethod;
+import net.oauth.client.PooledHttpClient;
+import net.oauth.http.HttpMessage;
+import net.oauth.http.HttpResponseMessage;
 
 import java.net.HttpURLConnection;
 import java.net.URL;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 
@@ -680,6 +684,58 @@ public class BasicLTIUtil {
 		}
 	}
 
+	/** 
+         * sendOAuthMessage - Send a request signed by OAuth through the shared
+	 * pooled client
+	 * @param url
+	 * @param oauth_consumer_key
+	 * @param oauth_consumer_secret
+	 * HttpResponseMessage response = sendOAuthMessage('GET', url, oauth_consumer_key, oauth_secret)
+	 * int responseCode = response.getStatusCode();
+	 * String data = readHttpResponse(response)
+	 */
+	public static HttpResponseMessage sendOAuthMessage(String method, String url, String oauth_consumer_key, String oauth_secret)
+	{
+		String oauthURL = getOAuthURL(url, oauth_consumer_key, oauth_secret);
+		if ( oauthURL == null ) return null;
+
+		try {
+			HttpMessage request = new HttpMessage(method, new URL(oauthURL));
+			return PooledHttpClient.getDefault().execute(request, null);
+		} catch(Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/** 
+         * readHttpResponse - Read the body of a response from sendOAuthMessage
+	 * @param response
+	 */
+	public static String readHttpResponse(HttpResponseMessage response)
+	{
+		if ( response == null ) return null;
+		try {
+			InputStream body = response.getBody();
+			if ( body == null ) return "";
+			String charset = response.getHeader(HttpMessage.CONTENT_TYPE) == null ||
+				response.getHeader(HttpMessage.CONTENT_TYPE).indexOf("charset") < 0 ?
+				"UTF-8" : response.getContentCharset();
+			BufferedReader in = new BufferedReader(new InputStreamReader(body, charset));
+			String inputLine;
+			StringBuffer retval = new StringBuffer();
+ 
+			while ((inputLine = in.readLine()) != null) {
+				retval.append(inputLine);
+			}
+			in.close();
+			return retval.toString();
+		} catch(Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	/** 
          * getOAuthURL - Form a GET request signed by OAuth
 	 * @param url
@@ -688,7 +744,10 @@ public class BasicLTIUtil {
 	 * HttpURLConnection connection = sendOAuthURL('GET', url, oauth_consumer_key, oauth_secret)
 	 * int responseCode = connection.getResponseCode();
 	 * String data = readHttpResponse(connection)
+	 * @deprecated Use {@link #sendOAuthMessage(String, String, String, String)}
+	 * which reuses connections and always has timeouts
 	 */
+	@Deprecated
 	public static HttpURLConnection sendOAuthURL(String method, String url, String oauth_consumer_key, String oauth_secret)
 	{
 		String oauthURL = getOAuthURL(url, oauth_consumer_key, oauth_secret);
@@ -696,6 +755,8 @@ public class BasicLTIUtil {
 		try {
 			URL urlConn = new URL(oauthURL);
 			HttpURLConnection connection = (HttpURLConnection) urlConn.openConnection();
+			connection.setConnectTimeout(PooledHttpClient.DEFAULT_CONNECT_TIMEOUT);
+			connection.setReadTimeout(PooledHttpClient.DEFAULT_READ_TIMEOUT);
 			connection.setRequestMethod(method);
 			int responseCode = connection.getResponseCode();
 			return connection;
@@ -708,7 +769,9 @@ public class BasicLTIUtil {
 	/** 
          * readHttpResponse - Read the HTTP Response
 	 * @param connection
+	 * @deprecated Use {@link #readHttpResponse(HttpResponseMessage)}
 	 */
+	@Deprecated
 	public static String readHttpResponse(HttpURLConnection connection)
 	{
 		try {
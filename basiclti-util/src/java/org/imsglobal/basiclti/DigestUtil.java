@@ -0,0 +1,194 @@
+/*
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 IMS GLobal Learning Consortium
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.imsglobal.basiclti;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hashing helpers for the values computed on every launch and every
+ * service request (sourcedids, body hashes, signatures).
+ * <p>
+ * MessageDigest instances are kept per thread and reset before each use.
+ * Character data is encoded as UTF-8 straight into the digest so callers
+ * can hash several pieces without concatenating them first, and the result
+ * is the same as hashing the concatenated String's UTF-8 bytes.
+ */
+public class DigestUtil {
+
+	public static final String SHA1 = "SHA-1";
+	public static final String SHA256 = "SHA-256";
+	public static final String SHA512 = "SHA-512";
+
+	private static final int BUFFER_SIZE = 256;
+
+	// Two characters for each of the 256 byte values
+	private static final char[] HEX = new char[512];
+	// The non-standard mapping used by LegacyShaUtil which adds 128
+	// rather than masking with 0xff
+	private static final char[] LEGACY_HEX = new char[512];
+	static {
+		char[] digits = "0123456789abcdef".toCharArray();
+		for (int i = 0; i < 256; i++) {
+			HEX[i*2] = digits[i >>> 4];
+			HEX[i*2+1] = digits[i & 0x0f];
+			int j = ((byte) i) + 128;
+			LEGACY_HEX[i*2] = digits[j / 0x10];
+			LEGACY_HEX[i*2+1] = digits[j % 0x10];
+		}
+	}
+
+	private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS =
+		new ThreadLocal<Map<String, MessageDigest>>() {
+			@Override
+			protected Map<String, MessageDigest> initialValue() {
+				return new HashMap<String, MessageDigest>();
+			}
+		};
+
+	private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * Get this thread's digest for an algorithm, reset and ready for use.
+	 * The same instance is handed out again on the next call on this thread
+	 * so it must not be held on to.
+	 */
+	public static MessageDigest getDigest(String algorithm)
+	{
+		Map<String, MessageDigest> digests = DIGESTS.get();
+		MessageDigest md = digests.get(algorithm);
+		if ( md == null ) {
+			try {
+				md = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new Error(e);
+			}
+			digests.put(algorithm, md);
+		} else {
+			md.reset();
+		}
+		return md;
+	}
+
+	/**
+	 * Digest the UTF-8 encoding of the parts, in order, as if they were
+	 * one string.  Null parts are skipped.
+	 */
+	public static byte[] digest(String algorithm, CharSequence... parts)
+	{
+		MessageDigest md = getDigest(algorithm);
+		for (CharSequence part : parts) {
+			if ( part != null ) update(md, part);
+		}
+		return md.digest();
+	}
+
+	public static byte[] digest(String algorithm, byte[] data)
+	{
+		return getDigest(algorithm).digest(data);
+	}
+
+	/**
+	 * Add the UTF-8 encoding of some characters to a digest.  Unpaired
+	 * surrogates become '?' as they do in String.getBytes.
+	 */
+	public static void update(MessageDigest md, CharSequence chars)
+	{
+		byte[] buffer = BUFFER.get();
+		int pos = 0;
+		int length = chars.length();
+		for (int i = 0; i < length; i++) {
+			// Leave room for the longest encoding
+			if ( pos > BUFFER_SIZE - 4 ) {
+				md.update(buffer, 0, pos);
+				pos = 0;
+			}
+			char c = chars.charAt(i);
+			if ( c < 0x80 ) {
+				buffer[pos++] = (byte) c;
+			} else if ( c < 0x800 ) {
+				buffer[pos++] = (byte) (0xc0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if ( Character.isHighSurrogate(c) && i + 1 < length &&
+					Character.isLowSurrogate(chars.charAt(i+1)) ) {
+				int cp = Character.toCodePoint(c, chars.charAt(++i));
+				buffer[pos++] = (byte) (0xf0 | (cp >> 18));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if ( Character.isSurrogate(c) ) {
+				buffer[pos++] = (byte) '?';
+			} else {
+				buffer[pos++] = (byte) (0xe0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		if ( pos > 0 ) md.update(buffer, 0, pos);
+	}
+
+	/**
+	 * Lower case hex as per
+	 * http://csrc.nist.gov/groups/ST/toolkit/documents/Examples/SHA256.pdf
+	 */
+	public static String hex(byte[] bytes)
+	{
+		return toHex(bytes, HEX);
+	}
+
+	/**
+	 * The hex produced by LegacyShaUtil.byteToHex, which is not
+	 * interoperable but is stored in databases and sourcedids
+	 */
+	public static String legacyHex(byte[] bytes)
+	{
+		return toHex(bytes, LEGACY_HEX);
+	}
+
+	public static String sha1Hex(CharSequence... parts)
+	{
+		return hex(digest(SHA1, parts));
+	}
+
+	public static String sha256Hex(CharSequence... parts)
+	{
+		return hex(digest(SHA256, parts));
+	}
+
+	private static String toHex(byte[] bytes, char[] table)
+	{
+		if ( bytes == null ) return null;
+		char[] c = new char[bytes.length * 2];
+		int i = 0;
+		for (byte b : bytes) {
+			int j = (b & 0xff) * 2;
+			c[i++] = table[j];
+			c[i++] = table[j+1];
+		}
+		return new String(c);
+	}
+}
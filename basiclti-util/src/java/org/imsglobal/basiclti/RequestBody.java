@@ -0,0 +1,142 @@
+/*
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 IMS GLobal Learning Consortium
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.imsglobal.basiclti;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * The body of a signed POX or JSON service request.
+ * <p>
+ * The body is read once into a single byte buffer while the SHA-1 for
+ * oauth_body_hash is computed from the same bytes, so the body never needs
+ * to be copied or encoded again to check the hash.  Parsers can read the
+ * bytes as a stream, and the body is only decoded to a String if someone
+ * asks for it.
+ */
+public class RequestBody {
+
+	/** We don't want a DOS */
+	public static final int MAX_BODY_SIZE = 10000000;
+
+	private static final int INITIAL_SIZE = 4096;
+
+	private final byte[] buffer;
+	private final int length;
+	private final String hash;
+	private String string = null;
+
+	private RequestBody(byte[] buffer, int length, String hash)
+	{
+		this.buffer = buffer;
+		this.length = length;
+		this.hash = hash;
+	}
+
+	/**
+	 * Read a body and compute its hash.  The stream is not closed.
+	 *
+	 * @param in The body
+	 * @param expectedLength The Content-Length if known, or -1
+	 * @throws IOException if the stream fails or the body is larger
+	 *  than MAX_BODY_SIZE
+	 */
+	public static RequestBody read(InputStream in, int expectedLength) throws IOException
+	{
+		MessageDigest md = DigestUtil.getDigest(DigestUtil.SHA1);
+		DigestInputStream digestIn = new DigestInputStream(in, md);
+		int size = expectedLength > 0 && expectedLength <= MAX_BODY_SIZE ? expectedLength + 1 : INITIAL_SIZE;
+		byte[] buffer = new byte[size];
+		int length = 0;
+		int read;
+		while ( (read = digestIn.read(buffer, length, buffer.length - length)) >= 0 ) {
+			length += read;
+			if ( length > MAX_BODY_SIZE ) {
+				throw new IOException("Message body size exceeded");
+			}
+			if ( length == buffer.length ) {
+				byte[] bigger = new byte[Math.min(buffer.length * 2, MAX_BODY_SIZE + 1)];
+				System.arraycopy(buffer, 0, bigger, 0, length);
+				buffer = bigger;
+			}
+		}
+		String hash = new String(Base64.encode(md.digest()), "UTF-8");
+		return new RequestBody(buffer, length, hash);
+	}
+
+	/**
+	 * The base64 SHA-1 of the body, as sent in oauth_body_hash
+	 */
+	public String getHash()
+	{
+		return hash;
+	}
+
+	public boolean matches(String oauth_body_hash)
+	{
+		return hash.equals(oauth_body_hash);
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * The raw bytes of the body, without copying them
+	 */
+	public InputStream getInputStream()
+	{
+		return new ByteArrayInputStream(buffer, 0, length);
+	}
+
+	/**
+	 * The body as UTF-8 characters, without building a String
+	 */
+	public Reader getReader()
+	{
+		try {
+			return new InputStreamReader(getInputStream(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * The body decoded as UTF-8 - decoded on first use
+	 */
+	public String getString()
+	{
+		if ( string == null ) {
+			try {
+				string = new String(buffer, 0, length, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new Error(e);
+			}
+		}
+		return string;
+	}
+}
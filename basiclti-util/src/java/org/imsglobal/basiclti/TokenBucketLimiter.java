@@ -0,0 +1,165 @@
+/*
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 IMS GLobal Learning Consortium
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.imsglobal.basiclti;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One token bucket per key.  Each bucket holds up to burst tokens and
+ * gains rate tokens a second, and every request admitted takes one:
+ * <pre>
+ *    TokenBucketLimiter limiter = new TokenBucketLimiter(10.0, 50, 10000);
+ *    long wait = limiter.acquire(oauth_consumer_key);
+ *    if ( wait > 0 ) ... reject, try again in wait milliseconds
+ * </pre>
+ * A full bucket is the same as no bucket so idle keys are dropped when
+ * there are more than maxKeys of them.  If every bucket is busy, keys
+ * beyond maxKeys share one bucket rather than growing the map.
+ * <p>
+ * A TokenBucketLimiter is thread safe.
+ */
+public class TokenBucketLimiter {
+
+	public static final String OVERFLOW_KEY = "";
+
+	private final double ratePerNano;
+	private final double burst;
+	private final int maxKeys;
+
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+	private final Bucket overflow;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param rate Tokens added to each bucket per second, must be more than zero
+	 * @param burst The most tokens a bucket holds - at least one
+	 * @param maxKeys How many keys get their own bucket
+	 */
+	public TokenBucketLimiter(double rate, int burst, int maxKeys)
+	{
+		if ( rate <= 0 ) throw new IllegalArgumentException("rate must be positive");
+		this.ratePerNano = rate / 1000000000.0;
+		this.burst = Math.max(1, burst);
+		this.maxKeys = Math.max(1, maxKeys);
+		this.overflow = new Bucket(this.burst, nanoTime());
+	}
+
+	/**
+	 * Take a token for the key
+	 *
+	 * @return 0 if the request is admitted, otherwise how many milliseconds
+	 *  (at least 1) until a token will be there
+	 */
+	public long acquire(String key)
+	{
+		long now = nanoTime();
+		Bucket bucket = getBucket(key == null ? OVERFLOW_KEY : key, now);
+		long wait;
+		synchronized (bucket) {
+			bucket.refill(now, ratePerNano, burst);
+			if ( bucket.tokens >= 1.0 ) {
+				bucket.tokens -= 1.0;
+				wait = 0;
+			} else {
+				wait = Math.max(1L, (long) Math.ceil((1.0 - bucket.tokens) / ratePerNano / 1000000.0));
+			}
+		}
+		if ( wait == 0 ) {
+			admitted.incrementAndGet();
+		} else {
+			rejected.incrementAndGet();
+		}
+		return wait;
+	}
+
+	public long getAdmitted()
+	{
+		return admitted.get();
+	}
+
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * How many keys have their own bucket right now
+	 */
+	public int size()
+	{
+		return buckets.size();
+	}
+
+	/**
+	 * The clock, in nanoseconds - tests move it by hand
+	 */
+	protected long nanoTime()
+	{
+		return System.nanoTime();
+	}
+
+	private Bucket getBucket(String key, long now)
+	{
+		Bucket bucket = buckets.get(key);
+		if ( bucket != null ) return bucket;
+		if ( buckets.size() >= maxKeys ) {
+			dropIdle(now);
+			if ( buckets.size() >= maxKeys ) return overflow;
+		}
+		Bucket created = new Bucket(burst, now);
+		bucket = buckets.putIfAbsent(key, created);
+		return bucket == null ? created : bucket;
+	}
+
+	// Buckets that have filled up again carry no state worth keeping
+	private void dropIdle(long now)
+	{
+		for (Iterator<Bucket> i = buckets.values().iterator(); i.hasNext(); ) {
+			Bucket bucket = i.next();
+			synchronized (bucket) {
+				bucket.refill(now, ratePerNano, burst);
+				if ( bucket.tokens >= burst ) i.remove();
+			}
+		}
+	}
+
+	private static class Bucket {
+		double tokens;
+		long updated;
+
+		Bucket(double tokens, long now)
+		{
+			this.tokens = tokens;
+			this.updated = now;
+		}
+
+		void refill(long now, double ratePerNano, double burst)
+		{
+			long elapsed = now - updated;
+			if ( elapsed <= 0 ) return;
+			tokens = Math.min(burst, tokens + elapsed * ratePerNano);
+			updated = now;
+		}
+	}
+}
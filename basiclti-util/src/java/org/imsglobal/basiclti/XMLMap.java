@@ -174,7 +174,8 @@ package org.imsglobal.basiclti;
  */
 
 import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -183,8 +184,6 @@ import java.util.HashSet;
 import java.util.TreeMap;
 import java.util.Iterator;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 
 import org.w3c.dom.Document;
@@ -202,12 +201,14 @@ public class XMLMap {
 
 	private static boolean DF = false;
 	
+	// This is done in one StAX pass - see XMLPaths to pull out only the
+	// paths you need
 	public static Map<String,String> getMap(String str)
 	{
 		if ( str == null ) return null;
-		Document doc = documentFromString(str);
-		if ( doc == null ) return null;
-		return getMap(doc);
+		Map<String,String> found = XMLPaths.all().extract(str);
+		if ( found == null ) return null;
+		return new TreeMap<String,String>(found);
 	}
 
 	public static Map<String,String> getMap(Node doc)
@@ -262,12 +263,7 @@ public class XMLMap {
 	public static Document documentFromString(String input)
 	{
 		try{
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance(); 
-			factory.setFeature("http://xml.org/sax/features/external-general-entities", false); 
-			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false); 
-			DocumentBuilder parser = factory.newDocumentBuilder();
-			Document document = parser.parse(new ByteArrayInputStream(input.getBytes()));
-			return document;
+			return XMLParsers.parse(input);
 		} catch (Exception e) {
 			return null;
 		}
@@ -411,32 +407,33 @@ public class XMLMap {
 
 	public static String getXML(Map<?, ?> tm)
 	{
-		Document document = getXMLDom(tm);
-		if ( document == null ) return null;
-		return documentToString(document, false);
+		return getXML(tm, false);
 	}
 
+	// The XML is written by XMLMapWriter in one pass, indented as it goes,
+	// rather than being built as a DOM and transformed
 	public static String getXMLFragment(Map<?, ?> tm, boolean pretty)
 	{
-		String retval = getXML(tm, pretty);
-		if ( retval.startsWith("<?xml") ) {
-			int pos = retval.indexOf("<",1);
-			if ( pos > 0 ) retval = retval.substring(pos);
+		if ( tm == null ) return null;
+		StringWriter sw = new StringWriter();
+		try {
+			XMLMapWriter.writeFragment(tm, sw, pretty);
+		} catch (IOException e) {
+			return null;
 		}
-		return retval;
+		return sw.toString();
 	}
 
 	public static String getXML(Map<?, ?> tm, boolean pretty)
 	{
-		Document document = getXMLDom(tm);
-		if ( document == null ) return null;
-		String retval = documentToString(document, pretty);
-		// Since the built in transform seems unable to indent
-		// We patch it ourselves to keep from being ugly
-		if ( pretty ) {
-			retval = prettyPostProcess(retval);
+		if ( tm == null ) return null;
+		StringWriter sw = new StringWriter();
+		try {
+			XMLMapWriter.writeDocument(tm, sw, pretty);
+		} catch (IOException e) {
+			return null;
 		}
-		return retval;
+		return sw.toString();
 	}
 	
 	// This process a pretty print from an input string - 
@@ -451,52 +448,13 @@ public class XMLMap {
         return XMLMap.getXML(theMap, true);
 	}
 
-	private static String prettyPostProcess(String inString)
-	{
-		StringBuffer sb = new StringBuffer();
-		int depth = 0;
-		boolean newLine = false;
-		for (int i=0; i<inString.length(); i++ ) 
-		{
-			char ch = inString.charAt(i);
-			char nc = ' ';
-			if ( (i+1) < inString.length() ) nc = inString.charAt(i+1);
-			if ( ch == '\n' ) 
-			{ 
-				sb.append('\n');
-				newLine = true;
-				continue;
-			}
-			// Eat Leading whitespace
-			if ( newLine && ( ch == ' ' || ch == '\t' ) ) continue; 
-
-			// Decrement depth if the first non-space is an end-tag
-			if ( ch == '<' && nc == '/' ) depth--;
-			if ( newLine ) 
-			{
-				for (int j=0; j<depth && j < 15; j++) sb.append("  ");
-				newLine = false;
-			}
-
-			// Update depth if necessary
-			if ( ch == '<' && ! ( nc == '/' || nc == '?' )) depth++;
-
-			sb.append(ch);
-		}
-		return sb.toString();
-	}
-
 	public static Document getXMLDom(Map<?, ?> tm)
 	{
 		if ( tm == null ) return null;
 		Document document = null;
 
 		try{
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance(); 
-			factory.setFeature("http://xml.org/sax/features/external-general-entities", false); 
-			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false); 
-			DocumentBuilder parser = factory.newDocumentBuilder();
-			document = parser.newDocument();
+			document = XMLParsers.newDocument();
 		} catch (Exception e) {
 			return null;
 		}
@@ -750,8 +708,7 @@ public class XMLMap {
 	public static String nodeToString(Node node, boolean pretty)
 	{
 		try {
-			javax.xml.transform.Transformer tf =
-				javax.xml.transform.TransformerFactory.newInstance().newTransformer();
+			javax.xml.transform.Transformer tf = XMLParsers.getTransformer();
 			if ( pretty ) {
 				tf.setOutputProperty(OutputKeys.INDENT, "yes");
 				tf.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
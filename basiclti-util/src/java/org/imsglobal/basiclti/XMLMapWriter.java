@@ -0,0 +1,419 @@
+/*
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 IMS GLobal Learning Consortium
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.imsglobal.basiclti;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes XML straight to a Writer through an XMLStreamWriter, indenting as
+ * it goes.  Maps in the form taken by XMLMap.getXML can be written at any
+ * point, with elements written one at a time around them:
+ * <pre>
+ *    XMLMapWriter writer = new XMLMapWriter(response.getWriter(), true);
+ *    writer.startDocument();
+ *    writer.startElement("message_response");
+ *    writer.element("status", "success");
+ *    writer.map(theMap);
+ *    writer.endDocument();
+ * </pre>
+ * A map is laid out exactly as XMLMap.getXMLDom lays it out, but into a
+ * small tree of its own rather than a DOM, and nothing is transformed or
+ * re-indented after it is written.
+ * <p>
+ * An XMLMapWriter is not thread safe.
+ */
+public class XMLMapWriter {
+
+	private static final String[] INDENTS = new String[16];
+	static {
+		String indent = "\n";
+		for (int i = 0; i < INDENTS.length; i++) {
+			INDENTS[i] = indent;
+			indent = indent + "  ";
+		}
+	}
+
+	private final Writer out;
+	private final XMLStreamWriter writer;
+	private final boolean pretty;
+	// One entry per open element - true once it has a child element
+	private final List<Boolean> open = new ArrayList<Boolean>();
+	private boolean written = false;
+
+	/**
+	 * @param out Where to write - it is flushed by endDocument but not closed
+	 * @param pretty Put each element on its own line, indented two spaces
+	 *  for each level
+	 */
+	public XMLMapWriter(Writer out, boolean pretty) throws XMLStreamException
+	{
+		this.out = out;
+		this.pretty = pretty;
+		this.writer = XMLParsers.createXMLStreamWriter(out);
+	}
+
+	/**
+	 * Write a whole document for a map, with an XML declaration
+	 */
+	public static void writeDocument(Map<?, ?> tm, Writer out, boolean pretty) throws IOException
+	{
+		try {
+			XMLMapWriter writer = new XMLMapWriter(out, pretty);
+			writer.startDocument();
+			writer.map(tm);
+			writer.endDocument();
+		} catch (XMLStreamException e) {
+			throw ioException(e);
+		}
+	}
+
+	/**
+	 * Write a map without an XML declaration
+	 */
+	public static void writeFragment(Map<?, ?> tm, Writer out, boolean pretty) throws IOException
+	{
+		try {
+			XMLMapWriter writer = new XMLMapWriter(out, pretty);
+			writer.map(tm);
+			writer.endDocument();
+		} catch (XMLStreamException e) {
+			throw ioException(e);
+		}
+	}
+
+	/**
+	 * The IOException behind a failed write, or a new one describing it
+	 */
+	public static IOException ioException(XMLStreamException e)
+	{
+		if ( e.getNestedException() instanceof IOException ) {
+			return (IOException) e.getNestedException();
+		}
+		IOException ioe = new IOException(e.getMessage());
+		ioe.initCause(e);
+		return ioe;
+	}
+
+	public void startDocument() throws XMLStreamException
+	{
+		writer.writeStartDocument("UTF-8", "1.0");
+		written = true;
+	}
+
+	public void startElement(String name) throws XMLStreamException
+	{
+		indent();
+		writer.writeStartElement(name);
+		open.add(Boolean.FALSE);
+	}
+
+	/**
+	 * Set the default namespace of the element just started
+	 */
+	public void namespace(String uri) throws XMLStreamException
+	{
+		writer.writeDefaultNamespace(uri);
+	}
+
+	/**
+	 * Add an attribute to the element just started
+	 */
+	public void attribute(String name, String value) throws XMLStreamException
+	{
+		writer.writeAttribute(name, value);
+	}
+
+	/**
+	 * Write an element containing only text, or an empty element if the
+	 * text is null or empty
+	 */
+	public void element(String name, String text) throws XMLStreamException
+	{
+		indent();
+		if ( text == null || text.length() < 1 ) {
+			writer.writeEmptyElement(name);
+		} else {
+			writer.writeStartElement(name);
+			writer.writeCharacters(text);
+			writer.writeEndElement();
+		}
+	}
+
+	public void characters(String text) throws XMLStreamException
+	{
+		writer.writeCharacters(text);
+	}
+
+	public void endElement() throws XMLStreamException
+	{
+		boolean children = open.remove(open.size()-1).booleanValue();
+		if ( children && pretty ) writer.writeCharacters(indentation(open.size()));
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Write XML that has already been serialized, as a child of the open
+	 * element.  An XML declaration at the start is dropped.
+	 */
+	public void raw(String xml) throws XMLStreamException
+	{
+		if ( xml == null ) return;
+		if ( xml.startsWith("<?xml") ) {
+			int pos = xml.indexOf("<",1);
+			xml = pos > 0 ? xml.substring(pos) : "";
+		}
+		xml = xml.trim();
+		if ( xml.length() < 1 ) return;
+		// Writing characters finishes any open start tag before we go around the writer
+		int depth = open.size();
+		if ( depth > 0 ) open.set(depth-1, Boolean.TRUE);
+		writer.writeCharacters(pretty ? "\n" : "");
+		writer.flush();
+		try {
+			out.write(xml);
+		} catch (IOException e) {
+			throw new XMLStreamException(e);
+		}
+		written = true;
+	}
+
+	/**
+	 * Write the elements described by a map as children of the open
+	 * element (or at the top level if no element is open).
+	 */
+	public void map(Map<?, ?> tm) throws XMLStreamException
+	{
+		if ( tm == null ) return;
+		Element root = new Element(null);
+		iterateMap(root, tm);
+		content(root);
+	}
+
+	/**
+	 * Close any open elements and flush everything to the Writer
+	 */
+	public void endDocument() throws XMLStreamException
+	{
+		while ( open.size() > 0 ) endElement();
+		writer.writeEndDocument();
+		writer.flush();
+	}
+
+	public void flush() throws XMLStreamException
+	{
+		writer.flush();
+	}
+
+	private void indent() throws XMLStreamException
+	{
+		int depth = open.size();
+		if ( depth > 0 ) open.set(depth-1, Boolean.TRUE);
+		if ( pretty && written ) writer.writeCharacters(indentation(depth));
+		written = true;
+	}
+
+	private static String indentation(int depth)
+	{
+		if ( depth < INDENTS.length ) return INDENTS[depth];
+		StringBuilder sb = new StringBuilder(INDENTS[INDENTS.length-1]);
+		for (int i = INDENTS.length-1; i < depth; i++) sb.append("  ");
+		return sb.toString();
+	}
+
+	private void write(Element element) throws XMLStreamException
+	{
+		if ( element.content == null ) {
+			indent();
+			writer.writeEmptyElement(element.name);
+			attributes(element);
+		} else if ( ! element.hasChildren() ) {
+			indent();
+			writer.writeStartElement(element.name);
+			attributes(element);
+			content(element);
+			writer.writeEndElement();
+		} else {
+			startElement(element.name);
+			attributes(element);
+			content(element);
+			endElement();
+		}
+	}
+
+	private void attributes(Element element) throws XMLStreamException
+	{
+		if ( element.attributes == null ) return;
+		for (Map.Entry<String, String> entry : element.attributes.entrySet()) {
+			writer.writeAttribute(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void content(Element element) throws XMLStreamException
+	{
+		if ( element.content == null ) return;
+		for (Object item : element.content) {
+			if ( item instanceof Element ) {
+				write((Element) item);
+			} else {
+				writer.writeCharacters((String) item);
+			}
+		}
+	}
+
+	// An element as laid out by XMLMap.getXMLDom - the content is text and
+	// child elements in document order.  Attributes are kept sorted as the
+	// DOM keeps them.
+	private static class Element {
+		final String name;
+		Map<String, String> attributes = null;
+		List<Object> content = null;
+		// Child elements by name so long lists are not searched on every add
+		Map<String, List<Element>> named = null;
+
+		Element(String name)
+		{
+			this.name = name;
+		}
+
+		void add(Object item)
+		{
+			if ( content == null ) content = new ArrayList<Object>();
+			content.add(item);
+		}
+
+		void attribute(String name, String value)
+		{
+			if ( attributes == null ) attributes = new TreeMap<String, String>();
+			attributes.put(name, value);
+		}
+
+		boolean hasChildren()
+		{
+			if ( content == null ) return false;
+			for (Object item : content) {
+				if ( item instanceof Element ) return true;
+			}
+			return false;
+		}
+
+		// The which'th child with the name, adding as many as needed.  A name
+		// like "item[2]" picks its own position.
+		Element child(String name, int which)
+		{
+			int begpos = name.indexOf('[');
+			int endpos = name.indexOf(']');
+			if ( begpos > 0 && endpos > begpos ) {
+				which = Integer.parseInt(name.substring(begpos+1, endpos));
+				name = name.substring(0, begpos);
+			}
+			if ( named == null ) named = new HashMap<String, List<Element>>();
+			List<Element> children = named.get(name);
+			if ( children == null ) {
+				children = new ArrayList<Element>();
+				named.put(name, children);
+			}
+			while ( children.size() <= which ) {
+				Element element = new Element(name);
+				children.add(element);
+				add(element);
+			}
+			return children.get(which);
+		}
+	}
+
+	// Same walk as XMLMap.iterateMap
+	private static void iterateMap(Element parent, Map<?, ?> tm)
+	{
+		for (Map.Entry<?, ?> entry : tm.entrySet()) {
+			if ( ! ( entry.getKey() instanceof String ) ) continue;
+			String key = (String) entry.getKey();
+			if ( ! key.startsWith("/") ) continue;
+			Object obj = entry.getValue();
+			if ( obj instanceof String ) {
+				store(parent, key, (String) obj, 0);
+			} else if ( obj instanceof String [] ) {
+				String [] strArray = (String []) obj;
+				for (int i = 0; i < strArray.length; i++) {
+					store(parent, key, strArray[i], i);
+				}
+			} else if ( obj instanceof Map ) {
+				iterateMap(elementAtPath(parent, key, 0), (Map<?, ?>) obj);
+			} else if ( obj instanceof List ) {
+				int newPos = 0;
+				for (Object listObj : (List<?>) obj) {
+					if ( listObj instanceof String ) {
+						store(parent, key, (String) listObj, newPos);
+						newPos++;
+					} else if ( listObj instanceof Map ) {
+						iterateMap(elementAtPath(parent, key, newPos), (Map<?, ?>) listObj);
+						newPos++;
+					}
+				}
+			}
+		}
+	}
+
+	private static void store(Element parent, String key, String value, int nodePos)
+	{
+		if ( value == null ) return;
+		int pos = key.lastIndexOf('/');
+		String attr = null;
+		int bang = key.indexOf('!', pos);
+		if ( bang > 0 ) {
+			attr = key.substring(bang+1);
+			key = key.substring(0, bang);
+		}
+		Element element = elementAtPath(parent, key, nodePos);
+		// Like a Document, the top level holds neither attributes nor text
+		if ( element.name == null ) return;
+		if ( attr != null ) {
+			element.attribute(attr, value);
+		} else if ( value.length() > 0 ) {
+			element.add(value);
+		}
+	}
+
+	// The element at a path below parent, adding whatever is missing.  Only
+	// the last step in the path uses nodePos.
+	private static Element elementAtPath(Element parent, String path, int nodePos)
+	{
+		String [] newPath = path.split("/");
+		for (int i = 1; i < newPath.length; i++) {
+			String nodeName = newPath[i];
+			if ( i == newPath.length-1 ) {
+				int bang = nodeName.indexOf('!');
+				if ( bang > 0 ) nodeName = nodeName.substring(0, bang);
+				parent = parent.child(nodeName, nodePos);
+			} else {
+				parent = parent.child(nodeName, 0);
+			}
+		}
+		return parent;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 IMS GLobal Learning Consortium
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.imsglobal.basiclti;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * The XML parsers, transformers and XPath objects used in basiclti-util.
+ * <p>
+ * Looking up JAXP factories is slow and takes a lock on the class loader so
+ * the factories are created and configured once.  None of the JAXP objects
+ * are thread safe, so each thread gets its own DocumentBuilder and
+ * Transformer which are reset before each use, and compiled XPath
+ * expressions are held per thread by an {@link Expression}.
+ * StAX readers come from one shared XMLInputFactory, which is thread safe
+ * once it is configured, so creating a reader takes no lock.  Writers come
+ * from one shared XMLOutputFactory.
+ * <p>
+ * Parsers never fetch external entities or DTDs.
+ */
+public class XMLParsers {
+
+	private static final DocumentBuilderFactory BUILDER_FACTORY = newBuilderFactory();
+	private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+	private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();
+	private static final XMLInputFactory INPUT_FACTORY = newInputFactory();
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	private static final ThreadLocal<DocumentBuilder> BUILDER = new ThreadLocal<DocumentBuilder>();
+	private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<Transformer>();
+
+	private static DocumentBuilderFactory newBuilderFactory()
+	{
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		setFeature(factory, "http://xml.org/sax/features/external-general-entities", false);
+		setFeature(factory, "http://xml.org/sax/features/external-parameter-entities", false);
+		setFeature(factory, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		factory.setXIncludeAware(false);
+		return factory;
+	}
+
+	private static XMLInputFactory newInputFactory()
+	{
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		// Keep CDATA apart from text so readers can treat it the way the DOM does
+		String reportCdata = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+		if ( factory.isPropertySupported(reportCdata) ) factory.setProperty(reportCdata, Boolean.TRUE);
+		return factory;
+	}
+
+	// Not every parser knows every feature - we take what we can get
+	private static void setFeature(DocumentBuilderFactory factory, String feature, boolean value)
+	{
+		try {
+			factory.setFeature(feature, value);
+		} catch (ParserConfigurationException e) {
+			// Not supported by this parser
+		}
+	}
+
+	/**
+	 * This thread's DocumentBuilder, reset and ready to use.  Documents
+	 * it has already produced are not affected by the reset.
+	 */
+	public static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException
+	{
+		DocumentBuilder builder = BUILDER.get();
+		if ( builder == null ) {
+			synchronized (BUILDER_FACTORY) {
+				builder = BUILDER_FACTORY.newDocumentBuilder();
+			}
+			BUILDER.set(builder);
+		} else {
+			builder.reset();
+		}
+		return builder;
+	}
+
+	public static Document parse(String xml)
+		throws ParserConfigurationException, SAXException, IOException
+	{
+		return getDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+	}
+
+	public static Document parse(InputStream xml)
+		throws ParserConfigurationException, SAXException, IOException
+	{
+		return getDocumentBuilder().parse(xml);
+	}
+
+	public static Document newDocument() throws ParserConfigurationException
+	{
+		return getDocumentBuilder().newDocument();
+	}
+
+	public static XMLStreamReader createXMLStreamReader(Reader xml) throws XMLStreamException
+	{
+		return INPUT_FACTORY.createXMLStreamReader(xml);
+	}
+
+	public static XMLStreamReader createXMLStreamReader(InputStream xml) throws XMLStreamException
+	{
+		return INPUT_FACTORY.createXMLStreamReader(xml);
+	}
+
+	public static XMLStreamWriter createXMLStreamWriter(Writer out) throws XMLStreamException
+	{
+		synchronized (OUTPUT_FACTORY) {
+			return OUTPUT_FACTORY.createXMLStreamWriter(out);
+		}
+	}
+
+	/**
+	 * This thread's Transformer with its output properties cleared
+	 */
+	public static Transformer getTransformer() throws TransformerConfigurationException
+	{
+		Transformer transformer = TRANSFORMER.get();
+		if ( transformer == null ) {
+			synchronized (TRANSFORMER_FACTORY) {
+				transformer = TRANSFORMER_FACTORY.newTransformer();
+			}
+			TRANSFORMER.set(transformer);
+		} else {
+			transformer.reset();
+		}
+		return transformer;
+	}
+
+	public static XPath newXPath()
+	{
+		synchronized (XPATH_FACTORY) {
+			return XPATH_FACTORY.newXPath();
+		}
+	}
+
+	/**
+	 * An XPath expression compiled once for each thread that uses it
+	 */
+	public static class Expression extends ThreadLocal<XPathExpression> {
+
+		private final String path;
+
+		public Expression(String path)
+		{
+			this.path = path;
+		}
+
+		@Override
+		protected XPathExpression initialValue()
+		{
+			try {
+				return newXPath().compile(path);
+			} catch (XPathExpressionException e) {
+				throw new IllegalArgumentException("Bad XPath " + path, e);
+			}
+		}
+
+		public String getPath()
+		{
+			return path;
+		}
+	}
+}
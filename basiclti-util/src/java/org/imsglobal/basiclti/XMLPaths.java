@@ -0,0 +1,321 @@
+/*
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2013 IMS GLobal Learning Consortium
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.imsglobal.basiclti;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pulls a known set of XMLMap style paths out of a document in one StAX
+ * pass without building a DOM.
+ * <pre>
+ *    private static final XMLPaths PATHS = new XMLPaths(
+ *        "/resultRecord/sourcedGUID/sourcedId",
+ *        "/resultRecord/result/resultScore/textString");
+ *    ...
+ *    Map&lt;String,String&gt; values = PATHS.extract(reader);
+ * </pre>
+ * The values are the ones XMLMap.getMap would return for the same paths:
+ * the first text node of an element (if it is not blank), attributes as
+ * path!name, and only the first child element with any given name is
+ * followed.  Elements that no wanted path goes through are skipped.
+ * <p>
+ * An XMLPaths is immutable once built and can be shared between threads.
+ */
+public class XMLPaths {
+
+	// One level of the wanted paths
+	private static class Step {
+		final boolean all;
+		boolean text = false;
+		Set<String> attributes = null;
+		Map<String, Step> children = null;
+
+		Step(boolean all)
+		{
+			this.all = all;
+		}
+
+		Step child(String name)
+		{
+			if ( all ) return this;
+			return children == null ? null : children.get(name);
+		}
+
+		boolean wantsAttribute(String name)
+		{
+			return all || ( attributes != null && attributes.contains(name) );
+		}
+	}
+
+	private static final XMLPaths ALL = new XMLPaths(new Step(true));
+
+	private final Step root;
+
+	/**
+	 * @param paths Paths in the form used as keys by XMLMap.getMap, such as
+	 *  "/resultRecord/sourcedGUID/sourcedId" or "/a/b!attr"
+	 */
+	public XMLPaths(String... paths)
+	{
+		root = new Step(false);
+		for (String path : paths) {
+			String attribute = null;
+			int pos = path.indexOf('!');
+			if ( pos >= 0 ) {
+				attribute = path.substring(pos+1);
+				path = path.substring(0, pos);
+			}
+			Step step = root;
+			for (String name : path.split("/")) {
+				if ( name.length() < 1 ) continue;
+				if ( step.children == null ) step.children = new HashMap<String, Step>();
+				Step next = step.children.get(name);
+				if ( next == null ) {
+					next = new Step(false);
+					step.children.put(name, next);
+				}
+				step = next;
+			}
+			if ( attribute == null ) {
+				step.text = true;
+			} else {
+				if ( step.attributes == null ) step.attributes = new HashSet<String>();
+				step.attributes.add(attribute);
+			}
+		}
+	}
+
+	private XMLPaths(Step root)
+	{
+		this.root = root;
+	}
+
+	/**
+	 * Paths that match everything - this produces the same map as XMLMap.getMap
+	 */
+	public static XMLPaths all()
+	{
+		return ALL;
+	}
+
+	/**
+	 * Extract from a whole document.  Paths start with the name of the
+	 * root element.
+	 *
+	 * @return The values found, or null if the document could not be parsed
+	 */
+	public Map<String,String> extract(String xml)
+	{
+		if ( xml == null ) return null;
+		try {
+			return extractDocument(XMLParsers.createXMLStreamReader(new StringReader(xml)));
+		} catch (XMLStreamException e) {
+			return null;
+		}
+	}
+
+	public Map<String,String> extract(InputStream xml)
+	{
+		if ( xml == null ) return null;
+		try {
+			return extractDocument(XMLParsers.createXMLStreamReader(xml));
+		} catch (XMLStreamException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Extract from the element the reader is positioned on.  Paths are
+	 * relative to that element, as they are for XMLMap.getMap(Node).
+	 * The reader is left on the element's END_ELEMENT.
+	 */
+	public Map<String,String> extract(XMLStreamReader reader) throws XMLStreamException
+	{
+		if ( reader.getEventType() != XMLStreamConstants.START_ELEMENT ) {
+			throw new IllegalStateException("Reader is not at the start of an element");
+		}
+		Map<String,String> retval = new HashMap<String,String>();
+		element(reader, root, "", retval);
+		return retval;
+	}
+
+	/**
+	 * The entries of a map made by a wider XMLPaths (such as all()) that
+	 * these paths would have extracted.  This lets one pass over a document
+	 * serve several sets of paths.
+	 */
+	public Map<String,String> select(Map<String,String> values)
+	{
+		if ( values == null ) return null;
+		Map<String,String> retval = new HashMap<String,String>();
+		for (Map.Entry<String,String> entry : values.entrySet()) {
+			if ( wants(entry.getKey()) ) retval.put(entry.getKey(), entry.getValue());
+		}
+		return retval;
+	}
+
+	/**
+	 * @param path A key as made by extract, such as "/a/b" or "/a/b!attr"
+	 */
+	public boolean wants(String path)
+	{
+		String attribute = null;
+		int pos = path.indexOf('!');
+		if ( pos >= 0 ) {
+			attribute = path.substring(pos+1);
+			path = path.substring(0, pos);
+		}
+		Step step = root;
+		for (String name : path.split("/")) {
+			if ( name.length() < 1 ) continue;
+			step = step.child(name);
+			if ( step == null ) return false;
+		}
+		if ( attribute != null ) return step.wantsAttribute(attribute);
+		return step.all || step.text;
+	}
+
+	private Map<String,String> extractDocument(XMLStreamReader reader) throws XMLStreamException
+	{
+		try {
+			Map<String,String> retval = new HashMap<String,String>();
+			boolean found = false;
+			while ( reader.hasNext() ) {
+				int event = reader.next();
+				if ( event == XMLStreamConstants.START_ELEMENT && ! found ) {
+					found = true;
+					String name = qualifiedName(reader);
+					Step step = root.child(name);
+					if ( step == null ) {
+						skip(reader);
+					} else {
+						element(reader, step, "/" + name, retval);
+					}
+				}
+			}
+			return retval;
+		} finally {
+			reader.close();
+		}
+	}
+
+	// The reader is on the START_ELEMENT for path and is left on its END_ELEMENT
+	private void element(XMLStreamReader reader, Step step, String path, Map<String,String> retval)
+		throws XMLStreamException
+	{
+		attributes(reader, step, path, retval);
+
+		StringBuilder text = null;
+		boolean textDone = false;
+		Set<String> followed = null;
+		while ( reader.hasNext() ) {
+			int event = reader.next();
+			switch (event) {
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					if ( ! textDone ) {
+						if ( text == null ) text = new StringBuilder();
+						text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					}
+					break;
+				case XMLStreamConstants.START_ELEMENT:
+					if ( text != null && ! textDone ) textDone = text(step, path, text, retval);
+					String name = qualifiedName(reader);
+					Step child = step.child(name);
+					if ( followed == null ) followed = new HashSet<String>();
+					if ( child == null || ! followed.add(name) ) {
+						skip(reader);
+					} else {
+						String childPath = ( path.length() < 1 || "/".equals(path) ) ? "/" + name : path + "/" + name;
+						element(reader, child, childPath, retval);
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if ( text != null && ! textDone ) text(step, path, text, retval);
+					return;
+				default:
+					// Comments, CDATA and the like end a text node as they do in a DOM
+					if ( text != null && ! textDone ) textDone = text(step, path, text, retval);
+					break;
+			}
+		}
+	}
+
+	// Only the first text node counts even if it is blank
+	private static boolean text(Step step, String path, StringBuilder text, Map<String,String> retval)
+	{
+		if ( step.all || step.text ) {
+			String value = text.toString();
+			if ( value.trim().length() > 0 ) retval.put(path, value);
+		}
+		return true;
+	}
+
+	// Namespace declarations are attributes to the (non namespace aware) DOM
+	private static void attributes(XMLStreamReader reader, Step step, String path, Map<String,String> retval)
+	{
+		if ( ! step.all && step.attributes == null ) return;
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String prefix = reader.getNamespacePrefix(i);
+			String name = ( prefix == null || prefix.length() < 1 ) ? "xmlns" : "xmlns:" + prefix;
+			attribute(step, path, name, reader.getNamespaceURI(i), retval);
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String prefix = reader.getAttributePrefix(i);
+			String local = reader.getAttributeLocalName(i);
+			String name = ( prefix == null || prefix.length() < 1 ) ? local : prefix + ":" + local;
+			attribute(step, path, name, reader.getAttributeValue(i), retval);
+		}
+	}
+
+	private static void attribute(Step step, String path, String name, String value, Map<String,String> retval)
+	{
+		if ( name == null || name.trim().length() < 1 ||
+				value == null || value.trim().length() < 1 ) return;
+		if ( step.wantsAttribute(name) ) retval.put(path + "!" + name, value);
+	}
+
+	private static String qualifiedName(XMLStreamReader reader)
+	{
+		String prefix = reader.getPrefix();
+		if ( prefix == null || prefix.length() < 1 ) return reader.getLocalName();
+		return prefix + ":" + reader.getLocalName();
+	}
+
+	// Move past the element the reader is on without looking at it
+	private static void skip(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+		while ( depth > 0 && reader.hasNext() ) {
+			int event = reader.next();
+			if ( event == XMLStreamConstants.START_ELEMENT ) depth++;
+			if ( event == XMLStreamConstants.END_ELEMENT ) depth--;
+		}
+	}
+}
@@ -1,16 +1,15 @@
 package org.imsglobal.json;
 
-import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URLDecoder;
-import java.security.MessageDigest;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
-import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -22,7 +21,7 @@ import net.oauth.SimpleOAuthValidator;
 import net.oauth.server.OAuthServlet;
 import net.oauth.signature.OAuthSignatureMethod;
 
-import org.imsglobal.basiclti.Base64;
+import org.imsglobal.basiclti.RequestBody;
 import org.json.simple.JSONValue;
 
 public class IMSJSONRequest {
@@ -37,7 +36,9 @@ public class IMSJSONRequest {
 	public final static String CODE_MAJOR_FAILURE = "failure";
 	public final static String CODE_MAJOR_UNSUPPORTED = "unsupported";
 
+	// Use getPostBody() - this is only filled in once the body is decoded
 	public String postBody = null;
+	private RequestBody body = null;
 	private String header = null;
 	private String oauth_body_hash = null;
 	private String oauth_consumer_key = null;
@@ -53,11 +54,21 @@ public class IMSJSONRequest {
 		return oauth_consumer_key;
 	}
 
+	// Decoded on first use when the body came from a request
 	public String getPostBody()
 	{
+		if ( postBody == null && body != null ) postBody = body.getString();
 		return postBody;
 	}
 
+	// Hand this to JSONValue.parse rather than decoding the whole body first
+	public Reader getPostBodyReader()
+	{
+		if ( body != null ) return body.getReader();
+		if ( postBody == null ) return null;
+		return new StringReader(postBody);
+	}
+
 	// Normal Constructor
 	public IMSJSONRequest(String oauth_consumer_key, String oauth_secret, HttpServletRequest request) 
 	{
@@ -108,45 +119,16 @@ public class IMSJSONRequest {
 		}
 
 		// System.out.println("OBH="+oauth_body_hash);
-        byte[] buf = new byte[1024];
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		int chars = 0;
 		try {
-			ServletInputStream is = request.getInputStream();
-			int readNum;
-			do {
-				readNum = is.read(buf);
-				if (readNum>0) {
-					bos.write(buf, 0, readNum); 
-					chars = chars + readNum;
-					// We dont' want a DOS
-					if ( chars > 10000000 ) {
-						errorMessage = "Message body size exceeded";
-						return;
-					}
-				}
-			} while (readNum>=0);
+			body = RequestBody.read(request.getInputStream(), request.getContentLength());
 		} catch(Exception e) {
 			errorMessage = "Could not read message body:"+e.getMessage();
 			return;
 		}
 
-        byte[] bytes = bos.toByteArray();
-
-		try {
-			postBody = new String(bytes, "UTF-8");
-			MessageDigest md = MessageDigest.getInstance("SHA1");
-			md.update(bytes); 
-			byte[] output = Base64.encode(md.digest());
-			String hash = new String(output);
-			// System.out.println("HASH="+hash+" bytes="+bytes.length);
-			if ( ! hash.equals(oauth_body_hash) ) {
-				errorMessage = "Body hash does not match. bytes="+bytes.length;
-				// System.out.println(postBody);
-				return;
-			}
-		} catch (Exception e) {
-			errorMessage = "Could not compute body hash.  bytes="+bytes.length;
+		// System.out.println("HASH="+body.getHash()+" bytes="+body.getLength());
+		if ( ! body.matches(oauth_body_hash) ) {
+			errorMessage = "Body hash does not match. bytes="+body.getLength();
 			return;
 		}
 		valid = true;  // So far we are valid
@@ -383,7 +383,7 @@ public class LTI2Servlet extends HttpServlet {
 			return;
 		}
 
-		JSONObject providerProfile = (JSONObject) JSONValue.parse(jsonRequest.getPostBody());
+		JSONObject providerProfile = (JSONObject) JSONValue.parse(jsonRequest.getPostBodyReader());
 		// System.out.println("OBJ:"+providerProfile);
 		if ( providerProfile == null  ) {
 			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -486,7 +486,7 @@ public class LTI2Servlet extends HttpServlet {
 			try {
 				jsonRequest = new IMSJSONRequest(request);
 				// System.out.println(jsonRequest.getPostBody());
-				JSONObject requestData = (JSONObject) JSONValue.parse(jsonRequest.getPostBody());
+				JSONObject requestData = (JSONObject) JSONValue.parse(jsonRequest.getPostBodyReader());
 				String comment = (String) requestData.get(LTI2Constants.COMMENT);
 				JSONObject resultScore = (JSONObject) requestData.get(LTI2Constants.RESULTSCORE);
 				String sGrade = (String) resultScore.get(LTI2Constants.VALUE);
@@ -533,7 +533,7 @@ System.out.println("accept="+acceptHdr+" ac="+acceptComplex);
 		if ( "PUT".equals(request.getMethod()) ) {
 			try {
 				jsonRequest = new IMSJSONRequest(request);
-				requestData = (JSONObject) JSONValue.parse(jsonRequest.getPostBody());
+				requestData = (JSONObject) JSONValue.parse(jsonRequest.getPostBodyReader());
 			} catch (Exception e) {
 				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 				doErrorJSON(request,response, jsonRequest, "Could not parse JSON", e);
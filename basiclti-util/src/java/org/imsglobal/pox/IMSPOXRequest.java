@@ -1,9 +1,10 @@
 package org.imsglobal.pox;
 
-import java.io.ByteArrayInputStream;
-import java.io.Reader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URLDecoder;
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -13,12 +14,10 @@ import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
 
 import net.oauth.OAuthAccessor;
 import net.oauth.OAuthConsumer;
@@ -28,9 +27,11 @@ import net.oauth.SimpleOAuthValidator;
 import net.oauth.server.OAuthServlet;
 import net.oauth.signature.OAuthSignatureMethod;
 
-import org.apache.commons.lang.StringEscapeUtils;
-import org.imsglobal.basiclti.Base64;
+import org.imsglobal.basiclti.RequestBody;
 import org.imsglobal.basiclti.XMLMap;
+import org.imsglobal.basiclti.XMLMapWriter;
+import org.imsglobal.basiclti.XMLParsers;
+import org.imsglobal.basiclti.XMLPaths;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -39,6 +40,15 @@ public class IMSPOXRequest {
 
 	private final static Logger Log = Logger.getLogger(IMSPOXRequest.class .getName());
 
+	private final static String ENVELOPE = "imsx_POXEnvelopeRequest";
+	private final static String HEADER = "imsx_POXHeader";
+	private final static String BODY = "imsx_POXBody";
+
+	private final static XMLParsers.Expression BODY_PATH =
+		new XMLParsers.Expression("/imsx_POXEnvelopeRequest/imsx_POXBody/*");
+	private final static XMLParsers.Expression HEADER_PATH =
+		new XMLParsers.Expression("/imsx_POXEnvelopeRequest/imsx_POXHeader/*");
+
 	public final static String MAJOR_SUCCESS = "success";
 	public final static String MAJOR_FAILURE = "failure";
 	public final static String MAJOR_UNSUPPORTED = "unsupported";
@@ -85,10 +95,14 @@ public class IMSPOXRequest {
 		MINOR_UNSUPPORTED
 	} ; 
 
+	// Use getPostDom(), getBodyElement() and getHeaderElement() - these
+	// are only filled in once the DOM is built
 	public Document postDom = null;
 	public Element bodyElement = null;
 	public Element headerElement = null;
+	// Use getPostBody() - this is only filled in once the body is decoded
 	public String postBody = null;
+	private RequestBody body = null;
 	private String header = null;
 	private String oauth_body_hash = null;
 	private String oauth_consumer_key = null;
@@ -98,6 +112,9 @@ public class IMSPOXRequest {
 	public String errorMessage = null;
 	public String base_string = null;
 	private Map<String,String> bodyMap = null;
+	// The paths parsePostBody pulls out of the body and what it found
+	private XMLPaths bodyPaths = XMLPaths.all();
+	private Map<String,String> bodyValues = null;
 	private Map<String,String> headerMap = null;
 
 	public String getOperation()
@@ -126,24 +143,28 @@ public class IMSPOXRequest {
 		return headerMap.get(path);
 	}
 
+	// Filled in by parsePostBody
 	public Map<String,String> getHeaderMap()
 	{
-		if ( headerMap != null ) return headerMap;
-		if ( headerElement == null ) return null;
-		headerMap = XMLMap.getMap(headerElement);
 		return headerMap;
 	}
 
+	// Every path in the body - use getBodyValues if you know what you want
 	public Map<String,String> getBodyMap()
 	{
-		if ( bodyMap != null ) return bodyMap;
-		if ( bodyElement == null ) return null;
-		bodyMap = XMLMap.getMap(bodyElement);
+		if ( bodyMap != null || ! valid ) return bodyMap;
+		if ( bodyPaths == XMLPaths.all() ) {
+			bodyMap = bodyValues;
+		} else {
+			bodyMap = readBodyValues(XMLPaths.all());
+		}
 		return bodyMap;
 	}
 
+	// Decoded on first use when the body came from a request
 	public String getPostBody()
 	{
+		if ( postBody == null && body != null ) postBody = body.getString();
 		return postBody;
 	}
 
@@ -161,6 +182,16 @@ public class IMSPOXRequest {
 		loadFromRequest(request);
 	}
 
+	/**
+	 * Constructor for delayed validation that only pulls bodyPaths out of
+	 * the body as it is parsed - getBodyValues(bodyPaths) is then free.
+	 */
+	public IMSPOXRequest(HttpServletRequest request, XMLPaths bodyPaths)
+	{
+		if ( bodyPaths != null ) this.bodyPaths = bodyPaths;
+		loadFromRequest(request);
+	}
+
 	// Constructor for testing...
 	public IMSPOXRequest(String bodyString)
 	{
@@ -204,80 +235,169 @@ public class IMSPOXRequest {
 		}
 
 		// System.out.println("OBH="+oauth_body_hash);
-		final char[] buffer = new char[0x10000];
 		try {
-			StringBuilder out = new StringBuilder();
-			Reader in = request.getReader();
-			int read;
-			do {
-				read = in.read(buffer, 0, buffer.length);
-				if (read>0) {
-					out.append(buffer, 0, read);
-				}
-			} while (read>=0);
-			postBody = out.toString();
+			body = RequestBody.read(request.getInputStream(), request.getContentLength());
 		} catch(Exception e) {
 			errorMessage = "Could not read message body:"+e.getMessage();
 			return;
 		}
 
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA1");
-			md.update(postBody.getBytes()); 
-			byte[] output = Base64.encode(md.digest());
-			String hash = new String(output);
-			// System.out.println("HASH="+hash);
-			if ( ! hash.equals(oauth_body_hash) ) {
-				errorMessage = "Body hash does not match header";
-				return;
-			}
-		} catch (Exception e) {
-			errorMessage = "Could not compute body hash";
+		// System.out.println("HASH="+body.getHash());
+		if ( ! body.matches(oauth_body_hash) ) {
+			errorMessage = "Body hash does not match header";
 			return;
 		}
 		parsePostBody();
 	}
 
+	// One StAX pass checks the XML and picks up the operation, the header
+	// and the values for bodyPaths.  The DOM is only built if someone asks for it.
 	public void parsePostBody()
 	{
+		XMLStreamReader reader = null;
 		try {
-			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			dbf.setFeature("http://xml.org/sax/features/external-general-entities", false); 
-			dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false); 
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			postDom = db.parse(new ByteArrayInputStream(postBody.getBytes()));
+			reader = openPostBody();
+			int depth = 0;
+			boolean envelope = false;
+			String section = null;
+			while ( reader.hasNext() ) {
+				int event = reader.next();
+				if ( event == XMLStreamConstants.END_ELEMENT ) {
+					depth--;
+					continue;
+				}
+				if ( event != XMLStreamConstants.START_ELEMENT ) continue;
+				depth++;
+				String name = qualifiedName(reader);
+				if ( depth == 1 ) {
+					envelope = ENVELOPE.equals(name);
+				} else if ( depth == 2 && envelope ) {
+					section = name;
+				} else if ( depth == 3 && envelope ) {
+					if ( BODY.equals(section) && operation == null ) {
+						operation = name;
+						bodyValues = bodyPaths.extract(reader);
+						depth--;
+					} else if ( HEADER.equals(section) && headerMap == null ) {
+						headerMap = XMLPaths.all().extract(reader);
+						depth--;
+					}
+				}
+			}
 		}catch(Exception e) {
 			errorMessage = "Could not parse XML: "+e.getMessage();
 			return;
+		} finally {
+			close(reader);
 		}
 
-		try {
-			XPath xpath = XPathFactory.newInstance().newXPath();
-			XPathExpression expr = xpath.compile("/imsx_POXEnvelopeRequest/imsx_POXBody/*");
-			Object result = expr.evaluate(postDom, XPathConstants.NODESET);
-			NodeList nodes = (NodeList) result;
-			bodyElement = (Element) nodes.item(0);
-			operation = bodyElement.getNodeName();
-
-			expr = xpath.compile("/imsx_POXEnvelopeRequest/imsx_POXHeader/*");
-			result = expr.evaluate(postDom, XPathConstants.NODESET);
-			nodes = (NodeList) result;
-			headerElement = (Element) nodes.item(0);
-		}catch(javax.xml.xpath.XPathExpressionException e) {
-			errorMessage = "Could not parse XPATH: "+e.getMessage();
-			return;
-		}catch(Exception e) {
-			errorMessage = "Could not parse input XML: "+e.getMessage();
-			return;
-		}
-
-		if ( operation == null || bodyElement == null ) {
+		if ( operation == null ) {
 			errorMessage = "Could not find operation";
 			return;
 		}
 		valid = true;
 	}
 
+	/**
+	 * Pull the wanted paths out of the operation element in the body.  The
+	 * paths are the same as the keys in getBodyMap.  The paths given to the
+	 * constructor were read while the body was parsed, and any paths can be
+	 * served from the full map once it is built, so only other paths cost
+	 * another pass over the body.
+	 */
+	public Map<String,String> getBodyValues(XMLPaths paths)
+	{
+		if ( ! valid ) return null;
+		if ( paths == bodyPaths ) return bodyValues;
+		if ( bodyMap != null ) return paths.select(bodyMap);
+		if ( bodyPaths == XMLPaths.all() ) return paths.select(bodyValues);
+		return readBodyValues(paths);
+	}
+
+	private Map<String,String> readBodyValues(XMLPaths paths)
+	{
+		XMLStreamReader reader = null;
+		try {
+			reader = openPostBody();
+			int depth = 0;
+			boolean inBody = false;
+			while ( reader.hasNext() ) {
+				int event = reader.next();
+				if ( event == XMLStreamConstants.END_ELEMENT ) {
+					depth--;
+					continue;
+				}
+				if ( event != XMLStreamConstants.START_ELEMENT ) continue;
+				depth++;
+				if ( depth == 2 ) {
+					inBody = BODY.equals(qualifiedName(reader));
+				} else if ( depth == 3 && inBody ) {
+					return paths.extract(reader);
+				}
+			}
+		} catch(Exception e) {
+			Log.info("Could not read body: "+e.getMessage());
+		} finally {
+			close(reader);
+		}
+		return null;
+	}
+
+	public Document getPostDom()
+	{
+		if ( postDom == null && valid ) {
+			try {
+				if ( body != null ) {
+					postDom = XMLParsers.parse(body.getInputStream());
+				} else {
+					postDom = XMLParsers.parse(postBody);
+				}
+				NodeList nodes = (NodeList) BODY_PATH.get().evaluate(postDom, XPathConstants.NODESET);
+				bodyElement = (Element) nodes.item(0);
+				nodes = (NodeList) HEADER_PATH.get().evaluate(postDom, XPathConstants.NODESET);
+				headerElement = (Element) nodes.item(0);
+			} catch(Exception e) {
+				Log.info("Could not build DOM: "+e.getMessage());
+			}
+		}
+		return postDom;
+	}
+
+	public Element getBodyElement()
+	{
+		getPostDom();
+		return bodyElement;
+	}
+
+	public Element getHeaderElement()
+	{
+		getPostDom();
+		return headerElement;
+	}
+
+	private XMLStreamReader openPostBody() throws XMLStreamException
+	{
+		if ( body != null ) return XMLParsers.createXMLStreamReader(body.getInputStream());
+		return XMLParsers.createXMLStreamReader(new StringReader(postBody));
+	}
+
+	private static String qualifiedName(XMLStreamReader reader)
+	{
+		String prefix = reader.getPrefix();
+		if ( prefix == null || prefix.length() < 1 ) return reader.getLocalName();
+		return prefix + ":" + reader.getLocalName();
+	}
+
+	private static void close(XMLStreamReader reader)
+	{
+		if ( reader == null ) return;
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			// Nothing to do
+		}
+	}
+
 	// Assumes data is all loaded
 	public void validateRequest(String oauth_consumer_key, String oauth_secret, HttpServletRequest request) 
 	{
@@ -336,23 +456,7 @@ public class IMSPOXRequest {
 		return false;
 	}
 
-	static final String fatalMessage = 
-		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-		"<imsx_POXEnvelopeResponse xmlns = \"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">\n" +
-		"    <imsx_POXHeader>\n" +
-		"        <imsx_POXResponseHeaderInfo>\n" + 
-		"            <imsx_version>V1.0</imsx_version>\n" +
-		"            <imsx_messageIdentifier>%s</imsx_messageIdentifier>\n" + 
-		"            <imsx_statusInfo>\n" +
-		"                <imsx_codeMajor>failure</imsx_codeMajor>\n" +
-		"                <imsx_severity>error</imsx_severity>\n" +
-		"                <imsx_description>%s</imsx_description>\n" +
-		"                <imsx_operationRefIdentifier>%s</imsx_operationRefIdentifier>" + 
-		"            </imsx_statusInfo>\n" +
-		"        </imsx_POXResponseHeaderInfo>\n" + 
-		"    </imsx_POXHeader>\n" +
-		"    <imsx_POXBody/>\n" +
-		"</imsx_POXEnvelopeResponse>";
+	public final static String NAMESPACE = "http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0";
 
 	public static String getFatalResponse(String description)
 	{
@@ -361,36 +465,49 @@ public class IMSPOXRequest {
 
 	public static String getFatalResponse(String description, String message_id)
 	{
-		Date dt = new Date();
-		String messageId = ""+dt.getTime();
-
-		return String.format(fatalMessage, 
-				StringEscapeUtils.escapeXml(messageId), 
-				StringEscapeUtils.escapeXml(description),
-				StringEscapeUtils.escapeXml(message_id)); 
-	}
-
-	static final String responseMessage = 
-		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-		"<imsx_POXEnvelopeResponse xmlns = \"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">\n" +
-		"  <imsx_POXHeader>\n" +
-		"    <imsx_POXResponseHeaderInfo>\n" + 
-		"      <imsx_version>V1.0</imsx_version>\n" +
-		"      <imsx_messageIdentifier>%s</imsx_messageIdentifier>\n" + 
-		"      <imsx_statusInfo>\n" +
-		"        <imsx_codeMajor>%s</imsx_codeMajor>\n" +
-		"        <imsx_severity>%s</imsx_severity>\n" +
-		"        <imsx_description>%s</imsx_description>\n" +
-		"        <imsx_messageRefIdentifier>%s</imsx_messageRefIdentifier>\n" +       
-		"        <imsx_operationRefIdentifier>%s</imsx_operationRefIdentifier>" + 
-		"%s\n"+ 
-		"      </imsx_statusInfo>\n" +
-		"    </imsx_POXResponseHeaderInfo>\n" + 
-		"  </imsx_POXHeader>\n" +
-		"  <imsx_POXBody>\n" +
-		"%s%s"+
-		"  </imsx_POXBody>\n" +
-		"</imsx_POXEnvelopeResponse>";
+		StringWriter sw = new StringWriter();
+		try {
+			writeFatalResponse(sw, description, message_id);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return sw.toString();
+	}
+
+	public static void writeFatalResponse(Writer out, String description) throws IOException
+	{
+		writeFatalResponse(out, description, "unknown");
+	}
+
+	/**
+	 * Stream a failure response for a request that could not be parsed
+	 */
+	public static void writeFatalResponse(Writer out, String description, String message_id)
+		throws IOException
+	{
+		try {
+			XMLMapWriter writer = new XMLMapWriter(out, true);
+			writer.startDocument();
+			writer.startElement("imsx_POXEnvelopeResponse");
+			writer.namespace(NAMESPACE);
+			writer.startElement("imsx_POXHeader");
+			writer.startElement("imsx_POXResponseHeaderInfo");
+			writer.element("imsx_version", "V1.0");
+			writer.element("imsx_messageIdentifier", ""+new Date().getTime());
+			writer.startElement("imsx_statusInfo");
+			writer.element("imsx_codeMajor", MAJOR_FAILURE);
+			writer.element("imsx_severity", SEVERITY_ERROR);
+			writer.element("imsx_description", description);
+			writer.element("imsx_operationRefIdentifier", message_id);
+			writer.endElement();
+			writer.endElement();
+			writer.endElement();
+			writer.element("imsx_POXBody", null);
+			writer.endDocument();
+		} catch (XMLStreamException e) {
+			throw XMLMapWriter.ioException(e);
+		}
+	}
 
 	public String getResponseUnsupported(String desc)
 	{
@@ -414,6 +531,44 @@ public class IMSPOXRequest {
 
 	public String getResponse(String description, String major, String severity, 
 			String messageId, Properties minor, String bodyString)
+	{
+		StringWriter sw = new StringWriter();
+		try {
+			writeResponse(sw, description, major, severity, messageId, minor, null, bodyString);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return sw.toString();
+	}
+
+	public void writeResponseUnsupported(Writer out, String desc) throws IOException
+	{
+		writeResponse(out, desc, MAJOR_UNSUPPORTED, null, null, null, null);
+	}
+
+	public void writeResponseFailure(Writer out, String desc, Properties minor, Map<?,?> body)
+		throws IOException
+	{
+		writeResponse(out, desc, null, null, null, minor, body);
+	}
+
+	public void writeResponseSuccess(Writer out, String desc, Map<?,?> body) throws IOException
+	{
+		writeResponse(out, desc, MAJOR_SUCCESS, null, null, null, body);
+	}
+
+	/**
+	 * Stream a response straight to out.  The body is a map in the form
+	 * taken by XMLMap.getXML and is written inside imsx_POXBody.
+	 */
+	public void writeResponse(Writer out, String description, String major, String severity, 
+			String messageId, Properties minor, Map<?,?> body) throws IOException
+	{
+		writeResponse(out, description, major, severity, messageId, minor, body, null);
+	}
+
+	private void writeResponse(Writer out, String description, String major, String severity, 
+			String messageId, Properties minor, Map<?,?> body, String bodyString) throws IOException
 	{
 		StringBuffer internalError = new StringBuffer();
 		if ( major == null ) major = MAJOR_FAILURE;
@@ -425,35 +580,28 @@ public class IMSPOXRequest {
 			messageId = ""+dt.getTime();
 		}
 
-		StringBuffer sb = new StringBuffer();
+		Map<String,String> minorFields = new TreeMap<String,String>();
 		if ( minor != null && minor.size() > 0 ) {
 			for(Object okey : minor.keySet() ) {
 				String key = (String) okey;
 				String value = minor.getProperty(key);
 				if ( key == null || value == null ) continue;
 				if ( !inArray(validMinor, value) ) {
-					if ( internalError.length() > 0 ) sb.append(", ");
-					internalError.append("Invalid imsx_codeMinorFieldValue="+major);
+					if ( internalError.length() > 0 ) internalError.append(", ");
+					internalError.append("Invalid imsx_codeMinorFieldValue="+value);
 					continue;
 				}
-				if ( sb.length() == 0 ) sb.append("\n        <imsx_codeMinor>\n");
-				sb.append("          <imsx_codeMinorField>\n            <imsx_codeMinorFieldName>");
-				sb.append(key);
-				sb.append("</imsx_codeMinorFieldName>\n            <imsx_codeMinorFieldValue>");
-				sb.append(StringEscapeUtils.escapeXml(value));
-				sb.append("</imsx_codeMinorFieldValue>\n          </imsx_codeMinorField>\n");
+				minorFields.put(key, value);
 			}
-			if ( sb.length() > 0 ) sb.append("        </imsx_codeMinor>");
 		}
-		String minorString = sb.toString();
 
 		if ( ! inArray(validMajor, major) ) {
-			if ( internalError.length() > 0 ) sb.append(", ");
+			if ( internalError.length() > 0 ) internalError.append(", ");
 			internalError.append("Invalid imsx_codeMajor="+major);
 		}
 		if ( ! inArray(validSeverity, severity) ) {
-			if ( internalError.length() > 0 ) sb.append(", ");
-			internalError.append("Invalid imsx_severity="+major);
+			if ( internalError.length() > 0 ) internalError.append(", ");
+			internalError.append("Invalid imsx_severity="+severity);
 		}
 
 		if ( internalError.length() > 0 ) {
@@ -461,25 +609,41 @@ public class IMSPOXRequest {
 			Log.warning(internalError.toString());
 		}
 
-		if ( bodyString == null ) bodyString = "";
-		// Trim off XML header
-		if ( bodyString.startsWith("<?xml") ) {
-			int pos = bodyString.indexOf("<",1);
-			if ( pos > 0 ) bodyString = bodyString.substring(pos);
+		try {
+			XMLMapWriter writer = new XMLMapWriter(out, true);
+			writer.startDocument();
+			writer.startElement("imsx_POXEnvelopeResponse");
+			writer.namespace(NAMESPACE);
+			writer.startElement("imsx_POXHeader");
+			writer.startElement("imsx_POXResponseHeaderInfo");
+			writer.element("imsx_version", "V1.0");
+			writer.element("imsx_messageIdentifier", messageId);
+			writer.startElement("imsx_statusInfo");
+			writer.element("imsx_codeMajor", major);
+			writer.element("imsx_severity", severity);
+			writer.element("imsx_description", description);
+			writer.element("imsx_messageRefIdentifier", getHeaderMessageIdentifier());
+			writer.element("imsx_operationRefIdentifier", operation);
+			if ( minorFields.size() > 0 ) {
+				writer.startElement("imsx_codeMinor");
+				for (Map.Entry<String,String> field : minorFields.entrySet()) {
+					writer.startElement("imsx_codeMinorField");
+					writer.element("imsx_codeMinorFieldName", field.getKey());
+					writer.element("imsx_codeMinorFieldValue", field.getValue());
+					writer.endElement();
+				}
+				writer.endElement();
+			}
+			writer.endElement();
+			writer.endElement();
+			writer.endElement();
+			writer.startElement("imsx_POXBody");
+			writer.map(body);
+			writer.raw(bodyString);
+			writer.endDocument();
+		} catch (XMLStreamException e) {
+			throw XMLMapWriter.ioException(e);
 		}
-		bodyString = bodyString.trim();
-		String newLine = "";
-		if ( bodyString.length() > 0 ) newLine = "\n";
-		return String.format(responseMessage, 
-				StringEscapeUtils.escapeXml(messageId), 
-				StringEscapeUtils.escapeXml(major), 
-				StringEscapeUtils.escapeXml(severity), 
-				StringEscapeUtils.escapeXml(description), 
-				StringEscapeUtils.escapeXml(getHeaderMessageIdentifier()), 
-				StringEscapeUtils.escapeXml(operation), 
-				StringEscapeUtils.escapeXml(minorString), 
-				bodyString, newLine); 
-
 	}
 
 	/** Unit Tests */
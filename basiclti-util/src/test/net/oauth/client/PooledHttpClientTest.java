@@ -0,0 +1,231 @@
+package net.oauth.client;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import net.oauth.OAuth;
+import net.oauth.http.HttpClient;
+import net.oauth.http.HttpMessage;
+import net.oauth.http.HttpResponseMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the client against a stand-in server on a local port
+ */
+public class PooledHttpClientTest {
+
+	private HttpServer server;
+	private String base;
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/plain", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				send(exchange, 200, "hello".getBytes("UTF-8"), null);
+			}
+		});
+		server.createContext("/echo", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, read(exchange.getRequestBody()), null);
+			}
+		});
+		server.createContext("/gzip", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				if ( accept == null || accept.indexOf("gzip") < 0 ) {
+					send(exchange, 406, new byte[0], null);
+					return;
+				}
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+				gzip.write("compressed body".getBytes("UTF-8"));
+				gzip.close();
+				send(exchange, 200, bytes.toByteArray(), "gzip");
+			}
+		});
+		server.createContext("/slow", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				int now = inFlight.incrementAndGet();
+				synchronized (maxInFlight) {
+					if ( now > maxInFlight.get() ) maxInFlight.set(now);
+				}
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				inFlight.decrementAndGet();
+				send(exchange, 200, "slow".getBytes("UTF-8"), null);
+			}
+		});
+		server.createContext("/missing", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 404, "not here".getBytes("UTF-8"), null);
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testGetAndReuse() throws Exception {
+		PooledHttpClient client = new PooledHttpClient(2000, 2000, 2);
+		for ( int i = 0; i < 3; i++ ) {
+			HttpResponseMessage response = client.execute(new HttpMessage("GET", new URL(base + "/plain")), null);
+			assertEquals(200, response.getStatusCode());
+			assertEquals("hello", new String(read(response.getBody()), "UTF-8"));
+		}
+		// Sequential requests should ride on the same kept-alive connection
+		assertEquals(1, clientPorts.size());
+		assertEquals(Long.valueOf(3), client.getMetrics().get("requests"));
+	}
+
+	@Test
+	public void testMetricsAreLogged() throws Exception {
+		final List<String> logged = new CopyOnWriteArrayList<String>();
+		Handler handler = new Handler() {
+			public void publish(LogRecord record) {
+				logged.add(record.getMessage());
+			}
+			public void flush() {
+			}
+			public void close() {
+			}
+		};
+		Logger logger = Logger.getLogger(PooledHttpClient.class.getName());
+		logger.addHandler(handler);
+		try {
+			PooledHttpClient client = new PooledHttpClient(2000, 2000, 2, 2);
+			for ( int i = 0; i < 5; i++ ) {
+				read(client.execute(new HttpMessage("GET", new URL(base + "/plain")), null).getBody());
+			}
+		} finally {
+			logger.removeHandler(handler);
+		}
+		assertEquals(2, logged.size());
+		assertTrue(logged.get(1), logged.get(1).contains("requests=4"));
+	}
+
+	@Test
+	public void testPostBody() throws Exception {
+		PooledHttpClient client = new PooledHttpClient(2000, 2000, 2);
+		byte[] body = "a=1&b=2".getBytes("UTF-8");
+		HttpMessage request = new HttpMessage("POST", new URL(base + "/echo"), new ByteArrayInputStream(body));
+		request.headers.add(new OAuth.Parameter(HttpMessage.CONTENT_TYPE, OAuth.FORM_ENCODED));
+		request.headers.add(new OAuth.Parameter(HttpMessage.CONTENT_LENGTH, body.length + ""));
+		HttpResponseMessage response = client.execute(request, null);
+		assertEquals("a=1&b=2", new String(read(response.getBody()), "UTF-8"));
+	}
+
+	@Test
+	public void testGzip() throws Exception {
+		PooledHttpClient client = new PooledHttpClient(2000, 2000, 2);
+		HttpResponseMessage response = client.execute(new HttpMessage("GET", new URL(base + "/gzip")), null);
+		assertEquals(200, response.getStatusCode());
+		assertEquals("compressed body", new String(read(response.getBody()), "UTF-8"));
+		assertNull(response.getHeader(HttpMessage.CONTENT_ENCODING));
+		assertEquals(Long.valueOf(1), client.getMetrics().get("compressed"));
+	}
+
+	@Test
+	public void testErrorStatus() throws Exception {
+		PooledHttpClient client = new PooledHttpClient(2000, 2000, 2);
+		HttpResponseMessage response = client.execute(new HttpMessage("GET", new URL(base + "/missing")), null);
+		assertEquals(404, response.getStatusCode());
+		assertEquals("not here", new String(read(response.getBody()), "UTF-8"));
+	}
+
+	@Test
+	public void testReadTimeout() throws Exception {
+		PooledHttpClient client = new PooledHttpClient(2000, 2000, 2);
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put(HttpClient.READ_TIMEOUT, Integer.valueOf(50));
+		try {
+			client.execute(new HttpMessage("GET", new URL(base + "/slow")), parameters);
+			fail("Expected a timeout");
+		} catch (SocketTimeoutException e) {
+			// Expected
+		}
+		assertEquals(Long.valueOf(1), client.getMetrics().get("timeouts"));
+	}
+
+	@Test
+	public void testPerHostLimit() throws Exception {
+		final PooledHttpClient client = new PooledHttpClient(5000, 5000, 2);
+		final CountDownLatch done = new CountDownLatch(6);
+		final AtomicInteger ok = new AtomicInteger();
+		for ( int i = 0; i < 6; i++ ) {
+			new Thread() {
+				public void run() {
+					try {
+						HttpResponseMessage response = client.execute(new HttpMessage("GET", new URL(base + "/slow")), null);
+						if ( response.getStatusCode() == 200 ) ok.incrementAndGet();
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals(6, ok.get());
+		assertTrue(maxInFlight.get() <= 2);
+		assertTrue(client.getMetrics().get("hostWaits") > 0);
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body, String encoding) throws IOException {
+		if ( encoding != null ) exchange.getResponseHeaders().add("Content-Encoding", encoding);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ( (n = in.read(buffer)) > 0 ) out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+}
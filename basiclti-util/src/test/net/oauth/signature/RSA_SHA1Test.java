@@ -0,0 +1,91 @@
+package net.oauth.signature;
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Map;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RSA_SHA1Test {
+
+	private static String privateKey;
+	private static String publicKey;
+
+	@BeforeClass
+	public static void makeKeys() throws Exception {
+		String [] keys = newKeys();
+		privateKey = keys[0];
+		publicKey = keys[1];
+	}
+
+	// Marker-stripped PEM is accepted for both keys
+	private static String [] newKeys() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		KeyPair pair = generator.generateKeyPair();
+		return new String [] {
+			OAuthSignatureMethod.base64Encode(pair.getPrivate().getEncoded()),
+			OAuthSignatureMethod.base64Encode(pair.getPublic().getEncoded()) };
+	}
+
+	@Test
+	public void testSignAndVerifyWithCachedKeys() throws Exception {
+		String [] keys = newKeys();
+		int before = RSA_SHA1.getCachedKeyCount();
+		for ( int i = 0; i < 3; i++ ) {
+			OAuthMessage message = newMessage("value"+i);
+			message.addRequiredParameters(accessor(keys[0], null));
+			message.validateMessage(accessor(null, keys[1]), new net.oauth.SimpleOAuthValidator());
+		}
+		// One private and one public key no matter how many signers were made
+		assertEquals(before + 2, RSA_SHA1.getCachedKeyCount());
+	}
+
+	@Test
+	public void testTamperedMessageFails() throws Exception {
+		OAuthMessage message = newMessage("value");
+		message.addRequiredParameters(accessor(privateKey, null));
+		OAuthMessage tampered = new OAuthMessage("POST", message.URL, new ArrayList<Map.Entry<String, String>>());
+		for ( Map.Entry<String, String> parameter : message.getParameters() ) {
+			String value = "p".equals(parameter.getKey()) ? "changed" : parameter.getValue();
+			tampered.addParameter(parameter.getKey(), value);
+		}
+		try {
+			tampered.validateMessage(accessor(null, publicKey), new net.oauth.SimpleOAuthValidator());
+			fail("Expected the signature to be rejected");
+		} catch (OAuthProblemException e) {
+			assertEquals("signature_invalid", e.getProblem());
+		}
+	}
+
+	@Test
+	public void testFingerprint() throws Exception {
+		assertEquals(RSA_SHA1.fingerprint("public", publicKey), RSA_SHA1.fingerprint("public", publicKey));
+		assertFalse(RSA_SHA1.fingerprint("public", publicKey).equals(RSA_SHA1.fingerprint("cert", publicKey)));
+		assertNull(RSA_SHA1.fingerprint("public", Integer.valueOf(1)));
+	}
+
+	private static OAuthMessage newMessage(String value) {
+		OAuthMessage message = new OAuthMessage("POST", "http://localhost/lti", new ArrayList<Map.Entry<String, String>>());
+		message.addParameter("p", value);
+		message.addParameter(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.RSA_SHA1);
+		return message;
+	}
+
+	private static OAuthAccessor accessor(String privateKey, String publicKey) {
+		OAuthConsumer consumer = new OAuthConsumer(null, "key", null, null);
+		consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.RSA_SHA1);
+		if ( privateKey != null ) consumer.setProperty(RSA_SHA1.PRIVATE_KEY, privateKey);
+		if ( publicKey != null ) consumer.setProperty(RSA_SHA1.PUBLIC_KEY, publicKey);
+		return new OAuthAccessor(consumer);
+	}
+}
@@ -0,0 +1,95 @@
+package org.imsglobal.basiclti;
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DigestUtilTest {
+
+	private static final String [] SAMPLES = {
+		"",
+		"abc",
+		"12345:/sites/foo/bar !@#$%^&*()_+|}{\":?><[]';/.,'Áª£¢°¤¦¥»¼",
+		"中文 हिन्दी 😀 emoji",
+		"unpaired \ud83d high and \ude00 low surrogates\ud83d",
+	};
+
+	@Test
+	public void testMatchesStringBytes() throws Exception {
+		for ( String sample : SAMPLES ) {
+			assertArrayEquals(sample, oldDigest("SHA-256", sample), DigestUtil.digest(DigestUtil.SHA256, sample));
+		}
+		// Longer than the encoding buffer
+		StringBuilder sb = new StringBuilder();
+		Random random = new Random(42);
+		for ( int i = 0; i < 5000; i++ ) sb.append((char) random.nextInt(0xd7ff));
+		assertArrayEquals(oldDigest("SHA-1", sb.toString()), DigestUtil.digest(DigestUtil.SHA1, sb));
+	}
+
+	@Test
+	public void testParts() throws Exception {
+		String joined = "secret:::user:::placement";
+		assertArrayEquals(oldDigest("SHA-256", joined),
+			DigestUtil.digest(DigestUtil.SHA256, "secret", ":::", "user", ":::", "placement"));
+		// The thread's digest is reset between uses
+		assertArrayEquals(DigestUtil.digest(DigestUtil.SHA256, joined), DigestUtil.digest(DigestUtil.SHA256, joined));
+	}
+
+	@Test
+	public void testNist() {
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", DigestUtil.sha256Hex("abc"));
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", DigestUtil.sha1Hex("a", "bc"));
+	}
+
+	@Test
+	public void testHex() {
+		byte[] allBytes = new byte[256];
+		for (int i = 0; i < allBytes.length; i++) allBytes[i] = (byte) (i+Byte.MIN_VALUE);
+		assertEquals(oldHex(allBytes, false), DigestUtil.hex(allBytes));
+		assertEquals(oldHex(allBytes, true), DigestUtil.legacyHex(allBytes));
+		assertNull(DigestUtil.hex(null));
+		assertNull(DigestUtil.legacyHex(null));
+	}
+
+	// A rough comparison with the old helpers, run by hand
+	public static void main(String[] args) throws Exception {
+		String secret = "d5c8b4a3-7f0c-4e6a-9c2b-0a1b2c3d4e5f";
+		String user = "8f1c2d3e-4b5a-6978-8a9b-0c1d2e3f4a5b";
+		String placement = "a1b2c3d4-e5f6-a7b8-c9d0-e1f2a3b4c5d6";
+		int count = 1000000;
+		for ( int round = 0; round < 3; round++ ) {
+			long start = System.nanoTime();
+			int sink = 0;
+			for ( int i = 0; i < count; i++ ) {
+				sink += oldHex(oldDigest("SHA-256", secret + ":::" + user + ":::" + placement), true).length();
+			}
+			long old = System.nanoTime() - start;
+			start = System.nanoTime();
+			for ( int i = 0; i < count; i++ ) {
+				sink += DigestUtil.legacyHex(DigestUtil.digest(DigestUtil.SHA256, secret, ":::", user, ":::", placement)).length();
+			}
+			long now = System.nanoTime() - start;
+			System.out.println("old="+(old/count)+"ns new="+(now/count)+"ns "+sink);
+		}
+	}
+
+	// The way LegacyShaUtil and PortableShaUtil used to do it
+	private static byte[] oldDigest(String algorithm, String str) throws Exception {
+		MessageDigest md = MessageDigest.getInstance(algorithm);
+		return md.digest(str.getBytes("UTF-8"));
+	}
+
+	private static String oldHex(byte[] base, boolean legacy) {
+		char[] tohex = "0123456789abcdef".toCharArray();
+		char[] c = new char[base.length * 2];
+		int i = 0;
+		for (byte b : base) {
+			int j = legacy ? b + 128 : b & 0xff;
+			c[i++] = tohex[j / 0x10];
+			c[i++] = tohex[j % 0x10];
+		}
+		return new String(c);
+	}
+}
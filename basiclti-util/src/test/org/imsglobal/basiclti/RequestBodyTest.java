@@ -0,0 +1,59 @@
+package org.imsglobal.basiclti;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+public class RequestBodyTest {
+
+	@Test
+	public void testHashAndString() throws Exception {
+		String text = "{\"title\":\"Café 中文\"}";
+		byte[] bytes = text.getBytes("UTF-8");
+		RequestBody body = RequestBody.read(new ByteArrayInputStream(bytes), bytes.length);
+		assertTrue(body.matches(expectedHash(bytes)));
+		assertEquals(bytes.length, body.getLength());
+		assertEquals(text, body.getString());
+		assertEquals(bytes.length, read(body.getInputStream()).length);
+	}
+
+	@Test
+	public void testUnknownLength() throws Exception {
+		byte[] bytes = new byte[100000];
+		for ( int i = 0; i < bytes.length; i++ ) bytes[i] = (byte) ('a' + i % 26);
+		RequestBody body = RequestBody.read(new ByteArrayInputStream(bytes), -1);
+		assertEquals(expectedHash(bytes), body.getHash());
+		assertArrayEquals(bytes, read(body.getInputStream()));
+	}
+
+	@Test
+	public void testTooLarge() throws Exception {
+		InputStream endless = new InputStream() {
+			public int read() {
+				return 'x';
+			}
+		};
+		try {
+			RequestBody.read(endless, -1);
+			fail("Expected the body to be rejected");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static String expectedHash(byte[] bytes) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA1");
+		return new String(Base64.encode(md.digest(bytes)));
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+		int c;
+		while ( (c = in.read()) >= 0 ) out.write(c);
+		return out.toByteArray();
+	}
+}
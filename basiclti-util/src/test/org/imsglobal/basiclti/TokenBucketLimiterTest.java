@@ -0,0 +1,75 @@
+package org.imsglobal.basiclti;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TokenBucketLimiterTest {
+
+	private static final long SECOND = 1000000000L;
+
+	// A limiter whose clock only moves when told to
+	private static class ManualLimiter extends TokenBucketLimiter {
+		long now = 0;
+
+		ManualLimiter(double rate, int burst, int maxKeys)
+		{
+			super(rate, burst, maxKeys);
+		}
+
+		protected long nanoTime()
+		{
+			return now;
+		}
+	}
+
+	@Test
+	public void testBurstThenRate() {
+		ManualLimiter limiter = new ManualLimiter(2.0, 3, 100);
+		assertEquals(0, limiter.acquire("key"));
+		assertEquals(0, limiter.acquire("key"));
+		assertEquals(0, limiter.acquire("key"));
+		// Empty - one token comes back every half second
+		assertEquals(500, limiter.acquire("key"));
+		limiter.now += SECOND / 4;
+		assertEquals(250, limiter.acquire("key"));
+		limiter.now += SECOND / 4;
+		assertEquals(0, limiter.acquire("key"));
+		assertTrue(limiter.acquire("key") > 0);
+		assertEquals(4, limiter.getAdmitted());
+		assertEquals(3, limiter.getRejected());
+		// Never refills past the burst
+		limiter.now += 60 * SECOND;
+		for (int i = 0; i < 3; i++) assertEquals(0, limiter.acquire("key"));
+		assertTrue(limiter.acquire("key") > 0);
+	}
+
+	@Test
+	public void testKeysAreSeparate() {
+		ManualLimiter limiter = new ManualLimiter(1.0, 1, 100);
+		assertEquals(0, limiter.acquire("noisy"));
+		assertTrue(limiter.acquire("noisy") > 0);
+		assertEquals(0, limiter.acquire("quiet"));
+		assertEquals(2, limiter.size());
+	}
+
+	@Test
+	public void testMaxKeys() {
+		ManualLimiter limiter = new ManualLimiter(1.0, 2, 2);
+		assertEquals(0, limiter.acquire("a"));
+		assertEquals(0, limiter.acquire("b"));
+		// a and b are busy so c and d share the overflow bucket
+		assertEquals(0, limiter.acquire("c"));
+		assertEquals(0, limiter.acquire("d"));
+		assertTrue(limiter.acquire("c") > 0);
+		assertEquals(2, limiter.size());
+		// Once a and b have filled up again they make way
+		limiter.now += 10 * SECOND;
+		assertEquals(0, limiter.acquire("c"));
+		assertEquals(1, limiter.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadRate() {
+		new TokenBucketLimiter(0, 10, 10);
+	}
+}
@@ -0,0 +1,185 @@
+package org.imsglobal.basiclti;
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.imsglobal.pox.IMSPOXRequest;
+import org.junit.Test;
+
+public class XMLMapWriterTest {
+
+	private static final String POX =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<imsx_POXEnvelopeRequest xmlns=\"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">\n" +
+		"<imsx_POXHeader><imsx_POXRequestHeaderInfo><imsx_version>V1.0</imsx_version>" +
+		"<imsx_messageIdentifier>999999123</imsx_messageIdentifier></imsx_POXRequestHeaderInfo></imsx_POXHeader>\n" +
+		"<imsx_POXBody><readResultRequest><resultRecord><sourcedGUID><sourcedId>3124567</sourcedId>" +
+		"</sourcedGUID></resultRecord></readResultRequest></imsx_POXBody>\n" +
+		"</imsx_POXEnvelopeRequest>";
+
+	private static Map<String,Object> sampleMap()
+	{
+		Map<String,Object> theMap = new TreeMap<String,Object>();
+		theMap.put("/a/b!x", "X");
+		theMap.put("/a/b", "B & <c>");
+		theMap.put("/a/c/d", "D");
+		theMap.put("/a/e", new String[] { "1", "2" });
+		theMap.put("/a/f", "");
+		theMap.put("/a/z[2]", "Z2");
+		List<Map<String,String>> lm = new ArrayList<Map<String,String>>();
+		Map<String,String> mm = new TreeMap<String,String>();
+		mm.put("/id", "1");
+		mm.put("/role!type", "Learner");
+		lm.add(mm);
+		mm = new TreeMap<String,String>();
+		mm.put("/id", "2");
+		lm.add(mm);
+		theMap.put("/a/list/item", lm);
+		Map<String,String> sub = new TreeMap<String,String>();
+		sub.put("/x/y", "Y");
+		theMap.put("/a/sub", sub);
+		return theMap;
+	}
+
+	// The DOM version without its declaration
+	private static String domXML(Map<?,?> theMap)
+	{
+		String xml = XMLMap.nodeToString(XMLMap.getXMLDom(theMap), false);
+		return xml.substring(xml.indexOf("<", 1));
+	}
+
+	@Test
+	public void testSameAsDom() {
+		assertEquals(domXML(sampleMap()), XMLMap.getXMLFragment(sampleMap(), false));
+		Map<String,Object> full = XMLMap.getFullMap(
+			"<sites><site><id>sue</id></site><site><id>fred</id><tools><tool><toolid>wiki</toolid></tool>" +
+			"<tool><toolid>blog</toolid></tool></tools></site></sites>");
+		assertEquals(domXML(full), XMLMap.getXMLFragment(full, false));
+	}
+
+	@Test
+	public void testPretty() {
+		Map<String,Object> theMap = new TreeMap<String,Object>();
+		theMap.put("/a/b", "B");
+		theMap.put("/a/c/d", "D");
+		theMap.put("/a/c!q", "Q");
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<a>\n  <b>B</b>\n  <c q=\"Q\">\n    <d>D</d>\n  </c>\n</a>", XMLMap.getXML(theMap, true));
+		assertEquals("<a>\n  <b>B</b>\n  <c q=\"Q\">\n    <d>D</d>\n  </c>\n</a>",
+			XMLMap.getXMLFragment(theMap, true));
+		// Reading it back gives the same values
+		assertEquals(XMLMap.getMap(domXML(theMap)), XMLMap.getMap(XMLMap.getXML(theMap, true)));
+	}
+
+	@Test
+	public void testElementsAroundMap() throws Exception {
+		StringWriter sw = new StringWriter();
+		XMLMapWriter writer = new XMLMapWriter(sw, true);
+		writer.startElement("top");
+		writer.attribute("id", "1");
+		writer.element("status", "a < b");
+		writer.element("empty", null);
+		Map<String,String> theMap = new TreeMap<String,String>();
+		theMap.put("/x/y", "Y");
+		writer.map(theMap);
+		writer.endDocument();
+		assertEquals("<top id=\"1\">\n  <status>a &lt; b</status>\n  <empty/>\n" +
+			"  <x>\n    <y>Y</y>\n  </x>\n</top>", sw.toString());
+	}
+
+	@Test
+	public void testPOXResponse() throws Exception {
+		IMSPOXRequest pox = new IMSPOXRequest(POX);
+		Map<String,Object> body = new TreeMap<String,Object>();
+		body.put("/readResultResponse/result/resultScore/language", "en");
+		body.put("/readResultResponse/result/resultScore/textString", "0.5");
+		StringWriter sw = new StringWriter();
+		pox.writeResponseSuccess(sw, "Result & read", body);
+		Map<String,String> response = XMLMap.getMap(sw.toString());
+		String info = "/imsx_POXEnvelopeResponse/imsx_POXHeader/imsx_POXResponseHeaderInfo";
+		assertEquals("success", response.get(info + "/imsx_statusInfo/imsx_codeMajor"));
+		assertEquals("Result & read", response.get(info + "/imsx_statusInfo/imsx_description"));
+		assertEquals("999999123", response.get(info + "/imsx_statusInfo/imsx_messageRefIdentifier"));
+		assertEquals("readResultRequest", response.get(info + "/imsx_statusInfo/imsx_operationRefIdentifier"));
+		assertEquals("0.5", response.get("/imsx_POXEnvelopeResponse/imsx_POXBody/readResultResponse/result/resultScore/textString"));
+
+		// The string form of the same response
+		String fragment = XMLMap.getXMLFragment(body, true);
+		String output = pox.getResponseSuccess("Result & read", fragment);
+		Map<String,String> fromString = XMLMap.getMap(output);
+		fromString.remove(info + "/imsx_messageIdentifier");
+		response.remove(info + "/imsx_messageIdentifier");
+		assertEquals(response, fromString);
+	}
+
+	@Test
+	public void testPOXMinorCodes() throws Exception {
+		IMSPOXRequest pox = new IMSPOXRequest(POX);
+		Properties minor = new Properties();
+		minor.setProperty("sourcedId", IMSPOXRequest.MINOR_IDALLOC);
+		minor.setProperty("bogus", "notacode");
+		Map<String,String> body = new TreeMap<String,String>();
+		body.put("/readResultResponse", "");
+		StringWriter sw = new StringWriter();
+		pox.writeResponseFailure(sw, "failed", minor, body);
+		Map<String,String> response = XMLMap.getMap(sw.toString());
+		String status = "/imsx_POXEnvelopeResponse/imsx_POXHeader/imsx_POXResponseHeaderInfo/imsx_statusInfo";
+		assertEquals("failure", response.get(status + "/imsx_codeMajor"));
+		assertEquals("error", response.get(status + "/imsx_severity"));
+		// Minor codes are elements, not escaped text
+		assertEquals("sourcedId", response.get(status + "/imsx_codeMinor/imsx_codeMinorField/imsx_codeMinorFieldName"));
+		assertEquals("idalloc", response.get(status + "/imsx_codeMinor/imsx_codeMinorField/imsx_codeMinorFieldValue"));
+		assertTrue(response.get(status + "/imsx_description").contains("Invalid imsx_codeMinorFieldValue=notacode"));
+		assertTrue(sw.toString().contains("<readResultResponse/>"));
+	}
+
+	@Test
+	public void testFatalResponse() throws Exception {
+		StringWriter sw = new StringWriter();
+		IMSPOXRequest.writeFatalResponse(sw, "Could not <parse>");
+		Map<String,String> response = XMLMap.getMap(sw.toString());
+		String status = "/imsx_POXEnvelopeResponse/imsx_POXHeader/imsx_POXResponseHeaderInfo/imsx_statusInfo";
+		assertEquals("Could not <parse>", response.get(status + "/imsx_description"));
+		assertEquals("unknown", response.get(status + "/imsx_operationRefIdentifier"));
+		assertTrue(IMSPOXRequest.getFatalResponse("Could not <parse>").contains("Could not &lt;parse&gt;"));
+	}
+
+	/**
+	 * Rough timing of the DOM and streaming writers - JMH is not part of
+	 * this build so run this by hand.
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String,Object> theMap = new TreeMap<String,Object>();
+		List<Map<String,String>> members = new ArrayList<Map<String,String>>();
+		for (int i = 0; i < 200; i++) {
+			Map<String,String> member = new TreeMap<String,String>();
+			member.put("/user_id", "user" + i);
+			member.put("/role", "Learner");
+			member.put("/person_name_full", "Person " + i);
+			member.put("/person_contact_email_primary", "person" + i + "@example.com");
+			members.add(member);
+		}
+		theMap.put("/message_response/members/member", members);
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			int sink = 0;
+			for (int i = 0; i < 200; i++) {
+				sink += XMLMap.nodeToString(XMLMap.getXMLDom(theMap), true).length();
+			}
+			long dom = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < 200; i++) {
+				StringWriter sw = new StringWriter();
+				XMLMapWriter.writeDocument(theMap, sw, true);
+				sink += sw.getBuffer().length();
+			}
+			long stax = System.nanoTime() - start;
+			System.out.println("dom=" + dom / 200000 + "us stax=" + stax / 200000 + "us (" + sink + ")");
+		}
+	}
+}
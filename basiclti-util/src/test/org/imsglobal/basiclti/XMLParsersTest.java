@@ -0,0 +1,61 @@
+package org.imsglobal.basiclti;
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.imsglobal.pox.IMSPOXRequest;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class XMLParsersTest {
+
+	private static final String POX =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<imsx_POXEnvelopeRequest xmlns=\"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">\n" +
+		"<imsx_POXHeader><imsx_POXRequestHeaderInfo><imsx_version>V1.0</imsx_version>" +
+		"<imsx_messageIdentifier>999999123</imsx_messageIdentifier></imsx_POXRequestHeaderInfo></imsx_POXHeader>\n" +
+		"<imsx_POXBody><readResultRequest><resultRecord><sourcedGUID><sourcedId>3124567</sourcedId>" +
+		"</sourcedGUID></resultRecord></readResultRequest></imsx_POXBody>\n" +
+		"</imsx_POXEnvelopeRequest>";
+
+	@Test
+	public void testBuilderIsReused() throws Exception {
+		assertSame(XMLParsers.getDocumentBuilder(), XMLParsers.getDocumentBuilder());
+		Document first = XMLParsers.parse("<a><b>one</b></a>");
+		Document second = XMLParsers.parse("<a><b>two</b></a>");
+		// Documents are not disturbed when the builder is reused
+		assertEquals("one", XMLMap.getMap(first).get("/a/b"));
+		assertEquals("two", XMLMap.getMap(second).get("/a/b"));
+	}
+
+	@Test
+	public void testExternalEntitiesIgnored() throws Exception {
+		String xml = "<?xml version=\"1.0\"?>\n" +
+			"<!DOCTYPE a [ <!ENTITY ext SYSTEM \"file:///etc/passwd\"> ]>\n" +
+			"<a><b>x&ext;</b></a>";
+		Map<String,String> map = XMLMap.getMap(xml);
+		assertNotNull(map);
+		assertEquals("x", map.get("/a/b"));
+	}
+
+	@Test
+	public void testPOXAcrossThreads() throws Exception {
+		final AtomicInteger good = new AtomicInteger();
+		Thread [] threads = new Thread[4];
+		for ( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread() {
+				public void run() {
+					for ( int j = 0; j < 50; j++ ) {
+						IMSPOXRequest pox = new IMSPOXRequest(POX);
+						if ( pox.valid && "readResultRequest".equals(pox.getOperation()) &&
+							"999999123".equals(pox.getHeaderMessageIdentifier()) ) good.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for ( Thread thread : threads ) thread.join();
+		assertEquals(200, good.get());
+	}
+}
@@ -0,0 +1,139 @@
+package org.imsglobal.basiclti;
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.imsglobal.pox.IMSPOXRequest;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class XMLPathsTest {
+
+	private static final String [] SAMPLES = {
+		"<a><b>B1</b><c q=\"Q1\"><x>X1</x><y r=\"R1\">Y1</y></c><d>D1</d></a>",
+		"<a><b>first</b><b>second</b><c><b>nested</b></c></a>",
+		"<a>\n  <b>x</b>\n</a>",
+		"<a>text<b>x</b>more</a>",
+		"<a><!-- note -->after<b/></a>",
+		"<a><b><![CDATA[cdata]]></b><c>a &amp; b &lt; c</c></a>",
+		"<p:a xmlns:p=\"urn:p\" xmlns=\"urn:d\"><p:b p:z=\"Z\">B</p:b><c> </c></p:a>",
+		"<?xml version=\"1.0\"?><!-- lead --><a x=\"1\"><b y=\"\">  </b></a>",
+	};
+
+	private static final String POX =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<imsx_POXEnvelopeRequest xmlns=\"http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0\">\n" +
+		"<imsx_POXHeader><imsx_POXRequestHeaderInfo><imsx_version>V1.0</imsx_version>" +
+		"<imsx_messageIdentifier>999999123</imsx_messageIdentifier></imsx_POXRequestHeaderInfo></imsx_POXHeader>\n" +
+		"<imsx_POXBody><replaceResultRequest><resultRecord><sourcedGUID><sourcedId>3124567</sourcedId>" +
+		"</sourcedGUID><result><resultScore><language>en</language><textString>0.92</textString></resultScore>" +
+		"<resultData><text>Great job</text></resultData></result></resultRecord></replaceResultRequest></imsx_POXBody>\n" +
+		"</imsx_POXEnvelopeRequest>";
+
+	@Test
+	public void testSameAsDom() throws Exception {
+		for ( String sample : SAMPLES ) {
+			Document doc = XMLMap.documentFromString(sample);
+			assertEquals(sample, XMLMap.getMap(doc), XMLMap.getMap(sample));
+		}
+		assertEquals(XMLMap.getMap(XMLMap.documentFromString(POX)), XMLMap.getMap(POX));
+	}
+
+	@Test
+	public void testWantedPaths() throws Exception {
+		XMLPaths paths = new XMLPaths("/a/c/x", "/a/c!q", "/a/missing");
+		Map<String,String> found = paths.extract(SAMPLES[0]);
+		assertEquals(2, found.size());
+		assertEquals("X1", found.get("/a/c/x"));
+		assertEquals("Q1", found.get("/a/c!q"));
+	}
+
+	@Test
+	public void testFromElement() throws Exception {
+		XMLPaths paths = new XMLPaths("/resultRecord/sourcedGUID/sourcedId",
+			"/resultRecord/result/resultScore/textString");
+		XMLStreamReader reader = XMLParsers.createXMLStreamReader(new java.io.StringReader(POX));
+		int depth = 0;
+		Map<String,String> found = null;
+		while ( reader.hasNext() ) {
+			int event = reader.next();
+			if ( event == XMLStreamConstants.START_ELEMENT ) {
+				depth++;
+				if ( depth == 3 ) {
+					found = paths.extract(reader);
+					depth--;
+				}
+			} else if ( event == XMLStreamConstants.END_ELEMENT ) {
+				depth--;
+			}
+		}
+		assertEquals("3124567", found.get("/resultRecord/sourcedGUID/sourcedId"));
+		assertEquals("0.92", found.get("/resultRecord/result/resultScore/textString"));
+		assertEquals(2, found.size());
+	}
+
+	@Test
+	public void testPOXRequest() throws Exception {
+		IMSPOXRequest pox = new IMSPOXRequest(POX);
+		assertTrue(pox.valid);
+		assertEquals("replaceResultRequest", pox.getOperation());
+		assertEquals("V1.0", pox.getHeaderVersion());
+		Map<String,String> found = pox.getBodyValues(new XMLPaths("/resultRecord/result/resultData/text"));
+		assertEquals("Great job", found.get("/resultRecord/result/resultData/text"));
+		assertEquals(1, found.size());
+		// Served from the same pass as the full map
+		assertEquals(new XMLPaths("/resultRecord/sourcedGUID/sourcedId", "/resultRecord/result/resultScore/textString").extract(
+			"<resultRecord><sourcedGUID><sourcedId>3124567</sourcedId></sourcedGUID><result><resultScore>" +
+			"<language>en</language><textString>0.92</textString></resultScore></result></resultRecord>"),
+			pox.getBodyValues(new XMLPaths("/resultRecord/sourcedGUID/sourcedId", "/resultRecord/result/resultScore/textString")));
+		// The DOM is still there for those who need it
+		assertEquals(XMLMap.getMap(pox.getBodyElement()), pox.getBodyMap());
+		assertEquals(XMLMap.getMap(pox.getHeaderElement()), pox.getHeaderMap());
+	}
+
+	@Test
+	public void testBadXml() {
+		assertNull(XMLMap.getMap("<a><b></a>"));
+		assertNull(new XMLPaths("/a").extract("not xml"));
+	}
+
+	@Test
+	public void testPOXRequestWantedPaths() throws Exception {
+		XMLPaths paths = new XMLPaths("/resultRecord/sourcedGUID/sourcedId");
+		IMSPOXRequest pox = new IMSPOXRequest(POX);
+		assertEquals(paths.select(pox.getBodyMap()), pox.getBodyValues(paths));
+		assertEquals(1, pox.getBodyValues(paths).size());
+	}
+
+	// A rough comparison of the DOM walk, the full StAX pass and the StAX
+	// pass over the wanted paths - the numbers only mean something on a quiet
+	// machine, so this is not a test
+	public static void main(String[] args) throws Exception {
+		XMLPaths paths = new XMLPaths(
+			"/imsx_POXEnvelopeRequest/imsx_POXBody/replaceResultRequest/resultRecord/sourcedGUID/sourcedId",
+			"/imsx_POXEnvelopeRequest/imsx_POXBody/replaceResultRequest/resultRecord/result/resultScore/textString");
+		int count = 100000;
+		for ( int round = 0; round < 3; round++ ) {
+			long start = System.nanoTime();
+			int sink = 0;
+			for ( int i = 0; i < count; i++ ) {
+				sink += XMLMap.getMap(XMLMap.documentFromString(POX)).size();
+			}
+			long dom = System.nanoTime() - start;
+			start = System.nanoTime();
+			for ( int i = 0; i < count; i++ ) {
+				sink += XMLMap.getMap(POX).size();
+			}
+			long all = System.nanoTime() - start;
+			start = System.nanoTime();
+			for ( int i = 0; i < count; i++ ) {
+				sink += paths.extract(POX).size();
+			}
+			long wanted = System.nanoTime() - start;
+			System.out.println("dom="+(dom/count)+"ns stax-all="+(all/count)+"ns stax-paths="+(wanted/count)+"ns "+sink);
+		}
+	}
+}